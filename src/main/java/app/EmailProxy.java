@@ -53,6 +53,14 @@ public class EmailProxy extends Thread
     private IncomingEmailPipe incomingPipe;
     /** Outgoing email pipe */
     private OutgoingEmailPipe outgoingPipe;
+    /** Outgoing email queue, if store-and-forward is enabled */
+    private OutgoingMailQueue outgoingQueue;
+    /** Connections used to deliver queued email */
+    private SMTPConnectionPool outgoingConnections;
+    /** Non blocking incoming relay, if enabled. The incoming pipe then only processes email. */
+    private RelayPipe incomingRelay;
+    /** Non blocking outgoing relay, if enabled. The outgoing pipe then only processes email. */
+    private RelayPipe outgoingRelay;
 
     /** Configuration information */
     private ConfigurationData configData;
@@ -75,6 +83,14 @@ public class EmailProxy extends Thread
                 System.exit(0);
             }
 
+            // Debugging output, off unless asked for
+            String debugLevel = configData.getSetting("debug.level","0");
+            debug.Debug.setLevel(Integer.parseInt(debugLevel));
+            String subsystems[] = {debug.Debug.OPENPGP, debug.Debug.KEYSTORE, debug.Debug.UI};
+            for (int n = 0; n < subsystems.length; n++)
+                debug.Debug.setLevel(subsystems[n], Integer.parseInt(configData.getSetting("debug.level." + subsystems[n], debugLevel)));
+            debug.Debug.setRateLimit(Integer.parseInt(configData.getSetting("debug.ratelimit","50")));
+
             // Starting GUI & redirecting stdout & stderr if hideGUI is false
             MainWindow mainWindow = new MainWindow(configData);
             StatusOutputStream statusWindow = new StatusOutputStream(mainWindow);
@@ -87,6 +103,23 @@ public class EmailProxy extends Thread
             // display a short copyright message
             displayCopyrightMessageShort();
 
+            // Stage timings, available over JMX and written to the status window every few minutes if asked for
+            if (configData.getSetting("metrics.jmx","1").compareTo("1")==0)
+                Metrics.registerMBeans();
+            long dumpInterval = Long.parseLong(configData.getSetting("metrics.dumpinterval","0")) * 60000;
+            if (dumpInterval > 0) {
+                new Timer(true).schedule(new TimerTask() {
+                    public void run() {
+                        System.out.println(Metrics.dump());
+                    }
+                }, dumpInterval, dumpInterval);
+            }
+            Metrics.addGauge("workerpool.queued", new Metrics.Gauge() {
+                public long getValue() {
+                    return WorkerPool.getPool().getQueuedSubmissionCount() + WorkerPool.getPool().getQueuedTaskCount();
+                }
+            });
+
             // Construct pipes and start server threads
             try {
                 
@@ -116,6 +149,12 @@ public class EmailProxy extends Thread
                         algorithmHandler = new OpenPGPHandler(
                             symmetricAlgorithm
                         );
+                        ((OpenPGPHandler)algorithmHandler).setMarkPlainMail(configData.getSetting("openpgp.incoming.markplainmail","0").compareTo("1")==0);
+
+                        // where to write the time each incoming email took to process, off by default
+                        String traceFile = configData.getSetting("openpgp.trace.file","");
+                        if (traceFile.length() > 0)
+                            TraceFile.open(new File(traceFile));
                         
                         
                         // Load key manager lists
@@ -170,6 +209,35 @@ public class EmailProxy extends Thread
                         PassPhraseRequester ppr = new PassPhraseDialogGenerator();
 
                     incomingPipe = new IncomingEmailPipe(pop3,algorithmHandler,secretKeyManagers,ppr,publicKeyManagers,serverSide);
+                    incomingPipe.setPipelineDepth(Integer.parseInt(configData.getSetting("proxyserver.incoming.pipelinedepth","8")));
+
+                    // Cache of decrypted email, sizes are in kilobytes
+                    long cacheMemory = Long.parseLong(configData.getSetting("proxyserver.incoming.cache.memory","8192")) * 1024;
+                    if (cacheMemory > 0) {
+                        String cacheDirectory = configData.getSetting("proxyserver.incoming.cache.directory","");
+                        final IncomingMailCache cache;
+
+                        if (cacheDirectory.length() > 0)
+                            cache = new IncomingMailCache(cacheMemory, new File(cacheDirectory),
+                                Long.parseLong(configData.getSetting("proxyserver.incoming.cache.disk","65536")) * 1024);
+                        else
+                            cache = new IncomingMailCache(cacheMemory);
+
+                        Metrics.addGauge("incoming.cache.hitrate", new Metrics.Gauge() {
+                            public long getValue() {
+                                long hits = cache.getHits();
+                                long total = hits + cache.getMisses();
+                                return (total == 0) ? 0 : hits * 100 / total;
+                            }
+                        });
+                        Metrics.addGauge("incoming.cache.memory", new Metrics.Gauge() {
+                            public long getValue() {
+                                return cache.getMemoryUsed();
+                            }
+                        });
+
+                        incomingPipe.setCache(cache, Integer.parseInt(configData.getSetting("proxyserver.incoming.prefetch","5")));
+                    }
 
 
                // Create outgoing SMTP pipe
@@ -186,21 +254,85 @@ public class EmailProxy extends Thread
                         (configData.getSetting("openpgp.encryptalloutgoingemail","1").compareTo("1")==0),
                         (configData.getSetting("openpgp.signalloutgoingemail","1").compareTo("1")==0));
 
+                    // Non blocking relays, which only pass the pipes the email to process
+                    boolean relay = (configData.getSetting("proxyserver.engine","blocking").compareToIgnoreCase("nio")==0);
+                    if (relay) {
+                        incomingRelay = new RelayPipe("IncomingRelayPipe", new POP3Relay(), incomingPipe,
+                            Integer.parseInt(configData.getSetting("proxyserver.incoming.port","110")),
+                            configData.getSetting("mailserver.incoming.address",""),
+                            Integer.parseInt(configData.getSetting("mailserver.incoming.port","110")));
+                        outgoingRelay = new RelayPipe("OutgoingRelayPipe", new SMTPRelay(), outgoingPipe,
+                            Integer.parseInt(configData.getSetting("proxyserver.outgoing.port","25")),
+                            configData.getSetting("mailserver.outgoing.address",""),
+                            Integer.parseInt(configData.getSetting("mailserver.outgoing.port","25")));
+
+                        int payloadThreads = Integer.parseInt(configData.getSetting("proxyserver.relay.threads",
+                            Integer.toString(RelayPipe.PAYLOAD_THREADS)));
+                        incomingRelay.setPayloadThreads(payloadThreads);
+                        outgoingRelay.setPayloadThreads(payloadThreads);
+                    }
+
+                    // Connections to the mail server, kept open (and logged in) from one email to the next
+                    boolean queued = (!relay) && (configData.getSetting("proxyserver.outgoing.queue.enabled","0").compareTo("1")==0);
+                    int workers = Integer.parseInt(configData.getSetting("proxyserver.outgoing.queue.workers","2"));
+                    if (!relay) {
+                        outgoingConnections = new SMTPConnectionPool(
+                            Integer.parseInt(configData.getSetting("proxyserver.outgoing.connections",
+                                Integer.toString(queued ? workers : SMTPConnectionPool.MAX_PER_HOST))),
+                            Long.parseLong(configData.getSetting("proxyserver.outgoing.idletimeout","60")) * 1000,
+                            SMTPConnectionPool.CHECK_INTERVAL);
+
+                        outgoingPipe.setConnectionPool(outgoingConnections,
+                            configData.getSetting("mailserver.outgoing.address",""),
+                            Integer.parseInt(configData.getSetting("mailserver.outgoing.port","25")));
+                    }
+
+                    // Store-and-forward, off by default as the delivery workers can not log in to the mail server
+                    if (queued) {
+                        outgoingQueue = new OutgoingMailQueue(new File(configData.getSetting("proxyserver.outgoing.queue.directory","outqueue")));
+                        Metrics.addGauge("outgoing.queue.depth", new Metrics.Gauge() {
+                            public long getValue() {
+                                return outgoingQueue.getDepth();
+                            }
+                        });
+                        Metrics.addGauge("outgoing.queue.inflight", new Metrics.Gauge() {
+                            public long getValue() {
+                                return outgoingQueue.getInFlight();
+                            }
+                        });
+
+                        outgoingPipe.setQueue(outgoingQueue, outgoingConnections,
+                            configData.getSetting("mailserver.outgoing.address",""),
+                            Integer.parseInt(configData.getSetting("mailserver.outgoing.port","25")),
+                            workers,
+                            Integer.parseInt(configData.getSetting("proxyserver.outgoing.queue.batchsize","10")));
+                    }
+
             } catch (Exception e) {
                 System.err.println("Could not create email pipes : " + e.getMessage());
                 e.printStackTrace(System.err);
             }
             
             // Start the pipes
-                incomingPipe.start();
-                outgoingPipe.start();
+                if (incomingRelay!=null) {
+                    incomingRelay.start();
+                    outgoingRelay.start();
+                } else {
+                    incomingPipe.start();
+                    outgoingPipe.start();
+                }
 
     }
 
     /** The shutdown hook that will be run by the Java VM when the proxy server exits. */
     public void run() {
-            if (incomingPipe!=null) incomingPipe.stopPipe();
-            if (outgoingPipe!=null) outgoingPipe.stopPipe();
+            if (incomingRelay!=null) incomingRelay.stopPipe();
+            else if (incomingPipe!=null) incomingPipe.stopPipe();
+            if (outgoingRelay!=null) outgoingRelay.stopPipe();
+            else if (outgoingPipe!=null) outgoingPipe.stopPipe();
+            if (outgoingQueue!=null) outgoingQueue.close();
+            if (outgoingConnections!=null) outgoingConnections.close();
+            TraceFile.close();
     }
     
     /** Display a copyright message (as recommended in the GPL license). */
@@ -36,6 +36,7 @@ import core.keyhandlers.KeyHandler;
 import java.security.PrivateKey;
 import java.util.Vector;
 import javax.swing.JOptionPane;
+import system.Metrics;
 
 
 /**
@@ -53,8 +54,17 @@ public abstract class EmailPipe extends Thread {
      * <p>When the algorithm handler needs a password it will try every code cached in this list. 
      * If no password works or the list is empty an exception is thrown and the pipe prompts the user
      * for a new password.</p>
+     * <p>The list is replaced rather than changed, and is volatile so other threads see the new list.</p>
      */
-    protected PassPhrase[] passPhrases;
+    protected volatile PassPhrase[] passPhrases;
+
+    /**
+     * <p>Held while a pipe asks the user something, so that emails processed at the same time put up one dialog at 
+     * a time.</p>
+     * <p>A pipe that waited for the lock should check whether passPhrases changed while it waited, as the passphrase it
+     * was going to ask for may just have been entered.</p>
+     */
+    protected static final Object PROMPT_LOCK = new Object();
     
     
     /** A string to prefix status output with. */
@@ -63,6 +73,9 @@ public abstract class EmailPipe extends Thread {
     /** Is the thread main loop running or not? */
     private boolean isRunning;
 
+    /** Times for the session in progress, null if there isn't one. */
+    private Metrics.Scope session;
+
     /** Generic pipe construction. */
     public EmailPipe() {
         setRunning(false);
@@ -78,8 +91,8 @@ public abstract class EmailPipe extends Thread {
         return isRunning;
     }
     
-    /** Add passphrase to list of passphrases. */
-    public void addPassphrase(PassPhrase passphrase) {
+    /** Add passphrase to list of passphrases. Emails may be processed on several threads, so this is synchronized. */
+    public synchronized void addPassphrase(PassPhrase passphrase) {
         
         Vector v = new Vector();
         
@@ -116,6 +129,22 @@ public abstract class EmailPipe extends Thread {
         return pipeStatusPrefix;
     }
 
+    /** <p>Start timing a session in this thread, for the pipe's metrics and the session's own.</p> */
+    protected void beginSession() {
+        session = Metrics.beginSession(Metrics.getPipeScope(pipeStatusPrefix));
+    }
+
+    /** <p>Stop timing the session started by beginSession, writing a summary of its times to the debug output.</p> */
+    protected void endSession() {
+        if (session == null)
+            return;
+
+        Metrics.endSession();
+        if (debug.Debug.isEnabled(1))
+            debug.Debug.println(1, pipeStatusPrefix + ": session " + session);
+        session = null;
+    }
+
     /** Print a nice status message to the console. */
     protected void printStatus(String status) {
         System.out.println(pipeStatusPrefix + ": " + status);
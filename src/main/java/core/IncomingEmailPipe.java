@@ -41,6 +41,15 @@ import java.security.PrivateKey;
 import java.lang.*;
 import java.io.*;
 import java.net.*;
+import java.util.Hashtable;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import system.Metrics;
 
 /**
  * <p>The IncomingEmailPipe class presents a server to a user's email client, and then connects
@@ -63,11 +72,25 @@ import java.net.*;
  * will connect to the mail server. This is to prevent other users on the same machine from sending email through the proxy
  * by accident or on purpose.</p>
  *
+ * <p>If the email client pipelines several RETR commands and the server supports pipelining, the commands are all
+ * sent to the server at once and the emails are read in the background, so that the next email downloads while the 
+ * last one is being decrypted.</p>
+ *
+ * <p>If a cache has been set, processed emails are kept in it so that an email the client downloads again (eg. 
+ * when it leaves email on the server) is sent straight from the cache. After the client asks for a LIST or UIDL
+ * listing the pipe also uses the time the client is idle to download the listed emails itself, decrypting them 
+ * in the background so that they are ready when the client asks for them. Emails that need a passphrase that has
+ * not been entered yet are left for the client's RETR, so the user is only prompted when they are wanted.</p>
+ *
+ * <p>Instead of being started, the pipe may be used as the RelayPayloadHandler of a RelayPipe, which then does the 
+ * relaying and passes the pipe each email to decrypt / verify.</p>
+ *
  * @see RecvPipeServerInterface
  * @see AlgorithmHandler
  * @see RecvPipeClientInterface
+ * @see RelayPipe
  */
-public class IncomingEmailPipe extends EmailPipe
+public class IncomingEmailPipe extends EmailPipe implements RelayPayloadHandler
 {
         /** The object that handles connections from the email client. */
         protected RecvPipeServerInterface protocolServer;
@@ -76,6 +99,42 @@ public class IncomingEmailPipe extends EmailPipe
         
         /** The object that handles the passphrase requests */
         private PassPhraseRequester requester;
+
+        /** The largest number of RETR commands sent to the server at once. */
+        private int pipelineDepth = 8;
+
+        /** Processed emails, null if there is no cache. */
+        private IncomingMailCache cache;
+        /** Number of emails to download ahead of the client in each session. */
+        private int prefetchCount;
+        /** Threads that decrypt the emails downloaded ahead of the client, null until one is downloaded. */
+        private ExecutorService prefetchThreads;
+
+        /** Number of downloaded emails decrypted in the background at once. */
+        private static final int PREFETCH_THREADS = 2;
+
+        // session state, reset for each connection
+
+        /** The user's name on the server, used to make the cache keys. */
+        private String account;
+        /** Message numbers in the order the client listed them. */
+        private Vector listed;
+        /** Message number -> unique id, from UIDL listings. */
+        private Hashtable messageUids;
+        /** Message number -> size, from LIST listings. */
+        private Hashtable messageSizes;
+        /** Message number -> digest of the email as downloaded. */
+        private Hashtable messageDigests;
+        /** Message number -> Future of an email being decrypted in the background. */
+        private Hashtable decrypting;
+        /** Messages the client has deleted. */
+        private Hashtable deleted;
+        /** Message numbers of the RETR commands sent to the server, oldest first. */
+        private Vector retrieving;
+        /** Index into listed of the next message to download ahead of the client. */
+        private int nextPrefetch;
+        /** Emails downloaded ahead of the client this session. */
+        private int prefetched;
         
         /**
          * <p>Incoming email pipe constructor. </p>
@@ -112,6 +171,277 @@ public class IncomingEmailPipe extends EmailPipe
                                      publicKeyHandlers = pubKeyHandlers;
         }
 
+        /**
+         * <p>Set the largest number of RETR commands sent to the server at once.</p>
+         * <p>Each email being downloaded ahead of the client is held in memory. Set to 1 to turn pipelining off.</p>
+         */
+        public void setPipelineDepth(int depth) {
+            pipelineDepth = depth;
+        }
+
+        /**
+         * <p>Keep processed emails in a cache, and download and decrypt emails ahead of the client.</p>
+         * @param cache The cache to use, which may be shared with other pipes.
+         * @param prefetch The number of emails to download ahead of the client after a LIST or UIDL, 0 for none.
+         */
+        public void setCache(IncomingMailCache cache, int prefetch) {
+            this.cache = cache;
+            prefetchCount = prefetch;
+        }
+
+        /** Forget everything known about the last session. */
+        private void resetSession() {
+            account = "";
+            listed = new Vector();
+            messageUids = new Hashtable();
+            messageSizes = new Hashtable();
+            messageDigests = new Hashtable();
+            decrypting = new Hashtable();
+            deleted = new Hashtable();
+            retrieving = new Vector();
+            nextPrefetch = 0;
+            prefetched = 0;
+        }
+
+        /**
+         * <p>Record the message numbers in a LIST or UIDL response.</p>
+         * <p>Each line of the listing is a message number followed by the size or unique id.</p>
+         */
+        private void readListing(String listing, Hashtable values) {
+            StringTokenizer lines = new StringTokenizer(listing, "\r\n");
+
+            while (lines.hasMoreTokens()) {
+                StringTokenizer tokens = new StringTokenizer(lines.nextToken(), " ");
+                if (tokens.countTokens() < 2)
+                    continue;
+
+                try {
+                    Integer n = Integer.valueOf(tokens.nextToken());
+                    values.put(n, tokens.nextToken());
+                    if (!listed.contains(n))
+                        listed.add(n);
+                } catch (NumberFormatException e) {
+                    // not a listing line
+                }
+            }
+        }
+
+        /** Keep track of the commands that change which emails may be sent from the cache. */
+        private void noteCommand(IPTPCommand command) {
+            if (command instanceof IPTPUser) {
+                account = ((IPTPUser)command).getUserID();
+            } else if (command instanceof IPTPRelay) {
+                String relay = ((IPTPRelay)command).getRelay().trim().toUpperCase();
+
+                if (relay.startsWith("DELE ")) {
+                    try {
+                        deleted.put(Integer.valueOf(relay.substring(5).trim()), Boolean.TRUE);
+                    } catch (NumberFormatException e) {
+                        // the server will complain
+                    }
+                } else if (relay.equals("RSET")) {
+                    deleted.clear();
+                }
+            }
+        }
+
+        /** Return the cache key for a message's unique id, or null if its unique id is not known. */
+        private String getUidKey(Integer n) {
+            String uid = (String)messageUids.get(n);
+            if (uid == null)
+                return null;
+
+            return account + "\n" + uid;
+        }
+
+        /** Returns true if the email requested by a RETR can be sent from the cache. */
+        private boolean isCached(IPTPRetr retr) {
+            Integer n = new Integer(retr.getMessageNo());
+
+            if ((cache == null) || (deleted.containsKey(n)))
+                return false;
+
+            if (decrypting.containsKey(n))
+                return true;
+
+            String uid = getUidKey(n);
+            if ((uid != null) && (cache.containsUid(uid)))
+                return true;
+
+            String digest = (String)messageDigests.get(n);
+            return (digest != null) && (cache.contains(digest));
+        }
+
+        /**
+         * <p>Return the response to a RETR from the cache.</p>
+         * <p>If the email is still being decrypted in the background this waits for it.</p>
+         * @return The response, or null if the email is not in the cache after all.
+         */
+        private IPTPRetrResponse getCachedResponse(IPTPRetr retr) {
+            Integer n = new Integer(retr.getMessageNo());
+
+            Future task = (Future)decrypting.remove(n);
+            if (task != null) {
+                try {
+                    task.get();
+                } catch (Exception e) {
+                    // not cached, the email will be downloaded again
+                }
+            }
+
+            byte processed[] = null;
+
+            String uid = getUidKey(n);
+            if (uid != null)
+                processed = cache.getByUid(uid);
+
+            String digest = (String)messageDigests.get(n);
+            if ((processed == null) && (digest != null))
+                processed = cache.get(digest);
+
+            if (processed == null)
+                return null;
+
+            return new IPTPRetrResponse(true, processed);
+        }
+
+        /**
+         * <p>Download listed emails while the client is idle, and decrypt them in the background.</p>
+         * <p>Emails already in the cache, and emails too large to cache, are skipped. Once the client sends a command
+         * no further emails are downloaded, but the client may have to wait for the one being downloaded.</p>
+         */
+        private void prefetch() throws ProxyServerCoreException {
+            if ((cache == null) || (prefetched >= prefetchCount))
+                return;
+
+            while ((prefetched < prefetchCount) && (nextPrefetch < listed.size()) && (!protocolServer.isCommandWaiting())) {
+                Integer n = (Integer)listed.elementAt(nextPrefetch++);
+                IPTPRetr retr = new IPTPRetr(n.intValue());
+
+                if ((isCached(retr)) || (deleted.containsKey(n)))
+                    continue;
+
+                String size = (String)messageSizes.get(n);
+                if ((size != null) && (!cache.isCacheable(Long.parseLong(size))))
+                    continue;
+
+                protocolClient.sendCommand(retr);
+                IPTPCommandResponse response = protocolClient.awaitCommandResponse();
+                if ((!(response instanceof IPTPRetrResponse)) || (!response.isOk()))
+                    continue;
+
+                printStatus("Downloaded email " + n + " ahead of the client...");
+                prefetched++;
+                decryptInBackground(n, ((IPTPRetrResponse)response).getMessageBytes());
+            }
+        }
+
+        /**
+         * <p>Decrypt / verify a downloaded email in the background and add it to the cache.</p>
+         * <p>This runs on the pipe's own prefetch threads rather than the worker pool, since looking up and unlocking
+         * keys blocks, and the worker pool is kept for the parts of each email.</p>
+         */
+        private void decryptInBackground(Integer n, final byte message[]) {
+            final String uid = getUidKey(n);
+            final String digest = IncomingMailCache.digest(message);
+            final PassPhrase phrases[] = passPhrases;
+            final Object scopes = Metrics.getCurrentScopes();
+
+            messageDigests.put(n, digest);
+            if (cache.contains(digest))
+                return;
+
+            decrypting.put(n, getPrefetchThreads().submit(new Runnable() {
+                public void run() {
+                    Metrics.setCurrentScopes(scopes);
+                    try {
+                        if ((algorithm!=null) && (!algorithm.isIncomingMailProcessed(message))) {
+                            cache.put(uid, digest, message);
+                            return;
+                        }
+
+                        Email email = new Email(message);
+                        if (algorithm!=null)
+                            email = algorithm.processIncomingMail(publicKeyHandlers, secretKeyHandlers, email, phrases);
+
+                        cache.put(uid, digest, email.getBytes());
+                    } catch (ProxyServerCoreException e) {
+                        // left for the client's RETR, which will prompt for a passphrase if one is needed
+                    } finally {
+                        Metrics.setCurrentScopes(null);
+                    }
+                }
+            }));
+        }
+
+        /** Return the threads that decrypt prefetched emails, starting them if necessary. */
+        private synchronized ExecutorService getPrefetchThreads() {
+            if (prefetchThreads == null) {
+                prefetchThreads = Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "IncomingEmailPipe-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+
+            return prefetchThreads;
+        }
+
+        /**
+         * <p>Reads the responses to a batch of pipelined commands in the background.</p>
+         */
+        private class ResponseReader extends Thread {
+            /** Responses read so far (IPTPCommandResponse, or the ProxyServerCoreException that stopped the reader). */
+            private LinkedBlockingQueue responses = new LinkedBlockingQueue();
+            /** Number of responses to read. */
+            private int count;
+            /** Number of responses taken by the pipe. */
+            private int taken;
+            /** The pipe's metrics scopes, so that reading the responses is timed for the session. */
+            private Object scopes = Metrics.getCurrentScopes();
+
+            public ResponseReader(int count) {
+                super("IncomingEmailPipe-ResponseReader");
+                this.count = count;
+                setDaemon(true);
+            }
+
+            public void run() {
+                Metrics.setCurrentScopes(scopes);
+                for (int n = 0; n < count; n++) {
+                    try {
+                        responses.add(protocolClient.awaitCommandResponse());
+                    } catch (ProxyServerCoreException e) {
+                        responses.add(e);
+                        return;
+                    }
+                }
+            }
+
+            /** Return the next response, waiting for it if necessary. */
+            public IPTPCommandResponse next() throws ProxyServerCoreException {
+                Object response;
+                try {
+                    response = responses.take();
+                } catch (InterruptedException e) {
+                    throw new PipeCommunicationException("Interrupted while reading from server.");
+                }
+
+                taken++;
+                if (response instanceof ProxyServerCoreException)
+                    throw (ProxyServerCoreException)response;
+
+                return (IPTPCommandResponse)response;
+            }
+
+            /** Returns true once every response has been taken. */
+            public boolean isFinished() {
+                return taken >= count;
+            }
+        }
+
         /** <p>Stop the pipe.</p>
          * <p>Stops the email pipe. </p>
          * <p>When stopping the protocolServer object stopPipe will handle any exception generated as a result of the socket
@@ -135,6 +465,96 @@ public class IncomingEmailPipe extends EmailPipe
             catch (ProxyServerCoreException e) {
                 printErr("IncomingEmailPipe.stopPipe() : " + e.getMessage());
             }
+
+            // emails already downloaded are still decrypted into the cache, then the threads finish
+            synchronized (this) {
+                if (prefetchThreads != null)
+                    prefetchThreads.shutdown();
+                prefetchThreads = null;
+            }
+        }
+
+        /**
+         * <p>Decrypt / verify an email downloaded from the server, asking the user for passphrases as needed.</p>
+         * <p>If the email has been processed before it is taken from the cache, otherwise it is added to it.</p>
+         * @param uid The cache key for the email's unique id, or null if it is not known.
+         * @param message The email as downloaded.
+         * @return The processed email.
+         * @throws ProxyServerCoreException if the email could not be processed or the user aborted it.
+         */
+        private byte[] processRetrieved(String uid, byte message[]) throws ProxyServerCoreException {
+            byte processed[] = null;
+            String digest = null;
+
+            // already processed in an earlier session?
+            if (cache!=null) {
+                digest = IncomingMailCache.digest(message);
+                processed = cache.get(digest);
+            }
+
+            // nothing for the algorithm to do, pass it on as it is
+            if ((processed==null) && (algorithm!=null) && (!algorithm.isIncomingMailProcessed(message)))
+                processed = message;
+
+            if (processed==null) {
+                // Create an email object
+                Email email = new Email(message);
+
+                // do decryption / verification
+                if (algorithm!=null) {
+
+                    boolean retry; 
+                    printStatus("Decrypting/Verifying email...");
+
+                    do {
+                        retry = false;
+                        PassPhrase tried[] = passPhrases;
+
+                        try {
+                            email = algorithm.processIncomingMail(publicKeyHandlers, secretKeyHandlers, email, tried);
+                        } catch (ChecksumFailureException cfe) {
+
+                            retry = true;
+
+                            synchronized (PROMPT_LOCK) {
+                                // if another email was given a passphrase while this one waited, try that first
+                                if (passPhrases == tried) {
+                                    PassPhraseResponse reply = requester.requestPassPhrase("Enter passphrase for decryption key", cfe.getMessage());
+
+                                    if (reply.getResponseCode()==PassPhraseResponse.ABORT) {
+                                        // abort
+                                        throw new ProxyServerCoreException("Mail transfer aborted by user");
+                                    } else {
+                                        // add passphrase to list
+                                        if (reply.getPassPhrase()!=null) {
+                                            addPassphrase(new PassPhrase(reply.getPassPhrase()));
+                                        }     
+                                    }
+                                }
+                            }
+                        }
+                    } while (retry);
+                }
+
+                processed = email.getBytes();
+                if (cache!=null)
+                    cache.put(uid, digest, processed);
+            }
+
+            return processed;
+        }
+
+        /**
+         * <p>Decrypt / verify an email retrieved through a RelayPipe.</p>
+         * <p>This lets the pipe process emails for a RelayPipe instead of relaying connections itself. The cache is
+         * used if one has been set, but emails are not downloaded ahead of the client.</p>
+         * @param envelope Not used, this is null for retrieved email.
+         * @param payload The email as downloaded.
+         * @return The processed email.
+         * @throws ProxyServerCoreException if the email could not be processed or the user aborted it.
+         */
+        public byte[] processPayload(EmailEnvelope envelope, byte payload[]) throws ProxyServerCoreException {
+            return processRetrieved(null, payload);
         }
 
 	/**
@@ -152,6 +572,7 @@ public class IncomingEmailPipe extends EmailPipe
                     // Await connection
                     printStatus("Awaiting connection");
                     protocolServer.awaitConnection();
+                    beginSession();
                     
                     // TODO:
                     // If proxy requires logon
@@ -172,14 +593,30 @@ public class IncomingEmailPipe extends EmailPipe
 
                     // Process email transaction until either socket is disconnected
                     printStatus("Processing commands...");
+                    ResponseReader pipelined = null; // reads the responses to pipelined commands
+                    IPTPCommand held = null; // command read from the client while collecting pipelined commands
+                    IPTPCommandResponse cached = null; // response sent from the cache instead of the server
+                    resetSession();
+
                     while ((protocolClient.isConnectedToServer()) && (protocolServer.isConnectedToClient())) {
 
                         IPTPCommand outgoing = null;
                         IPTPCommandResponse incoming = null;
+                        boolean fromCache = false;
 
                         // await response from server
 
-                        incoming = protocolClient.awaitCommandResponse();
+                        if (cached!=null) {
+                            incoming = cached;
+                            cached = null;
+                            fromCache = true;
+                        } else if (pipelined!=null) {
+                            incoming = pipelined.next();
+                            if (pipelined.isFinished())
+                                pipelined = null;
+                        } else {
+                            incoming = protocolClient.awaitCommandResponse();
+                        }
 
                         // analyse response
 
@@ -188,46 +625,21 @@ public class IncomingEmailPipe extends EmailPipe
                         }
 
                         // test for quit and mail request
-                        if (incoming instanceof IPTPRetrResponse) {
+                        if ((incoming instanceof IPTPRetrResponse) && (fromCache)) {
+                            printStatus("Email sent from cache...");
+                            protocolServer.sendCommandResponse(incoming);
+                        }
+                        else if (incoming instanceof IPTPRetrResponse) {
+                            Integer messageNo = (retrieving.isEmpty()) ? null : (Integer)retrieving.remove(0);
+
                             if (incoming.isOk()) {
                                 printStatus("Email received from server...");
 
-                                // Create an email object
                                 IPTPRetrResponse cr = (IPTPRetrResponse)incoming;
-                                Email email = new Email(cr.getMessage().getBytes());
-
-                                // do decryption / verification
-                                if (algorithm!=null) {
-                                    
-                                    boolean retry; 
-                                    printStatus("Decrypting/Verifying email...");
-                                    
-                                    do {
-                                        retry = false;
-                                                                                
-                                        try {
-                                            email = algorithm.processIncomingMail(publicKeyHandlers, secretKeyHandlers, email, passPhrases);
-                                        } catch (ChecksumFailureException cfe) {
-                                            
-                                            retry = true;
-                                            
-                                            PassPhraseResponse reply = requester.requestPassPhrase("Enter passphrase for decryption key", cfe.getMessage());
-                                            
-                                            if (reply.getResponseCode()==PassPhraseResponse.ABORT) {
-                                                // abort
-                                                throw new ProxyServerCoreException("Mail transfer aborted by user");
-                                            } else {
-                                                // add passphrase to list
-                                                if (reply.getPassPhrase()!=null) {
-                                                    addPassphrase(new PassPhrase(reply.getPassPhrase()));
-                                                }     
-                                            }
-                                        }
-                                    } while (retry);
-                                }
+                                byte processed[] = processRetrieved((messageNo!=null) ? getUidKey(messageNo) : null, cr.getMessageBytes());
                                 
                                 // send email to client
-                                protocolServer.sendCommandResponse(new IPTPRetrResponse(true, new String(email.getBytes())));
+                                protocolServer.sendCommandResponse(new IPTPRetrResponse(true, processed));
                             } else {
                                 protocolServer.sendCommandResponse(incoming);
                             }
@@ -242,12 +654,68 @@ public class IncomingEmailPipe extends EmailPipe
                         else {
                             // send response to email client
                             protocolServer.sendCommandResponse(incoming);
+
+                            // note the emails the client may ask for next
+                            if ((incoming instanceof IPTPUidlResponse) && (incoming.isOk()))
+                                readListing(((IPTPUidlResponse)incoming).getScanlisting(), messageUids);
+                            else if ((incoming instanceof IPTPListResponse) && (incoming.isOk()))
+                                readListing(((IPTPListResponse)incoming).getScanlisting(), messageSizes);
+                        }
+
+                        // pass on the rest of the pipelined responses before reading the next command
+                        if (pipelined!=null)
+                            continue;
+
+                        // await command, downloading ahead of the client while it is idle
+                        if (held!=null) {
+                            outgoing = held;
+                            held = null;
+                        } else {
+                            prefetch();
+                            outgoing = protocolServer.awaitCommand();
+                            noteCommand(outgoing);
+                        }
+
+                        // send the email from the cache if it is there
+                        if ((outgoing instanceof IPTPRetr) && (isCached((IPTPRetr)outgoing))) {
+                            cached = getCachedResponse((IPTPRetr)outgoing);
+                            if (cached!=null)
+                                continue;
                         }
 
-                        // await command
-                        outgoing = protocolServer.awaitCommand();
+                        // collect any further RETR commands the client has pipelined and send them all together
+                        if ((outgoing instanceof IPTPRetr) && (pipelineDepth > 1) && (protocolServer.isCommandWaiting()) && (protocolClient.canPipeline())) {
+                            Vector batch = new Vector();
+                            batch.add(outgoing);
+
+                            while ((batch.size() < pipelineDepth) && (protocolServer.isCommandWaiting())) {
+                                IPTPCommand next = protocolServer.awaitCommand();
+                                noteCommand(next);
+                                if ((next instanceof IPTPRetr) && (!isCached((IPTPRetr)next))) {
+                                    batch.add(next);
+                                } else {
+                                    held = next;
+                                    break;
+                                }
+                            }
+
+                            if (batch.size() > 1) {
+                                IPTPCommand commands[] = new IPTPCommand[batch.size()];
+                                batch.copyInto(commands);
+                                protocolClient.sendCommands(commands);
+
+                                for (int n = 0; n < commands.length; n++)
+                                    retrieving.add(new Integer(((IPTPRetr)commands[n]).getMessageNo()));
+
+                                pipelined = new ResponseReader(batch.size());
+                                pipelined.start();
+                                continue;
+                            }
+                        }
 
                         // send command to server
+                        if (outgoing instanceof IPTPRetr)
+                            retrieving.add(new Integer(((IPTPRetr)outgoing).getMessageNo()));
                         protocolClient.sendCommand(outgoing);
 
                     }
@@ -256,6 +724,7 @@ public class IncomingEmailPipe extends EmailPipe
                 } 
 
                 // At least one socket has dropped, or an error has occurred, perform some cleanup and return to the beginning of the loop
+                endSession();
                 stopPipe(); // halt the pipe
                 setRunning(true); // we don't actually want to stop the pipe at this stage, just close the sockets
                 System.gc(); // now should be a good time to do a little bit of cleanup
@@ -0,0 +1,399 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core;
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * <p>A bounded cache of incoming email that has already been decrypted / verified.</p>
+ * <p>The IncomingEmailPipe keeps each email it processes here, keyed by a digest of the email as it was downloaded
+ * and, if the client asked for a UIDL listing, by the email's unique id. A client that leaves email on the server
+ * and downloads it again, or an email the pipe downloaded and decrypted ahead of the client, can then be sent
+ * straight to the client without going back to the server or repeating the key work.</p>
+ * <p>The cache holds a limited number of bytes in memory, least recently used email being dropped first. If a
+ * directory is given, dropped email is moved to disk (up to a second limit) rather than being forgotten. Email on
+ * disk is encrypted with a random key that is only ever held in memory, so decrypted email is never written to
+ * disk in the clear and the disk cache can not be read once the proxy has stopped. For the same reason anything
+ * left in the directory from an earlier run is deleted when the cache is created.</p>
+ * @see IncomingEmailPipe
+ */
+public class IncomingMailCache {
+
+    /** Default number of bytes held in memory. */
+    public static final long MEMORY_LIMIT = 8 * 1024 * 1024;
+
+    /** Default number of bytes held on disk. */
+    public static final long DISK_LIMIT = 64 * 1024 * 1024;
+
+    /** Extension of the cache files. */
+    private static final String EXTENSION = ".cache";
+
+    /** Cipher used for the disk cache. */
+    private static final String DISK_CIPHER = "AES/CTR/NoPadding";
+
+    /** Bytes held in memory before email is moved to disk or dropped. */
+    private long memoryLimit;
+
+    /** Bytes held on disk before email is dropped. */
+    private long diskLimit;
+
+    /** Disk cache directory, null if there is no disk cache. */
+    private File directory;
+
+    /** Email held in memory (digest -> byte[]), in least recently used order. */
+    private LinkedHashMap memory;
+
+    /** Email held on disk (digest -> Long size), in least recently used order. */
+    private LinkedHashMap disk;
+
+    /** Unique id -> digest. */
+    private Hashtable uids;
+
+    /** Digest -> unique id, so that ids can be forgotten with their email. */
+    private Hashtable digestUids;
+
+    /** Bytes held in memory. */
+    private long memoryUsed;
+
+    /** Bytes held on disk. */
+    private long diskUsed;
+
+    /** Key the disk cache is encrypted with. */
+    private SecretKey diskKey;
+
+    /** Source of the disk cache IVs. */
+    private SecureRandom random;
+
+    /** Lookups that found an email. */
+    private long hits;
+
+    /** Lookups that did not find an email. */
+    private long misses;
+
+    /**
+     * <p>Create a memory only cache.</p>
+     * @param memoryLimit Number of bytes of email to hold.
+     */
+    public IncomingMailCache(long memoryLimit) {
+        this.memoryLimit = memoryLimit;
+
+        memory = new LinkedHashMap(16, 0.75f, true);
+        disk = new LinkedHashMap(16, 0.75f, true);
+        uids = new Hashtable();
+        digestUids = new Hashtable();
+    }
+
+    /**
+     * <p>Create a cache that moves email to disk when it is dropped from memory.</p>
+     * @param memoryLimit Number of bytes of email to hold in memory.
+     * @param directory The disk cache directory, created if it does not exist. Old cache files in it are deleted.
+     * @param diskLimit Number of bytes of email to hold on disk.
+     * @throws IOException if the directory could not be created or the disk cache key could not be generated.
+     */
+    public IncomingMailCache(long memoryLimit, File directory, long diskLimit) throws IOException {
+        this(memoryLimit);
+
+        if ((!directory.isDirectory()) && (!directory.mkdirs()))
+            throw new IOException("Could not create cache directory " + directory.getPath());
+
+        // files from an earlier run can not be decrypted any more
+        File old[] = directory.listFiles();
+        for (int n = 0; n < old.length; n++) {
+            if (old[n].getName().endsWith(EXTENSION))
+                old[n].delete();
+        }
+
+        try {
+            random = new SecureRandom();
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128, random);
+            diskKey = generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not create disk cache key : " + e.getMessage());
+        }
+
+        this.directory = directory;
+        this.diskLimit = diskLimit;
+    }
+
+    /**
+     * <p>Return the digest an email is cached under.</p>
+     * @param message The email as it was downloaded from the server.
+     */
+    public static String digest(byte message[]) {
+        try {
+            byte hash[] = MessageDigest.getInstance("SHA-1").digest(message);
+
+            StringBuffer hex = new StringBuffer(hash.length * 2);
+            for (int n = 0; n < hash.length; n++) {
+                hex.append(Character.forDigit((hash[n] >> 4) & 0x0f, 16));
+                hex.append(Character.forDigit(hash[n] & 0x0f, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has SHA-1
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Returns true if an email of the given size is small enough to be worth caching.</p>
+     * <p>Anything larger than half the memory limit would push most of the cache out.</p>
+     */
+    public boolean isCacheable(long size) {
+        return size <= memoryLimit / 2;
+    }
+
+    /**
+     * <p>Add a processed email to the cache.</p>
+     * @param uid The email's unique id, or null if it is not known.
+     * @param digest The digest of the email as downloaded.
+     * @param processed The decrypted / verified email.
+     * @see #digest(byte[])
+     */
+    public synchronized void put(String uid, String digest, byte processed[]) {
+        if (!isCacheable(processed.length))
+            return;
+
+        remove(digest);
+
+        memory.put(digest, processed);
+        memoryUsed += processed.length;
+
+        if (uid != null) {
+            uids.put(uid, digest);
+            digestUids.put(digest, uid);
+        }
+
+        trimMemory();
+    }
+
+    /**
+     * <p>Return a processed email by the digest of the email as downloaded.</p>
+     * @return The processed email, or null if it is not in the cache.
+     */
+    public synchronized byte[] get(String digest) {
+        byte processed[] = (byte[])memory.get(digest);
+
+        if ((processed == null) && (disk.containsKey(digest))) {
+            processed = readFromDisk(digest);
+
+            // back into memory, as it is likely to be asked for again
+            if (processed != null) {
+                String uid = (String)digestUids.get(digest);
+                put(uid, digest, processed);
+            }
+        }
+
+        if (processed != null)
+            hits++;
+        else
+            misses++;
+
+        return processed;
+    }
+
+    /**
+     * <p>Return a processed email by its unique id.</p>
+     * @return The processed email, or null if it is not in the cache.
+     */
+    public synchronized byte[] getByUid(String uid) {
+        String digest = (String)uids.get(uid);
+
+        if (digest == null) {
+            misses++;
+            return null;
+        }
+
+        return get(digest);
+    }
+
+    /** Returns true if the email with the given unique id is in the cache. */
+    public synchronized boolean containsUid(String uid) {
+        return uids.containsKey(uid);
+    }
+
+    /** Returns true if the email with the given digest is in the cache. */
+    public synchronized boolean contains(String digest) {
+        return (memory.containsKey(digest)) || (disk.containsKey(digest));
+    }
+
+    /** Empty the cache, deleting any disk cache files. */
+    public synchronized void clear() {
+        Iterator i = disk.keySet().iterator();
+        while (i.hasNext())
+            getFile((String)i.next()).delete();
+
+        memory.clear();
+        disk.clear();
+        uids.clear();
+        digestUids.clear();
+        memoryUsed = 0;
+        diskUsed = 0;
+    }
+
+    /** Forget an email completely. */
+    private void remove(String digest) {
+        byte processed[] = (byte[])memory.remove(digest);
+        if (processed != null)
+            memoryUsed -= processed.length;
+
+        Long size = (Long)disk.remove(digest);
+        if (size != null) {
+            diskUsed -= size.longValue();
+            getFile(digest).delete();
+        }
+
+        forgetUid(digest);
+    }
+
+    /** Forget the unique id of an email that is no longer cached. */
+    private void forgetUid(String digest) {
+        String uid = (String)digestUids.remove(digest);
+        if ((uid != null) && (digest.equals(uids.get(uid))))
+            uids.remove(uid);
+    }
+
+    /** Drop the least recently used email from memory until it is within its limit. */
+    private void trimMemory() {
+        Iterator i = memory.entrySet().iterator();
+
+        while ((memoryUsed > memoryLimit) && (i.hasNext())) {
+            Map.Entry entry = (Map.Entry)i.next();
+            String digest = (String)entry.getKey();
+            byte processed[] = (byte[])entry.getValue();
+
+            i.remove();
+            memoryUsed -= processed.length;
+
+            if ((directory == null) || (!writeToDisk(digest, processed)))
+                forgetUid(digest);
+        }
+
+        trimDisk();
+    }
+
+    /** Drop the least recently used email from disk until it is within its limit. */
+    private void trimDisk() {
+        Iterator i = disk.entrySet().iterator();
+
+        while ((diskUsed > diskLimit) && (i.hasNext())) {
+            Map.Entry entry = (Map.Entry)i.next();
+            String digest = (String)entry.getKey();
+
+            i.remove();
+            diskUsed -= ((Long)entry.getValue()).longValue();
+            getFile(digest).delete();
+            forgetUid(digest);
+        }
+    }
+
+    /** Return the disk cache file for a digest. */
+    private File getFile(String digest) {
+        return new File(directory, digest + EXTENSION);
+    }
+
+    /** Encrypt an email into the disk cache, returning false if it could not be written. */
+    private boolean writeToDisk(String digest, byte processed[]) {
+        File file = getFile(digest);
+
+        try {
+            byte iv[] = new byte[16];
+            random.nextBytes(iv);
+
+            Cipher cipher = Cipher.getInstance(DISK_CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, diskKey, new IvParameterSpec(iv));
+
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(iv);
+                out.write(cipher.doFinal(processed));
+            } finally {
+                out.close();
+            }
+        } catch (Exception e) {
+            file.delete();
+            return false;
+        }
+
+        disk.put(digest, new Long(processed.length));
+        diskUsed += processed.length;
+        return true;
+    }
+
+    /** Decrypt an email from the disk cache, returning null if it could not be read. */
+    private byte[] readFromDisk(String digest) {
+        File file = getFile(digest);
+
+        try {
+            byte data[] = new byte[(int)file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(data);
+            } finally {
+                in.close();
+            }
+
+            Cipher cipher = Cipher.getInstance(DISK_CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, diskKey, new IvParameterSpec(data, 0, 16));
+            return cipher.doFinal(data, 16, data.length - 16);
+        } catch (Exception e) {
+            remove(digest);
+            return null;
+        }
+    }
+
+    /** Return the number of lookups that found an email. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Return the number of lookups that did not find an email. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Return the number of bytes of email held in memory. */
+    public synchronized long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    /** Return the number of bytes of email held on disk. */
+    public synchronized long getDiskUsed() {
+        return diskUsed;
+    }
+}
@@ -40,8 +40,10 @@ import core.email.*;
 import java.lang.*;
 import java.io.*;
 import java.net.*;
+import java.util.Vector;
 import java.security.PrivateKey;
 import javax.swing.JOptionPane;
+import system.Metrics;
 
 /**
  * <p>The OutgoingEmailPipe class presents a server to a user's email client, and then connects
@@ -67,11 +69,26 @@ import javax.swing.JOptionPane;
  * <p>The outgoing message has some extra information (proxy version number etc) added to the header. This is done
  * purely for information gathering purposes and is not strictly necessary.</p>
  *
+ * <p>If an SMTPConnectionPool has been set the pipe answers the client itself rather than relaying the whole 
+ * session, and sends each email over a pooled connection to the mail server, so connections (and logins) are 
+ * reused from one email and one client session to the next. The client's AUTH login is checked by opening a pooled 
+ * connection with it.</p>
+ *
+ * <p>If an OutgoingMailQueue has been set the pipe works in store-and-forward mode: the pipe answers the client 
+ * itself and email is accepted as soon as it has been spooled to disk. It is encrypted, signed and sent to the mail
+ * server in the background by a set of delivery workers, which share a pool of connections to the server, so the 
+ * client is not held up when the server is slow or can not be reached.</p>
+ *
+ * <p>Instead of being started, the pipe may be used as the RelayPayloadHandler of a RelayPipe, which then does the 
+ * relaying and passes the pipe each email to encrypt / sign. The queue is not used then.</p>
+ *
  * @see SendPipeServerInterface
  * @see AlgorithmHandler
  * @see SendPipeClientInterface
+ * @see OutgoingMailQueue
+ * @see RelayPipe
  */
-public class OutgoingEmailPipe extends EmailPipe
+public class OutgoingEmailPipe extends EmailPipe implements RelayPayloadHandler
 {
         /** The object that handles connections from the email client. */
         protected SendPipeServerInterface protocolServer;
@@ -86,6 +103,33 @@ public class OutgoingEmailPipe extends EmailPipe
 
         /** Sign all outgoing mail? */
         private boolean signAll;
+
+        /** Encrypt the email currently being received? */
+        private boolean encryptMail;
+
+        /** Key work started for the email currently being received, or null if there is none. */
+        private OutgoingMailPreparation preparation;
+
+        /** Store-and-forward queue, or null to send email straight to the server. */
+        private OutgoingMailQueue queue;
+
+        /** Connections to the mail server, or null to relay the client's session to the server. */
+        private SMTPConnectionPool pool;
+
+        /** Mail server address. */
+        private String deliveryHost;
+
+        /** Mail server port. */
+        private int deliveryPort;
+
+        /** User name the client logged in with, or null if it has not. */
+        private String user;
+
+        /** Password the client logged in with. */
+        private String password;
+
+        /** Largest number of queued email a delivery worker takes off the queue at once. */
+        private int batchSize;
         
         /**
          * <p>Outgoing email pipe constructor. </p>
@@ -154,6 +198,364 @@ public class OutgoingEmailPipe extends EmailPipe
             }
         }
 
+        /**
+         * <p>Send email over pooled connections to the mail server.</p>
+         * <p>The pipe then answers the client itself. A client that logs in (AUTH PLAIN or LOGIN) has its login 
+         * checked against the mail server and every email it sends goes over a connection logged in as that 
+         * user.</p>
+         * @param pool Connections to the mail server.
+         * @param host The mail server address.
+         * @param port The mail server port.
+         */
+        public void setConnectionPool(SMTPConnectionPool pool, String host, int port) {
+            this.pool = pool;
+            this.deliveryHost = host;
+            this.deliveryPort = port;
+        }
+
+        /**
+         * <p>Switch the pipe to store-and-forward mode.</p>
+         * <p>Email received from the client is spooled to the queue and acknowledged straight away. The delivery
+         * workers take connections to the mail server from the pool, so that connections are reused between 
+         * batches.</p>
+         * <p>Note that the delivery workers do not log in to the mail server, so this should only be used with 
+         * servers that accept mail from this machine without authentication.</p>
+         * <p>The delivery workers never ask the user anything, so missing recipient keys and the signing key's 
+         * passphrase are dealt with while the email is received, before it is acknowledged. The passphrase is cached
+         * for the workers to sign with.</p>
+         * @param queue The queue to spool email to.
+         * @param pool Connections to the mail server.
+         * @param host The mail server address.
+         * @param port The mail server port.
+         * @param workers The number of delivery workers to start.
+         * @param batchSize The largest number of email a worker takes off the queue at once.
+         */
+        public void setQueue(OutgoingMailQueue queue, SMTPConnectionPool pool, String host, int port, int workers, int batchSize) {
+            this.queue = queue;
+            this.pool = pool;
+            this.deliveryHost = host;
+            this.deliveryPort = port;
+            this.batchSize = batchSize;
+
+            for (int n = 0; n < workers; n++)
+                new DeliveryWorker(n).start();
+        }
+
+        /**
+         * <p>Find a recipient's key and start encrypting the session key to it while the email is being received.</p>
+         * <p>If the key can not be found the user is asked what to do, just as if the key had been found missing
+         * when the email was processed. Any other problem drops the preparation, the email will then be prepared
+         * again once it has arrived.</p>
+         * @throws ProxyServerCoreException if the user aborted the email.
+         */
+        private void prepareRecipient(String recipient) throws ProxyServerCoreException {
+            while (preparation!=null) {
+                try {
+                    algorithm.addOutgoingRecipient(preparation, recipient);
+                    return;
+                } catch (PublicKeyNotFoundException pknfe) {
+                    if (sendUnencrypted(pknfe.getMessage())) {
+                        // send in the clear to all recipients
+                        encryptMail = false;
+                        preparation = null;
+                    }
+                } catch (ProxyServerCoreException e) {
+                    printErr("Could not prepare recipient '" + recipient + "', will try again once the email has arrived: " + e.getMessage());
+                    preparation = null;
+                }
+            }
+        }
+
+        /**
+         * <p>Ask the user what to do about a missing recipient key.</p>
+         * @param message The error to show the user.
+         * @return true to send the email in clear text, false to retry.
+         * @throws ProxyServerCoreException if the user aborted the email.
+         */
+        private boolean sendUnencrypted(String message) throws ProxyServerCoreException {
+            Object[] possibleValues = { "Abort sending message", "Send message in clear text to all recipients (not recommended)", "Retry" };
+            Object selectedValue;
+            synchronized (PROMPT_LOCK) {
+                selectedValue = JOptionPane.showInputDialog(null, message, "Recipient key not found", JOptionPane.INFORMATION_MESSAGE, null, possibleValues, possibleValues[0]);
+            }
+
+            if (selectedValue!=null) {
+                String sv = (String)selectedValue;
+
+                if (sv.compareTo(possibleValues[0].toString())==0) {
+                    // abort
+                    throw new ProxyServerCoreException("Mail transfer aborted by user");
+                } 
+                
+                return (sv.compareTo(possibleValues[1].toString())==0);
+            } 
+            
+            throw new ProxyServerCoreException("Mail transfer aborted by user");
+        }
+
+        /**
+         * <p>Start the key work for a new email, so that it overlaps with the client sending the email.</p>
+         */
+        private void beginPreparation() {
+            encryptMail = encryptAll;
+            preparation = null;
+            if ((algorithm!=null) && (encryptMail)) {
+                try {
+                    preparation = algorithm.beginOutgoingMail(publicKeyHandlers);
+                } catch (AlgorithmException e) {
+                    printErr("Could not prepare email for encryption, will try again once it has arrived: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * <p>Receive email from the client, answering it locally.</p>
+         * <p>In store-and-forward mode each email is spooled to the queue. The mail server is never contacted here, 
+         * so email is accepted while the server is slow or can not be reached. Missing recipient keys are still dealt
+         * with as each recipient is given, and the signing key is unlocked once the email has arrived, before it is 
+         * acknowledged.</p>
+         * <p>Otherwise each email is encrypted / signed straight away and sent over a pooled connection, and the 
+         * client is given the mail server's answer.</p>
+         * @throws ProxyServerCoreException if the connection to the client failed or the user aborted an email.
+         */
+        private void receiveEmail() throws ProxyServerCoreException {
+            EmailEnvelope envelope = null;
+            user = null;
+            password = null;
+
+            protocolServer.sendCommandResponse(new IPTPRelayResponse(true, "220 localhost Secure Email Proxy ready\r\n"));
+
+            printStatus("Processing commands...");
+            while (protocolServer.isConnectedToClient()) {
+                IPTPCommand command = protocolServer.awaitCommand();
+
+                if (command instanceof IPTPEhlo) {
+                    Vector extensions = new Vector();
+                    extensions.add("8BITMIME");
+                    if (queue==null)
+                        extensions.add("AUTH PLAIN LOGIN");
+                    protocolServer.sendCommandResponse(new IPTPEhloResponse("localhost", extensions));
+                }
+                else if (command instanceof IPTPMail) {
+                    if (envelope!=null) {
+                        protocolServer.sendCommandResponse(new IPTPRelayResponse(false, "503 Nested MAIL command\r\n"));
+                        continue;
+                    }
+
+                    printStatus("Capturing outgoing email...");
+                    envelope = new EmailEnvelope();
+                    envelope.setSender(((IPTPMail)command).getSender());
+                    beginPreparation();
+
+                    protocolServer.sendCommandResponse(new IPTPMailResponse(true));
+                }
+                else if (command instanceof IPTPRcpt) {
+                    if (envelope==null) {
+                        protocolServer.sendCommandResponse(new IPTPRelayResponse(false, "503 Need MAIL before RCPT\r\n"));
+                        continue;
+                    }
+
+                    printStatus("Adding recipient...");
+                    String recipient = ((IPTPRcpt)command).getRecipient();
+                    envelope.addRecipient(recipient);
+
+                    // find the recipient's key now, so a missing key is reported before the email is accepted
+                    if (preparation!=null)
+                        prepareRecipient(recipient);
+
+                    protocolServer.sendCommandResponse(new IPTPRcptResponse(true));
+                }
+                else if (command instanceof IPTPData) {
+                    if ((envelope==null) || (envelope.getNumberOfRecipients()==0)) {
+                        protocolServer.sendCommandResponse(new IPTPRelayResponse(false, "503 Need RCPT before DATA\r\n"));
+                        continue;
+                    }
+
+                    protocolServer.sendCommandResponse(new IPTPDataResponse(true));
+
+                    printStatus("Receiving email from client...");
+                    IPTPCommand data = protocolServer.awaitCommand();
+                    if (!(data instanceof IPTPSendData))
+                        throw new ProxyServerCoreException("Was expecting email data, got a command.");
+
+                    byte message[] = ((IPTPSendData)data).getMessageBytes();
+
+                    if (queue==null) {
+                        sendEmail(envelope, message);
+                    } else {
+                        // the delivery workers can't ask for the signing passphrase, so get it before the email is accepted
+                        boolean sign = (signAll) && (algorithm!=null) && (unlockSigningKey(new Email(message)));
+
+                        // spool the email, the delivery workers do the rest
+                        try {
+                            queue.enqueue(envelope, message, encryptMail, sign, encryptMail ? preparation : null);
+
+                            protocolServer.sendCommandResponse(new IPTPSendDataResponse(true));
+                            printStatus("Email queued for delivery (" + queue.getStatistics() + ").");
+                        } catch (IOException e) {
+                            printErr("Could not queue email: " + e.getMessage());
+                            protocolServer.sendCommandResponse(new IPTPRelayResponse(false, "451 Could not queue email\r\n"));
+                        }
+                    }
+
+                    envelope = null;
+                    preparation = null;
+                }
+                else if (command instanceof IPTPQuit) {
+                    protocolServer.sendCommandResponse(new IPTPQuitResponse(true));
+                    protocolServer.disconnectFromClient();
+                }
+                else {
+                    // the few other commands a client sends
+                    String line = (command instanceof IPTPRelay) ? ((IPTPRelay)command).getRelay().trim().toUpperCase() : "";
+
+                    if ((line.startsWith("HELO")) || (line.equals("NOOP")) || (line.startsWith("NOOP "))) {
+                        protocolServer.sendCommandResponse(new IPTPRelayResponse(true, "250 OK\r\n"));
+                    }
+                    else if (line.equals("RSET")) {
+                        envelope = null;
+                        preparation = null;
+                        protocolServer.sendCommandResponse(new IPTPRelayResponse(true, "250 OK\r\n"));
+                    }
+                    else if ((queue==null) && (line.startsWith("AUTH "))) {
+                        authenticate(((IPTPRelay)command).getRelay().trim());
+                    }
+                    else {
+                        protocolServer.sendCommandResponse(new IPTPRelayResponse(false, "502 Command not implemented\r\n"));
+                    }
+                }
+            }
+        }
+
+        /**
+         * <p>Answer an AUTH command from the client.</p>
+         * <p>The login is checked by opening a pooled connection to the mail server with it, and kept for the rest
+         * of the session.</p>
+         * @param command The AUTH command line.
+         * @throws ProxyServerCoreException if the connection to the client failed.
+         */
+        private void authenticate(String command) throws ProxyServerCoreException {
+            String words[] = command.split(" +");
+            String mechanism = words[1].toUpperCase();
+            String login = null;
+            String secret = null;
+
+            try {
+                if (mechanism.equals("PLAIN")) {
+                    // authorization id, user name and password, separated by NULs
+                    String response = (words.length > 2) ? words[2] : challenge("");
+                    String parts[] = (response==null) ? null : decode(response).split("\0", -1);
+                    if ((parts!=null) && (parts.length==3)) {
+                        login = parts[1];
+                        secret = parts[2];
+                    }
+                } else if (mechanism.equals("LOGIN")) {
+                    String response = (words.length > 2) ? words[2] : challenge("VXNlcm5hbWU6"); // "Username:"
+                    login = (response==null) ? null : decode(response);
+                    response = (login==null) ? null : challenge("UGFzc3dvcmQ6"); // "Password:"
+                    secret = (response==null) ? null : decode(response);
+                } else {
+                    protocolServer.sendCommandResponse(new IPTPRelayResponse(false, "504 Unrecognized authentication type\r\n"));
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                // bad base64
+                login = null;
+            }
+
+            if ((login==null) || (secret==null)) {
+                protocolServer.sendCommandResponse(new IPTPRelayResponse(false, "501 Authentication cancelled or badly formatted\r\n"));
+                return;
+            }
+
+            try {
+                pool.release(pool.acquire(deliveryHost, deliveryPort, login, secret), true);
+            } catch (MailRejectedException e) {
+                printStatus(e.getMessage());
+                protocolServer.sendCommandResponse(new IPTPRelayResponse(false, e.isPermanent() 
+                    ? "535 Authentication credentials invalid\r\n" : "454 Temporary authentication failure\r\n"));
+                return;
+            } catch (ProxyServerCoreException e) {
+                printStatus("Could not log in to the mail server: " + e.getMessage());
+                protocolServer.sendCommandResponse(new IPTPRelayResponse(false, "454 Temporary authentication failure\r\n"));
+                return;
+            }
+
+            user = login;
+            password = secret;
+            protocolServer.sendCommandResponse(new IPTPRelayResponse(true, "235 Authentication successful\r\n"));
+        }
+
+        /**
+         * <p>Send the client an AUTH challenge and return its answer, or null if it cancelled.</p>
+         * @param prompt The base64 challenge.
+         */
+        private String challenge(String prompt) throws ProxyServerCoreException {
+            protocolServer.sendCommandResponse(new IPTPRelayResponse(true, "334 " + prompt + "\r\n"));
+
+            IPTPCommand answer = protocolServer.awaitCommand();
+            if (!(answer instanceof IPTPRelay))
+                return null;
+
+            String line = ((IPTPRelay)answer).getRelay().trim();
+            return (line.equals("*")) ? null : line;
+        }
+
+        /**
+         * <p>Decode a base64 AUTH response as UTF-8.</p>
+         * @throws IllegalArgumentException if the response is not base64.
+         */
+        private String decode(String response) {
+            try {
+                return new String(core.email.encoders.Base64.decode(response.getBytes("ISO-8859-1")), "UTF8");
+            } catch (UnsupportedEncodingException e) {
+                // every java platform has UTF-8
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+
+        /**
+         * <p>Encrypt / sign an email and send it over a pooled connection, giving the client the mail server's 
+         * answer.</p>
+         * <p>The connection is logged in as the client if it has logged in, and goes back to the pool afterwards.</p>
+         * @param envelope The sender and recipients.
+         * @param message The email from the client.
+         * @throws ProxyServerCoreException if the connection to the client failed or the user aborted the email.
+         */
+        private void sendEmail(EmailEnvelope envelope, byte message[]) throws ProxyServerCoreException {
+            printStatus("Processing email...");
+            Email email = new Email(message);
+            email.setHeader("X-SecEmailProxy-Version",core.CoreVersionInfo.version);
+            EmailEnvelope copies[] = processCopies(envelope, email, encryptMail, signAll, preparation, true);
+
+            printStatus("Sending email to server...");
+            String failure = null;
+            SMTPHandler client = null;
+            boolean reusable = false;
+            try {
+                client = pool.acquire(deliveryHost, deliveryPort, user, password);
+                deliver(client, copies);
+                reusable = true;
+            } catch (MailRejectedException e) {
+                // the connection is fine, release resets the transaction
+                reusable = true;
+                failure = (e.isPermanent() ? "554 " : "451 ") + e.getMessage();
+            } catch (ProxyServerCoreException e) {
+                failure = "451 " + e.getMessage();
+            } finally {
+                if (client!=null)
+                    pool.release(client, reusable);
+            }
+
+            if (failure==null) {
+                protocolServer.sendCommandResponse(new IPTPSendDataResponse(true));
+                printStatus("Email successfully sent to mail server.");
+            } else {
+                printStatus("Email not sent: " + failure);
+                protocolServer.sendCommandResponse(new IPTPRelayResponse(false, failure + "\r\n"));
+            }
+        }
+
 	/**
 	 * <p>Princible run loop.</p>
 	 *
@@ -174,6 +576,7 @@ public class OutgoingEmailPipe extends EmailPipe
                     // Await connection
                     printStatus("Awaiting connection");
                     protocolServer.awaitConnection();
+                    beginSession();
                     
                     // TODO:
                     // If proxy requires logon
@@ -185,16 +588,24 @@ public class OutgoingEmailPipe extends EmailPipe
                     // else
                         // log on normally
 
-                    // Connection accepted, try and connect to mail server
-                    printStatus("Connecting to Email server...");
-                    protocolClient.connect();
+                    if ((queue!=null) || (pool!=null)) {
+                        // the pipe answers the client, email goes to the mail server over pooled connections
+                        receiveEmail();
+                    }
+                    else {
+                        // Connection accepted, try and connect to mail server
+                        printStatus("Connecting to Email server...");
+                        protocolClient.connect();
+                    }
                     
                     // TODO:
                         // Prompt for passphrase if not already done so
 
-                    // Process email transaction until either socket is disconnected
-                    printStatus("Processing commands...");
-                    while ((protocolClient.isConnectedToServer()) && (protocolServer.isConnectedToClient())) {
+                    // Process email transaction until either socket is disconnected (already done if the pipe answered the client)
+                    boolean relaying = (queue==null) && (pool==null);
+                    if (relaying)
+                        printStatus("Processing commands...");
+                    while ((relaying) && (protocolClient.isConnectedToServer()) && (protocolServer.isConnectedToClient())) {
 
                         IPTPCommand outgoing = null;
                         IPTPCommandResponse incoming = null;
@@ -237,6 +648,9 @@ public class OutgoingEmailPipe extends EmailPipe
                             envelope = new EmailEnvelope();
                             envelope.setSender(mailcommand.getSender());
 
+                            // start the key work now so that it overlaps with the client sending the email
+                            beginPreparation();
+
                             // acknowledge
                             protocolServer.sendCommandResponse(new IPTPMailResponse(true));
                         }
@@ -249,6 +663,10 @@ public class OutgoingEmailPipe extends EmailPipe
 
                             envelope.addRecipient(rcpt.getRecipient());
 
+                            // find the recipient's key now, so a missing key is reported before the email is sent
+                            if (preparation!=null)
+                                prepareRecipient(rcpt.getRecipient());
+
                             // acknowledge
                             protocolServer.sendCommandResponse(new IPTPRcptResponse(true));
                         }
@@ -267,122 +685,16 @@ public class OutgoingEmailPipe extends EmailPipe
                             if (data instanceof IPTPSendData) {
                                 // construct email
                                 IPTPSendData tmp = (IPTPSendData)data;
-                                email = new Email(tmp.getMessageData().getBytes());
+                                email = new Email(tmp.getMessageBytes());
                                 email.setHeader("X-SecEmailProxy-Version",core.CoreVersionInfo.version); // append some version information to the email header for the benifit of system admins
 
-
-
                                 // do encryption / signing
-                                if (algorithm!=null) {
-                                    
-                                    boolean retry;
-                                    boolean doEncryption = encryptAll; 
-                                    boolean doSign = signAll; 
-                                    
-                                    printStatus("Encrypting/Signing email...");
-                                    
-                                    do {
-
-                                        retry = false;
-                                        
-                                        try {
-                                            email = algorithm.processOutgoingMail(doEncryption, doSign, publicKeyHandlers, secretKeyHandlers, email, passPhrases);
-                                        } catch (ChecksumFailureException cfe) {
-                                            // todo : prompt for new passcode until correct or cancelled.    
-                                            
-                                            retry = true;
-                                            
-                                            PassPhraseResponse reply = requester.requestPassPhrase("Enter passphrase for signing key", cfe.getMessage());
-                                            
-                                            if (reply.getResponseCode()==PassPhraseResponse.ABORT) {
-                                                // abort
-                                                throw new ProxyServerCoreException("Mail transfer aborted by user");
-                                            } else if (reply.getResponseCode()==PassPhraseResponse.SENDANYWAY) {
-                                                // send message unsigned
-                                                doSign = false;
-                                            } else {
-                                                // add passphrase to list
-                                                if (reply.getPassPhrase()!=null) {
-                                                    addPassphrase(new PassPhrase(reply.getPassPhrase()));
-                                                }
-                                                    
-                                            }
-   
-                                        } catch (SecretKeyNotFoundException sknfe) {
-                                            // Secret Key (signer key) not found
-
-                                            retry = true;
-                                            
-                                            Object[] possibleValues = { "Abort sending message", "Send message unsigned", "Retry" };
-                                            Object selectedValue = JOptionPane.showInputDialog(null, sknfe.getMessage(), "Signing key not found", JOptionPane.INFORMATION_MESSAGE, null, possibleValues, possibleValues[0]);
-
-                                            if (selectedValue!=null) {
-                                                String sv = (String)selectedValue;
-
-                                                if (sv.compareTo(possibleValues[0].toString())==0) {
-                                                    // abort
-                                                    throw new ProxyServerCoreException("Mail transfer aborted by user");
-                                                } else if (sv.compareTo(possibleValues[1].toString())==0) {
-                                                    // send unsigned
-                                                    doSign = false;
-                                                } 
-                                                
-                                            } else {
-                                                throw new ProxyServerCoreException("Mail transfer aborted by user");
-                                            }
-                                            
-                                        } catch (PublicKeyNotFoundException pknfe) {
-                                            // Public Key (recipient key) not found
-
-                                            retry = true;
-                                            
-                                            Object[] possibleValues = { "Abort sending message", "Send message in clear text to all recipients (not recommended)", "Retry" };
-                                            Object selectedValue = JOptionPane.showInputDialog(null, pknfe.getMessage(), "Recipient key not found", JOptionPane.INFORMATION_MESSAGE, null, possibleValues, possibleValues[0]);
-
-                                            if (selectedValue!=null) {
-                                                String sv = (String)selectedValue;
-                                                
-                                                if (sv.compareTo(possibleValues[0].toString())==0) {
-                                                    // abort
-                                                    throw new ProxyServerCoreException("Mail transfer aborted by user");
-                                                } else if (sv.compareTo(possibleValues[1].toString())==0) {
-                                                    // send in the clear to all recipients
-                                                    doEncryption = false;
-                                                } 
-                                                
-                                            } else {
-                                                throw new ProxyServerCoreException("Mail transfer aborted by user");
-                                            }
-                                        }
-                                        
-                                    } while (retry);
-                                }
-
-                                
+                                EmailEnvelope copies[] = processCopies(envelope, email, encryptMail, signAll, preparation, true);
+                                preparation = null;
+
                                 // Send email to mail server
-                                    printStatus("Sending email to server...");
-
-                                    // initiate transfer
-                                    protocolClient.sendCommand(new IPTPMail(envelope.getSender()));
-                                    if (!protocolClient.awaitCommandResponse().isOk())
-                                        throw new ProxyServerCoreException("Mail server did not accept sender.");
-
-                                    // recipients
-                                    for (int n = 0; n < envelope.getNumberOfRecipients(); n++) {
-                                        protocolClient.sendCommand(new IPTPRcpt(envelope.getRecipient(n)));
-                                        if (!protocolClient.awaitCommandResponse().isOk())
-                                            throw new ProxyServerCoreException("Mail server did not accept recipient.");
-                                    }
-
-                                    // data
-                                    protocolClient.sendCommand(new IPTPData());
-                                    if (!protocolClient.awaitCommandResponse().isOk())
-                                        throw new ProxyServerCoreException("Mail server did not accept data send request.");
-
-                                    // send data
-                                    protocolClient.sendCommand(new IPTPSendData(new String(email.getBytes())));
-                                    if (!protocolClient.awaitCommandResponse().isOk())
-                                        throw new ProxyServerCoreException("Mail server did not accept email.");
+                                printStatus("Sending email to server...");
+                                deliver(protocolClient, copies);
 
                                 // return final ok (if we got this far then we should be ok)
                                 protocolServer.sendCommandResponse(new IPTPSendDataResponse(true));
@@ -410,9 +722,444 @@ public class OutgoingEmailPipe extends EmailPipe
                 }
 
                 // At least one socket has dropped, or an error has occurred, perform some cleanup and return to the beginning of the loop
+                endSession();
                 stopPipe(); // halt the pipe
                 setRunning(true); // we don't actually want to stop the pipe at this stage, just close the sockets
                 System.gc(); // now should be a good time to do a little bit of cleanup
             }
 	}
+
+        /**
+         * <p>Encrypt and / or sign an email, asking the user what to do about missing keys and passphrases.</p>
+         * @param email The email.
+         * @param doEncryption Encrypt the email?
+         * @param doSign Sign the email?
+         * @param preparation Key work already done for the email, or null.
+         * @param interactive Ask the user? If false a missing key or passphrase fails the email instead.
+         * @return The processed email.
+         * @throws ProxyServerCoreException if the email could not be processed or the user aborted it.
+         */
+        private Email processEmail(Email email, boolean doEncryption, boolean doSign, OutgoingMailPreparation preparation, boolean interactive) throws ProxyServerCoreException {
+            return processEmail(email, doEncryption, doSign, preparation, interactive, null);
+        }
+
+        /**
+         * <p>Encrypt and / or sign an email, also encrypting it to the given Bcc recipients.</p>
+         * @param bcc Bcc recipients to also encrypt to, or null.
+         * @see #processEmail(Email, boolean, boolean, OutgoingMailPreparation, boolean)
+         */
+        private Email processEmail(Email email, boolean doEncryption, boolean doSign, OutgoingMailPreparation preparation, boolean interactive, String bcc[]) throws ProxyServerCoreException {
+            if ((algorithm!=null) && (!interactive)) {
+                // nobody to ask, any missing key or passphrase fails the email
+                printStatus("Encrypting/Signing email...");
+                return algorithm.processOutgoingMail(doEncryption, doSign, publicKeyHandlers, secretKeyHandlers, email, passPhrases, doEncryption ? preparation : null, bcc);
+            }
+
+            if (algorithm!=null) {
+                
+                boolean retry;
+                
+                printStatus("Encrypting/Signing email...");
+                
+                do {
+
+                    retry = false;
+                    PassPhrase tried[] = passPhrases;
+                    
+                    try {
+                        email = algorithm.processOutgoingMail(doEncryption, doSign, publicKeyHandlers, secretKeyHandlers, email, tried, doEncryption ? preparation : null, bcc);
+                    } catch (ChecksumFailureException cfe) {
+                        retry = true;
+                        doSign = askPassPhrase(cfe.getMessage(), tried);
+                    } catch (SecretKeyNotFoundException sknfe) {
+                        // Secret Key (signer key) not found
+                        retry = true;
+                        doSign = askSigningKey(sknfe.getMessage());
+                    } catch (PublicKeyNotFoundException pknfe) {
+                        // Public Key (recipient key) not found
+
+                        retry = true;
+                        
+                        if (sendUnencrypted(pknfe.getMessage())) {
+                            // send in the clear to all recipients
+                            doEncryption = false;
+                        } 
+                    }
+                    
+                } while (retry);
+            }
+
+            return email;
+        }
+
+        /**
+         * <p>Encrypt and / or sign an email, making a separate copy of an encrypted email for each Bcc recipient.</p>
+         * <p>The main copy goes to the To and Cc recipients and is encrypted to them alone. Each Bcc recipient is 
+         * sent their own copy, encrypted to the To and Cc recipients and to them, so that they can read it and 
+         * nobody learns of them from the keys an email is encrypted to.</p>
+         * @param envelope The sender and recipients.
+         * @param email The email.
+         * @param doEncryption Encrypt the email?
+         * @param doSign Sign the email?
+         * @param preparation Key work already done for the email, or null.
+         * @param interactive Ask the user? If false a missing key or passphrase fails the email instead.
+         * @return The copies to send, each wrapped in an envelope with its recipients.
+         * @throws ProxyServerCoreException if the email could not be processed or the user aborted it.
+         */
+        private EmailEnvelope [] processCopies(EmailEnvelope envelope, Email email, boolean doEncryption, boolean doSign, OutgoingMailPreparation preparation, boolean interactive) throws ProxyServerCoreException {
+            Vector bcc = new Vector();
+            if ((algorithm!=null) && (doEncryption))
+                bcc = getBccRecipients(envelope, email);
+
+            Vector copies = new Vector();
+
+            EmailEnvelope main = new EmailEnvelope();
+            main.setSender(envelope.getSender());
+            for (int n = 0; n < envelope.getNumberOfRecipients(); n++)
+                if (!bcc.contains(envelope.getRecipient(n)))
+                    main.addRecipient(envelope.getRecipient(n));
+            if (main.getNumberOfRecipients() > 0) {
+                main.wrapEmail(processEmail(email, doEncryption, doSign, preparation, interactive));
+                copies.add(main);
+            }
+
+            for (int n = 0; n < bcc.size(); n++) {
+                String recipient = (String)bcc.elementAt(n);
+
+                EmailEnvelope copy = new EmailEnvelope();
+                copy.setSender(envelope.getSender());
+                copy.addRecipient(recipient);
+                copy.wrapEmail(processEmail(email, doEncryption, doSign, preparation, interactive, new String[] { recipient }));
+                copies.add(copy);
+            }
+
+            EmailEnvelope tmp[] = new EmailEnvelope[copies.size()];
+            copies.copyInto(tmp);
+            return tmp;
+        }
+
+        /**
+         * <p>Return the envelope recipients that are not in the email's To or Cc headers, its Bcc recipients.</p>
+         * @throws ProxyServerCoreException if the email's headers could not be parsed.
+         */
+        private Vector getBccRecipients(EmailEnvelope envelope, Email email) throws ProxyServerCoreException {
+            Vector headers = new Vector();
+            String recipients[] = email.getRecipients();
+            for (int n = 0; n < recipients.length; n++)
+                headers.add(EmailEnvelope.getAddress(recipients[n]));
+
+            Vector bcc = new Vector();
+            for (int n = 0; n < envelope.getNumberOfRecipients(); n++)
+                if (!headers.contains(EmailEnvelope.getAddress(envelope.getRecipient(n))))
+                    bcc.add(envelope.getRecipient(n));
+
+            return bcc;
+        }
+
+        /**
+         * <p>Ask the user for the signing key's passphrase, adding it to the cached passphrases.</p>
+         * <p>The user is not asked if a passphrase was entered for another email while this one waited its turn.</p>
+         * @param message The error to show the user.
+         * @param tried The passphrases that failed.
+         * @return true to try signing again, false to send the email unsigned.
+         * @throws ProxyServerCoreException if the user aborted the email.
+         */
+        private boolean askPassPhrase(String message, PassPhrase tried[]) throws ProxyServerCoreException {
+            synchronized (PROMPT_LOCK) {
+                if (passPhrases != tried)
+                    return true;
+
+                PassPhraseResponse reply = requester.requestPassPhrase("Enter passphrase for signing key", message);
+
+                if (reply.getResponseCode()==PassPhraseResponse.ABORT) {
+                    // abort
+                    throw new ProxyServerCoreException("Mail transfer aborted by user");
+                } else if (reply.getResponseCode()==PassPhraseResponse.SENDANYWAY) {
+                    // send message unsigned
+                    return false;
+                }
+
+                // add passphrase to list
+                if (reply.getPassPhrase()!=null)
+                    addPassphrase(new PassPhrase(reply.getPassPhrase()));
+
+                return true;
+            }
+        }
+
+        /**
+         * <p>Ask the user what to do about a missing signing key.</p>
+         * @param message The error to show the user.
+         * @return true to retry, false to send the email unsigned.
+         * @throws ProxyServerCoreException if the user aborted the email.
+         */
+        private boolean askSigningKey(String message) throws ProxyServerCoreException {
+            Object[] possibleValues = { "Abort sending message", "Send message unsigned", "Retry" };
+            Object selectedValue;
+            synchronized (PROMPT_LOCK) {
+                selectedValue = JOptionPane.showInputDialog(null, message, "Signing key not found", JOptionPane.INFORMATION_MESSAGE, null, possibleValues, possibleValues[0]);
+            }
+
+            if (selectedValue!=null) {
+                String sv = (String)selectedValue;
+
+                if (sv.compareTo(possibleValues[0].toString())==0) {
+                    // abort
+                    throw new ProxyServerCoreException("Mail transfer aborted by user");
+                }
+
+                return (sv.compareTo(possibleValues[1].toString())!=0);
+            }
+
+            throw new ProxyServerCoreException("Mail transfer aborted by user");
+        }
+
+        /**
+         * <p>Make sure the key an email will be signed with can be unlocked with the cached passphrases, asking the 
+         * user for the passphrase if it can not.</p>
+         * <p>This is used in store-and-forward mode, where the email is signed later by a delivery worker that can
+         * not ask the user anything.</p>
+         * @param email The email to be signed.
+         * @return true to sign the email, false if the user chose to send it unsigned.
+         * @throws ProxyServerCoreException if the user aborted the email or the key could not be checked.
+         */
+        private boolean unlockSigningKey(Email email) throws ProxyServerCoreException {
+            while (true) {
+                PassPhrase tried[] = passPhrases;
+                try {
+                    algorithm.checkSigningKey(secretKeyHandlers, email, tried);
+                    return true;
+                } catch (ChecksumFailureException cfe) {
+                    if (!askPassPhrase(cfe.getMessage(), tried))
+                        return false;
+                } catch (SecretKeyNotFoundException sknfe) {
+                    if (!askSigningKey(sknfe.getMessage()))
+                        return false;
+                }
+            }
+        }
+
+        /**
+         * <p>Send an email to the mail server.</p>
+         * @param client The server facing mail handler to send it with.
+         * @param envelope The sender and recipients.
+         * @param email The email.
+         * @throws MailRejectedException if the server did not accept the email.
+         * @throws ProxyServerCoreException if the email could not be sent.
+         */
+        private void deliver(SendPipeClientInterface client, EmailEnvelope envelope, Email email) throws ProxyServerCoreException {
+            // sender and recipients, sent together if the server allows it. The envelope is checked before any
+            // data is sent so that the email goes to all recipients or none.
+            IPTPCommand commands[] = new IPTPCommand[envelope.getNumberOfRecipients() + 1];
+            commands[0] = new IPTPMail(envelope.getSender(), isEightBit(email) ? "BODY=8BITMIME" : "");
+            for (int n = 0; n < envelope.getNumberOfRecipients(); n++)
+                commands[n+1] = new IPTPRcpt(envelope.getRecipient(n));
+
+            IPTPCommandResponse responses[] = client.sendCommands(commands);
+            if (!responses[0].isOk())
+                throw new MailRejectedException("Mail server did not accept sender.", responses[0].isPermanentFailure());
+            for (int n = 1; n < responses.length; n++) {
+                if (!responses[n].isOk())
+                    throw new MailRejectedException("Mail server did not accept recipient.", responses[n].isPermanentFailure());
+            }
+
+            // data, written straight from the email's parts
+            responses = client.sendCommands(new IPTPCommand[] { new IPTPData(), new IPTPSendData(email) });
+            if (!responses[0].isOk())
+                throw new MailRejectedException("Mail server did not accept data send request.", responses[0].isPermanentFailure());
+            if (!responses[1].isOk())
+                throw new MailRejectedException("Mail server did not accept email.", responses[1].isPermanentFailure());
+        }
+
+        /**
+         * <p>Send the copies of an email made by processCopies to the mail server, each in its own transaction.</p>
+         * @param client The server facing mail handler to send them with.
+         * @param copies The copies, each wrapped in an envelope with its recipients.
+         * @throws MailRejectedException if the server did not accept a copy, any copies before it have been sent.
+         * @throws ProxyServerCoreException if a copy could not be sent.
+         */
+        private void deliver(SendPipeClientInterface client, EmailEnvelope copies[]) throws ProxyServerCoreException {
+            for (int n = 0; n < copies.length; n++)
+                deliver(client, copies[n], copies[n].getEmail());
+        }
+
+        /** Returns true if the email contains 8 bit data, found by writing it out without keeping it. */
+        private boolean isEightBit(Email email) throws ProxyServerCoreException {
+            EightBitDetector detector = new EightBitDetector();
+            try {
+                email.writeTo(detector);
+            } catch (IOException e) {
+                throw new ProxyServerCoreException(e.getMessage());
+            }
+
+            return detector.eightBit;
+        }
+
+        /** Discards what is written to it, noting any 8 bit data. */
+        private static class EightBitDetector extends OutputStream {
+            /** Has an 8 bit byte been written? */
+            boolean eightBit;
+
+            public void write(int b) {
+                if ((b & 0x80) != 0)
+                    eightBit = true;
+            }
+
+            public void write(byte data[], int off, int len) {
+                for (int n = off; (n < off + len) && (!eightBit); n++)
+                    if (data[n] < 0)
+                        eightBit = true;
+            }
+        }
+
+        /**
+         * <p>Encrypt / sign a queued email ready for delivery.</p>
+         * <p>If the key work done while the email was received has been lost (the proxy has been restarted since),
+         * it is done again here.</p>
+         * <p>This runs on a delivery worker, so the user is never asked anything: the decisions about missing 
+         * recipient keys were made while the email was received, and an email that still can not be encrypted or 
+         * signed (a key has gone, the signing passphrase is not cached) fails.</p>
+         * @return The copies of the email to send, as made by processCopies.
+         */
+        private EmailEnvelope [] prepareQueuedEmail(QueuedEmail queued) throws ProxyServerCoreException {
+            Email email = new Email(queued.getData());
+            email.setHeader("X-SecEmailProxy-Version",core.CoreVersionInfo.version);
+
+            OutgoingMailPreparation prep = prepareRecipients(queued, queued.getEncrypt(), queued.getPreparation());
+            return processCopies(queued, email, queued.getEncrypt(), queued.getSign(), prep, false);
+        }
+
+        /**
+         * <p>Do the key work for an email's recipients if that has not been done.</p>
+         * @param envelope The sender and recipients.
+         * @param encrypt Is the email to be encrypted?
+         * @param prep Key work already done for the email, or null.
+         * @return The key work for the email, or null if there is none.
+         */
+        private OutgoingMailPreparation prepareRecipients(EmailEnvelope envelope, boolean encrypt, OutgoingMailPreparation prep) throws ProxyServerCoreException {
+            if ((algorithm!=null) && (encrypt) && (prep==null)) {
+                try {
+                    prep = algorithm.beginOutgoingMail(publicKeyHandlers);
+                    for (int n = 0; (prep!=null) && (n < envelope.getNumberOfRecipients()); n++)
+                        algorithm.addOutgoingRecipient(prep, envelope.getRecipient(n));
+                } catch (PublicKeyNotFoundException e) {
+                    // processEmail asks the user what to do, or fails the email
+                    prep = null;
+                }
+            }
+
+            return prep;
+        }
+
+        /**
+         * <p>Encrypt / sign an email sent through a RelayPipe, asking the user what to do about missing keys and 
+         * passphrases.</p>
+         * <p>The relay has already given the mail server every recipient and sends it one email, so Bcc recipients
+         * can not be sent copies of their own here. The email is encrypted to its To and Cc recipients only.</p>
+         * @param envelope The sender and the recipients the mail server accepted.
+         * @param payload The email from the client.
+         * @return The email to send to the mail server.
+         * @throws ProxyServerCoreException if the email could not be processed or the user aborted it.
+         */
+        public byte[] processPayload(EmailEnvelope envelope, byte payload[]) throws ProxyServerCoreException {
+            Email email = new Email(payload);
+            email.setHeader("X-SecEmailProxy-Version",core.CoreVersionInfo.version);
+
+            return processEmail(email, encryptAll, signAll, prepareRecipients(envelope, encryptAll, null), true).getBytes();
+        }
+
+        /**
+         * <p>Send a batch of queued email over one pooled connection to the mail server.</p>
+         * <p>Email that can not be encrypted or signed, or that the server refuses outright (5xx), is given up on 
+         * straight away. Email the server refuses for now (4xx), or that is caught by a connection failure, is put 
+         * back on the queue to try again later.</p>
+         * <p>Whatever goes wrong, the connection is given back to the pool and any email that has not been dealt 
+         * with is put back on the queue, so nothing is left in flight.</p>
+         */
+        private void deliverBatch(QueuedEmail batch[]) {
+            // not printErr, nobody is waiting for this email and its dialog would stop the worker
+            EmailEnvelope copies[][] = new EmailEnvelope[batch.length][];
+            boolean done[] = new boolean[batch.length];
+            String error = "Delivery was interrupted";
+
+            SMTPHandler client = null;
+            boolean reusable = false;
+            try {
+                int ready = 0;
+                for (int n = 0; n < batch.length; n++) {
+                    try {
+                        copies[n] = prepareQueuedEmail(batch[n]);
+                        batch[n].setPreparation(null);
+                        ready++;
+                    } catch (ProxyServerCoreException e) {
+                        printStatus("Could not encrypt/sign queued email " + batch[n].getID() + ": " + e.getMessage());
+                        queue.failed(batch[n], e.getMessage(), true);
+                        done[n] = true;
+                    }
+                }
+
+                if (ready > 0) {
+                    client = pool.acquire(deliveryHost, deliveryPort);
+
+                    for (int n = 0; n < batch.length; n++) {
+                        if (done[n]) continue;
+
+                        try {
+                            deliver(client, copies[n]);
+                            queue.delivered(batch[n]);
+                            done[n] = true;
+                        } catch (MailRejectedException e) {
+                            printStatus("Mail server did not accept queued email " + batch[n].getID() + ": " + e.getMessage());
+                            queue.failed(batch[n], e.getMessage(), e.isPermanent());
+                            done[n] = true;
+
+                            // reset the transaction for the next email
+                            client.sendCommand(new IPTPRelay("RSET\r\n"));
+                            client.awaitCommandResponse();
+                        }
+                    }
+
+                    reusable = true;
+                }
+            } catch (ProxyServerCoreException e) {
+                // connection failure, the rest of the batch is retried below
+                error = e.getMessage();
+                printStatus("Delivery of queued email failed: " + error);
+            } catch (RuntimeException e) {
+                error = e.toString();
+                printStatus("Delivery of queued email failed: " + error);
+            } finally {
+                if (client!=null)
+                    pool.release(client, reusable);
+
+                for (int n = 0; n < batch.length; n++)
+                    if (!done[n])
+                        queue.failed(batch[n], error, false);
+            }
+
+            printStatus("Queued email delivery finished (" + queue.getStatistics() + ").");
+        }
+
+        /**
+         * <p>Background thread that takes batches of email off the queue and sends them to the mail server.</p>
+         */
+        private class DeliveryWorker extends Thread {
+
+            public DeliveryWorker(int number) {
+                super("OutgoingMailDelivery-" + number);
+                setDaemon(true);
+            }
+
+            public void run() {
+                // deliveries are timed for the pipe, they don't belong to the session that queued them
+                Metrics.setCurrentScopes(new Metrics.Scope[] {Metrics.getPipeScope(getPipeStatusPrefix())});
+                try {
+                    QueuedEmail batch[];
+                    while ((batch = queue.takeBatch(batchSize)) != null)
+                        deliverBatch(batch);
+                } catch (InterruptedException e) {
+                    // stop
+                }
+            }
+        }
 }
\ No newline at end of file
@@ -0,0 +1,576 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core;
+import core.email.*;
+import core.algorithmhandlers.OutgoingMailPreparation;
+import java.io.*;
+import java.util.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * <p>A persistent store-and-forward queue for outgoing email.</p>
+ * <p>The OutgoingEmailPipe spools each email it receives into the queue and tells the client the email has been 
+ * accepted as soon as it is safely on disk. Delivery workers then take batches of waiting email off the queue, 
+ * encrypt / sign them and send them to the mail server. An email whose delivery fails is put back with an 
+ * exponentially growing delay until it has failed too many times, when it is moved to the "failed" sub directory.</p>
+ * <p>Each email is stored as two files in the spool directory: ID.eml holds the message data and ID.env the 
+ * envelope and delivery state (as java.util.Properties). The envelope is written last and both are written to a 
+ * temporary file, synced and renamed, so an email only exists in the queue once it is completely on disk. Email 
+ * found in the directory when the queue is created is delivered as normal; email that was being delivered when the
+ * queue was closed will be sent again.</p>
+ * <p>Email is spooled before it is encrypted, so the message data is encrypted on disk with a random key that is 
+ * only ever held in memory, as the IncomingMailCache does. The key is shared by all the queues in one run of the 
+ * proxy, and its ID is written in the envelope. Email spooled by an earlier run can not be decrypted any more, so 
+ * it is moved to the "failed" directory and counted as undeliverable when the queue is created.</p>
+ * <p>The queue keeps some simple statistics (queue depth, delivery latency etc) for monitoring.</p>
+ * @see QueuedEmail
+ * @see OutgoingEmailPipe
+ */
+public class OutgoingMailQueue {
+
+    /** Default delay before the first retry, in milliseconds. */
+    public static final long RETRY_DELAY = 60 * 1000;
+
+    /** Default longest delay between retries, in milliseconds. */
+    public static final long MAX_RETRY_DELAY = 60 * 60 * 1000;
+
+    /** Default number of delivery attempts before an email is given up on. */
+    public static final int MAX_ATTEMPTS = 10;
+
+    /** Cipher used for the message data. */
+    private static final String SPOOL_CIPHER = "AES/CTR/NoPadding";
+
+    /** Key the message data is encrypted with, created by the first queue of this run. */
+    private static SecretKey spoolKey;
+
+    /** ID of spoolKey, written in each envelope. */
+    private static String spoolKeyID;
+
+    /** Used to make the spool key and IVs. */
+    private static SecureRandom random;
+
+    /** Spool directory. */
+    private File directory;
+
+    /** Where email that could not be delivered is moved to. */
+    private File failedDirectory;
+
+    /** Delay before the first retry. */
+    private long retryDelay;
+
+    /** Longest delay between retries. */
+    private long maxRetryDelay;
+
+    /** Delivery attempts before giving up. */
+    private int maxAttempts;
+
+    /** Email waiting for delivery, in the order it was queued. */
+    private Vector waiting;
+
+    /** Email currently being delivered. */
+    private Vector inFlight;
+
+    /** Used to make queue IDs unique. */
+    private int sequence;
+
+    /** Set once the queue has been closed. */
+    private boolean closed;
+
+    // statistics
+
+    /** Email queued since the queue was created. */
+    private long queuedCount;
+
+    /** Email delivered since the queue was created. */
+    private long deliveredCount;
+
+    /** Failed delivery attempts since the queue was created. */
+    private long failedAttempts;
+
+    /** Email given up on since the queue was created. */
+    private long undeliverableCount;
+
+    /** Total time from queuing to delivery of all delivered email. */
+    private long totalLatency;
+
+    /** Longest time from queuing to delivery. */
+    private long maxLatency;
+
+    /**
+     * <p>Create a queue in the given spool directory using the default retry settings.</p>
+     * @param directory The spool directory, created if it does not exist.
+     * @throws IOException if the spool directory could not be created or read.
+     */
+    public OutgoingMailQueue(File directory) throws IOException {
+        this(directory, RETRY_DELAY, MAX_RETRY_DELAY, MAX_ATTEMPTS);
+    }
+
+    /**
+     * <p>Create a queue in the given spool directory.</p>
+     * <p>Any email already in the directory is loaded and will be delivered.</p>
+     * @param directory The spool directory, created if it does not exist.
+     * @param retryDelay Delay before the first retry in milliseconds, doubled for each retry after that.
+     * @param maxRetryDelay Longest delay between retries in milliseconds.
+     * @param maxAttempts Number of delivery attempts before an email is given up on.
+     * @throws IOException if the spool directory could not be created or read.
+     */
+    public OutgoingMailQueue(File directory, long retryDelay, long maxRetryDelay, int maxAttempts) throws IOException {
+        this.directory = directory;
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.maxAttempts = maxAttempts;
+
+        failedDirectory = new File(directory, "failed");
+        if ((!failedDirectory.isDirectory()) && (!failedDirectory.mkdirs()))
+            throw new IOException("Could not create spool directory " + failedDirectory.getPath());
+
+        waiting = new Vector();
+        inFlight = new Vector();
+
+        createSpoolKey();
+        recover();
+    }
+
+    /**
+     * <p>Spool an email and add it to the queue.</p>
+     * <p>When this returns the email is on disk and it is safe to tell the client it has been accepted.</p>
+     * @param envelope The sender and recipients.
+     * @param data[] The raw message data.
+     * @param encrypt Should the email be encrypted?
+     * @param sign Should the email be signed?
+     * @return The queued email.
+     * @throws IOException if the email could not be written to disk.
+     */
+    public QueuedEmail enqueue(EmailEnvelope envelope, byte data[], boolean encrypt, boolean sign) throws IOException {
+        return enqueue(envelope, data, encrypt, sign, null);
+    }
+
+    /**
+     * <p>Spool an email and add it to the queue, together with the key work already done for it.</p>
+     * <p>The preparation is set before the email becomes visible to the delivery workers.</p>
+     * @param envelope The sender and recipients.
+     * @param data[] The raw message data.
+     * @param encrypt Should the email be encrypted?
+     * @param sign Should the email be signed?
+     * @param preparation Key work done while the email was received, or null.
+     * @return The queued email.
+     * @throws IOException if the email could not be written to disk.
+     */
+    public QueuedEmail enqueue(EmailEnvelope envelope, byte data[], boolean encrypt, boolean sign, OutgoingMailPreparation preparation) throws IOException {
+        long now = System.currentTimeMillis();
+
+        String id;
+        synchronized (this) {
+            id = Long.toString(now) + "-" + (sequence++);
+        }
+
+        QueuedEmail email = new QueuedEmail(id, data, encrypt, sign, now);
+        email.setSender(envelope.getSender());
+        for (int n = 0; n < envelope.getNumberOfRecipients(); n++)
+            email.addRecipient(envelope.getRecipient(n));
+        email.setPreparation(preparation);
+
+        // data first, the envelope marks the email as complete
+        writeFile(new File(directory, id + ".eml"), encrypt(data));
+        writeEnvelope(email);
+
+        synchronized (this) {
+            waiting.add(email);
+            queuedCount++;
+            notifyAll();
+        }
+
+        return email;
+    }
+
+    /**
+     * <p>Take a batch of email that is due for delivery, waiting until there is some.</p>
+     * <p>The email stays on disk until it is passed to delivered or failed.</p>
+     * @param max The largest number of email to return.
+     * @return Up to max email, or null if the queue has been closed.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public synchronized QueuedEmail [] takeBatch(int max) throws InterruptedException {
+        while (!closed) {
+            long now = System.currentTimeMillis();
+            long nextDue = Long.MAX_VALUE;
+
+            Vector batch = new Vector();
+            for (int n = 0; (n < waiting.size()) && (batch.size() < max); n++) {
+                QueuedEmail email = (QueuedEmail)waiting.elementAt(n);
+
+                if (email.getNextAttempt() <= now)
+                    batch.add(email);
+                else if (email.getNextAttempt() < nextDue)
+                    nextDue = email.getNextAttempt();
+            }
+
+            if (batch.size() > 0) {
+                QueuedEmail tmp[] = new QueuedEmail[batch.size()];
+                for (int n = 0; n < tmp.length; n++) {
+                    tmp[n] = (QueuedEmail)batch.elementAt(n);
+                    waiting.remove(tmp[n]);
+                    inFlight.add(tmp[n]);
+                }
+
+                return tmp;
+            }
+
+            wait((nextDue == Long.MAX_VALUE) ? 0 : nextDue - now);
+        }
+
+        return null;
+    }
+
+    /**
+     * <p>Remove a delivered email from the queue.</p>
+     */
+    public void delivered(QueuedEmail email) {
+        new File(directory, email.getID() + ".env").delete();
+        new File(directory, email.getID() + ".eml").delete();
+
+        long latency = System.currentTimeMillis() - email.getQueuedTime();
+
+        synchronized (this) {
+            inFlight.remove(email);
+
+            deliveredCount++;
+            totalLatency += latency;
+            if (latency > maxLatency) maxLatency = latency;
+        }
+    }
+
+    /**
+     * <p>Record a failed delivery attempt.</p>
+     * <p>The email is put back on the queue to be retried later, unless the failure is permanent or the email has 
+     * failed too many times, in which case it is moved to the failed directory.</p>
+     * @param email The email that could not be delivered.
+     * @param error Why.
+     * @param permanent True if retrying will not help.
+     * @return true if the email will be retried, false if it has been given up on.
+     */
+    public boolean failed(QueuedEmail email, String error, boolean permanent) {
+        email.setAttempts(email.getAttempts() + 1);
+        email.setLastError(error);
+
+        boolean retry = (!permanent) && (email.getAttempts() < maxAttempts);
+
+        if (retry) {
+            // exponential backoff
+            long delay = retryDelay;
+            for (int n = 1; (n < email.getAttempts()) && (delay < maxRetryDelay); n++)
+                delay *= 2;
+            email.setNextAttempt(System.currentTimeMillis() + Math.min(delay, maxRetryDelay));
+        }
+
+        try {
+            writeEnvelope(email);
+
+            if (!retry) {
+                moveFile(email.getID() + ".eml");
+                moveFile(email.getID() + ".env");
+            }
+        } catch (IOException e) {
+            // the old envelope is still on disk, so the email will just be retried sooner after a restart
+        }
+
+        synchronized (this) {
+            inFlight.remove(email);
+            failedAttempts++;
+
+            if (retry) {
+                waiting.add(email);
+                notifyAll();
+            } else {
+                undeliverableCount++;
+            }
+        }
+
+        return retry;
+    }
+
+    /**
+     * <p>Close the queue, waking any workers waiting for email.</p>
+     * <p>Spooled email stays on disk and will be delivered when the queue is next opened.</p>
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /** Return the spool directory. */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /** Return the number of email in the queue, including email being delivered. */
+    public synchronized int getDepth() {
+        return waiting.size() + inFlight.size();
+    }
+
+    /** Return the number of email currently being delivered. */
+    public synchronized int getInFlight() {
+        return inFlight.size();
+    }
+
+    /** Return the number of email queued since the queue was created. */
+    public synchronized long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /** Return the number of email delivered since the queue was created. */
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /** Return the number of failed delivery attempts since the queue was created. */
+    public synchronized long getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    /** Return the number of email given up on since the queue was created. */
+    public synchronized long getUndeliverableCount() {
+        return undeliverableCount;
+    }
+
+    /** Return the average time from queuing to delivery in milliseconds, or 0 if nothing has been delivered. */
+    public synchronized long getAverageLatency() {
+        return (deliveredCount == 0) ? 0 : totalLatency / deliveredCount;
+    }
+
+    /** Return the longest time from queuing to delivery in milliseconds. */
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /** Return a one line summary of the queue statistics. */
+    public synchronized String getStatistics() {
+        return "queued " + getDepth() + " (" + getInFlight() + " sending), delivered " + deliveredCount 
+            + ", failed attempts " + failedAttempts + ", undeliverable " + undeliverableCount 
+            + ", latency avg " + getAverageLatency() + "ms max " + maxLatency + "ms";
+    }
+
+    /** Load email left in the spool directory. */
+    private void recover() throws IOException {
+        File files[] = directory.listFiles();
+        if (files == null)
+            throw new IOException("Could not read spool directory " + directory.getPath());
+
+        // sort so that email is delivered in the order it was queued
+        Arrays.sort(files);
+
+        for (int n = 0; n < files.length; n++) {
+            String name = files[n].getName();
+
+            if (name.endsWith(".tmp")) {
+                // incomplete write
+                files[n].delete();
+            } else if (name.endsWith(".env")) {
+                String id = name.substring(0, name.length() - 4);
+                File data = new File(directory, id + ".eml");
+
+                if (data.exists()) {
+                    QueuedEmail email = readEnvelope(id, files[n], data);
+
+                    if (email != null) {
+                        waiting.add(email);
+                    } else {
+                        // spooled by an earlier run, its key has gone with it
+                        moveFile(id + ".eml");
+                        moveFile(id + ".env");
+                        undeliverableCount++;
+                    }
+                } else {
+                    files[n].delete();
+                }
+            }
+        }
+
+        // data files with no envelope were never completely queued
+        for (int n = 0; n < files.length; n++) {
+            String name = files[n].getName();
+            if ((name.endsWith(".eml")) && (!new File(directory, name.substring(0, name.length() - 4) + ".env").exists()))
+                files[n].delete();
+        }
+    }
+
+    /** Read a spooled email, returning null if it was encrypted with another run's spool key. */
+    private QueuedEmail readEnvelope(String id, File envelope, File data) throws IOException {
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream(envelope);
+        try {
+            p.load(in);
+        } finally {
+            in.close();
+        }
+
+        if (!spoolKeyID.equals(p.getProperty("spoolkey")))
+            return null;
+
+        byte buffer[] = new byte[(int)data.length()];
+        DataInputStream din = new DataInputStream(new FileInputStream(data));
+        try {
+            din.readFully(buffer);
+        } finally {
+            din.close();
+        }
+
+        QueuedEmail email = new QueuedEmail(
+            id, 
+            decrypt(buffer),
+            "1".equals(p.getProperty("encrypt")),
+            "1".equals(p.getProperty("sign")),
+            Long.parseLong(p.getProperty("queued", "0"))
+        );
+
+        email.setSender(p.getProperty("sender", ""));
+        for (int n = 0; p.getProperty("rcpt." + n) != null; n++)
+            email.addRecipient(p.getProperty("rcpt." + n));
+
+        email.setAttempts(Integer.parseInt(p.getProperty("attempts", "0")));
+        email.setNextAttempt(Long.parseLong(p.getProperty("nextattempt", "0")));
+        email.setLastError(p.getProperty("lasterror"));
+
+        return email;
+    }
+
+    /** Write an email's envelope and delivery state. */
+    private void writeEnvelope(QueuedEmail email) throws IOException {
+        Properties p = new Properties();
+
+        p.setProperty("spoolkey", spoolKeyID);
+        p.setProperty("sender", email.getSender());
+        for (int n = 0; n < email.getNumberOfRecipients(); n++)
+            p.setProperty("rcpt." + n, email.getRecipient(n));
+
+        p.setProperty("encrypt", email.getEncrypt() ? "1" : "0");
+        p.setProperty("sign", email.getSign() ? "1" : "0");
+        p.setProperty("queued", Long.toString(email.getQueuedTime()));
+        p.setProperty("attempts", Integer.toString(email.getAttempts()));
+        p.setProperty("nextattempt", Long.toString(email.getNextAttempt()));
+        if (email.getLastError() != null)
+            p.setProperty("lasterror", email.getLastError());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        p.store(out, "Secure Email Proxy outgoing mail");
+
+        writeFile(new File(directory, email.getID() + ".env"), out.toByteArray());
+    }
+
+    /** Create the spool key if no queue has yet. */
+    private static synchronized void createSpoolKey() throws IOException {
+        if (spoolKey != null)
+            return;
+
+        try {
+            random = new SecureRandom();
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(128, random);
+            spoolKey = generator.generateKey();
+            spoolKeyID = Long.toHexString(random.nextLong());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not create spool key : " + e.getMessage());
+        }
+    }
+
+    /** Encrypt message data for the spool, the random IV is written first. */
+    private static byte[] encrypt(byte data[]) throws IOException {
+        try {
+            byte iv[] = new byte[16];
+            synchronized (OutgoingMailQueue.class) {
+                random.nextBytes(iv);
+            }
+
+            Cipher cipher = Cipher.getInstance(SPOOL_CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, spoolKey, new IvParameterSpec(iv));
+
+            byte encrypted[] = new byte[16 + cipher.getOutputSize(data.length)];
+            System.arraycopy(iv, 0, encrypted, 0, 16);
+            cipher.doFinal(data, 0, data.length, encrypted, 16);
+            return encrypted;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt spooled email : " + e.getMessage());
+        }
+    }
+
+    /** Decrypt message data read from the spool. */
+    private static byte[] decrypt(byte data[]) throws IOException {
+        if (data.length < 16)
+            throw new IOException("Spooled email is truncated");
+
+        try {
+            Cipher cipher = Cipher.getInstance(SPOOL_CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, spoolKey, new IvParameterSpec(data, 0, 16));
+            return cipher.doFinal(data, 16, data.length - 16);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt spooled email : " + e.getMessage());
+        }
+    }
+
+    /** Durably write a file: write a temporary file, sync it to disk and rename it over the original. */
+    private void writeFile(File file, byte data[]) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        // renameTo replaces the original atomically where it can, but not on all platforms
+        if (tmp.renameTo(file))
+            return;
+
+        if ((file.exists()) && (!file.delete()))
+            throw new IOException("Could not replace " + file.getPath());
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp.getPath());
+    }
+
+    /** Move a spool file into the failed directory. */
+    private void moveFile(String name) throws IOException {
+        File target = new File(failedDirectory, name);
+        if (target.exists())
+            target.delete();
+
+        if (!new File(directory, name).renameTo(target))
+            throw new IOException("Could not move " + name + " to " + failedDirectory.getPath());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core;
+import core.email.*;
+import core.algorithmhandlers.OutgoingMailPreparation;
+
+/**
+ * <p>An outgoing email waiting in the OutgoingMailQueue.</p>
+ * <p>This is the envelope the client gave together with the raw message data as it was received, what should be 
+ * done to it (encrypt, sign) and how its delivery is going.</p>
+ * @see OutgoingMailQueue
+ */
+public class QueuedEmail extends EmailEnvelope {
+
+    /** Queue identifier, also the spool file name. */
+    private String id;
+
+    /** The message data as it was received from the client. */
+    private byte data[];
+
+    /** Should the message be encrypted? */
+    private boolean encrypt;
+
+    /** Should the message be signed? */
+    private boolean sign;
+
+    /** When the message was queued. */
+    private long queuedTime;
+
+    /** Number of failed delivery attempts so far. */
+    private int attempts;
+
+    /** Earliest time the next delivery attempt may be made. */
+    private long nextAttempt;
+
+    /** Why the last attempt failed, or null. */
+    private String lastError;
+
+    /** Key work done while the message was received. Not spooled, so lost if the proxy is restarted. */
+    private volatile OutgoingMailPreparation preparation;
+
+    /**
+     * <p>Create a new queue entry.</p>
+     * @param id The queue identifier.
+     * @param data[] The raw message data.
+     * @param encrypt Should the message be encrypted?
+     * @param sign Should the message be signed?
+     * @param queuedTime When the message was queued.
+     */
+    public QueuedEmail(String id, byte data[], boolean encrypt, boolean sign, long queuedTime) {
+        super();
+
+        this.id = id;
+        this.data = data;
+        this.encrypt = encrypt;
+        this.sign = sign;
+        this.queuedTime = queuedTime;
+
+        attempts = 0;
+        nextAttempt = queuedTime;
+    }
+
+    /** Return the queue identifier. */
+    public String getID() {
+        return id;
+    }
+
+    /** Return the raw message data. */
+    public byte[] getData() {
+        return data;
+    }
+
+    /** Should the message be encrypted? */
+    public boolean getEncrypt() {
+        return encrypt;
+    }
+
+    /** Should the message be signed? */
+    public boolean getSign() {
+        return sign;
+    }
+
+    /** Return when the message was queued. */
+    public long getQueuedTime() {
+        return queuedTime;
+    }
+
+    /** Return the number of failed delivery attempts. */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /** Set the number of failed delivery attempts. */
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /** Return the earliest time the next delivery attempt may be made. */
+    public long getNextAttempt() {
+        return nextAttempt;
+    }
+
+    /** Set the earliest time the next delivery attempt may be made. */
+    public void setNextAttempt(long time) {
+        nextAttempt = time;
+    }
+
+    /** Return why the last delivery attempt failed, or null. */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /** Record why the last delivery attempt failed. */
+    public void setLastError(String error) {
+        lastError = error;
+    }
+
+    /** Return the key work done while the message was received, or null. */
+    public OutgoingMailPreparation getPreparation() {
+        return preparation;
+    }
+
+    /** Set the key work done while the message was received. */
+    public void setPreparation(OutgoingMailPreparation preparation) {
+        this.preparation = preparation;
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core;
+import core.interfaces.*;
+import core.exceptions.*;
+import core.protocolhandlers.*;
+import core.email.EmailEnvelope;
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import system.Metrics;
+
+/**
+ * <p>A non blocking alternative to the IncomingEmailPipe and OutgoingEmailPipe, which relays any number of email 
+ * client connections from one thread.</p>
+ *
+ * <p>The pipe accepts connections from email clients and opens a connection to the email server for each, all 
+ * non blocking channels waited on by a single selector. What either side sends is passed to the connection's
+ * RelaySession, and on to the other side line by line as it was received, without being converted to strings or
+ * proxy protocol commands. Only the emails being retrieved (RETR) or sent (DATA) are collected and handed to the
+ * pipe's payload threads, where the RelayPayloadHandler processes them, and the result is passed back to the selector
+ * thread to be sent on. A connection waiting for an email to be processed does not hold up the others.</p>
+ *
+ * <p>The payload threads are the pipe's own rather than the shared WorkerPool, as the handler may wait for the user 
+ * (eg to ask for a passphrase) and must not hold up the encryption work running on the pool. There is a fixed number
+ * of them, so a burst of emails waits its turn rather than starting a thread each.</p>
+ *
+ * <p>As with the other pipes, only connections from this machine are accepted.</p>
+ *
+ * @see RelaySession
+ * @see RelayProtocol
+ * @see RelayPayloadHandler
+ */
+public class RelayPipe extends EmailPipe
+{
+        /** Protocol state that each session's state is created from. */
+        private RelayProtocol protocol;
+        /** The object that processes intercepted emails. */
+        private RelayPayloadHandler handler;
+
+        /** Port the email clients connect to. */
+        private int listenPort;
+        /** Address of the email server. */
+        private String serverHost;
+        /** Port of the email server. */
+        private int serverPort;
+        /** The email server's address, looked up once when the pipe starts rather than for each connection. */
+        private InetSocketAddress serverAddress;
+
+        /** Waits on every channel, null until the pipe is started. */
+        private Selector selector;
+        /** Accepts connections from the email clients. */
+        private ServerSocketChannel acceptor;
+
+        /** Results of processed emails, as RelaySession, result pairs. The result is a byte[] or the exception. */
+        private LinkedList processed = new LinkedList();
+
+        /** Sessions that have not been closed yet, counted as active in the metrics. Only used by the selector thread. */
+        private HashSet sessions = new HashSet();
+
+        /** Threads that process the intercepted emails, null until the pipe is started. */
+        private ExecutorService payloadThreads;
+        /** Number of emails processed at once. */
+        private int payloadThreadCount = PAYLOAD_THREADS;
+
+        /** Default number of emails processed at once. */
+        public static final int PAYLOAD_THREADS = 4;
+
+        /**
+         * <p>Relay pipe constructor.</p>
+         * @param name Prefix for status messages.
+         * @param protocol The protocol to relay, eg a POP3Relay or SMTPRelay.
+         * @param handler Processes the emails intercepted.
+         * @param listenPort The port email clients connect to.
+         * @param serverHost The address of the email server.
+         * @param serverPort The port of the email server.
+         * @throws ProxyServerCoreException if protocol or handler are null.
+         */
+        public RelayPipe(String name, RelayProtocol protocol, RelayPayloadHandler handler,
+                         int listenPort, String serverHost, int serverPort) throws ProxyServerCoreException {
+
+                                     super();
+                                     setPipeStatusPrefix(name);
+
+                                     if ( (protocol == null) || (handler == null) )
+                                         throw new ProxyServerCoreException("Pipe constructed with null protocol or payload handler");
+
+                                     this.protocol = protocol;
+                                     this.handler = handler;
+                                     this.listenPort = listenPort;
+                                     this.serverHost = serverHost;
+                                     this.serverPort = serverPort;
+        }
+
+        /**
+         * <p>Set the number of emails processed at once, the rest wait for a payload thread.</p>
+         * <p>This must be called before the pipe is started.</p>
+         * @param threads The number of payload threads, at least 1.
+         */
+        public void setPayloadThreads(int threads) {
+            payloadThreadCount = Math.max(1, threads);
+        }
+
+        /** <p>Stop the pipe.</p>
+         * <p>Wakes the selector thread, which closes every connection and returns.</p>
+         */
+        public void stopPipe() {
+            setRunning(false);
+
+            Selector s = selector;
+            if (s != null)
+                s.wakeup();
+        }
+
+        /** Accept a connection from an email client and start connecting to the email server for it. */
+        private void accept() throws IOException {
+            SocketChannel client = acceptor.accept();
+            if (client == null)
+                return;
+
+            InetAddress address = client.socket().getInetAddress();
+            if (!address.isLoopbackAddress()) {
+                printStatus("Connection attempt from remote computer! (" + address.getHostAddress() + ")");
+                client.close();
+                return;
+            }
+
+            client.configureBlocking(false);
+            RelaySession session = new RelaySession(client, protocol.newSession());
+            session.setKey(RelaySession.CLIENT, client.register(selector, SelectionKey.OP_READ, session));
+
+            if (serverAddress.isUnresolved()) {
+                printStatus("Could not connect to host, " + serverHost + " is unknown");
+                client.close();
+                return;
+            }
+
+            SocketChannel server = null;
+            try {
+                server = SocketChannel.open();
+                server.configureBlocking(false);
+                session.setServerChannel(server);
+
+                if (server.connect(serverAddress))
+                    session.setKey(RelaySession.SERVER, server.register(selector, SelectionKey.OP_READ, session));
+                else
+                    server.register(selector, SelectionKey.OP_CONNECT, session);
+            } catch (IOException e) {
+                printStatus("Could not connect to host, " + e.getMessage());
+                session.closeChannels();
+                return;
+            }
+
+            printStatus("Connection accepted, relaying to email server...");
+            sessions.add(session);
+            Metrics.sessionStarted();
+            session.updateInterest();
+        }
+
+        /** Handle the events on one channel. */
+        private void handle(SelectionKey key) throws IOException, ProxyServerCoreException {
+            RelaySession session = (RelaySession)key.attachment();
+            int side = session.getSide(key.channel());
+
+            if (key.isConnectable()) {
+                ((SocketChannel)key.channel()).finishConnect();
+                session.setKey(RelaySession.SERVER, key);
+            }
+
+            if ((key.isValid()) && (key.isReadable()))
+                session.read(side);
+
+            if ((key.isValid()) && (key.isWritable()))
+                session.write(side);
+        }
+
+        /** Pass the email a session has collected to the payload threads, and update what it waits for. */
+        private void update(RelaySession session) {
+            if (session.hasPayload()) {
+                final RelaySession s = session;
+                final EmailEnvelope envelope = session.getPayloadEnvelope();
+                final byte payload[] = session.takePayload();
+                final Selector wake = selector;
+                final Metrics.Scope scope = Metrics.getPipeScope(getPipeStatusPrefix());
+
+                payloadThreads.execute(new Runnable() {
+                    public void run() {
+                        Object result;
+
+                        Metrics.setCurrentScopes(new Metrics.Scope[] {scope});
+                        try {
+                            result = handler.processPayload(envelope, payload);
+                        } catch (ProxyServerCoreException e) {
+                            result = e;
+                        } catch (RuntimeException e) {
+                            result = new ProxyServerCoreException("Could not process email, " + e);
+                        } finally {
+                            Metrics.setCurrentScopes(null);
+                        }
+
+                        synchronized (processed) {
+                            processed.add(new Object[] { s, result });
+                        }
+                        wake.wakeup();
+                    }
+                });
+            }
+
+            if (session.isFinished())
+                close(session);
+            else
+                session.updateInterest();
+        }
+
+        /** Pass the results of processed emails back to their sessions. */
+        private void completeProcessed() {
+            while (true) {
+                Object done[];
+                synchronized (processed) {
+                    if (processed.isEmpty())
+                        return;
+                    done = (Object[])processed.removeFirst();
+                }
+
+                RelaySession session = (RelaySession)done[0];
+                if (!session.getChannel(RelaySession.CLIENT).isOpen())
+                    continue;
+
+                // not printErr, its dialog would hold up every other connection
+                if (done[1] instanceof ProxyServerCoreException)
+                    printStatus("Could not process email, " + ((ProxyServerCoreException)done[1]).getMessage());
+
+                try {
+                    session.completePayload(done[1]);
+                    update(session);
+                } catch (ProxyServerCoreException e) {
+                    printStatus("Connection dropped, " + e.getMessage());
+                    close(session);
+                }
+            }
+        }
+
+        /** Close a session's connections. */
+        private void close(RelaySession session) {
+            session.closeChannels();
+            if (sessions.remove(session))
+                Metrics.sessionFinished();
+            printStatus("Connection closed.");
+        }
+
+	/**
+	 * <p>Princible run loop.</p>
+	 *
+	 * <p>Waits for events on every connection and relays them, until the pipe is stopped.</p>
+	 */
+	public void run()
+	{
+            setRunning(true); // The thread is now running
+
+            final String name = getPipeStatusPrefix();
+            payloadThreads = Executors.newFixedThreadPool(payloadThreadCount, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + "-payload");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            try {
+                // a blocking lookup, done before there are any connections to hold up
+                serverAddress = new InetSocketAddress(serverHost, serverPort);
+                if (serverAddress.isUnresolved())
+                    printStatus("Could not find the address of " + serverHost);
+
+                selector = Selector.open();
+                acceptor = ServerSocketChannel.open();
+                acceptor.socket().setReuseAddress(true);
+                acceptor.socket().bind(new InetSocketAddress(listenPort));
+                acceptor.configureBlocking(false);
+                acceptor.register(selector, SelectionKey.OP_ACCEPT);
+
+                printStatus("Awaiting connections");
+
+                while (getRunning()) {
+                    selector.select();
+                    completeProcessed();
+
+                    Iterator keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = (SelectionKey)keys.next();
+                        keys.remove();
+
+                        if (!key.isValid())
+                            continue;
+
+                        if (key.isAcceptable()) {
+                            try {
+                                accept();
+                            } catch (IOException e) {
+                                printStatus("Could not accept connection, " + e.getMessage());
+                            }
+                            continue;
+                        }
+
+                        RelaySession session = (RelaySession)key.attachment();
+                        try {
+                            handle(key);
+                            update(session);
+                        } catch (IOException e) {
+                            printStatus("Connection dropped, " + e.getMessage());
+                            close(session);
+                        } catch (ProxyServerCoreException e) {
+                            printStatus("Connection dropped, " + e.getMessage());
+                            close(session);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                printErr(e.getMessage());
+            } finally {
+                shutdown();
+            }
+	}
+
+        /** Close the selector and every connection. */
+        private void shutdown() {
+            try {
+                if (selector != null) {
+                    Iterator keys = selector.keys().iterator();
+                    while (keys.hasNext())
+                        ((SelectionKey)keys.next()).channel().close();
+
+                    selector.close();
+                }
+            } catch (IOException e) {
+                printStatus("RelayPipe.stopPipe() : " + e.getMessage());
+            }
+
+            for (int n = sessions.size(); n > 0; n--)
+                Metrics.sessionFinished();
+            sessions.clear();
+
+            if (payloadThreads != null)
+                payloadThreads.shutdown();
+            payloadThreads = null;
+
+            selector = null;
+            acceptor = null;
+        }
+}
@@ -63,6 +63,71 @@ public abstract class AlgorithmHandler {
      */
     public abstract Email processOutgoingMail(boolean encrypt, boolean sign, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, Email email, PassPhrase passPhrases []) 
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException;
+
+    /**
+     * <p>Process an outgoing email using key work prepared while the email was being received.</p>
+     * <p>The default ignores the preparation and calls processOutgoingMail without it.</p>
+     * @param preparation What beginOutgoingMail returned for this email, may be null.
+     * @see #processOutgoingMail(boolean, boolean, KeyHandler[], KeyHandler[], Email, PassPhrase[])
+     */
+    public Email processOutgoingMail(boolean encrypt, boolean sign, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, Email email, PassPhrase passPhrases [], OutgoingMailPreparation preparation) 
+        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException {
+            return processOutgoingMail(encrypt, sign, publicKeyStores, privateKeyStores, email, passPhrases);
+    }
+
+    /**
+     * <p>Process an outgoing email for its To and Cc recipients and some of its Bcc recipients.</p>
+     * <p>An encrypted email is encrypted to the To and Cc recipients as usual, and to the given Bcc recipients as 
+     * well. Each Bcc recipient should be sent their own copy, so that the keys the email is encrypted to do not
+     * tell the other recipients who else got it.</p>
+     * <p>The default ignores the Bcc recipients.</p>
+     * @param bcc[] Bcc recipients to also encrypt to, may be null.
+     * @see #processOutgoingMail(boolean, boolean, KeyHandler[], KeyHandler[], Email, PassPhrase[], OutgoingMailPreparation)
+     */
+    public Email processOutgoingMail(boolean encrypt, boolean sign, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, Email email, PassPhrase passPhrases [], OutgoingMailPreparation preparation, String bcc []) 
+        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException {
+            return processOutgoingMail(encrypt, sign, publicKeyStores, privateKeyStores, email, passPhrases, preparation);
+    }
+
+    /**
+     * <p>Start the key work for an outgoing email to be encrypted, before its data has arrived.</p>
+     * <p>Handlers that can do some of their work up front return an object that collects it, the default
+     * returns null.</p>
+     * @param publicKeyStores[] An array of available public key stores.
+     * @throws AlgorithmException if there was an unrecoverable algorithm specific problem.
+     */
+    public OutgoingMailPreparation beginOutgoingMail(KeyHandler [] publicKeyStores) throws AlgorithmException {
+        return null;
+    }
+
+    /**
+     * <p>Add a recipient to an outgoing email being prepared.</p>
+     * <p>The recipient's key is looked up straight away so that a missing key can be reported while the
+     * client is still naming recipients. The default does nothing.</p>
+     * @param preparation What beginOutgoingMail returned for this email.
+     * @param recipient The recipient's address.
+     * @throws AlgorithmException if there was an unrecoverable algorithm specific problem.
+     * @throws KeyHandlerException if there was an unrecoverable key handler specific problem.
+     * @throws PublicKeyNotFoundException if the recipient's key could not be found in a public keystore.
+     */
+    public void addOutgoingRecipient(OutgoingMailPreparation preparation, String recipient) 
+        throws AlgorithmException, KeyHandlerException, PublicKeyNotFoundException {
+    }
+
+    /**
+     * <p>Find and unlock the key an outgoing email would be signed with, without signing it.</p>
+     * <p>This lets a missing key or passphrase be dealt with while the user can still be asked, when the email 
+     * itself is signed later. The default does nothing.</p>
+     * @param privateKeyStores[] An array of availabe private key stores.
+     * @param email The email to be signed.
+     * @param passPhrases A list of passphrases to try unlocking keydata with.
+     * @throws KeyHandlerException if there was an unrecoverable key handler specific problem.
+     * @throws ChecksumFailureException if none of the passphrases unlock the key.
+     * @throws SecretKeyNotFoundException if the signing key could not be found in a secret keystore.
+     */
+    public void checkSigningKey(KeyHandler [] privateKeyStores, Email email, PassPhrase passPhrases []) 
+        throws KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException {
+    }
    
     /**
      * <p>Process an incoming email.</p>
@@ -80,5 +145,15 @@ public abstract class AlgorithmHandler {
      */
     public abstract Email processIncomingMail(KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, Email email, PassPhrase passPhrases []) 
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException,  SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException;
+
+    /**
+     * <p>Should an incoming email be passed to processIncomingMail?</p>
+     * <p>This is asked before the email is parsed. Returning false lets the pipe pass the email to the client exactly
+     * as it came from the server. The default returns true.</p>
+     * @param email The email as it came from the server.
+     */
+    public boolean isIncomingMailProcessed(byte [] email) {
+        return true;
+    }
    
 }
@@ -45,7 +45,12 @@ import core.algorithmhandlers.openpgp.util.*;
 import java.security.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import org.bouncycastle.jce.provider.*;
+import system.Metrics;
+import system.TraceFile;
 
 /**
  * <p>Open PGP handler.</p>
@@ -58,6 +63,20 @@ public class OpenPGPHandler extends AlgorithmHandler {
     /** Symmetric algorithm */
     private int symmetricAlgorithm;
 
+    /** Text flags value meaning that signed data is binary and is hashed as it is. */
+    private static final int BINARY_DATA = -1;
+
+    /** 
+     * <p>Finds anything processIncomingMail would act on: ascii armor, PGP/MIME content types and .pgp / .sig 
+     * attachments. Only the attachment name needs to be found, the match does not have to be exact.</p>
+     */
+    private static final PatternScanner OPENPGP_CONTENT = new PatternScanner(new String[] { 
+        "-----BEGIN PGP ", "application/pgp", ".pgp", ".sig" 
+    });
+
+    /** Add the processing summary and log to incoming email that has nothing OpenPGP in it. */
+    private boolean markPlainMail = true;
+
 
     /** <p>Creates a new instance of OpenPGPHandler.</p>
      * @param symmetricAlgorithm Default symmetric key algorithm to use if not specified in recipient's public keyring.
@@ -76,6 +95,30 @@ public class OpenPGPHandler extends AlgorithmHandler {
         return symmetricAlgorithm;
     }
 
+    /**
+     * <p>Set whether incoming email with nothing OpenPGP in it still gets a processing summary and log.</p>
+     * <p>The summary tells the user that the email was not encrypted or signed. Without it such email is passed to the
+     * client exactly as it came from the server, which is much quicker.</p>
+     */
+    public void setMarkPlainMail(boolean mark) {
+        markPlainMail = mark;
+    }
+
+    /** Does incoming email with nothing OpenPGP in it get a processing summary and log? */
+    public boolean getMarkPlainMail() {
+        return markPlainMail;
+    }
+
+    /**
+     * <p>Should an incoming email be passed to processIncomingMail?</p>
+     * <p>Unless plain email is to be marked, this scans the raw email for ascii armor, PGP/MIME content types and 
+     * .pgp / .sig attachments and returns false if none are found.</p>
+     * @param email The email as it came from the server.
+     */
+    public boolean isIncomingMailProcessed(byte [] email) {
+        return (markPlainMail) || (OPENPGP_CONTENT.matches(email));
+    }
+
 
     /**
      * <p>Process an outgoing email.</p>
@@ -96,27 +139,56 @@ public class OpenPGPHandler extends AlgorithmHandler {
      * @throws EmailDataFormatException if the email was badly formatted and could not be parsed.
      */
     public Email processOutgoingMail(boolean encrypt, boolean sign, KeyHandler[] publicKeyStores, KeyHandler[] privateKeyStores, Email email, PassPhrase[] passPhrases) throws AlgorithmException, KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException {
+            return processOutgoingMail(encrypt, sign, publicKeyStores, privateKeyStores, email, passPhrases, null);
+    }
+
+    /**
+     * <p>Process an outgoing email, using the session key and recipient session key packets prepared while it was
+     * being received.</p>
+     * <p>The recipients the email is encrypted to are always taken from the To and Cc headers, so that the key IDs 
+     * in the message do not give away its Bcc recipients. Session key packets already made for them by 
+     * addOutgoingRecipient are used, any envelope only (Bcc) recipients' packets are left out.</p>
+     * @param preparation What beginOutgoingMail returned for this email, may be null.
+     * @see #processOutgoingMail(boolean, boolean, KeyHandler[], KeyHandler[], Email, PassPhrase[])
+     */
+    public Email processOutgoingMail(boolean encrypt, boolean sign, KeyHandler[] publicKeyStores, KeyHandler[] privateKeyStores, Email email, PassPhrase[] passPhrases, OutgoingMailPreparation preparation) throws AlgorithmException, KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException {
+            return processOutgoingMail(encrypt, sign, publicKeyStores, privateKeyStores, email, passPhrases, preparation, null);
+    }
+
+    /**
+     * <p>Process an outgoing email, also encrypting it to the given Bcc recipients.</p>
+     * <p>This makes a Bcc recipient's own copy of the email: it is encrypted to the To and Cc recipients and to 
+     * the Bcc recipients given, using their session key packets from addOutgoingRecipient if they were made.</p>
+     * @param preparation What beginOutgoingMail returned for this email, may be null.
+     * @param bcc[] Bcc recipients to also encrypt to, may be null.
+     * @see #processOutgoingMail(boolean, boolean, KeyHandler[], KeyHandler[], Email, PassPhrase[], OutgoingMailPreparation)
+     */
+    public Email processOutgoingMail(boolean encrypt, boolean sign, KeyHandler[] publicKeyStores, KeyHandler[] privateKeyStores, Email email, PassPhrase[] passPhrases, OutgoingMailPreparation preparation, String bcc[]) throws AlgorithmException, KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException, PublicKeyNotFoundException, EmailDataFormatException {
 
             Email newEmail = new Email(email);
 
             String signer = null;
+            OpenPGPKeyData signerKey = null;
 
             try {
 
                     if (sign) {
-                            // Find signing key (from from header field), passphrase failure here will be handled by caller
+                            // Find signing key (from from header field), passphrase failure here will be handled by caller.
+                            // The key is found and unlocked once, here, rather than by each part being signed
                             EmailHeader from[] = email.getHeader("from");
                             signer = from[0].getTagValue();
+                            signerKey = findSigningKey(privateKeyStores, signer, passPhrases);
 
-                            // sign body
-                            if (newEmail.getMimeBody()!=null) {
+                            if (encrypt) {
+                                    // signed and encrypted messages carry a one pass signature inside the encrypted data
+                            } else if (newEmail.getMimeBody()!=null) {
                                     // special body, need to parse
 
-                                    newEmail.setMimeBody(signMimeBody(privateKeyStores, signer, passPhrases, newEmail.getMimeBody()));
+                                    newEmail.setMimeBody(signMimeBody(signerKey, newEmail.getMimeBody()));
 
                             } else {
                                     // normal body
-                                    newEmail.setBody(signBody(privateKeyStores, signer, passPhrases, newEmail.getBody()));
+                                    newEmail.setBody(signBody(signerKey, newEmail.getBody()));
                             }
 
 
@@ -124,25 +196,41 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
                     if (encrypt) {
 
-                            String recp[] = email.getRecipients();
+                            // session key and recipient session key packets, shared by all parts of the message
+                            RecipientKeys prepared = (preparation instanceof RecipientKeys) ? (RecipientKeys)preparation : null;
+                            RecipientKeys recp = (prepared!=null) ? new RecipientKeys(prepared.getPublicKeyStores(), prepared.getSessionKey()) 
+                                : (RecipientKeys)beginOutgoingMail(publicKeyStores);
+                            String headers[] = email.getRecipients();
+                            String addresses[] = headers;
+                            if (bcc!=null) {
+                                addresses = new String[headers.length + bcc.length];
+                                System.arraycopy(headers, 0, addresses, 0, headers.length);
+                                System.arraycopy(bcc, 0, addresses, headers.length, bcc.length);
+                            }
+                            for (int n = 0; n < addresses.length; n++) {
+                                if ((prepared!=null) && (prepared.hasRecipient(addresses[n])))
+                                    recp.addRecipient(addresses[n], prepared.getSessionKeyPacket(addresses[n]));
+                                else
+                                    addOutgoingRecipient(recp, addresses[n]);
+                            }
 
                             // TODO : Use recipients algorithm preferences.
 
                             // encrypt body
                             if (newEmail.getMimeBody()!=null) {
                                     // MIME body, need to encrypt each sub component
-                                    newEmail.setMimeBody(encryptMimeBody(publicKeyStores, recp, newEmail.getMimeBody()));
+                                    newEmail.setMimeBody(encryptMimeBody(recp, signerKey, newEmail.getMimeBody()));
 
                             } else {
                                     // normal body
-                                    newEmail.setBody(encryptBody(publicKeyStores, recp, newEmail.getBody()));
+                                    newEmail.setBody(encryptBody(recp, signerKey, newEmail.getBody()));
                             }
 
                             // encrypt attachments
                             if (newEmail.getAttachments()!=null) {
                                     // there are attachments
 
-                                    EmailAttachment encryptedAttachments[] = encryptAttachments(publicKeyStores, recp, newEmail.getAttachments());
+                                    EmailAttachment encryptedAttachments[] = encryptAttachments(recp, signerKey, newEmail.getAttachments());
 
                                     // store attachments in email
                                     newEmail.purgeAttachments();
@@ -151,8 +239,8 @@ public class OpenPGPHandler extends AlgorithmHandler {
                             }
                     }
 
-                    // sign attachments
-                    if (sign) {
+                    // sign attachments (encrypted attachments are already signed inside)
+                    if ((sign) && (!encrypt)) {
 
                             // sign attachments
                             EmailAttachment attachments[] = newEmail.getAttachments();
@@ -160,7 +248,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
                                     // there are attachments
 
                                     // sign data
-                                    EmailAttachment encryptedAttachments[] = signAttachments(privateKeyStores, signer, passPhrases, newEmail.getAttachments());
+                                    EmailAttachment encryptedAttachments[] = signAttachments(signerKey, newEmail.getAttachments());
 
                                     // store signature attachments in email
                                     for (int n=0; n<encryptedAttachments.length; n++)
@@ -242,82 +330,33 @@ public class OpenPGPHandler extends AlgorithmHandler {
             if (attachments!=null) {
 
                 log.beginSection("Message has attachments");
- 
-                for (int n = 0; n < attachments.length; n++) {
-
-                    if (!attachments[n].getFilename().endsWith(".sig")) {
-                        // if not a signature
-
-                        // log file
-                        log.beginSection("Attachment: " + attachments[n].getFilename() + ", Size: " + attachments[n].getData().length + " bytes"); //writeLog(log, "+ Attachment: " + attachments[n].getFilename() + ", Size: " + attachments[n].getData().length + " bytes\r\n");
-
-                        // hunt for corresponding signature
-                        EmailAttachment signature = null;
-                        for (int na = 0; na < attachments.length; na++) {
-                            if (attachments[na].getFilename().compareTo(attachments[n].getFilename() + ".sig")==0) {
-                                // signature found
-                                signature = attachments[na];
-                            }
-                        }
-
-                        // Attempt to verify signature if signature is found
-                            if (signature == null) {
-                                log.logWarning("Could not find a signature, file \"" + attachments[n].getFilename() + "\" can not be verified.");
-                            } else {
-                                log.logInfo("Signature file: " + signature.getFilename()); //writeLog(log, "Signature file: " + signature.getFilename() + "\r\n");
-
-                                try {
-                                    // attempt to verify attachment (needs to specially decode non-base64 data)
-                                    if (!verify(log, publicKeyStores, (attachments[n].getEncoding()==EmailAttachment.BASE64) ? attachments[n].decode() : Armory.formatForCTSigning(attachments[n].decode()), signature.decode())) {
-                                        throw new AlgorithmException("Signature \"" + signature.getFilename() + "\" is INVALID.");
-                                    } else {
-                                        log.logInfo("Signature is valid.");
-                                    }
-
-                                // catch and write errors to a log, we don't want to stop processing if something could not be verified.
-                                } catch (Exception e) {
-                                    log.logError(e.getMessage());
-                                }
-                            }
-
-                        // if attachment is a pgp file, try and decode
-                        if (attachments[n].getFilename().endsWith(".pgp")) {
-
-                            try {
 
-                                // process packet
-                                LiteralDataPacket [] packets = decryptPgpData(privateKeyStores, passPhrases, attachments[n].decode());
-
-                                if (packets!=null) {
-                                    // remove the attachment that has now been decoded.
-                                    newEmail.removeAttachment(attachments[n].getFilename());
-
-                                    // add all descovered literal packets to email
-                                    for (int na = 0; na < packets.length; na++) {
+                // pair up signatures with the files they sign
+                Hashtable signatures = new Hashtable();
+                for (int n = 0; n < attachments.length; n++) {
+                    if (attachments[n].getFilename().endsWith(".sig"))
+                        signatures.put(attachments[n].getFilename(), attachments[n]);
+                }
 
-                                        // construct headers
-                                        EmailHeader headers [] = new EmailHeader[3];
-                                        headers[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+ packets[na].getFilename() +"\"");
-                                        headers[1] = new EmailHeader("Content-Transfer-Encoding","base64");
-                                        headers[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+ packets[na].getFilename() +"\"");
+                // verify and decrypt all the other attachments together
+                Vector parts = new Vector();
+                for (int n = 0; n < attachments.length; n++) {
+                    if (!attachments[n].getFilename().endsWith(".sig")) // if not a signature
+                        parts.add(processIncomingAttachment(publicKeyStores, privateKeyStores, passPhrases, attachments[n], (EmailAttachment)signatures.get(attachments[n].getFilename() + ".sig")));
+                }
 
-                                        // add attachment
-                                        newEmail.addAttachment(new EmailAttachment(headers, Base64.encode(packets[na].getData())));
-                                    }
-                                } else {
-                                    throw new AlgorithmException("No encrypted data found in file \"" + attachments[n].getFilename() + "\".");
-                                }
+                PartTask [] tasks = runParts(parts);
 
-                                // if we got here then the message should have been decrypted
-                                log.logInfo("Attachment successfully decrypted.");
+                // put the results back in the original order
+                for (int n = 0; n < tasks.length; n++) {
+                    log.append(tasks[n].getLog());
 
-                            } catch (ChecksumFailureException passfail) {
-                                throw passfail; // catch password failure and rethrow.
-                            } catch (Exception e) {
-                                log.logError(e.getMessage());
-                            }
-                        }
-                        log.endSection(); //writeLog(log, "\r\n");
+                    EmailAttachment [] decrypted = (EmailAttachment [])tasks[n].getResult(); // rethrows password failures
+                    if (decrypted!=null) {
+                        // remove the attachment that has now been decoded and add all descovered literal packets to email
+                        newEmail.removeAttachment(((EmailAttachment)tasks[n].getPart()).getFilename());
+                        for (int na = 0; na < decrypted.length; na++)
+                            newEmail.addAttachment(decrypted[na]);
                     }
                 }
 
@@ -325,6 +364,10 @@ public class OpenPGPHandler extends AlgorithmHandler {
             }
 
             log.endSection(); // end mail processing
+            
+            // write the times taken to the trace file, if there is one
+            EmailHeader messageId[] = email.getHeader("Message-ID");
+            log.trace((messageId!=null) ? messageId[0].getTagValue() : null);
           
             // Write log to email
 
@@ -400,26 +443,119 @@ public class OpenPGPHandler extends AlgorithmHandler {
 /* Incoming email ***********************************************************************/
 
     /**
-     * <p>Recursively process a mime message body.</p>
+     * <p>Process a mime message body.</p>
+     * <p>Every leaf of the body is decrypted and verified at the same time. A leaf that fails is left as it was 
+     * and its error written to the log, the rest of the body is still processed.</p>
      */
-    private MimeComponent [] processIncomingMimeMessageBody(OpenPGPLogger log, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, PassPhrase[] passPhrases, MimeComponent [] data)
+    private MimeComponent [] processIncomingMimeMessageBody(OpenPGPLogger log, final KeyHandler [] publicKeyStores, final KeyHandler [] privateKeyStores, final PassPhrase[] passPhrases, MimeComponent [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-            MimeComponent dec[] = data;
+            Vector leaves = new Vector();
+            findMimeLeaves(data, leaves);
 
-            for (int n = 0; n < data.length; n++) {
-                MimeComponent subs [] = data[n].getSubComponents();
-                if (subs!=null) {
-                    subs = processIncomingMimeMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, subs);
-                    dec[n].setSubComponents(subs);
-                } else {
-                    dec[n].setData(decryptIncomingMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, data[n].getData()));
-                    dec[n].setData(verifyIncomingMessageBody(log, publicKeyStores, privateKeyStores, passPhrases, dec[n].getData()));
-                }
+            Vector parts = new Vector();
+            for (int n = 0; n < leaves.size(); n++) {
+                parts.add(new PartTask(leaves.elementAt(n)) {
+                    protected Object process() throws Exception {
+                        byte [] body = decryptIncomingMessageBody(getLog(), publicKeyStores, privateKeyStores, passPhrases, ((MimeComponent)getPart()).getData());
+                        return verifyIncomingMessageBody(getLog(), publicKeyStores, privateKeyStores, passPhrases, body);
+                    }
+                });
+            }
+
+            PartTask [] tasks = runParts(parts);
+
+            for (int n = 0; n < tasks.length; n++) {
+                log.append(tasks[n].getLog());
 
+                try {
+                    ((MimeComponent)tasks[n].getPart()).setData((byte [])tasks[n].getResult());
+                } catch (ChecksumFailureException passfail) {
+                    throw passfail; // catch password failure and rethrow.
+                } catch (Exception e) {
+                    log.logError(e.getMessage());
+                }
             }
             
-            return dec;
+            return data;
+    }
+
+    /**
+     * <p>Create the task that verifies and decrypts an incoming attachment.</p>
+     * <p>The task's result is an array of the decrypted attachments, or null if the attachment was not encrypted. 
+     * Problems other than password failures are written to the task's log.</p>
+     * @param signature The attachment's .sig file, or null if it does not have one.
+     */
+    private PartTask processIncomingAttachment(final KeyHandler [] publicKeyStores, final KeyHandler [] privateKeyStores, final PassPhrase[] passPhrases, final EmailAttachment attachment, final EmailAttachment signature) {
+        
+        return new PartTask(attachment) {
+            protected Object process() throws Exception {
+
+                OpenPGPLogger log = getLog();
+                EmailAttachment [] decrypted = null;
+
+                // log file
+                log.beginSection("Attachment: " + attachment.getFilename() + ", Size: " + attachment.getData().length + " bytes"); //writeLog(log, "+ Attachment: " + attachments[n].getFilename() + ", Size: " + attachments[n].getData().length + " bytes\r\n");
+
+                // Attempt to verify signature if signature is found
+                    if (signature == null) {
+                        log.logWarning("Could not find a signature, file \"" + attachment.getFilename() + "\" can not be verified.");
+                    } else {
+                        log.logInfo("Signature file: " + signature.getFilename()); //writeLog(log, "Signature file: " + signature.getFilename() + "\r\n");
+
+                        try {
+                            // attempt to verify attachment (needs to specially decode non-base64 data)
+                            if (!verify(log, publicKeyStores, attachment.decode(), (attachment.getEncoding()==EmailAttachment.BASE64) ? BINARY_DATA : CanonicalTextOutputStream.SIGNING, signature.decode())) {
+                                throw new AlgorithmException("Signature \"" + signature.getFilename() + "\" is INVALID.");
+                            } else {
+                                log.logInfo("Signature is valid.");
+                            }
+
+                        // catch and write errors to a log, we don't want to stop processing if something could not be verified.
+                        } catch (Exception e) {
+                            log.logError(e.getMessage());
+                        }
+                    }
+
+                // if attachment is a pgp file, try and decode
+                if (attachment.getFilename().endsWith(".pgp")) {
+
+                    try {
+
+                        // process packet
+                        LiteralDataPacket [] packets = decryptPgpData(log, publicKeyStores, privateKeyStores, passPhrases, attachment.decode());
+
+                        if (packets!=null) {
+                            decrypted = new EmailAttachment[packets.length];
+                            
+                            for (int na = 0; na < packets.length; na++) {
+
+                                // construct headers
+                                EmailHeader headers [] = new EmailHeader[3];
+                                headers[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+ packets[na].getFilename() +"\"");
+                                headers[1] = new EmailHeader("Content-Transfer-Encoding","base64");
+                                headers[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+ packets[na].getFilename() +"\"");
+
+                                decrypted[na] = new EmailAttachment(headers, Base64.encode(packets[na].getData()));
+                            }
+                        } else {
+                            throw new AlgorithmException("No encrypted data found in file \"" + attachment.getFilename() + "\".");
+                        }
+
+                        // if we got here then the message should have been decrypted
+                        log.logInfo("Attachment successfully decrypted.");
+
+                    } catch (ChecksumFailureException passfail) {
+                        throw passfail; // catch password failure and rethrow.
+                    } catch (Exception e) {
+                        log.logError(e.getMessage());
+                    }
+                }
+                log.endSection(); //writeLog(log, "\r\n");
+
+                return decrypted;
+            }
+        };
     }
     
     /**
@@ -462,7 +598,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
                     }
 
                     if (line.compareTo("-----END PGP MESSAGE-----")==0) {
-                        LiteralDataPacket [] d = decryptPgpData(privateKeyStores, passphrases, Armory.disarm(new String(tmp.toByteArray())));
+                        LiteralDataPacket [] d = decryptPgpData(log, publicKeyStores, privateKeyStores, passphrases, Armory.disarm(tmp.toByteArray()));
                         if (d!=null) {
                             for (int n = 0; n < d.length; n++) {
                                 out.write(d[n].getData());
@@ -481,9 +617,11 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
             } while (in.available()>0);
             
-            // display a message if the message was not encrypted
-            if (!encrypted)
+            // display a message if the message was not encrypted, and leave it as it was
+            if (!encrypted) {
                 log.logWarning("Message was not encrypted.");
+                return data;
+            }
 
             return out.toByteArray();
     }
@@ -557,7 +695,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
                         // verify signature
                         if (line.compareTo("-----END PGP SIGNATURE-----")==0) {
                             //if (!verify(log, publicKeyStores, Armory.removeDashEscaping(new String(tmp.toByteArray())).getBytes(), Armory.disarm(new String(tmp2.toByteArray())))) {
-                            if (!verify(log, publicKeyStores, Armory.formatForCTSigning(Armory.removeDashEscaping(new String(tmp.toByteArray())).getBytes()), Armory.disarm(new String(tmp2.toByteArray())))) {
+                            if (!verify(log, publicKeyStores, tmp.toByteArray(), CanonicalTextOutputStream.SIGNING | CanonicalTextOutputStream.REMOVE_DASH_ESCAPING, Armory.disarm(tmp2.toByteArray()))) {
                                 throw new AlgorithmException("Signature is INVALID.");
                             } else {
                                 log.logInfo("Signature is valid"); 
@@ -581,9 +719,11 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
             } while (in.available()>0);
             
-            // Display a message if a message body is not signed
-            if (!signed)
+            // Display a message if a message body is not signed, and leave it as it was
+            if (!signed) {
                 log.logWarning("No signature found, message body can not be verified.");
+                return data;
+            }
 
             return out.toByteArray();
     }
@@ -595,8 +735,10 @@ public class OpenPGPHandler extends AlgorithmHandler {
     /**
      * <p>Verify a given signature.</p>
      * <p>Returns true if successfully verified, false if not. Key ID is written in the log file.</p>
+     * <p>Text is put into canonical form as it is hashed, so no formatted copy of the data is made.</p>
+     * @param textFlags The CanonicalTextOutputStream transformations to apply to the data, or BINARY_DATA to verify it as it is.
      */
-    private boolean verify(OpenPGPLogger log, KeyHandler[] publicKeyStores, byte [] data, byte [] signature)
+    private boolean verify(OpenPGPLogger log, KeyHandler[] publicKeyStores, byte [] data, int textFlags, byte [] signature)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
             OpenPGPPacketInputStream pin = new OpenPGPPacketInputStream(new ByteArrayInputStream(signature));
@@ -608,14 +750,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
 				// Extract signature key ID and write it to the log
                 sig = (SignaturePacket)p;
-                byte [] keyid = sig.getKeyID();
-
-                String keyidmessage = "Signing key ID: 0x";
-                for (int n = 0; n < keyid.length; n++) {
-                    if (keyid[n]<16) keyidmessage += "0"; // write preceeding 0 if necessary
-                    keyidmessage += Integer.toHexString(keyid[n] & 0xFF).toUpperCase();
-                }
-                log.logInfo(keyidmessage);
+                logSigningKeyID(log, sig.getKeyID());
 
 
             } else {
@@ -623,152 +758,176 @@ public class OpenPGPHandler extends AlgorithmHandler {
             }
 
             // find key
-            KeyObject[] key = findKeys(publicKeyStores, new OpenPGPKeyIDKeyIdentifier(sig.getKeyID()));
+            KeyObject[] key = findKeys(log, publicKeyStores, new OpenPGPKeyIDKeyIdentifier(sig.getKeyID()));
             if (key==null)
                 throw new PublicKeyNotFoundException("Could not find signer's public key, message can not be verified.");
 
             // verify
-            if (sig.verify(key[0].getKeyData().getKey().getPublicKey(), data))
-                return true;
+            long span = log.beginSpan();
+            SignatureMaterial material = sig.getSignatureData();
+            material.initVerify(key[0].getKeyData().getKey().getPublicKey());
+            updateSignature(material, data, textFlags);
+
+            boolean valid = material.finishVerify();
+            log.endSpan("Verification", span);
+            return valid;
 
-            return false;
+    }
 
+    /** Write a signature's key ID to the log. */
+    private void logSigningKeyID(OpenPGPLogger log, byte [] keyid) {
+        
+            String keyidmessage = "Signing key ID: 0x";
+            for (int n = 0; n < keyid.length; n++) {
+                if (keyid[n]<16) keyidmessage += "0"; // write preceeding 0 if necessary
+                keyidmessage += Integer.toHexString(keyid[n] & 0xFF).toUpperCase();
+            }
+            log.logInfo(keyidmessage);
+    }
+
+    /**
+     * <p>Create a V4 SHA1 signature over the given data.</p>
+     * <p>The data is hashed in a single pass, text being put into canonical form on the way.</p>
+     * @param textFlags The CanonicalTextOutputStream transformations to apply to the data, or BINARY_DATA to sign it as it is.
+     */
+    private SignatureMaterial sign(OpenPGPKeyData signerKey, int sigType, byte [] data, int textFlags)
+        throws AlgorithmException, IOException {
+
+            SignatureMaterial material = new V4SignatureMaterial(
+                0,
+                signerKey.getKeyID(),
+                sigType,
+                signerKey.getKeyPacket().getAlgorithm(),
+                HashAlgorithmSettings.SHA1
+            );
+
+            material.initSign(signerKey.getKey().getPrivateKey());
+            updateSignature(material, data, textFlags);
+            material.finishSign();
+
+            return material;
+    }
+
+    /** Feed signed data into a signature, canonicalising text as it goes. */
+    private void updateSignature(SignatureMaterial material, byte [] data, int textFlags)
+        throws AlgorithmException, IOException {
+
+            if (textFlags == BINARY_DATA) {
+                material.update(data);
+            } else {
+                CanonicalTextOutputStream text = new CanonicalTextOutputStream(material.getUpdateStream(), textFlags);
+                text.write(data);
+                text.finish();
+            }
     }
 
 	/**
 	 * <p>Sign email attachments and return an array containing the corresponding .sig files.</p>
          * <p>As with the message body, if the attachment is not base64 encoded trailing whitespace and the last enter is stripped.</p>
 	 */
-    private EmailAttachment [] signAttachments(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, EmailAttachment [] attachments)
-        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
+    private EmailAttachment [] signAttachments(final OpenPGPKeyData signerKey, EmailAttachment [] attachments)
+        throws AlgorithmException, KeyHandlerException, EmailDataFormatException, IOException {
 
-            Vector signedAttachments = new Vector();
-
-            // for each attachment
+            // sign all the attachments together
+            Vector parts = new Vector();
             for (int n = 0; n < attachments.length; n++) {
+                parts.add(new PartTask(attachments[n]) {
+                    protected Object process() throws Exception {
 
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
-
-                // fetch key
-                KeyObject[] keys = findSecretKeys(secretKeyStores, new OpenPGPStandardKeyIdentifier(signer), passPhrases);
-
-                if (keys!=null) {
-                    if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + signer + " is of the wrong type");
-                    OpenPGPKeyData signerKey = (OpenPGPKeyData)keys[0]; // the first key MUST be the signing key according to spec
-
-                    // generate & write pk packet
-                    pOut.writePacket(new SignaturePacket( new V4SignatureMaterial(
-                        signerKey.getKey().getPrivateKey(),
-                        0,
-                        signerKey.getKeyID(),
-                        (attachments[n].getEncoding()==EmailAttachment.BASE64) ? 0x00 : 0x01,
-                        signerKey.getKeyPacket().getAlgorithm(),
-                        HashAlgorithmSettings.SHA1,
-                        (attachments[n].getEncoding()==EmailAttachment.BASE64) ? attachments[n].decode() : Armory.formatForCTSigning(attachments[n].decode())
-                    )));
-
-                    pOut.close();
-
-                    EmailHeader [] signedattachheaders = new EmailHeader[3];
-                    signedattachheaders[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+attachments[n].getFilename() + ".sig"+"\"");
-                    signedattachheaders[1] = new EmailHeader("Content-Transfer-Encoding","base64");
-                    signedattachheaders[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+attachments[n].getFilename() + ".sig"+"\"");
-                    signedAttachments.add(new EmailAttachment(signedattachheaders, Base64.encode(out.toByteArray())));
-                } else {
-                    // no key found
-                    throw new SecretKeyNotFoundException("Could not find signing key for : \n   '"+signer+"'");
-                }
+                        EmailAttachment attachment = (EmailAttachment)getPart();
+
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
+
+                        // generate & write pk packet
+                        boolean binary = (attachment.getEncoding()==EmailAttachment.BASE64);
+                        pOut.writePacket(new SignaturePacket(
+                            sign(signerKey, binary ? 0x00 : 0x01, attachment.decode(), binary ? BINARY_DATA : CanonicalTextOutputStream.SIGNING)
+                        ));
+
+                        pOut.close();
+
+                        EmailHeader [] signedattachheaders = new EmailHeader[3];
+                        signedattachheaders[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+attachment.getFilename() + ".sig"+"\"");
+                        signedattachheaders[1] = new EmailHeader("Content-Transfer-Encoding","base64");
+                        signedattachheaders[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+attachment.getFilename() + ".sig"+"\"");
+                        return new EmailAttachment(signedattachheaders, Base64.encode(out.toByteArray()));
+                    }
+                });
             }
 
+            PartTask [] tasks = runParts(parts);
+
             // return attachments
-            EmailAttachment [] tmp = new EmailAttachment[signedAttachments.size()];
+            EmailAttachment [] tmp = new EmailAttachment[tasks.length];
             for (int n = 0; n < tmp.length; n++)
-                tmp[n] = (EmailAttachment)signedAttachments.elementAt(n);
+                tmp[n] = (EmailAttachment)tasks[n].getResult();
 
             return tmp;
     }
 
     /**
-     * <p>Recursively sign and ascii armor a mime body.</p>
+     * <p>Sign and ascii armor every leaf of a mime body.</p>
+     * <p>The leaves are signed in parallel with the one, already unlocked, signing key.</p>
      */
-    private MimeComponent [] signMimeBody(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, MimeComponent [] data)
-	        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
-
-	            MimeComponent enc[] = data;
-
-	            for (int n = 0; n < data.length; n++) {
-	                MimeComponent subs [] = data[n].getSubComponents();
-	                if (subs!=null) {
-	                    subs = signMimeBody(secretKeyStores, signer, passPhrases, subs);
-	                    enc[n].setSubComponents(subs);
-	                } else {
-	                    enc[n].setData(signBody(secretKeyStores, signer, passPhrases, data[n].getData()));
-	                }
-
+    private MimeComponent [] signMimeBody(final OpenPGPKeyData signerKey, MimeComponent [] data)
+	        throws AlgorithmException, KeyHandlerException, EmailDataFormatException, IOException {
+
+	            Vector leaves = new Vector();
+	            findMimeLeaves(data, leaves);
+
+	            Vector parts = new Vector();
+	            for (int n = 0; n < leaves.size(); n++) {
+	                parts.add(new PartTask(leaves.elementAt(n)) {
+	                    protected Object process() throws Exception {
+	                        return signBody(signerKey, ((MimeComponent)getPart()).getData());
+	                    }
+	                });
 	            }
 
-	            return enc;
+	            PartTask [] tasks = runParts(parts);
+	            for (int n = 0; n < tasks.length; n++)
+	                ((MimeComponent)tasks[n].getPart()).setData((byte [])tasks[n].getResult());
+
+	            return data;
     }
 
 	/**
 	 * <p>Sign a message body</p>
 	 * <p>FIXME: Does not properly handle HTML/RTF emails.</p>
 	 */
-    private byte [] signBody(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases, byte [] data)
-        throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
+    private byte [] signBody(OpenPGPKeyData signerKey, byte [] data)
+        throws AlgorithmException, EmailDataFormatException, IOException {
 
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
 
-            // fetch key
-            KeyObject[] keys = findSecretKeys(secretKeyStores, new OpenPGPStandardKeyIdentifier(signer), passPhrases);
-
-            if (keys!=null) {
-                if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + signer + " is of the wrong type");
-                OpenPGPKeyData signerKey = (OpenPGPKeyData)keys[0]; // the first key MUST be the signing key according to spec
-
-                // generate & write pk packet
-                pOut.writePacket(new SignaturePacket( new V4SignatureMaterial(
-                    signerKey.getKey().getPrivateKey(),
-                    0,
-                    signerKey.getKeyID(),
-                    0x01,
-                    signerKey.getKeyPacket().getAlgorithm(),
-                    HashAlgorithmSettings.SHA1,
-                    Armory.formatForCTSigning(data)//data
-                )));
-
-                pOut.close();
-
-                // write signed body
-
-                // ascii armor message
-                String ascii = Armory.armor(out.toByteArray());
+            // generate & write pk packet
+            pOut.writePacket(new SignaturePacket(sign(signerKey, 0x01, data, CanonicalTextOutputStream.SIGNING)));
 
-                // construct ascii armored message
-                ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+            pOut.close();
 
-                out2.write("-----BEGIN PGP SIGNED MESSAGE-----\r\n".getBytes());
-                out2.write("Hash: SHA1\r\n".getBytes());
-                out2.write("\r\n".getBytes());
-                out2.write(Armory.dashEscapeText(new String(data)).getBytes());
-                out2.write("-----BEGIN PGP SIGNATURE-----\r\n".getBytes());
-                out2.write("Version: Secure Email Proxy v".getBytes()); out2.write(core.CoreVersionInfo.version.getBytes()); out2.write("\r\n".getBytes());
-                out2.write("Comment: Oxford Brookes Secure Email Project (".getBytes()); out2.write(core.CoreVersionInfo.website.getBytes()); out2.write(")\r\n".getBytes());
-                out2.write("\r\n".getBytes());
-                out2.write(ascii.getBytes());
-                out2.write("-----END PGP SIGNATURE-----\r\n".getBytes());
+            // write signed body
 
-                out2.close();
+            // construct ascii armored message
+            ByteArrayOutputStream out2 = new ByteArrayOutputStream();
 
-                return out2.toByteArray();
+            out2.write("-----BEGIN PGP SIGNED MESSAGE-----\r\n".getBytes());
+            out2.write("Hash: SHA1\r\n".getBytes());
+            out2.write("\r\n".getBytes());
+            CanonicalTextOutputStream escaped = new CanonicalTextOutputStream(out2, CanonicalTextOutputStream.DASH_ESCAPE);
+            escaped.write(data);
+            escaped.finish();
+            out2.write("-----BEGIN PGP SIGNATURE-----\r\n".getBytes());
+            out2.write("Version: Secure Email Proxy v".getBytes()); out2.write(core.CoreVersionInfo.version.getBytes()); out2.write("\r\n".getBytes());
+            out2.write("Comment: Oxford Brookes Secure Email Project (".getBytes()); out2.write(core.CoreVersionInfo.website.getBytes()); out2.write(")\r\n".getBytes());
+            out2.write("\r\n".getBytes());
+            Armory.armor(out.toByteArray(), out2);
+            out2.write("-----END PGP SIGNATURE-----\r\n".getBytes());
 
-            } else {
-                // no key found
-                throw new SecretKeyNotFoundException("Could not find signing key for : \n   '"+signer+"'");
-            }
+            out2.close();
 
+            return out2.toByteArray();
     }
 
 /****************************************************************************************/
@@ -779,8 +938,9 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
     /**
      * <p>Decrypt encrypted data and return an array of unencrypted literal data packets.</p>
+     * <p>Any one pass signatures found in the decrypted data are verified and the results written to the log.</p>
      */
-    private LiteralDataPacket [] decryptPgpData(KeyHandler [] privateKeyStores, PassPhrase [] passphrases, byte [] data)
+    private LiteralDataPacket [] decryptPgpData(OpenPGPLogger log, KeyHandler [] publicKeyStores, KeyHandler [] privateKeyStores, PassPhrase [] passphrases, byte [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
             Vector founddata = new Vector();
@@ -817,7 +977,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
                     if (!decoded) { // if not already decoded then try and decode
                         PublicKeyEncryptedSessionKeyPacket pkeskp = (PublicKeyEncryptedSessionKeyPacket)publicsessionkeys.elementAt(na);
 
-                        KeyObject[] keys = findSecretKeys(privateKeyStores, new OpenPGPKeyIDKeyIdentifier(pkeskp.getKeyID()), passphrases);
+                        KeyObject[] keys = findSecretKeys(log, privateKeyStores, new OpenPGPKeyIDKeyIdentifier(pkeskp.getKeyID()), passphrases);
 
                         if (keys == null) { // if we have tried all possible session keys and still haven't found a key that decodes this packet then throw a hissy fit
                             if (na == publicsessionkeys.size()-1)
@@ -830,23 +990,28 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
                                 try {
                                     // try decode session key
+                                    long span = log.beginSpan();
                                     SessionKey sk = pkeskp.getSessionKey(keys[cnt].getKeyData().getKey().getPrivateKey());
+                                    log.endSpan("Session key decryption", span);
                                     EncryptedDataPacket dp = null;
 
                                     // attempt to decode symmetric data packet with resultant session key (may fail if wrong session key used)
                                     //TODO: could be a symmetrically encrypted integrity protected packet here
                                     try {
                                         dp = (EncryptedDataPacket)datapackets.elementAt(n);
+                                        span = log.beginSpan();
                                         dp.decryptAndDecode(sk);
+                                        log.endSpan("Decryption", span);
                                     } catch (AlgorithmException e) {
                                         // problem decoding the message, most likely because the session key is invalid. Rethrow more friendly exception.
                                         throw new AlgorithmException("Session key is invalid, this message can not be decrypted.");
                                     }
 
                                     // everything has apparently decrypted ok, now do the extraction.
-                                    LiteralDataPacket [] ldp = unpackPacket(dp);
-                                    for (int cnt2 = 0; cnt2 < ldp.length; cnt2++)
-                                        founddata.add(ldp[cnt2]);
+                                    LiteralDataPacket [] ldp = unpackPacket(log, publicKeyStores, dp, new Stack());
+                                    if (ldp != null)
+                                        for (int cnt2 = 0; cnt2 < ldp.length; cnt2++)
+                                            founddata.add(ldp[cnt2]);
 
                                     decoded = true; // set flag so we don't attempt to decode the same message twice
 
@@ -875,163 +1040,175 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
 	/**
 	 * <p>Encrypt attachments and return an array of encrypted EmailAttachment. </p>
+	 * <p>If signerKey is not null each attachment is also one pass signed inside the encrypted data.</p>
 	 */
-    private EmailAttachment [] encryptAttachments(KeyHandler[] publicKeyStores, String [] recp, EmailAttachment [] attachments)
+    private EmailAttachment [] encryptAttachments(final RecipientKeys recp, final OpenPGPKeyData signerKey, EmailAttachment [] attachments)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-        EmailAttachment [] encryptedAttachments = new EmailAttachment[attachments.length];
-
-        // for each attachment
+        // encrypt all the attachments together
+        Vector parts = new Vector();
         for (int n = 0; n < attachments.length; n++) {
+            parts.add(new PartTask(attachments[n]) {
+                protected Object process() throws Exception {
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
-
-            // generate session key
-            SessionKey sk = new SessionKey(getSymmetricAlgorithm());
-
-            // for each recipient generate a Public key encrypted session key packet
-            for (int na = 0; na < recp.length; na++) {
-
-                // fetch key
-                KeyObject[] keys = findKeys(publicKeyStores, new OpenPGPStandardKeyIdentifier(recp[na]));
-
-                if (keys != null) { // if we have a key
-
-                    OpenPGPKeyData encryptionKey = null;
+                    EmailAttachment attachment = (EmailAttachment)getPart();
 
-                    // find encryption key (todo: make more reliable?)
-                    if (keys.length==1) {
-                        if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recp[na] + " is of the wrong type");
-                        encryptionKey = (OpenPGPKeyData)keys[0]; // only one key, must be an encryption key
-                    }
-                    if (keys.length > 1) {
-                        if (!(keys[1] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recp[na] + " is of the wrong type");
-                        encryptionKey = (OpenPGPKeyData)keys[1]; // more than one key, first key is for signing, second for encryption.
-                    }
+                    byte [] encrypted = encryptLiteral(recp, new LiteralDataPacket((byte)'b', attachment.getFilename(), attachment.decode()), signerKey);
 
-                    // generate & write pk packet
-                    pOut.writePacket(new PublicKeyEncryptedSessionKeyPacket(encryptionKey.getKey().getPublicKey(), encryptionKey.getKeyID(), encryptionKey.getAlgorithm(), sk));
-
-                } else {
-                    // no key found
-                    throw new PublicKeyNotFoundException("Could not find public key for : \n   '"+recp[na]+"'");
+                    // save attachment
+                    EmailHeader [] headers = new EmailHeader[3];
+                    headers[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+attachment.getFilename() + ".pgp"+"\"");
+                    headers[1] = new EmailHeader("Content-Transfer-Encoding","base64");
+                    headers[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+attachment.getFilename() + ".pgp"+"\"");
+                    return new EmailAttachment(headers, Base64.encode(encrypted));
                 }
-            }
-
-            // generate encrypted packet
-            CompressedDataPacket cp = new CompressedDataPacket(CompressedDataPacket.ZIP);
-            cp.add(new LiteralDataPacket((byte)'b', attachments[n].getFilename(), attachments[n].decode()));
-
-            SymmetricallyEncryptedDataPacket dp = new SymmetricallyEncryptedDataPacket();
-            dp.add(cp);
-            dp.encryptAndEncode(sk);
+            });
+        }
 
-            pOut.writePacket(dp);
-            pOut.close();
+        PartTask [] tasks = runParts(parts);
 
-            // save attachment
-            EmailHeader [] headers = new EmailHeader[3];
-            headers[0] = new EmailHeader("Content-Type","application/octet-stream;\r\n\tname=\""+attachments[n].getFilename() + ".pgp"+"\"");
-            headers[1] = new EmailHeader("Content-Transfer-Encoding","base64");
-            headers[2] = new EmailHeader("Content-Disposition","attachment;\r\n\tfilename=\""+attachments[n].getFilename() + ".pgp"+"\"");
-            encryptedAttachments[n] = new EmailAttachment(headers, Base64.encode(out.toByteArray()));
-        }
+        EmailAttachment [] encryptedAttachments = new EmailAttachment[tasks.length];
+        for (int n = 0; n < tasks.length; n++)
+            encryptedAttachments[n] = (EmailAttachment)tasks[n].getResult();
 
         return encryptedAttachments;
     }
 
 	/**
-	 * <p>Recursively encrypt and ascii armor a mime message body.</p>
+	 * <p>Encrypt and ascii armor every leaf of a mime message body.</p>
 	 */
-    private MimeComponent [] encryptMimeBody(KeyHandler[] publicKeyStores, String [] recp, MimeComponent [] data)
+    private MimeComponent [] encryptMimeBody(final RecipientKeys recp, final OpenPGPKeyData signerKey, MimeComponent [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-            MimeComponent enc[] = data;
-
-            for (int n = 0; n < data.length; n++) {
-                MimeComponent subs [] = data[n].getSubComponents();
-                if (subs!=null) {
-                    subs = encryptMimeBody(publicKeyStores, recp, subs);
-                    enc[n].setSubComponents(subs);
-                } else {
-                    enc[n].setData(encryptBody(publicKeyStores, recp, data[n].getData()));
-                }
+            Vector leaves = new Vector();
+            findMimeLeaves(data, leaves);
 
+            Vector parts = new Vector();
+            for (int n = 0; n < leaves.size(); n++) {
+                parts.add(new PartTask(leaves.elementAt(n)) {
+                    protected Object process() throws Exception {
+                        return encryptBody(recp, signerKey, ((MimeComponent)getPart()).getData());
+                    }
+                });
             }
 
-            return enc;
+            PartTask [] tasks = runParts(parts);
+            for (int n = 0; n < tasks.length; n++)
+                ((MimeComponent)tasks[n].getPart()).setData((byte [])tasks[n].getResult());
+
+            return data;
     }
 
 	/**
 	 * <p>Encrypt and ascii armor the given message.</p>
+	 * <p>If signerKey is not null the message is also one pass signed inside the encrypted data.</p>
 	 * <p>FIXME: Does not properly handle HTML/RTF emails.</p>
 	 */
-    private byte [] encryptBody(KeyHandler[] publicKeyStores, String [] recp, byte [] data)
+    private byte [] encryptBody(RecipientKeys recp, OpenPGPKeyData signerKey, byte [] data)
         throws AlgorithmException, KeyHandlerException, ChecksumFailureException, KeyNotFoundException, EmailDataFormatException, IOException {
 
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
+            byte [] encrypted = encryptLiteral(recp, new LiteralDataPacket((byte)'b', "_CONSOLE", data), signerKey);
+
+            // construct ascii armored message
+            ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+
+            out2.write("-----BEGIN PGP MESSAGE-----\r\n".getBytes());
+            out2.write("Version: Secure Email Proxy v".getBytes()); out2.write(core.CoreVersionInfo.version.getBytes()); out2.write("\r\n".getBytes());
+            out2.write("Comment: Oxford Brookes Secure Email Project (".getBytes()); out2.write(core.CoreVersionInfo.website.getBytes()); out2.write(")\r\n".getBytes());
+            out2.write("\r\n".getBytes());
+            Armory.armor(encrypted, out2);
+            out2.write("-----END PGP MESSAGE-----\r\n".getBytes());
 
-            // generate session key
-            SessionKey sk = new SessionKey(getSymmetricAlgorithm());
+            out2.close();
 
-            // for each recipient generate a Public key encrypted session key packet
-            for (int na = 0; na < recp.length; na++) {
+            return out2.toByteArray();
+    }
 
-                // fetch key
-                KeyObject[] keys = findKeys(publicKeyStores, new OpenPGPStandardKeyIdentifier(recp[na]));
+    /**
+     * <p>Add a literal data packet to a container, one pass signing it if a signing key is given.</p>
+     * <p>A one pass signed literal is written as a one pass signature packet, the literal data and then the
+     * signature, so that a reader can hash the data as it goes past and check the signature at the end.</p>
+     */
+    private void addLiteralData(ContainerPacket container, LiteralDataPacket literal, OpenPGPKeyData signerKey)
+        throws AlgorithmException, IOException {
 
-                if (keys != null) { // if we have a key
+            if (signerKey == null) {
+                container.add(literal);
+                return;
+            }
 
-                    OpenPGPKeyData encryptionKey = null;
+            container.add(new OnePassSignaturePacket(0x00, HashAlgorithmSettings.SHA1, signerKey.getKeyPacket().getAlgorithm(), signerKey.getKeyID(), false));
+            container.add(literal);
+            container.add(new SignaturePacket(sign(signerKey, 0x00, literal.getData(), BINARY_DATA)));
+    }
 
-                    // find encryption key (todo: make more reliable?)
-                    if (keys.length==1) {
-                        if (!(keys[0] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recp[na] + " is of the wrong type");
-                        encryptionKey = (OpenPGPKeyData)keys[0]; // only one key, must be an encryption key
-                    }
-                    if (keys.length > 1) {
-                        if (!(keys[1] instanceof OpenPGPKeyData)) throw new KeyHandlerException("The key data found for " + recp[na] + " is of the wrong type");
-                        encryptionKey = (OpenPGPKeyData)keys[1]; // more than one key, first key is for signing, second for encryption.
-                    }
+    /**
+     * <p>Compress, encrypt and wrap a literal data packet in a binary OpenPGP message for the given recipients.</p>
+     * <p>If signerKey is not null the literal is also one pass signed.</p>
+     */
+    private byte [] encryptLiteral(RecipientKeys recp, LiteralDataPacket literal, OpenPGPKeyData signerKey)
+        throws AlgorithmException, IOException {
 
-                    // generate & write pk packet
-                    pOut.writePacket(new PublicKeyEncryptedSessionKeyPacket(encryptionKey.getKey().getPublicKey(), encryptionKey.getKeyID(), encryptionKey.getAlgorithm(), sk));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
 
-                } else {
-                    // no key found
-                    throw new PublicKeyNotFoundException("Could not find public key for : \n   '"+recp[na]+"'");
-                }
-            }
+            // a Public key encrypted session key packet for each recipient
+            PublicKeyEncryptedSessionKeyPacket sessionKeys[] = recp.getSessionKeyPackets();
+            for (int na = 0; na < sessionKeys.length; na++)
+                pOut.writePacket(sessionKeys[na]);
 
             // generate encrypted packet
             CompressedDataPacket cp = new CompressedDataPacket(CompressedDataPacket.ZIP);
-            cp.add(new LiteralDataPacket((byte)'b', "_CONSOLE", data));
+            addLiteralData(cp, literal, signerKey);
 
             SymmetricallyEncryptedDataPacket dp = new SymmetricallyEncryptedDataPacket();
             dp.add(cp);
-            dp.encryptAndEncode(sk);
+            dp.encryptAndEncode(recp.getSessionKey());
 
             pOut.writePacket(dp);
             pOut.close();
 
-            // ascii armor message
-            String ascii = Armory.armor(out.toByteArray());
+            return out.toByteArray();
+    }
 
-            // construct ascii armored message
-            ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+    /**
+     * <p>Start preparing an outgoing email for encryption.</p>
+     * <p>The session key is generated here, before the message has arrived, and is used for every part of the message.</p>
+     * @param publicKeyStores[] An array of available public key stores.
+     * @throws AlgorithmException if the session key could not be generated.
+     */
+    public OutgoingMailPreparation beginOutgoingMail(KeyHandler [] publicKeyStores) throws AlgorithmException {
+        return new RecipientKeys(publicKeyStores, new SessionKey(getSymmetricAlgorithm()));
+    }
 
-            out2.write("-----BEGIN PGP MESSAGE-----\r\n".getBytes());
-            out2.write("Version: Secure Email Proxy v".getBytes()); out2.write(core.CoreVersionInfo.version.getBytes()); out2.write("\r\n".getBytes());
-            out2.write("Comment: Oxford Brookes Secure Email Project (".getBytes()); out2.write(core.CoreVersionInfo.website.getBytes()); out2.write(")\r\n".getBytes());
-            out2.write("\r\n".getBytes());
-            out2.write(ascii.getBytes());
-            out2.write("-----END PGP MESSAGE-----\r\n".getBytes());
+    /**
+     * <p>Add a recipient to an outgoing email being prepared for encryption.</p>
+     * <p>The recipient's key is found straight away and the session key is encrypted to it on the worker pool, 
+     * so the public key operation overlaps with the client sending the message. The packet is only put in the 
+     * message if the recipient is also in the To or Cc header, or is one of the Bcc recipients it is processed for.</p>
+     * @param preparation What beginOutgoingMail returned for this email.
+     * @param recipient The recipient's address.
+     * @throws AlgorithmException if the preparation did not come from this handler.
+     * @throws KeyHandlerException if there was an unrecoverable key handler specific problem.
+     * @throws PublicKeyNotFoundException if the recipient's key could not be found in a public keystore.
+     */
+    public void addOutgoingRecipient(OutgoingMailPreparation preparation, String recipient) 
+        throws AlgorithmException, KeyHandlerException, PublicKeyNotFoundException {
 
-            out2.close();
+            if (!(preparation instanceof RecipientKeys))
+                throw new AlgorithmException("Outgoing mail was not prepared by the OpenPGP handler.");
 
-            return out2.toByteArray();
+            final RecipientKeys recp = (RecipientKeys)preparation;
+            if (recp.hasRecipient(recipient))
+                return;
+
+            final OpenPGPKeyData encryptionKey = findEncryptionKey(recp.getPublicKeyStores(), recipient);
+
+            recp.addRecipient(recipient, WorkerPool.getPool().submit(new Callable() {
+                public Object call() throws Exception {
+                    return new PublicKeyEncryptedSessionKeyPacket(encryptionKey.getKey().getPublicKey(), encryptionKey.getKeyID(), encryptionKey.getAlgorithm(), recp.getSessionKey());
+                }
+            }));
     }
 
 /****************************************************************************************/
@@ -1040,16 +1217,35 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
 /* Key Search ***************************************************************************/
 
+        /** 
+         * <p>Look for a key in one key store, timing the lookup under the key store's class name.</p>
+         * @param log The log to record the time in as a span, or null.
+         */
+	private KeyObject[] lookup(OpenPGPLogger log, KeyHandler keystore, KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+                long start = Metrics.start();
+                long span = (log!=null) ? log.beginSpan() : 0;
+                try {
+                    return keystore.findKeys(id, parameters);
+                } finally {
+                    String name = keystore.getClass().getName();
+                    name = name.substring(name.lastIndexOf('.') + 1);
+                    Metrics.stop(Metrics.KEY_LOOKUP + "." + name, start);
+                    if (log!=null)
+                        log.endSpan(((parameters!=null) ? "Secret key lookup and unlock: " : "Key lookup: ") + name, span);
+                }
+        }
+
         /** 
          * <p>Search through all key stores and attempt to locate a key.</p>
          * @return key(s) if found or null if not.
+         * @param log The log to record the time each key store took in, or null.
          * @throws ChecksumFailureException if a key was found but a passphrase was needed to decode the key store.
          */
-	private KeyObject[] findKeys(KeyHandler[] keystore, KeyIdentifier id) throws ChecksumFailureException, KeyHandlerException {
+	private KeyObject[] findKeys(OpenPGPLogger log, KeyHandler[] keystore, KeyIdentifier id) throws ChecksumFailureException, KeyHandlerException {
 	        for (int n = 0; n < keystore.length; n++) {
 	            
                     try {
-                        KeyObject[] keys = keystore[n].findKeys(id, null);
+                        KeyObject[] keys = lookup(log, keystore[n], id, null);
 
                         if (keys != null)
                             return keys;
@@ -1069,9 +1265,10 @@ public class OpenPGPHandler extends AlgorithmHandler {
         /** 
          * <p>Search through all key stores and attempt to locate a key.</p>
          * @return key(s) if found or null if not.
+         * @param log The log to record the time each key store took in, or null.
          * @throws ChecksumFailureException if a key was found but a passphrase was needed to decode the key store.
          */
-	private KeyObject[] findSecretKeys(KeyHandler[] keystore, KeyIdentifier id, PassPhrase [] passPhrases) throws KeyHandlerException, ChecksumFailureException {
+	private KeyObject[] findSecretKeys(OpenPGPLogger log, KeyHandler[] keystore, KeyIdentifier id, PassPhrase [] passPhrases) throws KeyHandlerException, ChecksumFailureException {
 
 	        // if passphrase list is empty then have a look to see if the key is even present. Report an error if key is not found.
 	        if (passPhrases == null) {
@@ -1079,7 +1276,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
 	                try {
 
-	                    keystore[n].findKeys(id, new OpenPGPFindKeyParameters(" ".getBytes()));
+	                    lookup(log, keystore[n], id, new OpenPGPFindKeyParameters(" ".getBytes()));
 
 	                } catch (ChecksumFailureException passfail) {
 	                    // catch and rethrow password fail so that the prompt dialog displays the correct info
@@ -1098,7 +1295,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
                         for (int na = 0; na < passPhrases.length; na++) {
                             try {
 
-                                KeyObject[] keys = keystore[n].findKeys(id, new OpenPGPFindKeyParameters(passPhrases[na].getPassphraseData()));
+                                KeyObject[] keys = lookup(log, keystore[n], id, new OpenPGPFindKeyParameters(passPhrases[na].getPassphraseData()));
 
                                 if (keys != null)
                                     return keys;
@@ -1123,6 +1320,58 @@ public class OpenPGPHandler extends AlgorithmHandler {
 	        return null;
     }
 
+        /**
+         * <p>Find the key to encrypt to for the given recipient.</p>
+         * @throws PublicKeyNotFoundException if there is no public key for the recipient.
+         */
+        private OpenPGPKeyData findEncryptionKey(KeyHandler[] publicKeyStores, String recipient) 
+            throws ChecksumFailureException, KeyHandlerException, PublicKeyNotFoundException {
+
+                KeyObject[] keys = findKeys(null, publicKeyStores, new OpenPGPStandardKeyIdentifier(recipient));
+
+                if (keys == null)
+                    throw new PublicKeyNotFoundException("Could not find public key for : \n   '"+recipient+"'");
+
+                // find encryption key (todo: make more reliable?)
+                // only one key, must be an encryption key. More than one key, first key is for signing, second for encryption.
+                KeyObject encryptionKey = (keys.length > 1) ? keys[1] : keys[0];
+                if (!(encryptionKey instanceof OpenPGPKeyData)) 
+                    throw new KeyHandlerException("The key data found for " + recipient + " is of the wrong type");
+
+                return (OpenPGPKeyData)encryptionKey;
+        }
+
+        /**
+         * <p>Find and unlock the key that signs for the email's From address.</p>
+         * @see AlgorithmHandler#checkSigningKey(KeyHandler[], Email, PassPhrase[])
+         */
+        public void checkSigningKey(KeyHandler[] privateKeyStores, Email email, PassPhrase[] passPhrases) 
+            throws KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException {
+
+                EmailHeader from[] = email.getHeader("from");
+                if ((from==null) || (from.length==0))
+                    throw new SecretKeyNotFoundException("The email has no From address to find the signing key for");
+
+                findSigningKey(privateKeyStores, from[0].getTagValue(), passPhrases);
+        }
+
+        /**
+         * <p>Find the key that signs for the given user.</p>
+         * @throws SecretKeyNotFoundException if there is no secret key for the signer.
+         */
+        private OpenPGPKeyData findSigningKey(KeyHandler[] secretKeyStores, String signer, PassPhrase[] passPhrases) 
+            throws KeyHandlerException, ChecksumFailureException, SecretKeyNotFoundException {
+
+                KeyObject[] keys = findSecretKeys(null, secretKeyStores, new OpenPGPStandardKeyIdentifier(signer), passPhrases);
+
+                if (keys == null)
+                    throw new SecretKeyNotFoundException("Could not find signing key for : \n   '"+signer+"'");
+                if (!(keys[0] instanceof OpenPGPKeyData)) 
+                    throw new KeyHandlerException("The key data found for " + signer + " is of the wrong type");
+
+                return (OpenPGPKeyData)keys[0]; // the first key MUST be the signing key according to spec
+        }
+
 /****************************************************************************************/
 
 
@@ -1132,18 +1381,48 @@ public class OpenPGPHandler extends AlgorithmHandler {
     /**
      * <p>Recursively unpack a PGP container packet until only literal data packets remain.</p>
      * <p>Encrypted packets must have already been decrypted.</p>
+     * <p>One pass signatures are checked on the way through: each one pass signature packet starts a digest
+     * which every following literal is fed into, and the matching signature packet finishes it. Signature 
+     * failures are written to the log rather than stopping the unpacking.</p>
+     * @param onePassSignatures The one pass signatures still waiting for their signature packet.
      * @return An array of LiteralDataPacket.
      */
-    private LiteralDataPacket [] unpackPacket(ContainerPacket p) throws AlgorithmException {
+    private LiteralDataPacket [] unpackPacket(OpenPGPLogger log, KeyHandler [] publicKeyStores, ContainerPacket p, Stack onePassSignatures) 
+        throws AlgorithmException, IOException {
+        
         Vector literals = new Vector();
 
         for (int n = 0; n<p.getNumberPacked(); n++) {
-            if (p.unpack(n) instanceof ContainerPacket) {
-                LiteralDataPacket [] subs = unpackPacket((ContainerPacket)p.unpack(n));
-                for (int na = 0; na < subs.length; na++)
-                    literals.add(subs[na]);
-            } else if (p.unpack(n) instanceof LiteralDataPacket)
-                literals.add(p.unpack(n));
+            Packet packed = p.unpack(n);
+            
+            if (packed instanceof ContainerPacket) {
+                LiteralDataPacket [] subs = unpackPacket(log, publicKeyStores, (ContainerPacket)packed, onePassSignatures);
+                if (subs != null)
+                    for (int na = 0; na < subs.length; na++)
+                        literals.add(subs[na]);
+            } else if (packed instanceof LiteralDataPacket) {
+                literals.add(packed);
+                
+                for (int na = 0; na < onePassSignatures.size(); na++)
+                    ((OnePassVerifier)onePassSignatures.elementAt(na)).update((LiteralDataPacket)packed);
+                    
+            } else if (packed instanceof OnePassSignaturePacket) {
+                onePassSignatures.push(new OnePassVerifier((OnePassSignaturePacket)packed));
+            } else if ((packed instanceof SignaturePacket) && (!onePassSignatures.empty())) {
+                // one pass signatures are bracketed, so the last one opened is the one being closed
+                OnePassVerifier verifier = (OnePassVerifier)onePassSignatures.pop();
+                
+                try {
+                    if (verifier.verify(log, publicKeyStores, (SignaturePacket)packed))
+                        log.logInfo("Signature is valid.");
+                    else
+                        log.logError("Signature is INVALID.");
+                        
+                // catch and write errors to a log, we don't want to stop decrypting if something could not be verified.
+                } catch (Exception e) {
+                    log.logError(e.getMessage());
+                }
+            }
         }
 
         if (literals.size() > 0) {
@@ -1156,6 +1435,41 @@ public class OpenPGPHandler extends AlgorithmHandler {
         return null;
     }
 
+    /**
+     * <p>Recursively collect the mime components that hold data rather than sub components.</p>
+     * @param leaves Vector the leaves are added to, in the order they appear in the body.
+     */
+    private void findMimeLeaves(MimeComponent [] components, Vector leaves) {
+        for (int n = 0; n < components.length; n++) {
+            MimeComponent subs [] = components[n].getSubComponents();
+            if (subs!=null)
+                findMimeLeaves(subs, leaves);
+            else
+                leaves.add(components[n]);
+        }
+    }
+
+    /**
+     * <p>Run a set of part tasks on the shared worker pool and wait for them all to finish.</p>
+     * <p>The tasks are run on the calling thread if there is only one of them or only one processor.</p>
+     * @param parts A Vector of PartTask.
+     * @return The tasks in the order they were given.
+     */
+    private PartTask [] runParts(Vector parts) {
+        PartTask tasks[] = new PartTask[parts.size()];
+        for (int n = 0; n < tasks.length; n++)
+            tasks[n] = (PartTask)parts.elementAt(n);
+
+        if ((tasks.length > 1) && (WorkerPool.getParallelism() > 1)) {
+            WorkerPool.getPool().invokeAll(parts);
+        } else {
+            for (int n = 0; n < tasks.length; n++)
+                tasks[n].call();
+        }
+
+        return tasks;
+    }
+
 	/**
 	 * <p>Recursively add given text to all mime body components.</p>
 	 * <p>This is used to write summary to the beginning of the email.</p>
@@ -1183,6 +1497,225 @@ public class OpenPGPHandler extends AlgorithmHandler {
 
 /****************************************************************************************/
 
+    /**
+     * <p>The session key for an outgoing email and the session key packets that encrypt it to each recipient.</p>
+     * <p>The session key packets are made on the worker pool as the recipients are added, getSessionKeyPackets 
+     * waits for any that are not finished yet.</p>
+     */
+    private static class RecipientKeys implements OutgoingMailPreparation {
+        
+        /** Where recipient keys are looked up. */
+        private KeyHandler [] publicKeyStores;
+        
+        /** The session key all parts of the message are encrypted with. */
+        private SessionKey sessionKey;
+        
+        /** Recipient addresses, as returned by address(). */
+        private Vector recipients;
+        
+        /** A Future for each recipient's PublicKeyEncryptedSessionKeyPacket. */
+        private Vector sessionKeyPackets;
+        
+        public RecipientKeys(KeyHandler [] publicKeyStores, SessionKey sessionKey) {
+            this.publicKeyStores = publicKeyStores;
+            this.sessionKey = sessionKey;
+            
+            recipients = new Vector();
+            sessionKeyPackets = new Vector();
+        }
+        
+        /** Return the key stores recipient keys are looked up in. */
+        public KeyHandler [] getPublicKeyStores() {
+            return publicKeyStores;
+        }
+        
+        /** Return the session key. */
+        public SessionKey getSessionKey() {
+            return sessionKey;
+        }
+        
+        /** 
+         * <p>Return the address part of a recipient, so that the envelope's "bob@example.com" and the header's 
+         * "Bob &lt;Bob@Example.com&gt;" are the same recipient.</p>
+         */
+        private static String address(String recipient) {
+            return EmailEnvelope.getAddress(recipient);
+        }
+        
+        /** Has the recipient already been added? */
+        public boolean hasRecipient(String recipient) {
+            return recipients.contains(address(recipient));
+        }
+        
+        /** Add a recipient and the pending session key packet for them. */
+        public void addRecipient(String recipient, Future sessionKeyPacket) {
+            recipients.add(address(recipient));
+            sessionKeyPackets.add(sessionKeyPacket);
+        }
+        
+        /** Return the pending session key packet for a recipient, or null if they have not been added. */
+        public Future getSessionKeyPacket(String recipient) {
+            int n = recipients.indexOf(address(recipient));
+            return (n < 0) ? null : (Future)sessionKeyPackets.elementAt(n);
+        }
+        
+        /**
+         * <p>Return the session key packets for all the recipients, waiting for them if necessary.</p>
+         * @throws AlgorithmException if a session key packet could not be made.
+         */
+        public PublicKeyEncryptedSessionKeyPacket [] getSessionKeyPackets() throws AlgorithmException {
+            PublicKeyEncryptedSessionKeyPacket tmp[] = new PublicKeyEncryptedSessionKeyPacket[sessionKeyPackets.size()];
+            
+            try {
+                for (int n = 0; n < tmp.length; n++)
+                    tmp[n] = (PublicKeyEncryptedSessionKeyPacket)((Future)sessionKeyPackets.elementAt(n)).get();
+            } catch (ExecutionException e) {
+                throw new AlgorithmException(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                throw new AlgorithmException(e.getMessage());
+            }
+            
+            return tmp;
+        }
+    }
+
+    /**
+     * <p>The work for one attachment or mime body part, so that the parts of a message can be processed at the same time.</p>
+     * <p>Each task writes to its own log, which the caller merges into the message log in the original part order 
+     * once all the tasks are done. Anything thrown while processing is kept and rethrown by getResult.</p>
+     */
+    private abstract class PartTask implements Callable {
+        
+        /** The part being processed. */
+        private Object part;
+        
+        /** This part's log. */
+        private OpenPGPLogger log;
+        
+        /** Result of process(). */
+        private Object result;
+        
+        /** Whatever process() threw, if anything. */
+        private Exception failure;
+        
+        /** The metrics scopes of the thread that created the task, so the pool thread records times for the same session. */
+        private Object scopes;
+        
+        public PartTask(Object part) {
+            this.part = part;
+            scopes = Metrics.getCurrentScopes();
+            
+            log = new OpenPGPLogger();
+            log.beginSection("Part");
+        }
+        
+        /** Do the work for this part. */
+        protected abstract Object process() throws Exception;
+        
+        /** Run the task, keeping the result or failure. */
+        public Object call() {
+            Object previous = Metrics.getCurrentScopes();
+            Metrics.setCurrentScopes(scopes);
+            try {
+                result = process();
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                Metrics.setCurrentScopes(previous);
+            }
+            
+            return result;
+        }
+        
+        /** Return the part being processed. */
+        public Object getPart() {
+            return part;
+        }
+        
+        /** Return this part's log. */
+        public OpenPGPLogger getLog() {
+            return log;
+        }
+        
+        /**
+         * <p>Return the result of processing the part.</p>
+         * @throws AlgorithmException, KeyHandlerException etc if processing failed.
+         */
+        public Object getResult() throws AlgorithmException, KeyHandlerException, EmailDataFormatException, IOException {
+            if (failure == null) 
+                return result;
+            
+            if (failure instanceof AlgorithmException) throw (AlgorithmException)failure;
+            if (failure instanceof KeyHandlerException) throw (KeyHandlerException)failure;
+            if (failure instanceof EmailDataFormatException) throw (EmailDataFormatException)failure;
+            if (failure instanceof IOException) throw (IOException)failure;
+
+            throw new AlgorithmException(failure.getMessage());
+        }
+    }
+
+    /**
+     * <p>Checks a one pass signature as its signed data is unpacked.</p>
+     * <p>The digest is started from the one pass signature packet's hash algorithm, fed each literal
+     * data packet that follows and finished with the signature packet that closes the bracket.</p>
+     */
+    private class OnePassVerifier {
+        
+        /** The packet that started this signature. */
+        private OnePassSignaturePacket onePass;
+        
+        /** Digest of the signed data seen so far. */
+        private MessageDigest digest;
+        
+        public OnePassVerifier(OnePassSignaturePacket onePass) throws AlgorithmException {
+            this.onePass = onePass;
+            
+            try {
+                digest = MessageDigest.getInstance(HashAlgorithmSettings.getHashText(onePass.getHashAlgorithm()), "BC");
+            } catch (Exception e) {
+                throw new AlgorithmException("Hash algorithm " + onePass.getHashAlgorithm() + " is not supported.");
+            }
+        }
+        
+        /** Hash a literal data packet, putting text into canonical form if this is a text signature. */
+        public void update(LiteralDataPacket literal) throws IOException {
+            byte data[] = literal.getData();
+            
+            if (onePass.getType() == 0x01) {
+                // canonical text ends lines with CRLF but only adds a final line ending if the data had one
+                boolean lineEnded = (data.length > 0) && ((data[data.length-1] == '\n') || (data[data.length-1] == '\r'));
+                
+                CanonicalTextOutputStream text = new CanonicalTextOutputStream(digest, lineEnded ? 0 : CanonicalTextOutputStream.OMIT_FINAL_LINE_ENDING);
+                text.write(data);
+                text.finish();
+            } else {
+                digest.update(data);
+            }
+        }
+        
+        /**
+         * <p>Check the hashed data against the signature packet that closes this one pass signature.</p>
+         * @throws PublicKeyNotFoundException if the signer's public key could not be found.
+         */
+        public boolean verify(OpenPGPLogger log, KeyHandler [] publicKeyStores, SignaturePacket sig) 
+            throws AlgorithmException, KeyHandlerException, ChecksumFailureException, PublicKeyNotFoundException {
+            
+            logSigningKeyID(log, sig.getKeyID());
+            
+            if (!Arrays.equals(sig.getKeyID(), onePass.getKeyID()))
+                throw new AlgorithmException("Signature does not match its one pass signature packet, message can not be verified.");
+
+            KeyObject[] key = findKeys(log, publicKeyStores, new OpenPGPKeyIDKeyIdentifier(sig.getKeyID()));
+            if (key==null)
+                throw new PublicKeyNotFoundException("Could not find signer's public key, message can not be verified.");
+
+            long span = log.beginSpan();
+            boolean valid = sig.getSignatureData().verify(key[0].getKeyData().getKey().getPublicKey(), digest);
+            log.endSpan("Verification", span);
+            return valid;
+        }
+    }
+
     /**
      * <p>A utility class for constructing the incoming email log and summary attached to 
      * the incoming email.</p>
@@ -1193,6 +1726,7 @@ public class OpenPGPHandler extends AlgorithmHandler {
         protected class OpenPGPLoggerEntry {
             
             // list of error levels. should be ordered in increasing severity
+            public static final int LEVEL_SPAN = -1; // timing only, not part of the text log
             public static final int LEVEL_SECTIONBREAK = 0;
             public static final int LEVEL_INFO = 1;
             public static final int LEVEL_WARN = 2;
@@ -1208,6 +1742,10 @@ public class OpenPGPHandler extends AlgorithmHandler {
             private int level;
             /** Message */
             private String message;
+            
+            /** System.nanoTime() when a section began, and the nanoseconds it or a span took (-1 if not timed). */
+            private long started;
+            private long nanos = -1;
            
             /** Create a new log entry. */
             public OpenPGPLoggerEntry(OpenPGPLoggerEntry parent, int level, String message) {
@@ -1216,6 +1754,26 @@ public class OpenPGPHandler extends AlgorithmHandler {
                 this.message = message;
             }
             
+            /** Return the time taken, in nanoseconds, or -1 if the entry was not timed. */
+            public long getNanos() {
+                return nanos;
+            }
+            
+            /** Set the time taken. */
+            public void setNanos(long nanos) {
+                this.nanos = nanos;
+            }
+            
+            /** Set when a section began, so the time it took can be set when it ends. */
+            public void setStarted(long started) {
+                this.started = started;
+            }
+            
+            /** Return when a section began. */
+            public long getStarted() {
+                return started;
+            }
+            
             /** Return the parent. */
             public OpenPGPLoggerEntry getParent() {
                 return parent;
@@ -1279,12 +1837,16 @@ public class OpenPGPHandler extends AlgorithmHandler {
         /** Section */
         private int section;
         
+        /** Are sections and spans timed? Only if there is a trace file to write the times to. */
+        private boolean timed;
+        
         /**
          * <p>Create a new log.</p>
          */
         public OpenPGPLogger() {
             createDate = new Date();
             current = null;
+            timed = TraceFile.isEnabled();
         }
 
         /** Begin a log section. */
@@ -1300,13 +1862,37 @@ public class OpenPGPHandler extends AlgorithmHandler {
                 current.addChildren(tmp);
             }
             
+            if (timed)
+                tmp.setStarted(System.nanoTime());
             current = tmp;
         }
         
         /** End a log section and step back in the stack. */
         public void endSection() {
-            if (current!=null)
+            if (current!=null) {
+                if (timed)
+                    current.setNanos(System.nanoTime() - current.getStarted());
                 current = current.getParent();
+            }
+        }
+        
+        /** 
+         * <p>Return the start time of a span, such as a key lookup, to pass to endSpan.</p>
+         */
+        public long beginSpan() {
+            return (timed) ? System.nanoTime() : 0;
+        }
+        
+        /**
+         * <p>Record the time a span begun with beginSpan took in the current section.</p>
+         * <p>Spans only appear in the trace file, not in the log or summary.</p>
+         */
+        public void endSpan(String name, long start) {
+            if ((timed) && (current!=null)) {
+                OpenPGPLoggerEntry tmp = new OpenPGPLoggerEntry(current, OpenPGPLoggerEntry.LEVEL_SPAN, name);
+                tmp.setNanos(System.nanoTime() - start);
+                current.addChildren(tmp);
+            }
         }
         
         /** Logging method used by other log methods. */
@@ -1339,6 +1925,18 @@ public class OpenPGPHandler extends AlgorithmHandler {
         }
         
 
+        /**
+         * <p>Add everything written in another log's top section to the current section of this log.</p>
+         */
+        public void append(OpenPGPLogger other) {
+            if ((current==null) || (other.log==null)) return;
+            
+            OpenPGPLoggerEntry entries[] = other.log.getChildren();
+            if (entries!=null)
+                for (int n = 0; n < entries.length; n++)
+                    current.addChildren(entries[n]);
+        }
+
         /** 
          * <p>Return the log's create date.</p>
          */
@@ -1389,6 +1987,9 @@ public class OpenPGPHandler extends AlgorithmHandler {
          */
         private void processLog(OutputStream out, OpenPGPLoggerEntry node, int depth) throws IOException {
             
+            if (node.getLevel() == OpenPGPLoggerEntry.LEVEL_SPAN)
+                return;
+            
             // indent
             for (int n = 0; n < depth; n++)
                 writeLog(out, "     ");
@@ -1425,6 +2026,68 @@ public class OpenPGPHandler extends AlgorithmHandler {
             return out.toByteArray();
         }
         
+        /**
+         * <p>Write the sections and spans of the log, with the time each took, to the trace file as one JSON object.</p>
+         * <p>Each section or span is {"name":..., "ms":..., "children":[...]}, and the record gives the time the log 
+         * was started, the message id and the most severe level logged ("ok", "warning" or "error").</p>
+         * @param messageId The email's Message-ID, or null if it has none.
+         */
+        public void trace(String messageId) {
+            if ((!timed) || (log==null))
+                return;
+            
+            StringBuffer out = new StringBuffer(256);
+            out.append("{\"time\":").append(getCreateDate().getTime());
+            if (messageId!=null)
+                out.append(",\"message\":").append(TraceFile.quote(messageId));
+            
+            switch (traceEntry(new StringBuffer(), log)) {
+                case OpenPGPLoggerEntry.LEVEL_WARN : out.append(",\"status\":\"warning\""); break;
+                case OpenPGPLoggerEntry.LEVEL_ERROR : out.append(",\"status\":\"error\""); break;
+                default : out.append(",\"status\":\"ok\"");
+            }
+            
+            out.append(",\"trace\":");
+            traceEntry(out, log);
+            out.append('}');
+            
+            TraceFile.write(out.toString());
+        }
+        
+        /** 
+         * <p>Write a section or span and the timed entries below it as JSON.</p>
+         * @return The level of the most severe entry in or below the node.
+         */
+        private int traceEntry(StringBuffer out, OpenPGPLoggerEntry node) {
+            int status = node.getLevel();
+            
+            out.append("{\"name\":").append(TraceFile.quote(node.getMessage()));
+            if (node.getNanos() >= 0)
+                out.append(",\"ms\":").append(node.getNanos() / 1000 / 1000.0);
+            
+            OpenPGPLoggerEntry tmp[] = node.getChildren();
+            boolean first = true;
+            if (tmp!=null)
+                for (int n = 0; n < tmp.length; n++) {
+                    if (tmp[n].getLevel() > OpenPGPLoggerEntry.LEVEL_SECTIONBREAK) {
+                        // messages are only counted for the status
+                        if (tmp[n].getLevel() > status) status = tmp[n].getLevel();
+                        continue;
+                    }
+                    
+                    out.append((first) ? ",\"children\":[" : ",");
+                    first = false;
+                    
+                    int childStatus = traceEntry(out, tmp[n]);
+                    if (childStatus > status) status = childStatus;
+                }
+            if (!first)
+                out.append(']');
+            
+            out.append('}');
+            return status;
+        }
+        
         /**
          * <p>Get summary text for the top of the email.</p>
          */
@@ -180,7 +180,7 @@ public class ElGamalAlgorithmParameters extends AsymmetricAlgorithmParameters {
 
 		try {
 			KeyFactory keyFactory = KeyFactory.getInstance("ElGamal", "BC");
-			System.out.println("xxx Got ElGamal key factory...");
+			debug.Debug.println(debug.Debug.OPENPGP, 1, "xxx Got ElGamal key factory...");
 
 			ElGamalPrivateKeySpec privateKeySpec = new ElGamalPrivateKeySpec(
 					getX(), new ElGamalParameterSpec(getP(), getG()));
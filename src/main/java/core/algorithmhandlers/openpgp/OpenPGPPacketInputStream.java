@@ -177,8 +177,9 @@ public class OpenPGPPacketInputStream {
             
             //deal with partial body lengths.
             if (isPartial) { // we know it's a new format packet
-            	debug.Debug.println(1, "Processed partial packet length, first section is " +
-            			bodylength + " bytes");
+            	if (debug.Debug.isEnabled(debug.Debug.OPENPGP, 1))
+            		debug.Debug.println(debug.Debug.OPENPGP, 1, "Processed partial packet length, first section is " +
+            				bodylength + " bytes");
             	
             	int extralength;
             	
@@ -200,7 +201,8 @@ public class OpenPGPPacketInputStream {
                     	extralength = 1 << (octet1 & 0x1f);
                         isPartial = true;
                     }
-                    debug.Debug.println(1, "Next section is " + extralength + " bytes");
+                    if (debug.Debug.isEnabled(debug.Debug.OPENPGP, 1))
+                        debug.Debug.println(debug.Debug.OPENPGP, 1, "Next section is " + extralength + " bytes");
                     extraData = new byte[extralength];
                     inputStream.read(extraData);
                     byte[] allData = new byte[data.length + extraData.length];
@@ -208,8 +210,9 @@ public class OpenPGPPacketInputStream {
                     System.arraycopy(extraData, 0, allData, data.length, extraData.length);
                     data = allData;
                     bodylength = data.length;
-                    debug.Debug.println(1, "Total packet length so far is " + 
-                    		bodylength + " bytes");
+                    if (debug.Debug.isEnabled(debug.Debug.OPENPGP, 1))
+                        debug.Debug.println(debug.Debug.OPENPGP, 1, "Total packet length so far is " + 
+                        		bodylength + " bytes");
             	}
             }
             
@@ -30,9 +30,11 @@
  */
 
 package core.algorithmhandlers.openpgp.packets;
+import core.algorithmhandlers.openpgp.util.ParallelDeflater;
 import core.exceptions.AlgorithmException;
 import java.io.*;
 import java.util.zip.*;
+import system.Metrics;
 
 /**
  * <p>A class representing a compressed data packet.</p>
@@ -87,6 +89,7 @@ public class CompressedDataPacket extends ContainerPacket {
      */
     public void buildPacket(byte[] data) throws AlgorithmException {
         
+        long start = Metrics.start();
         try {
             ByteArrayInputStream in = new ByteArrayInputStream(data);
 
@@ -125,6 +128,8 @@ public class CompressedDataPacket extends ContainerPacket {
                 default : throw new AlgorithmException("Unsupported compression algorithm requested.");
             }
 
+            Metrics.stop(Metrics.COMPRESSION, start, uncompressed.size());
+
             // process uncompressed data into packets
             buildMultiplePackets(uncompressed.toByteArray());
         } catch (IOException e) {
@@ -172,34 +177,50 @@ public class CompressedDataPacket extends ContainerPacket {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             byte compressed[];
+            long start = Metrics.start();
 
             // encode and compress the packets contained within this 
             switch (getCompressionAlgorithm()) {
                 case 0 : compressed = encodeMultiplePackets(); break; // no compression
                 case ZIP : { // ZIP (RFC 1951)
-                    ByteArrayOutputStream rawdata = new ByteArrayOutputStream();
+                    byte packets[] = encodeMultiplePackets();
 
-                    DeflaterOutputStream compressor = new DeflaterOutputStream(rawdata, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
-                    compressor.write(encodeMultiplePackets());
+                    if (ParallelDeflater.isParallelisable(packets.length)) {
+                        // large payload, compress blocks across the worker pool
+                        compressed = ParallelDeflater.deflate(packets, Deflater.DEFAULT_COMPRESSION);
+                    } else {
+                        ByteArrayOutputStream rawdata = new ByteArrayOutputStream();
 
-                    compressor.finish();
-                    
-                    compressed = rawdata.toByteArray();
+                        DeflaterOutputStream compressor = new DeflaterOutputStream(rawdata, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+                        compressor.write(packets);
+
+                        compressor.finish();
+
+                        compressed = rawdata.toByteArray();
+                    }
                 } break;
                 case ZLIB : { // ZLIB (RFC 1950)
-                    ByteArrayOutputStream rawdata = new ByteArrayOutputStream();
+                    byte packets[] = encodeMultiplePackets();
 
-                    DeflaterOutputStream compressor = new DeflaterOutputStream(rawdata);
-                    compressor.write(encodeMultiplePackets());
+                    if (ParallelDeflater.isParallelisable(packets.length)) {
+                        // large payload, compress blocks across the worker pool
+                        compressed = ParallelDeflater.zlib(packets, Deflater.DEFAULT_COMPRESSION);
+                    } else {
+                        ByteArrayOutputStream rawdata = new ByteArrayOutputStream();
 
-                    compressor.finish();
-                    
-                    compressed = rawdata.toByteArray();
+                        DeflaterOutputStream compressor = new DeflaterOutputStream(rawdata);
+                        compressor.write(packets);
+
+                        compressor.finish();
+
+                        compressed = rawdata.toByteArray();
+                    }
                 } break;
                 //TODO: Add BZ2
                 
                 default : throw new AlgorithmException("Unsupported compression algorithm requested.");
             }
+            Metrics.stop(Metrics.COMPRESSION, start, compressed.length);
 
             // write algorithm
             out.write((int)getCompressionAlgorithm());
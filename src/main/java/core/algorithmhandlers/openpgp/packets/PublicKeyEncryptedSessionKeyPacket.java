@@ -38,6 +38,7 @@ import java.math.BigInteger;
 import java.security.*;
 import javax.crypto.*;
 import java.io.*;
+import system.Metrics;
 
 /**
  * <p>A class representing a public key encrypted session packet.</p>
@@ -111,7 +112,9 @@ public class PublicKeyEncryptedSessionKeyPacket extends EncryptedSessionKeyPacke
                 buffer.write((chksm & 0xff));
 
             // encrypt session key
+                long start = Metrics.start();
                 byte encrypted[] = cipher.doFinal(buffer.toByteArray());
+                Metrics.stop(Metrics.PUBLIC_KEY, start);
                 
             // generate and encode MPIs
                 if (PublicKeyAlgorithmSettings.isRSA(getKeyAlgorithm())) {
@@ -182,7 +185,9 @@ public class PublicKeyEncryptedSessionKeyPacket extends EncryptedSessionKeyPacke
                 }
  
             // decrypt
+                long start = Metrics.start();
                 byte data[] = cipher.doFinal(buffer.toByteArray());
+                Metrics.stop(Metrics.PUBLIC_KEY, start);
      
             // construct session key and analyse result of checksum
                 int alg = (int)data[0];
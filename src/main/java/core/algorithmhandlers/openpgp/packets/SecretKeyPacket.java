@@ -451,7 +451,7 @@ public class SecretKeyPacket extends KeyPacket {
             {
             	if( decrypted_hash != null && recalculated_hash != null && Arrays.equals( decrypted_hash, recalculated_hash ) )
             	{
-            		System.out.println( "hashes match" );
+            		debug.Debug.println(debug.Debug.OPENPGP, 1, "hashes match" );
             	}
             	else
             	{ //TODO: should differentiate this from the checksum exception really
@@ -466,7 +466,7 @@ public class SecretKeyPacket extends KeyPacket {
                 }
                 else
                 {
-                	System.out.println( "checksums match" );
+                	debug.Debug.println(debug.Debug.OPENPGP, 1, "checksums match" );
                 }
             }
             
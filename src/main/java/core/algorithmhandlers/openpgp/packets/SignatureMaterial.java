@@ -34,7 +34,12 @@ import core.exceptions.AlgorithmException;
 import core.algorithmhandlers.openpgp.util.*;
 import java.io.*;
 import java.security.*;
+import java.security.interfaces.*;
 import java.math.BigInteger;
+import javax.crypto.Cipher;
+import org.bouncycastle.crypto.params.*;
+import org.bouncycastle.crypto.signers.DSASigner;
+import system.Metrics;
 
 /**
  * <p>Abstract root class for all signature material packets.</p>
@@ -55,6 +60,15 @@ public abstract class SignatureMaterial {
     private int hash;   
     /** Signature material */
     private byte[] signature;
+    
+    /** Digest of the data for a signature in progress. */
+    private MessageDigest digest;
+    
+    /** Key for a signature being generated. */
+    private PrivateKey signingKey;
+    
+    /** Key for a signature being verified. */
+    private PublicKey verifyingKey;
 
     
     /** Creates a new instance of SignatureMaterial */
@@ -147,124 +161,246 @@ public abstract class SignatureMaterial {
      * @throws AlgorithmException if something went wrong.
      */
     public void sign(PrivateKey key, byte data[]) throws AlgorithmException {
-        try {
-            // generate hash message digest
-            MessageDigest md = MessageDigest.getInstance(HashAlgorithmSettings.getHashText(getHashAlgorithm()), "BC");
-            
-            // init for signing
-            Signature signature = Signature.getInstance(HashAlgorithmSettings.getHashText(getHashAlgorithm()) + 
-                    PublicKeyAlgorithmSettings.getSignatureAlgorithmTailText(getPublicKeyAlgorithm()), "BC");
-            
-            signature.initSign(key);
+        initSign(key);
+        update(data);
+        finishSign();
+    }
+    
+    /**
+     * <p>Verify the signature material against the signer's public key.</p>
+     * @param signersKey The public key belonging to the signer of the packet.
+     * @param data[] The data to verify against.
+     * @return true if the signature is valid, false if not.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public boolean verify(PublicKey signersKey, byte[] data) throws AlgorithmException {
+        initVerify(signersKey);
+        update(data);
+        return finishVerify();
+    }
+    
+    /**
+     * <p>Start generating a signature incrementally.</p>
+     * <p>Feed the data to be signed in with the update methods and then call finishSign. The data is 
+     * hashed once as it is passed in; the signature trailer is added at the end and the 2 byte hash is
+     * taken from the same digest that is signed.</p>
+     * @param key The key to use to sign the data.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public void initSign(PrivateKey key) throws AlgorithmException {
+        if (!(PublicKeyAlgorithmSettings.isRSA(getPublicKeyAlgorithm()) || PublicKeyAlgorithmSettings.isDSA(getPublicKeyAlgorithm())))
+            throw new AlgorithmException("Unsupported signature algorithm.");
+        
+        digest = createDigest();
+        signingKey = key;
+        verifyingKey = null;
+    }
+    
+    /**
+     * <p>Start verifying a signature incrementally.</p>
+     * <p>Feed the signed data in with the update methods and then call finishVerify.</p>
+     * @param signersKey The public key belonging to the signer of the packet.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public void initVerify(PublicKey signersKey) throws AlgorithmException {
+        if (!(PublicKeyAlgorithmSettings.isRSA(getPublicKeyAlgorithm()) || PublicKeyAlgorithmSettings.isDSA(getPublicKeyAlgorithm())))
+            throw new AlgorithmException("Unsupported signature algorithm.");
+        
+        digest = createDigest();
+        signingKey = null;
+        verifyingKey = signersKey;
+    }
+    
+    /**
+     * <p>Verify the signature against a digest that has already been fed the signed data.</p>
+     * <p>This is for one pass signed messages, where the data comes before the signature packet and so
+     * has to be hashed before the signature material is known. The digest must use this signature's hash 
+     * algorithm; the signature trailer is added to it here.</p>
+     * @param signersKey The public key belonging to the signer of the packet.
+     * @param signedData A digest of the signed data.
+     * @return true if the signature is valid, false if not.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public boolean verify(PublicKey signersKey, MessageDigest signedData) throws AlgorithmException {
+        initVerify(signersKey);
+        digest = signedData;
+        
+        return finishVerify();
+    }
+    
+    /**
+     * <p>Add data to a signature started with initSign or initVerify.</p>
+     * @throws AlgorithmException if no signature has been started.
+     */
+    public void update(byte data[], int offset, int length) throws AlgorithmException {
+        if (digest == null)
+            throw new AlgorithmException("Signature has not been initialised.");
+        
+        digest.update(data, offset, length);
+    }
+    
+    /**
+     * <p>Add data to a signature started with initSign or initVerify.</p>
+     * @throws AlgorithmException if no signature has been started.
+     */
+    public void update(byte data[]) throws AlgorithmException {
+        update(data, 0, data.length);
+    }
+    
+    /**
+     * <p>Returns a stream that passes everything written to it to the update method.</p>
+     * <p>This allows data to be hashed as it is produced, for example through a 
+     * CanonicalTextOutputStream. The stream must not be used after the signature is finished.</p>
+     */
+    public OutputStream getUpdateStream() {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
             
-            // create signature & generate hash
-            md.update(calculateRawSigData(data));
-            signature.update(calculateRawSigData(data));
-            byte digest[] = md.digest();
-            byte sig[] = signature.sign();
+            public void write(byte b[], int off, int len) throws IOException {
+                try {
+                    update(b, off, len);
+                } catch (AlgorithmException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        };
+    }
+    
+    /**
+     * <p>Complete a signature started with initSign.</p>
+     * <p>The signature trailer is hashed, and the 2 byte hash and the signature material are set.</p>
+     * @throws AlgorithmException if something went wrong.
+     */
+    public void finishSign() throws AlgorithmException {
+        if ((digest == null) || (signingKey == null))
+            throw new AlgorithmException("Signature has not been initialised for signing.");
+        
+        long start = Metrics.start();
+        try {
+            byte hashValue[] = finishDigest();
             
             // set hash
-            setHash(((digest[0] & 0xFF ) << 8) | (digest[1] & 0xFF));
+            setHash(((hashValue[0] & 0xFF ) << 8) | (hashValue[1] & 0xFF));
             
-            // set signature
+            // sign the digest and set signature
             if (PublicKeyAlgorithmSettings.isRSA(getPublicKeyAlgorithm())) {
+                Cipher rsa = Cipher.getInstance(PublicKeyAlgorithmSettings.getFullCipherText(getPublicKeyAlgorithm()), "BC");
+                rsa.init(Cipher.ENCRYPT_MODE, signingKey);
+                byte sig[] = rsa.doFinal(encodeDigestInfo(hashValue));
+                
                 setSignature(MPI.toByteArray(new BigInteger(1, sig)));
-            } else if (PublicKeyAlgorithmSettings.isDSA(getPublicKeyAlgorithm())) {
-            	setSignature(parseDSAData(sig));
             } else {
-                throw new AlgorithmException("Unsupported signature algorithm.");
+                DSAPrivateKey key = (DSAPrivateKey)signingKey;
+                DSAParams params = key.getParams();
+                
+                DSASigner signer = new DSASigner();
+                signer.init(true, new ParametersWithRandom(
+                    new DSAPrivateKeyParameters(key.getX(), new DSAParameters(params.getP(), params.getQ(), params.getG())), 
+                    new SecureRandom()));
+                
+                BigInteger rs[] = signer.generateSignature(hashValue);
+                
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(MPI.toByteArray(rs[0]));
+                out.write(MPI.toByteArray(rs[1]));
+                setSignature(out.toByteArray());
             }
             
+        } catch (AlgorithmException e) {
+            throw e;
         } catch (Exception e) {
             throw new AlgorithmException(e.getMessage());
+        } finally {
+            signingKey = null;
+            Metrics.stop(Metrics.PUBLIC_KEY, start);
         }
     }
     
     /**
-     * <p>Verify the signature material against the signer's public key.</p>
-     * @param signersKey The public key belonging to the signer of the packet.
-     * @param data[] The data to verify against.
+     * <p>Complete a verification started with initVerify.</p>
      * @return true if the signature is valid, false if not.
      * @throws AlgorithmException if something went wrong.
      */
-    public boolean verify(PublicKey signersKey, byte[] data) throws AlgorithmException {
+    public boolean finishVerify() throws AlgorithmException {
+        if ((digest == null) || (verifyingKey == null))
+            throw new AlgorithmException("Signature has not been initialised for verification.");
+        
+        long start = Metrics.start();
         try {
-            // init signature for verification
-            Signature signature = Signature.getInstance(HashAlgorithmSettings.getHashText(getHashAlgorithm()) + 
-            			PublicKeyAlgorithmSettings.getSignatureAlgorithmTailText(getPublicKeyAlgorithm()), "BC");
-            signature.initVerify(signersKey);
+            byte hashValue[] = finishDigest();
             
-            // load signature object with the data to compare against
-            signature.update(calculateRawSigData(data));
-
-            // verify the signature
             if (PublicKeyAlgorithmSettings.isRSA(getPublicKeyAlgorithm())) {
-                return signature.verify(MPI.getBytes(getSignature()));
-            } else if (PublicKeyAlgorithmSettings.isDSA(getPublicKeyAlgorithm())) {
+                Cipher rsa = Cipher.getInstance(PublicKeyAlgorithmSettings.getFullCipherText(getPublicKeyAlgorithm()), "BC");
+                rsa.init(Cipher.DECRYPT_MODE, verifyingKey);
                 
-                ByteArrayInputStream in = new ByteArrayInputStream(getSignature());
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                // a signature value larger than the modulus was not made with this key, and the cipher won't take it
+                byte value[] = MPI.getBytes(getSignature());
+                if ((verifyingKey instanceof RSAKey) && (new BigInteger(1, value).compareTo(((RSAKey)verifyingKey).getModulus()) >= 0))
+                    return false;
                 
-                byte[] oneBytes = MPI.valueOf(in).toByteArray();
-                byte[] twoBytes = MPI.valueOf(in).toByteArray();
+                byte decoded[];
+                try {
+                    decoded = rsa.doFinal(value);
+                } catch (GeneralSecurityException e) {
+                    // badly padded, so not a signature made with this key
+                    return false;
+                }
                 
-                out.write(0x30);
-                out.write((oneBytes.length + twoBytes.length + 4));
+                return MessageDigest.isEqual(decoded, encodeDigestInfo(hashValue));
+            } else {
+                DSAPublicKey key = (DSAPublicKey)verifyingKey;
+                DSAParams params = key.getParams();
                 
-                out.write(0x02);
-                out.write(oneBytes.length);
-                out.write(oneBytes);
+                DSASigner signer = new DSASigner();
+                signer.init(false, new DSAPublicKeyParameters(key.getY(), new DSAParameters(params.getP(), params.getQ(), params.getG())));
                 
-                out.write(0x02);
-                out.write(twoBytes.length); 
-                out.write(twoBytes);
+                ByteArrayInputStream in = new ByteArrayInputStream(getSignature());
+                BigInteger r = MPI.valueOf(in);
+                BigInteger s = MPI.valueOf(in);
                 
-                return signature.verify(out.toByteArray());
-            } else {
-                throw new AlgorithmException("Unsupported signature algorithm.");
+                return signer.verifySignature(hashValue, r, s);
             }
             
+        } catch (AlgorithmException e) {
+            throw e;
         } catch (Exception e) {
             throw new AlgorithmException(e.getMessage());
+        } finally {
+            verifyingKey = null;
+            Metrics.stop(Metrics.PUBLIC_KEY, start);
         }
     }
     
-    /**
-     * Parse the result of DSA calculation into its encoded form.
-     */
-    private byte [] parseDSAData(byte [] data) throws IOException, AlgorithmException {       
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
-
-        if (((in.read() & 0xff) != 0x30) || ((in.read() & 0xff) != data.length-2) || ((in.read() & 0xff) != 0x02))
-            throw new AlgorithmException("Signature is invalid.");
-
-        byte length = (byte)(in.read() & 0xff);
-
-        if (length > 21)
-            throw new AlgorithmException("Signature is invalid.");
-
-        byte[] r = new byte[length];
-        in.read(r);
-
-        if ((in.read() & 0xff) != 0x02)
-            throw new AlgorithmException("Signature is invalid.");
-
-        length = (byte)(in.read() & 0xff);
-
-        if (length > 21)
-            throw new AlgorithmException("Signature is invalid.");
-
-        byte[] s = new byte[length];
-        in.read(s);       
+    /** Create a digest for the hash algorithm of this signature. */
+    private MessageDigest createDigest() throws AlgorithmException {
+        try {
+            return MessageDigest.getInstance(HashAlgorithmSettings.getHashText(getHashAlgorithm()), "BC");
+        } catch (Exception e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+    
+    /** Add the trailer to the digest and return the final hash value. */
+    private byte[] finishDigest() throws AlgorithmException {
+        digest.update(calculateSigTrailer());
+        
+        byte hashValue[] = digest.digest();
+        digest = null;
         
-        if (in.available()>0)
-            throw new AlgorithmException("Signature is invalid.");
+        return hashValue;
+    }
+    
+    /** Wrap a hash value in the PKCS#1 DigestInfo structure that RSA signs. */
+    private byte[] encodeDigestInfo(byte hashValue[]) throws AlgorithmException {
+        byte prefix[] = HashAlgorithmSettings.getDigestInfoPrefix(getHashAlgorithm());
+        byte info[] = new byte[prefix.length + hashValue.length];
         
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        out.write(MPI.toByteArray(r));
-        out.write(MPI.toByteArray(s));
+        System.arraycopy(prefix, 0, info, 0, prefix.length);
+        System.arraycopy(hashValue, 0, info, prefix.length, hashValue.length);
         
-        return out.toByteArray();
+        return info;
     }
     
     /**
@@ -280,11 +416,10 @@ public abstract class SignatureMaterial {
     public abstract byte[] encode() throws AlgorithmException;  
 
     /**
-     * <p>A utility method used to construct the raw data used in the signature algorithm.</p>
-     * @param data[] The initial data used in the calculation, i.e. the data you're signing.
-     * @return a byte array containing the raw signature data.
+     * <p>A utility method used to construct the data hashed after the signed data in the signature algorithm.</p>
+     * @return a byte array containing the signature trailer.
      * @throws AlgorithmException if something went wrong.
      */
-    protected abstract byte[] calculateRawSigData(byte[] data) throws AlgorithmException;
+    protected abstract byte[] calculateSigTrailer() throws AlgorithmException;
     
 }
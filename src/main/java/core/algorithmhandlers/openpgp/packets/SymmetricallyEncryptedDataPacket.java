@@ -37,6 +37,7 @@ import java.io.*;
 import java.security.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
+import system.Metrics;
 
 /**
  * <p>A symetrically encrypted container.</p>
@@ -74,15 +75,26 @@ public class SymmetricallyEncryptedDataPacket extends EncryptedDataPacket {
             // the blocksize
             int blockSize = SymmetricAlgorithmSettings.getDefaultBlockSize(sessionkey.getAlgorithm())/8;
             
-            // convert session key to keyspec
-            SecretKey key = new SecretKeySpec(sessionkey.getSessionKey(), SymmetricAlgorithmSettings.getCipherText(sessionkey.getAlgorithm()));
+            byte decryptedData[];
             
-            // create cipher (IV is not required)
-            Cipher cipher = Cipher.getInstance(SymmetricAlgorithmSettings.getFullCipherText(sessionkey.getAlgorithm()),"BC");
-            cipher.init(Cipher.DECRYPT_MODE, key);
+            long start = Metrics.start();
+            if (CFBDecryptor.isParallelisable(rawData.length)) {
+                // large packet, decrypt in chunks across the worker pool
+                decryptedData = CFBDecryptor.decryptWithResync(sessionkey.getAlgorithm(), sessionkey.getSessionKey(), rawData);
+            } else {
+                // convert session key to keyspec
+                SecretKey key = new SecretKeySpec(sessionkey.getSessionKey(), SymmetricAlgorithmSettings.getCipherText(sessionkey.getAlgorithm()));
+
+                // create cipher (IV is not required)
+                Cipher cipher = Cipher.getInstance(SymmetricAlgorithmSettings.getFullCipherText(sessionkey.getAlgorithm()),"BC");
+                cipher.init(Cipher.DECRYPT_MODE, key);
+                
+                decryptedData = cipher.doFinal(rawData);
+            }
+            Metrics.stop(Metrics.SYMMETRIC, start, rawData.length);
                         
             // decrypt and construct packets (an exception thrown here will likely denote the wrong key was used)
-            buildMultiplePackets(cipher.doFinal(rawData));
+            buildMultiplePackets(decryptedData);
 
         } catch (Exception e) {
             throw new AlgorithmException(e.getMessage());
@@ -111,7 +123,10 @@ public class SymmetricallyEncryptedDataPacket extends EncryptedDataPacket {
             Cipher cipher = Cipher.getInstance(SymmetricAlgorithmSettings.getFullCipherText(sessionkey.getAlgorithm()),"BC");
             cipher.init(Cipher.ENCRYPT_MODE, key, iv);
 
-            rawData = cipher.doFinal(encodeMultiplePackets());
+            byte data[] = encodeMultiplePackets();
+            long start = Metrics.start();
+            rawData = cipher.doFinal(data);
+            Metrics.stop(Metrics.SYMMETRIC, start, data.length);
     
         } catch (Exception e) {
             throw new AlgorithmException(e.getMessage());
@@ -11,9 +11,11 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import core.algorithmhandlers.openpgp.util.CFBDecryptor;
 import core.algorithmhandlers.openpgp.util.SessionKey;
 import core.algorithmhandlers.openpgp.util.SymmetricAlgorithmSettings;
 import core.exceptions.AlgorithmException;
+import system.Metrics;
 
 /** <p>A symmetrically encrypted container, with new added authentication.</p>
  * <p>This packet contains other pgp packets and encrypts them. This packet provides
@@ -86,19 +88,30 @@ public class SymmetricallyEncryptedIntegrityProtectedDataPacket extends
             SecretKey key = new SecretKeySpec(sessionkey.getSessionKey(), 
             		SymmetricAlgorithmSettings.getCipherText(algorithm));
             
-            // create cipher (the way this packet is decoded is a strange case, and 
-            // not like the regular symmetrically encrypted data packet)
-            // requires the use of standard CFB mode
-            String cipherText = SymmetricAlgorithmSettings.getCipherText(algorithm) + 
-            		"/CFB/" + SymmetricAlgorithmSettings.getPaddingText(algorithm);
-            Cipher cipher = Cipher.getInstance(cipherText,"BC");
-            byte[]       iv = new byte[cipher.getBlockSize()];
-            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
-            
-            debug.Debug.println(1, "cipher algorithm: " + cipher.getAlgorithm() );
-            
             // get the raw decrypted packets
-            byte[] decryptedData = cipher.doFinal(rawData);
+            byte[] decryptedData;
+            
+            long start = Metrics.start();
+            if (CFBDecryptor.isParallelisable(rawData.length)) {
+            	// large packet, decrypt in chunks across the worker pool
+            	decryptedData = CFBDecryptor.decrypt(algorithm, sessionkey.getSessionKey(), 
+            			new byte[blockSize], rawData, 0, rawData.length);
+            } else {
+	            // create cipher (the way this packet is decoded is a strange case, and 
+	            // not like the regular symmetrically encrypted data packet)
+	            // requires the use of standard CFB mode
+	            String cipherText = SymmetricAlgorithmSettings.getCipherText(algorithm) + 
+	            		"/CFB/" + SymmetricAlgorithmSettings.getPaddingText(algorithm);
+	            Cipher cipher = Cipher.getInstance(cipherText,"BC");
+	            byte[]       iv = new byte[cipher.getBlockSize()];
+	            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+	            
+	            if (debug.Debug.isEnabled(debug.Debug.OPENPGP, 1))
+	                debug.Debug.println(debug.Debug.OPENPGP, 1, "cipher algorithm: " + cipher.getAlgorithm() );
+	            
+	            decryptedData = cipher.doFinal(rawData);
+            }
+            Metrics.stop(Metrics.SYMMETRIC, start, rawData.length);
             
             if (decryptedData[blockSize-2] != decryptedData[blockSize] || 
             		decryptedData[blockSize-1] != decryptedData[blockSize+1]) {
@@ -122,14 +135,14 @@ public class SymmetricallyEncryptedIntegrityProtectedDataPacket extends
             byte[] digest = new byte[md.getDigestLength()];
             System.arraycopy(decryptedData, decryptedData.length - md.getDigestLength(), 
             		digest, 0, md.getDigestLength());
-            debug.Debug.println(1, "Digest bytes: "); 
-            debug.Debug.hexDump(1, digest);
+            debug.Debug.println(debug.Debug.OPENPGP, 1, "Digest bytes: "); 
+            debug.Debug.hexDump(debug.Debug.OPENPGP, 1, digest);
             
             // Compute a SHA-1 hash of the verifiable data, compare it with the digest
             
             byte[] calculatedDigest = md.digest(hashableData);
-            debug.Debug.println(1, "Recalculated digest bytes: ");
-            debug.Debug.hexDump(1, calculatedDigest);
+            debug.Debug.println(debug.Debug.OPENPGP, 1, "Recalculated digest bytes: ");
+            debug.Debug.hexDump(debug.Debug.OPENPGP, 1, calculatedDigest);
             
             // could use the 1.5 feature Arrays.deepEquals(), but earlier JDK 
             // compatibility would be nice
@@ -202,7 +215,9 @@ public class SymmetricallyEncryptedIntegrityProtectedDataPacket extends
             Cipher cipher = Cipher.getInstance(cipherText,"BC");
             cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
 
+            long start = Metrics.start();
             rawData = cipher.doFinal(dataToEncrypt);
+            Metrics.stop(Metrics.SYMMETRIC, start, dataToEncrypt.length);
     
         } catch (Exception e) {
             throw new AlgorithmException(e.getMessage());
@@ -76,6 +76,23 @@ public class V3SignatureMaterial extends SignatureMaterial {
         sign(key, data); // sign and generate hash
     }
     
+    /** <p>Creates a new instance of V3SignatureMaterial to be signed incrementally.</p>
+     * <p>Call initSign, pass the data to update and then call finishSign.</p>
+     * @param keyID[] The 8 byte key id of the signing key (as calculated by the appropriate AsymmetricAlgorithmParameters method).
+     * @param sigType The type of signature this is.
+     * @param keyalgorithm The type of public key algorithm to use.
+     * @param hashalgorithm The type of hash algorithm to use.
+     * @throws AlgorithmException if signature could not be created for whatever reason.
+     */
+    public V3SignatureMaterial(byte keyID[], int sigType, int keyalgorithm, int hashalgorithm) throws AlgorithmException {
+        setSignatureType(sigType);
+        setCreateDate(new Date().getTime() / 1000);
+        setPublicKeyAlgorithm(keyalgorithm);
+        setHashAlgorithm(hashalgorithm);
+        
+        setKeyID(keyID); 
+    }
+    
     /** Set the creation date of the key */
     protected void setCreateDate(long date) {
         signedTime = date;
@@ -182,31 +199,23 @@ public class V3SignatureMaterial extends SignatureMaterial {
     }
  
     /**
-     * <p>A utility method used to construct the raw data used in the signature algorithm.</p>
-     * @param data[] The initial data used in the calculation, i.e. the data you're signing.
-     * @return a byte array containing the raw signature data.
+     * <p>A utility method used to construct the data hashed after the signed data in the signature algorithm.</p>
+     * @return a byte array containing the signature trailer.
      * @throws AlgorithmException if something went wrong.
      */
-    protected byte[] calculateRawSigData(byte[] data) throws AlgorithmException {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            
-            // initial data
-            out.write(data);
-            
-            // signature type
-            out.write(getSignatureType() & 0xFF);
-            
-            // date
-            out.write((int)((getCreateDate() >> 24) & 0xFF));
-            out.write((int)((getCreateDate() >> 16) & 0xFF));
-            out.write((int)((getCreateDate() >> 8) & 0xFF));
-            out.write((int)((getCreateDate() >> 0) & 0xFF));
-            
-            return out.toByteArray();
-        } catch (IOException e) {
-            throw new AlgorithmException(e.getMessage());
-        }
+    protected byte[] calculateSigTrailer() throws AlgorithmException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        // signature type
+        out.write(getSignatureType() & 0xFF);
+        
+        // date
+        out.write((int)((getCreateDate() >> 24) & 0xFF));
+        out.write((int)((getCreateDate() >> 16) & 0xFF));
+        out.write((int)((getCreateDate() >> 8) & 0xFF));
+        out.write((int)((getCreateDate() >> 0) & 0xFF));
+        
+        return out.toByteArray();
     }
     
 }
@@ -80,6 +80,27 @@ public class V4SignatureMaterial extends SignatureMaterial {
         sign(key, data); // sign and generate hash
     }
     
+    /** <p>Create a new instance of V4SignatureMaterial to be signed incrementally.</p>
+     * <p>The sub packets are added as for the signing constructor. Call initSign, pass the data to update and then call finishSign.</p>
+     * @param expiry The length of time from now this signature is valid for, usually this should be 0. If it is 0, no sub packet is created as 0 is implied by the absense.
+     * @param keyID[] The 8 byte key id of the signing key (as calculated by the appropriate AsymmetricAlgorithmParameters method).
+     * @param sigType The type of signature this is.
+     * @param keyalgorithm The type of public key algorithm to use to sign data with.
+     * @param hashalgorithm The type of hash algorithm to use.
+     * @throws AlgorithmException if the sub packets could not be created for whatever reason.
+     */
+    public V4SignatureMaterial(long expiry, byte keyID[], int sigType, int keyalgorithm, int hashalgorithm) throws AlgorithmException {
+        
+    	setSignatureType(sigType);
+        addHashedSubPacket(new SignatureCreationTimeSubPacket()); // creation time
+        if (expiry>0) // expiry
+            addHashedSubPacket(new SignatureExpirationTimeSubPacket(expiry)); 
+        setPublicKeyAlgorithm(keyalgorithm);
+        setHashAlgorithm(hashalgorithm);
+        
+        setKeyID(keyID);
+    }
+    
     /** <p>Add a sub packet to the end of the hashed packet list.</p>
      * <p>IMPORTANT: If you add a hashed packet you MUST re-sign the packet!</p>
      */
@@ -358,19 +379,15 @@ public class V4SignatureMaterial extends SignatureMaterial {
     }
     
     /**
-     * <p>A utility method used to construct the raw data used in the signature algorithm.</p>
-     * @param data[] The initial data used in the calculation, i.e. the data you're signing.
-     * @return a byte array containing the raw signature data.
+     * <p>A utility method used to construct the data hashed after the signed data in the signature algorithm.</p>
+     * @return a byte array containing the signature trailer.
      * @throws AlgorithmException if something went wrong.
      */
-    protected byte[] calculateRawSigData(byte[] data) throws AlgorithmException {
+    protected byte[] calculateSigTrailer() throws AlgorithmException {
          try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();  
             ByteArrayOutputStream body = new ByteArrayOutputStream();  
 
-            // write data
-            out.write(data);
-            
             // version is always 4
             body.write(4 & 0xff);
             body.write(getSignatureType() & 0xff);
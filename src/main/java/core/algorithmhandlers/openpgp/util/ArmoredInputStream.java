@@ -0,0 +1,324 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import java.io.*;
+
+/**
+ * <p>An input stream filter that decodes radix-64 armored data and checks its CRC-24 checksum.</p>
+ * <p>The stream should be positioned just after the armor headers (i.e. at the start of the encoded data). 
+ * Decoding stops at the checksum line, at a line beginning with a dash (the armor footer) or at the end of 
+ * the underlying stream. Whitespace between characters is ignored.</p>
+ * <p>The checksum is computed as the data is read, so once all the data has been read 
+ * {@link #hasChecksum()} and {@link #isChecksumValid()} can be used to verify the message without having to 
+ * go over it a second time.</p>
+ * <p>The encoded data is read from the underlying stream a block at a time and decoded in runs, so the underlying
+ * stream may have been read past the end of the armored data.</p>
+ * @see ArmoredOutputStream
+ * @see Armory
+ */
+public class ArmoredInputStream extends FilterInputStream {
+
+    /** A lookup table for converting a radix 64 character into its 6 bit value, -1 if it is not valid. */
+    private static final byte[] decodeLUT = new byte[128];
+
+    static {
+        for (int n = 0; n < decodeLUT.length; n++)
+            decodeLUT[n] = -1;
+
+        for (int n = 0; n < 26; n++) {
+            decodeLUT['A' + n] = (byte)n;
+            decodeLUT['a' + n] = (byte)(26 + n);
+        }
+
+        for (int n = 0; n < 10; n++)
+            decodeLUT['0' + n] = (byte)(52 + n);
+
+        decodeLUT['+'] = 62;
+        decodeLUT['/'] = 63;
+    }
+
+    /** Checksum of the data decoded so far. */
+    private CRC24 crc = new CRC24();
+
+    /** Encoded characters read from the underlying stream. */
+    private byte encoded[] = new byte[4096];
+
+    /** Number of valid characters in encoded. */
+    private int encodedLength = 0;
+
+    /** Next character in encoded to be decoded. */
+    private int encodedPos = 0;
+
+    /** Decoded octets not yet returned to the caller, three for every four characters in encoded. */
+    private byte decoded[] = new byte[3072];
+
+    /** Number of valid octets in decoded. */
+    private int decodedLength = 0;
+
+    /** Next octet in decoded to be returned. */
+    private int decodedPos = 0;
+
+    /** Set once the end of the encoded data has been reached. */
+    private boolean endOfData = false;
+
+    /** Was a checksum line found? */
+    private boolean checksumPresent = false;
+
+    /** The checksum given in the armor. */
+    private long checksum = 0;
+
+    /** Creates a new armor decoder reading from the given stream. */
+    public ArmoredInputStream(InputStream in) {
+        super(in);
+    }
+
+    /** Read a single decoded octet, or -1 at the end of the armored data. */
+    public int read() throws IOException {
+        if (decodedPos == decodedLength) {
+            fill();
+            if (decodedPos == decodedLength)
+                return -1;
+        }
+
+        return decoded[decodedPos++] & 0xFF;
+    }
+
+    /** Read decoded octets into part of an array. */
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) return 0;
+
+        int count = 0;
+        while (count < len) {
+            if (decodedPos == decodedLength) {
+                fill();
+                if (decodedPos == decodedLength)
+                    break;
+            }
+
+            int n = Math.min(len - count, decodedLength - decodedPos);
+            System.arraycopy(decoded, decodedPos, b, off + count, n);
+            decodedPos += n;
+            count += n;
+        }
+
+        if (count == 0)
+            return -1;
+
+        return count;
+    }
+
+    /** Skip over decoded octets. */
+    public long skip(long n) throws IOException {
+        long count = 0;
+        while ((count < n) && (read() != -1))
+            count++;
+
+        return count;
+    }
+
+    /** Returns the number of decoded octets that can be read without blocking. */
+    public int available() throws IOException {
+        return decodedLength - decodedPos;
+    }
+
+    /** Mark is not supported. */
+    public boolean markSupported() {
+        return false;
+    }
+
+    /** Mark is not supported. */
+    public void mark(int readlimit) {
+    }
+
+    /** Mark is not supported. */
+    public void reset() throws IOException {
+        throw new IOException("Mark/reset not supported on armored streams.");
+    }
+
+    /** 
+     * <p>Returns true if the armored data ended with a checksum line.</p>
+     * <p>Any data not yet read is consumed first.</p>
+     */
+    public boolean hasChecksum() throws IOException {
+        drain();
+        return checksumPresent;
+    }
+
+    /** 
+     * <p>Returns true if the checksum given in the armor matches the data.</p>
+     * <p>Any data not yet read is consumed first. Returns false if there was no checksum.</p>
+     */
+    public boolean isChecksumValid() throws IOException {
+        drain();
+        return (checksumPresent) && (checksum == crc.getValue());
+    }
+
+    /** Read and discard whatever is left of the encoded data. */
+    private void drain() throws IOException {
+        while (!endOfData) {
+            decodedPos = decodedLength;
+            fill();
+        }
+    }
+
+    /** Read the next non whitespace character, or -1 at the end of the underlying stream. */
+    private int nextChar() throws IOException {
+        while (true) {
+            if (encodedPos == encodedLength) {
+                encodedPos = 0;
+                encodedLength = Math.max(0, in.read(encoded));
+                if (encodedLength == 0)
+                    return -1;
+            }
+
+            int c = encoded[encodedPos++] & 0xFF;
+            if (c > ' ')
+                return c;
+        }
+    }
+
+    /** Return the 6 bit value of a character, or -1 if it isn't radix 64. */
+    private static int lookup(byte c) {
+        return (c >= 0) ? decodeLUT[c] : -1;
+    }
+
+    /** Decode a character, throwing an exception if it isn't radix 64. */
+    private int decodeChar(int c) throws IOException {
+        if ((c < 0) || (c >= decodeLUT.length) || (decodeLUT[c] < 0))
+            throw new IOException("The PGP message is not correctly Radix64 encoded!");
+
+        return decodeLUT[c];
+    }
+
+    /** 
+     * <p>Decode as much of the encoded data as will fit into the decoded buffer.</p>
+     * <p>Whole groups of four characters already read are decoded directly, anything else (whitespace, padding, the
+     * checksum, the footer or a group split across reads) a group at a time by decodeGroup.</p>
+     */
+    private void fill() throws IOException {
+        decodedPos = 0;
+        decodedLength = 0;
+
+        while ((!endOfData) && (decodedLength + 3 <= decoded.length)) {
+            while ((encodedPos < encodedLength) && ((encoded[encodedPos] & 0xFF) <= ' '))
+                encodedPos++;
+
+            if (encodedPos + 4 <= encodedLength) {
+                int a = lookup(encoded[encodedPos]);
+                int b = lookup(encoded[encodedPos + 1]);
+                int c = lookup(encoded[encodedPos + 2]);
+                int d = lookup(encoded[encodedPos + 3]);
+
+                if ((a | b | c | d) >= 0) {
+                    int bits = (a << 18) | (b << 12) | (c << 6) | d;
+                    decoded[decodedLength++] = (byte)(bits >> 16);
+                    decoded[decodedLength++] = (byte)(bits >> 8);
+                    decoded[decodedLength++] = (byte)(bits);
+                    encodedPos += 4;
+                    continue;
+                }
+            }
+
+            decodeGroup();
+        }
+
+        crc.update(decoded, 0, decodedLength);
+    }
+
+    /** Decode the next group of four characters onto the end of the decoded buffer. */
+    private void decodeGroup() throws IOException {
+        int bits = 0;
+        int count = 0;
+
+        while (count < 4) {
+            int c = nextChar();
+
+            if (c == -1) {
+                if (count != 0)
+                    throw new IOException("Armored data is incomplete.");
+
+                endOfData = true;
+                return;
+            }
+
+            if (count == 0) {
+                if (c == '=') {
+                    readChecksum();
+                    endOfData = true;
+                    return;
+                }
+
+                if (c == '-') {
+                    endOfData = true;
+                    return;
+                }
+            }
+
+            if (c == '=') {
+                // padding
+                if (count < 2)
+                    throw new IOException("The PGP message is not correctly Radix64 encoded!");
+
+                if ((count == 2) && (nextChar() != '='))
+                    throw new IOException("The PGP message is not correctly Radix64 encoded!");
+
+                break;
+            }
+
+            bits = (bits << 6) | decodeChar(c);
+            count++;
+        }
+
+        // a padded group has fewer characters, and gives one octet less for each missing
+        bits <<= 6 * (4 - count);
+        decoded[decodedLength++] = (byte)(bits >> 16);
+        if (count > 2)
+            decoded[decodedLength++] = (byte)(bits >> 8);
+        if (count > 3)
+            decoded[decodedLength++] = (byte)(bits);
+    }
+
+    /** Read the four character checksum following the '='. */
+    private void readChecksum() throws IOException {
+        int bits = 0;
+        for (int n = 0; n < 4; n++) {
+            int c = nextChar();
+            if (c == -1)
+                throw new IOException("Armored data is incomplete.");
+
+            bits = (bits << 6) | decodeChar(c);
+        }
+
+        checksum = bits & 0xFFFFFF;
+        checksumPresent = true;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import core.email.encoders.Base64;
+import core.email.encoders.Base64OutputStream;
+import java.io.*;
+
+/**
+ * <p>An output stream filter that radix-64 encodes everything written to it and appends the CRC-24 checksum 
+ * line when it is closed or finished.</p>
+ * <p>The output is the same as Armory.armor produces: 64 character lines terminated by CR/LF followed by the 
+ * checksum line. As with Armory.armor you still have to write the header and footer tags yourself.</p>
+ * <p>The checksum is computed as the data passes through, so armoring a message is a single pass that needs no
+ * intermediate copies of the message.</p>
+ * @see ArmoredInputStream
+ * @see Armory
+ */
+public class ArmoredOutputStream extends Base64OutputStream {
+
+    /** Checksum of the data written so far. */
+    private CRC24 crc = new CRC24();
+
+    /** Creates a new armored stream writing to the given stream. */
+    public ArmoredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /** Write a single octet. */
+    public void write(int b) throws IOException {
+        super.write(b);
+        crc.update(b);
+    }
+
+    /** Write part of an array of octets. */
+    public void write(byte b[], int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+    }
+
+    /**
+     * <p>Write out any remaining data and the checksum line.</p>
+     * <p>The underlying stream is left open. Nothing more can be written once the stream is finished.</p>
+     */
+    public void finish() throws IOException {
+        if (isFinished()) return;
+
+        super.finish();
+
+        long value = crc.getValue();
+        byte crcBytes[] = new byte[3];
+        crcBytes[0] = (byte)(value >> 16);
+        crcBytes[1] = (byte)(value >> 8);
+        crcBytes[2] = (byte)(value);
+
+        byte line[] = new byte[7];
+        line[0] = '=';
+        Base64.encodeBlock(crcBytes, 0, 3, line, 1);
+        line[5] = '\r';
+        line[6] = '\n';
+
+        out.write(line);
+    }
+}
@@ -32,10 +32,9 @@
 package core.algorithmhandlers.openpgp.util;
 import core.exceptions.AlgorithmException;
 import core.exceptions.ChecksumFailureException;
-import core.email.encoders.Base64;
 import java.io.*;
-import java.lang.StringBuffer;
 import java.lang.String;
+import system.Metrics;
 
 /**
  * <p>This class creates and converts ascii armor messages.</p>
@@ -48,15 +47,28 @@ public class Armory {
      * Produces the armored version of a given array of bytes. You still have to add the header and footer tags yourself. 
      */
     public static String armor(byte message[]) {
-        
-        // calculate CRC
-        int crcInt = (int)CRC24.crcOctets(message);
-        byte crcBytes[] = new byte[3];
-        crcBytes[0] = (byte)(crcInt >> 16);
-        crcBytes[1] = (byte)(crcInt >> 8);
-        crcBytes[2] = (byte)(crcInt);
-        
-        return new String(Base64.encode(message)) + "=" + new String(Base64.encode(crcBytes));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((message.length / 3 + 1) * 4 + (message.length / 24) + 16);
+            armor(message, out);
+
+            return out.toString("US-ASCII");
+        } catch (IOException e) {
+            // can't happen writing to memory
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+    
+    /**
+     * <p>Writes the armored version of a given array of bytes straight to a stream.</p>
+     * <p>This avoids building the armored message as a string. You still have to add the header and footer tags yourself. </p>
+     * @throws IOException if the stream could not be written to.
+     */
+    public static void armor(byte message[], OutputStream out) throws IOException {
+        long start = Metrics.start();
+        ArmoredOutputStream armored = new ArmoredOutputStream(out);
+        armored.write(message);
+        armored.finish();
+        Metrics.stop(Metrics.ARMOR, start, message.length);
     }
     
     /** 
@@ -66,27 +78,57 @@ public class Armory {
      * @throws ChecksumFailureException If the checksum does not match.
      */
     public static byte[] disarm(String message) throws AlgorithmException, ChecksumFailureException {
-
         try {
-            int crcPos = message.indexOf("\r\n=");
-
-            String armoredEncodedMessage = message.substring(0, crcPos);
-            byte[] mainMessage = Base64.decode(armoredEncodedMessage.getBytes());
-
-            String crcEncodedString = message.substring( crcPos + 3, crcPos + 7 );
-            byte[] crcBytes = Base64.decode(crcEncodedString.getBytes());
-
-            int crcInt = ((crcBytes[0] & 0xFF) << 16) | ((crcBytes[1] & 0xFF) <<  8) | ((crcBytes[2] & 0xFF));
-            int calculatedCRC = (int)CRC24.crcOctets(mainMessage);
+            return disarm(message.getBytes("US-ASCII"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+    
+    /** 
+     * This method verifies the crc and returns the raw PGP packet(s) from the armored bytes.
+     * @param message The ascii armored message (without the header and footer).
+     * @throws AlgorithmException if the message could not be coded.
+     * @throws ChecksumFailureException If the checksum does not match.
+     */
+    public static byte[] disarm(byte message[]) throws AlgorithmException, ChecksumFailureException {
+        return disarm(new ByteArrayInputStream(message), message.length * 3 / 4);
+    }
+    
+    /** 
+     * This method reads armored data from a stream, verifies the crc and returns the raw PGP packet(s).
+     * @param in Stream positioned at the start of the ascii armored data (after the header).
+     * @throws AlgorithmException if the message could not be coded.
+     * @throws ChecksumFailureException If the checksum does not match.
+     */
+    public static byte[] disarm(InputStream in) throws AlgorithmException, ChecksumFailureException {
+        return disarm(in, 1024);
+    }
+    
+    /** Decode the armor and check the crc in a single pass. */
+    private static byte[] disarm(InputStream in, int sizeHint) throws AlgorithmException, ChecksumFailureException {
+        long start = Metrics.start();
+        try {
+            ArmoredInputStream armored = new ArmoredInputStream(in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint + 1);
+            
+            byte buffer[] = new byte[4096];
+            int n;
+            while ((n = armored.read(buffer)) != -1)
+                out.write(buffer, 0, n);
 
-            if (crcInt != calculatedCRC)
+            if (!armored.hasChecksum())
+                throw new AlgorithmException("Armored data is incomplete.");
+            
+            if (!armored.isChecksumValid())
                 throw new ChecksumFailureException("CRC failed while decoding ascii armored message.");
 
-            return mainMessage;
-
-        } catch (StringIndexOutOfBoundsException e) {
-            throw new AlgorithmException("Armored data is incomplete.");
-        }    
+            Metrics.stop(Metrics.ARMOR, start, out.size());
+            return out.toByteArray();
+            
+        } catch (IOException e) {
+            throw new AlgorithmException(e.getMessage());
+        }
     }
     
     /**
@@ -95,23 +137,15 @@ public class Armory {
      * @throws AlgorithmException if there was a problem.
      */
     public static String dashEscapeText(String message) throws AlgorithmException {
-        try {
-            StringBuffer out = new StringBuffer();
-            BufferedReader in = new BufferedReader(new StringReader(message));
-
-            String s;
-
-            while ((s=in.readLine()) != null) {
-                if (s.startsWith("-")) 
-                    out.append("- " + s + "\r\n");
-                else 
-                    out.append(s + "\r\n");
-            }
-
-            return out.toString();
-        } catch (IOException e) {
-            throw new AlgorithmException(e.getMessage());
-        }
+        return new String(dashEscapeText(message.getBytes()));
+    }
+    
+    /**
+     * <p>Dash-escape clear text, working directly on the bytes.</p>
+     * <p>Every line of the result, including the last, ends in CR/LF.</p>
+     */
+    public static byte[] dashEscapeText(byte message[]) {
+        return CanonicalTextOutputStream.transform(message, CanonicalTextOutputStream.DASH_ESCAPE);
     }
     
     /** 
@@ -119,23 +153,15 @@ public class Armory {
      * @throws AlgorithmException if there was a problem.
      */
     public static String removeDashEscaping(String message) throws AlgorithmException {
-        try {
-            StringBuffer out = new StringBuffer();
-            BufferedReader in = new BufferedReader(new StringReader(message));
-
-            String s;
-
-            while ((s=in.readLine()) != null) {
-                if (s.startsWith("- ")) 
-                    out.append(s.substring(2) + "\r\n");
-                else 
-                    out.append(s + "\r\n");
-            }
-
-            return out.toString();
-        } catch (IOException e) {
-            throw new AlgorithmException(e.getMessage());
-        }
+        return new String(removeDashEscaping(message.getBytes()));
+    }
+    
+    /** 
+     * <p>Remove dash escaping, working directly on the bytes.</p>
+     * <p>Every line of the result, including the last, ends in CR/LF.</p>
+     */
+    public static byte[] removeDashEscaping(byte message[]) {
+        return CanonicalTextOutputStream.transform(message, CanonicalTextOutputStream.REMOVE_DASH_ESCAPING);
     }
     
     /** 
@@ -143,30 +169,14 @@ public class Armory {
      * <p>This clears the last cr/lf pair and removes trailing whitespace, making it suitable for signing.</p>
      */
     public static byte[] formatForCTSigning(byte [] message) throws AlgorithmException {
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(message)));
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-            String s = new String();
-            while (in.ready()) {
-                s = in.readLine();
-                
-                if ((s!=null) && (s.length()>0)) {
-                    // strip end whitespace
-                    int index = s.length()-1;
-                    while ( (s.charAt(index)=='\t') || (s.charAt(index)==' ') || (s.charAt(index)==0x09) ) {
-                        index--;
-                    }
-              
-                    out.write(s.substring(0, index+1).getBytes());
-                }
-                
-                out.write("\r\n".getBytes());
-            }
-            
-            return out.toString().substring(0,out.toString().lastIndexOf("\r")).getBytes();
-        } catch (IOException e) {
-            throw new AlgorithmException(e.getMessage());
-        }
+        return CanonicalTextOutputStream.transform(message, CanonicalTextOutputStream.SIGNING);
+    }
+    
+    /** 
+     * <p>Format the dash-escaped text of a clear text signed message to produce the value the signature was made over.</p>
+     * <p>This is the same as removing the dash escaping and then calling formatForCTSigning, but done in one pass.</p>
+     */
+    public static byte[] formatForCTVerification(byte [] message) throws AlgorithmException {
+        return CanonicalTextOutputStream.transform(message, CanonicalTextOutputStream.SIGNING | CanonicalTextOutputStream.REMOVE_DASH_ESCAPING);
     }
 }
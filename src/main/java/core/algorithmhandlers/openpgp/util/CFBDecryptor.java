@@ -0,0 +1,228 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import core.exceptions.AlgorithmException;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * <p>A CFB mode decryptor that splits large ciphertexts across the shared worker pool.</p>
+ * <p>CFB encryption is sequential, but the decryption of each block only depends on the previous block
+ * of ciphertext. The ciphertext can therefore be cut into block aligned chunks and each chunk decrypted
+ * independently with a standard CFB cipher whose IV is the ciphertext block preceding the chunk.</p>
+ * <p>Two flavours are provided: plain CFB (as used by the Symmetrically Encrypted Integrity Protected
+ * Data Packet) and OpenPGP CFB with its random prefix and resynchronisation step (as used by the
+ * Symmetrically Encrypted Data Packet).</p>
+ * @see WorkerPool
+ */
+public class CFBDecryptor {
+
+    /** Ciphertexts smaller than this are not worth splitting up and are left to the caller. */
+    public static final int PARALLEL_THRESHOLD = 256 * 1024;
+
+    /** The size of the chunks handed out to worker threads, must be a multiple of every cipher block size. */
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    /** Returns true if a ciphertext of the given length should be decrypted with this class. */
+    public static boolean isParallelisable(int length) {
+        return (length >= PARALLEL_THRESHOLD) && (WorkerPool.getParallelism() > 1);
+    }
+
+    /**
+     * <p>Decrypt data that has been encrypted with standard CFB mode.</p>
+     * @param algorithm The symmetric algorithm code.
+     * @param key[] The raw session key.
+     * @param iv[] The initial vector, one block long.
+     * @param data[] Array holding the ciphertext.
+     * @param offset Where the ciphertext starts in data.
+     * @param length Length of the ciphertext.
+     * @return The plaintext, of the same length as the ciphertext.
+     * @throws AlgorithmException if the algorithm is not supported or something went wrong.
+     */
+    public static byte[] decrypt(int algorithm, byte key[], byte iv[], byte data[], int offset, int length) throws AlgorithmException {
+        return decrypt(algorithm, key, iv, data, offset, length, CHUNK_SIZE);
+    }
+
+    /**
+     * <p>Decrypt data that has been encrypted with standard CFB mode using a given chunk size.</p>
+     * <p>Mainly useful for testing, see decrypt(int, byte[], byte[], byte[], int, int).</p>
+     * @throws AlgorithmException if the algorithm is not supported, the chunk size is not block aligned or something went wrong.
+     */
+    public static byte[] decrypt(int algorithm, byte key[], byte iv[], byte data[], int offset, int length, int chunkSize) throws AlgorithmException {
+
+        int blockSize = SymmetricAlgorithmSettings.getDefaultBlockSize(algorithm)/8;
+
+        if ((chunkSize <= 0) || (chunkSize % blockSize != 0))
+            throw new AlgorithmException("CFB chunk size must be a multiple of the cipher block size.");
+        if (iv.length != blockSize)
+            throw new AlgorithmException("CFB initial vector must be one block long.");
+
+        SecretKey secretKey = new SecretKeySpec(key, SymmetricAlgorithmSettings.getCipherText(algorithm));
+        byte plain[] = new byte[length];
+
+        try {
+            WorkerPool.getPool().invoke(new DecryptTask(algorithm, secretKey, blockSize, chunkSize, iv, data, offset, offset, length, plain));
+        } catch (DecryptFailure e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+
+        return plain;
+    }
+
+    /**
+     * <p>Decrypt data that has been encrypted with OpenPGP CFB mode.</p>
+     * <p>The ciphertext starts with an encrypted random prefix of one block plus two check octets that repeat
+     * the last two octets of the prefix. After the check octets the cipher is resynchronised, which is the same
+     * as continuing in standard CFB mode with ciphertext octets 2 to blocksize+2 as the IV.</p>
+     * @param algorithm The symmetric algorithm code.
+     * @param key[] The raw session key.
+     * @param data[] The ciphertext, including the encrypted prefix.
+     * @return The plaintext with the prefix removed.
+     * @throws AlgorithmException if the check octets do not match (most likely the wrong key) or something went wrong.
+     */
+    public static byte[] decryptWithResync(int algorithm, byte key[], byte data[]) throws AlgorithmException {
+        return decryptWithResync(algorithm, key, data, CHUNK_SIZE);
+    }
+
+    /**
+     * <p>Decrypt data that has been encrypted with OpenPGP CFB mode using a given chunk size.</p>
+     * <p>Mainly useful for testing, see decryptWithResync(int, byte[], byte[]).</p>
+     * @throws AlgorithmException if the check octets do not match (most likely the wrong key) or something went wrong.
+     */
+    public static byte[] decryptWithResync(int algorithm, byte key[], byte data[], int chunkSize) throws AlgorithmException {
+
+        int blockSize = SymmetricAlgorithmSettings.getDefaultBlockSize(algorithm)/8;
+
+        if (data.length < blockSize + 2)
+            throw new AlgorithmException("Encrypted data is too short.");
+
+        try {
+            SecretKey secretKey = new SecretKeySpec(key, SymmetricAlgorithmSettings.getCipherText(algorithm));
+            Cipher ecb = Cipher.getInstance(SymmetricAlgorithmSettings.getCipherText(algorithm) + "/ECB/NoPadding", "BC");
+            ecb.init(Cipher.ENCRYPT_MODE, secretKey);
+
+            // decrypt the prefix (IV of zero) and the two check octets (IV is the first ciphertext block)
+            byte prefixKeystream[] = ecb.doFinal(new byte[blockSize]);
+            byte checkKeystream[] = ecb.doFinal(data, 0, blockSize);
+
+            for (int n = 0; n < 2; n++) {
+                int prefixOctet = (prefixKeystream[blockSize-2+n] ^ data[blockSize-2+n]) & 0xFF;
+                int checkOctet = (checkKeystream[n] ^ data[blockSize+n]) & 0xFF;
+
+                if (prefixOctet != checkOctet)
+                    throw new AlgorithmException("IV mismatch: two byte check failure");
+            }
+        } catch (AlgorithmException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+
+        // resync, the rest of the data is plain CFB
+        byte iv[] = new byte[blockSize];
+        System.arraycopy(data, 2, iv, 0, blockSize);
+
+        return decrypt(algorithm, key, iv, data, blockSize + 2, data.length - blockSize - 2, chunkSize);
+    }
+
+    /** Unchecked wrapper used to get a failure out of a worker task. */
+    private static class DecryptFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        DecryptFailure(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * <p>A fork-join task that decrypts a block aligned range of the ciphertext.</p>
+     * <p>Ranges larger than the chunk size are split in two, smaller ones are decrypted with their own cipher.</p>
+     */
+    private static class DecryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private int algorithm;
+        private SecretKey key;
+        private int blockSize;
+        private int chunkSize;
+        private byte iv[];
+        private byte data[];
+        private int dataOffset;
+        private int start;
+        private int length;
+        private byte out[];
+
+        DecryptTask(int algorithm, SecretKey key, int blockSize, int chunkSize, byte iv[], byte data[], int dataOffset, int start, int length, byte out[]) {
+            this.algorithm = algorithm;
+            this.key = key;
+            this.blockSize = blockSize;
+            this.chunkSize = chunkSize;
+            this.iv = iv;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.start = start;
+            this.length = length;
+            this.out = out;
+        }
+
+        protected void compute() {
+
+            if (length > chunkSize) {
+                // split on a chunk boundary
+                int chunks = (length + chunkSize - 1) / chunkSize;
+                int firstLength = (chunks / 2) * chunkSize;
+
+                invokeAll(
+                    new DecryptTask(algorithm, key, blockSize, chunkSize, iv, data, dataOffset, start, firstLength, out),
+                    new DecryptTask(algorithm, key, blockSize, chunkSize, iv, data, dataOffset, start + firstLength, length - firstLength, out));
+                return;
+            }
+
+            try {
+                // the IV of a chunk is the ciphertext block before it
+                byte chunkIv[] = iv;
+                if (start != dataOffset) {
+                    chunkIv = new byte[blockSize];
+                    System.arraycopy(data, start - blockSize, chunkIv, 0, blockSize);
+                }
+
+                Cipher cipher = Cipher.getInstance(SymmetricAlgorithmSettings.getCipherText(algorithm) + "/CFB/NoPadding", "BC");
+                cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(chunkIv));
+                cipher.doFinal(data, start, length, out, start - dataOffset);
+
+            } catch (Exception e) {
+                throw new DecryptFailure(e.getMessage());
+            }
+        }
+    }
+}
@@ -32,27 +32,96 @@
 package core.algorithmhandlers.openpgp.util;
 
 /**
- * A utility class for creating a CRC-24 checksum. Based on the C implementation given in RFC2440.
+ * <p>A utility class for creating a CRC-24 checksum, as used by OpenPGP ascii armor.</p>
+ * <p>The checksum is table driven and processes four octets per step (slicing-by-4). It can be used either 
+ * in one go through crcOctets, or incrementally by creating an instance and calling update as data becomes 
+ * available.</p>
+ * <p>Internally the 24 bit CRC is held in the top 24 bits of a 32 bit register, which lets four input octets 
+ * be folded in with a single xor.</p>
  */
 public class CRC24 {
-       
-    /** A method to produce the CRC 24 checksum of a given array of bytes. */
-    public static long crcOctets(byte octets[]) {
-        long crc = 0xb704ceL;
-        
-        int len = octets.length;
-        int pos = 0;
-        
-        while (len-- > 0 ) {
-            crc ^= (octets[pos++]) << 16;
-            for (int i = 0; i < 8; i++) {
-                crc <<= 1;
-                
-                if ((crc & 0x1000000)>0)
-                    crc ^= 0x1864cfbL;
+
+    /** The initial value of the CRC, from RFC2440. */
+    private static final int CRC24_INIT = 0xb704ce;
+
+    /** The generator polynomial (without the x^24 term), from RFC2440. */
+    private static final int CRC24_POLY = 0x864cfb;
+
+    /** Lookup tables, table[k][i] is the effect of octet i followed by k zero octets. */
+    private static final int table[][] = new int[4][256];
+
+    static {
+        int poly = CRC24_POLY << 8;
+
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                if ((crc & 0x80000000) != 0)
+                    crc = (crc << 1) ^ poly;
+                else
+                    crc <<= 1;
             }
+            table[0][i] = crc;
         }
-        
-        return crc & 0xffffffL;
+
+        for (int k = 1; k < 4; k++)
+            for (int i = 0; i < 256; i++)
+                table[k][i] = (table[k-1][i] << 8) ^ table[0][table[k-1][i] >>> 24];
+    }
+
+    /** The current CRC register, the CRC lives in the top 24 bits. */
+    private int register;
+
+    /** Creates a new CRC24 checksum ready to accept data. */
+    public CRC24() {
+        reset();
+    }
+
+    /** Reset the checksum to its initial value. */
+    public void reset() {
+        register = CRC24_INIT << 8;
+    }
+
+    /** Add a single octet to the checksum. */
+    public void update(int octet) {
+        register = (register << 8) ^ table[0][(register >>> 24) ^ (octet & 0xFF)];
+    }
+
+    /** Add an array of octets to the checksum. */
+    public void update(byte octets[]) {
+        update(octets, 0, octets.length);
+    }
+
+    /** Add part of an array of octets to the checksum. */
+    public void update(byte octets[], int offset, int length) {
+        int crc = register;
+        int pos = offset;
+        int end = offset + length;
+
+        // four octets at a time
+        int end4 = end - 3;
+        while (pos < end4) {
+            crc ^= ((octets[pos] & 0xFF) << 24) | ((octets[pos+1] & 0xFF) << 16) | ((octets[pos+2] & 0xFF) << 8) | (octets[pos+3] & 0xFF);
+            crc = table[3][crc >>> 24] ^ table[2][(crc >>> 16) & 0xFF] ^ table[1][(crc >>> 8) & 0xFF] ^ table[0][crc & 0xFF];
+            pos += 4;
+        }
+
+        // and the rest one at a time
+        while (pos < end)
+            crc = (crc << 8) ^ table[0][(crc >>> 24) ^ (octets[pos++] & 0xFF)];
+
+        register = crc;
+    }
+
+    /** Return the checksum of the data added so far. */
+    public long getValue() {
+        return (register >>> 8) & 0xffffffL;
+    }
+
+    /** A method to produce the CRC 24 checksum of a given array of bytes. */
+    public static long crcOctets(byte octets[]) {
+        CRC24 crc = new CRC24();
+        crc.update(octets, 0, octets.length);
+        return crc.getValue();
     }
 }
@@ -0,0 +1,321 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import java.io.*;
+import java.security.MessageDigest;
+
+/**
+ * <p>An output stream filter that converts text to the canonical forms used by OpenPGP clear text signing.</p>
+ * <p>All transformations are done in a single pass over the bytes as they are written, without converting 
+ * to strings or splitting into lines. Line endings (CR/LF, a bare CR or a bare LF) are always written as 
+ * CR/LF. The other transformations are selected with flags:</p>
+ * <ul>
+ * <li>{@link #DASH_ESCAPE} - prefix lines beginning with a dash with "- ".</li>
+ * <li>{@link #REMOVE_DASH_ESCAPING} - remove a leading "- " from lines.</li>
+ * <li>{@link #STRIP_TRAILING_WHITESPACE} - remove spaces and tabs from the end of each line.</li>
+ * <li>{@link #OMIT_FINAL_LINE_ENDING} - do not write a line ending after the last line.</li>
+ * </ul>
+ * <p>Output can go to another stream, or straight into a MessageDigest so that a text body can be hashed for
+ * signing or verification with no intermediate copy.</p>
+ */
+public class CanonicalTextOutputStream extends FilterOutputStream {
+
+    /** Dash escape lines, for writing clear text signed messages. */
+    public static final int DASH_ESCAPE = 1;
+
+    /** Remove dash escaping, for reading clear text signed messages. */
+    public static final int REMOVE_DASH_ESCAPING = 2;
+
+    /** Strip trailing spaces and tabs from each line. */
+    public static final int STRIP_TRAILING_WHITESPACE = 4;
+
+    /** Don't end the last line with CR/LF. */
+    public static final int OMIT_FINAL_LINE_ENDING = 8;
+
+    /** The form of text that a clear text signature is calculated over. */
+    public static final int SIGNING = STRIP_TRAILING_WHITESPACE | OMIT_FINAL_LINE_ENDING;
+
+    /** Flags selecting the transformations. */
+    private int flags;
+
+    /** If not null, output goes to this digest rather than the underlying stream. */
+    private MessageDigest digest = null;
+
+    /** Output waiting to be written. */
+    private byte buffer[] = new byte[4096];
+
+    /** Number of bytes in buffer. */
+    private int bufferLength = 0;
+
+    /** Whitespace held back in case it turns out to be at the end of a line. */
+    private byte whitespace[] = new byte[64];
+
+    /** Number of bytes in whitespace. */
+    private int whitespaceLength = 0;
+
+    /** Set at the start of a line, before anything on it has been seen. */
+    private boolean atLineStart = true;
+
+    /** Set when a leading dash has been held back to see if it is followed by a space. */
+    private boolean pendingDash = false;
+
+    /** Set when anything has been written for the current line. */
+    private boolean lineStarted = false;
+
+    /** Set when a previous line is waiting for its line ending (OMIT_FINAL_LINE_ENDING only). */
+    private boolean pendingLineEnding = false;
+
+    /** Set after a CR, so that a following LF is treated as part of the same line ending. */
+    private boolean afterCR = false;
+
+    /** Set once the stream has been finished. */
+    private boolean finished = false;
+
+    /** 
+     * Creates a new canonical text filter writing to the given stream. 
+     * @param flags The transformations to apply.
+     */
+    public CanonicalTextOutputStream(OutputStream out, int flags) {
+        super(out);
+        this.flags = flags;
+    }
+
+    /** 
+     * Creates a new canonical text filter that feeds its output into a message digest. 
+     * @param flags The transformations to apply.
+     */
+    public CanonicalTextOutputStream(MessageDigest digest, int flags) {
+        super(null);
+        this.digest = digest;
+        this.flags = flags;
+    }
+
+    /** 
+     * <p>Apply the given transformations to an array of text.</p>
+     */
+    public static byte[] transform(byte data[], int flags) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + data.length / 32 + 16);
+            CanonicalTextOutputStream text = new CanonicalTextOutputStream(out, flags);
+            text.write(data);
+            text.finish();
+
+            return out.toByteArray();
+        } catch (IOException e) {
+            // can't happen writing to memory
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /** Write a single octet. */
+    public void write(int b) throws IOException {
+        if (finished) throw new IOException("Canonical text stream already finished.");
+
+        process((byte)b);
+    }
+
+    /** Write part of an array of octets. */
+    public void write(byte b[], int off, int len) throws IOException {
+        if (finished) throw new IOException("Canonical text stream already finished.");
+
+        int end = off + len;
+        for (int n = off; n < end; n++)
+            process(b[n]);
+    }
+
+    /** Write out any buffered output. Whitespace and line endings that may still change are held back. */
+    public void flush() throws IOException {
+        flushBuffer();
+
+        if (out != null)
+            out.flush();
+    }
+
+    /**
+     * <p>Finish off the last line and write out anything buffered.</p>
+     * <p>The underlying stream is left open. Nothing more can be written once the stream is finished.</p>
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+
+        // a line with no line ending still counts as a line
+        if ((pendingDash) || (whitespaceLength > 0))
+            startLine();
+
+        if (pendingDash)
+            emit('-');
+        pendingDash = false;
+
+        flushWhitespace(true);
+
+        if ((lineStarted) && ((flags & OMIT_FINAL_LINE_ENDING) == 0)) {
+            emit('\r');
+            emit('\n');
+        }
+
+        flushBuffer();
+        finished = true;
+    }
+
+    /** Finish and close the underlying stream. */
+    public void close() throws IOException {
+        finish();
+
+        if (out != null)
+            super.close();
+    }
+
+    /** Run a single byte through the state machine. */
+    private void process(byte b) throws IOException {
+
+        if (afterCR) {
+            afterCR = false;
+            if (b == '\n') 
+                return;
+        }
+
+        if ((b == '\r') || (b == '\n')) {
+            endLine();
+            afterCR = (b == '\r');
+            return;
+        }
+
+        if (atLineStart) {
+            atLineStart = false;
+
+            if (b == '-') {
+                if ((flags & DASH_ESCAPE) != 0) {
+                    startLine();
+                    emit('-');
+                    emit(' ');
+                } else if ((flags & REMOVE_DASH_ESCAPING) != 0) {
+                    pendingDash = true;
+                    return;
+                }
+            }
+        } else if (pendingDash) {
+            pendingDash = false;
+
+            // "- " is an escape, anything else after the dash is text
+            if (b == ' ')
+                return;
+
+            startLine();
+            emit('-');
+        }
+
+        if ((b == ' ') || (b == '\t')) {
+            startLine();
+            if (whitespaceLength == whitespace.length) {
+                byte tmp[] = new byte[whitespace.length * 2];
+                System.arraycopy(whitespace, 0, tmp, 0, whitespaceLength);
+                whitespace = tmp;
+            }
+            whitespace[whitespaceLength++] = b;
+            return;
+        }
+
+        startLine();
+        flushWhitespace(false);
+        emit(b);
+    }
+
+    /** Note that the current line has content, writing the previous line's ending if it was held back. */
+    private void startLine() throws IOException {
+        if (lineStarted) return;
+
+        if (pendingLineEnding) {
+            emit('\r');
+            emit('\n');
+            pendingLineEnding = false;
+        }
+
+        lineStarted = true;
+    }
+
+    /** Handle a line ending in the input. */
+    private void endLine() throws IOException {
+        if (pendingDash) {
+            startLine();
+            emit('-');
+            pendingDash = false;
+        }
+
+        flushWhitespace(true);
+
+        // an empty line still needs the previous line's ending
+        startLine();
+
+        if ((flags & OMIT_FINAL_LINE_ENDING) != 0) {
+            pendingLineEnding = true;
+        } else {
+            emit('\r');
+            emit('\n');
+        }
+
+        lineStarted = false;
+        atLineStart = true;
+    }
+
+    /** Write out or discard held back whitespace. */
+    private void flushWhitespace(boolean endOfLine) throws IOException {
+        if ((endOfLine) && ((flags & STRIP_TRAILING_WHITESPACE) != 0)) {
+            whitespaceLength = 0;
+            return;
+        }
+
+        for (int n = 0; n < whitespaceLength; n++)
+            emit(whitespace[n]);
+
+        whitespaceLength = 0;
+    }
+
+    /** Add a byte to the output buffer. */
+    private void emit(int b) throws IOException {
+        if (bufferLength == buffer.length)
+            flushBuffer();
+
+        buffer[bufferLength++] = (byte)b;
+    }
+
+    /** Pass the output buffer on. */
+    private void flushBuffer() throws IOException {
+        if (bufferLength == 0) return;
+
+        if (digest != null)
+            digest.update(buffer, 0, bufferLength);
+        else
+            out.write(buffer, 0, bufferLength);
+
+        bufferLength = 0;
+    }
+}
@@ -82,4 +82,30 @@ public class HashAlgorithmSettings {
             		algorithm + ") not supported.");
         }
     }
+    
+    /** <p>A method that returns the ASN.1 DigestInfo prefix (from RFC 4880 section 5.2.2) that goes in front of 
+     * the hash value when it is signed with RSA.</p>
+     * @throws AlgorithmException if the requested algorithm is not supported.
+     */
+    public static byte[] getDigestInfoPrefix(int algorithm) throws AlgorithmException {
+        int prefix[];
+        
+        switch (algorithm) {
+            case MD5 : prefix = new int[] { 0x30, 0x20, 0x30, 0x0C, 0x06, 0x08, 0x2A, 0x86, 0x48, 0x86, 0xF7, 0x0D, 0x02, 0x05, 0x05, 0x00, 0x04, 0x10 }; break;
+            case SHA1 : prefix = new int[] { 0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2B, 0x0E, 0x03, 0x02, 0x1A, 0x05, 0x00, 0x04, 0x14 }; break;
+            case RIPEMD160 : prefix = new int[] { 0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2B, 0x24, 0x03, 0x02, 0x01, 0x05, 0x00, 0x04, 0x14 }; break;
+            case SHA256 : prefix = new int[] { 0x30, 0x31, 0x30, 0x0D, 0x06, 0x09, 0x60, 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20 }; break;
+            case SHA384 : prefix = new int[] { 0x30, 0x41, 0x30, 0x0D, 0x06, 0x09, 0x60, 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x02, 0x05, 0x00, 0x04, 0x30 }; break;
+            case SHA512 : prefix = new int[] { 0x30, 0x51, 0x30, 0x0D, 0x06, 0x09, 0x60, 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x03, 0x05, 0x00, 0x04, 0x40 }; break;
+            case SHA224 : prefix = new int[] { 0x30, 0x2D, 0x30, 0x0D, 0x06, 0x09, 0x60, 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x04, 0x05, 0x00, 0x04, 0x1C }; break;
+            default : throw new AlgorithmException("Requested hash algorithm (" + 
+            		algorithm + ") not supported.");
+        }
+        
+        byte result[] = new byte[prefix.length];
+        for (int n = 0; n < prefix.length; n++)
+            result[n] = (byte)prefix[n];
+        
+        return result;
+    }
 }
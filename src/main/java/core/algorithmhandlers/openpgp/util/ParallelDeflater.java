@@ -0,0 +1,243 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import core.exceptions.AlgorithmException;
+import java.io.*;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.*;
+
+/**
+ * <p>A block parallel DEFLATE compressor, in the style of pigz.</p>
+ * <p>The input is cut into fixed size blocks which are compressed independently on the shared worker pool.
+ * Each block is primed with the last 32K of the block before it as a preset dictionary, so the compression
+ * ratio is close to that of a single stream, and every block but the last is ended with a sync flush so it
+ * finishes on a byte boundary with the final bit clear. The compressed blocks can then simply be concatenated
+ * into one valid raw DEFLATE (RFC 1951) stream, which any inflater can read.</p>
+ * <p>For ZLIB (RFC 1950) output the concatenated stream is wrapped in the usual two octet header and an
+ * Adler-32 checksum of the whole input.</p>
+ * @see WorkerPool
+ */
+public class ParallelDeflater {
+
+    /** Inputs smaller than this are not worth splitting up and are left to the caller. */
+    public static final int PARALLEL_THRESHOLD = 512 * 1024;
+
+    /** The size of the uncompressed blocks handed out to worker threads. */
+    public static final int BLOCK_SIZE = 128 * 1024;
+
+    /** The size of the preset dictionary, the DEFLATE window size. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /** Returns true if an input of the given length should be compressed with this class. */
+    public static boolean isParallelisable(int length) {
+        return (length >= PARALLEL_THRESHOLD) && (WorkerPool.getParallelism() > 1);
+    }
+
+    /**
+     * <p>Compress data into a raw DEFLATE (RFC 1951) stream, as used by the OpenPGP ZIP algorithm.</p>
+     * @param data[] The data to compress.
+     * @param level The compression level, see java.util.zip.Deflater.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public static byte[] deflate(byte data[], int level) throws AlgorithmException {
+        return deflate(data, level, BLOCK_SIZE);
+    }
+
+    /**
+     * <p>Compress data into a raw DEFLATE stream using a given block size.</p>
+     * <p>Mainly useful for testing, see deflate(byte[], int).</p>
+     * @throws AlgorithmException if something went wrong.
+     */
+    public static byte[] deflate(byte data[], int level, int blockSize) throws AlgorithmException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            writeBlocks(out, data, level, blockSize);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Compress data into a ZLIB (RFC 1950) stream, as used by the OpenPGP ZLIB algorithm.</p>
+     * @param data[] The data to compress.
+     * @param level The compression level, see java.util.zip.Deflater.
+     * @throws AlgorithmException if something went wrong.
+     */
+    public static byte[] zlib(byte data[], int level) throws AlgorithmException {
+        return zlib(data, level, BLOCK_SIZE);
+    }
+
+    /**
+     * <p>Compress data into a ZLIB stream using a given block size.</p>
+     * <p>Mainly useful for testing, see zlib(byte[], int).</p>
+     * @throws AlgorithmException if something went wrong.
+     */
+    public static byte[] zlib(byte data[], int level, int blockSize) throws AlgorithmException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+
+            // header: 32K window deflate, FLEVEL from the level, FCHECK makes it a multiple of 31
+            int flevel;
+            if ((level == Deflater.DEFAULT_COMPRESSION) || (level == 6)) flevel = 2;
+            else if (level < 2) flevel = 0;
+            else if (level < 6) flevel = 1;
+            else flevel = 3;
+
+            int header = (0x78 << 8) | (flevel << 6);
+            header += (31 - (header % 31)) % 31;
+            out.write((header >> 8) & 0xFF);
+            out.write(header & 0xFF);
+
+            writeBlocks(out, data, level, blockSize);
+
+            // trailer: adler32 of the uncompressed data, most significant octet first
+            Adler32 adler = new Adler32();
+            adler.update(data);
+            long checksum = adler.getValue();
+            out.write((int)(checksum >> 24) & 0xFF);
+            out.write((int)(checksum >> 16) & 0xFF);
+            out.write((int)(checksum >> 8) & 0xFF);
+            out.write((int)checksum & 0xFF);
+
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+    }
+
+    /** Compress all the blocks in parallel and write them out in order. */
+    private static void writeBlocks(OutputStream out, byte data[], int level, int blockSize) throws IOException, AlgorithmException {
+
+        if (blockSize <= 0)
+            throw new AlgorithmException("Compression block size must be positive.");
+
+        int blocks = Math.max(1, (data.length + blockSize - 1) / blockSize);
+        byte compressed[][] = new byte[blocks][];
+
+        try {
+            WorkerPool.getPool().invoke(new CompressTask(data, level, blockSize, 0, blocks, blocks, compressed));
+        } catch (CompressFailure e) {
+            throw new AlgorithmException(e.getMessage());
+        }
+
+        for (int n = 0; n < blocks; n++)
+            out.write(compressed[n]);
+    }
+
+    /** Unchecked wrapper used to get a failure out of a worker task. */
+    private static class CompressFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CompressFailure(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * <p>A fork-join task that compresses a range of blocks.</p>
+     * <p>Ranges of more than one block are split in two, single blocks are compressed with their own deflater.</p>
+     */
+    private static class CompressTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private byte data[];
+        private int level;
+        private int blockSize;
+        private int first;
+        private int count;
+        private int totalBlocks;
+        private byte out[][];
+
+        CompressTask(byte data[], int level, int blockSize, int first, int count, int totalBlocks, byte out[][]) {
+            this.data = data;
+            this.level = level;
+            this.blockSize = blockSize;
+            this.first = first;
+            this.count = count;
+            this.totalBlocks = totalBlocks;
+            this.out = out;
+        }
+
+        protected void compute() {
+
+            if (count > 1) {
+                int half = count / 2;
+                invokeAll(
+                    new CompressTask(data, level, blockSize, first, half, totalBlocks, out),
+                    new CompressTask(data, level, blockSize, first + half, count - half, totalBlocks, out));
+                return;
+            }
+
+            int start = first * blockSize;
+            int length = Math.min(blockSize, data.length - start);
+            boolean last = (first == totalBlocks - 1);
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                // prime with the tail of the previous block
+                if (start > 0) {
+                    int dictionaryLength = Math.min(DICTIONARY_SIZE, start);
+                    deflater.setDictionary(data, start - dictionaryLength, dictionaryLength);
+                }
+
+                deflater.setInput(data, start, length);
+
+                ByteArrayOutputStream block = new ByteArrayOutputStream(length / 2 + 64);
+                byte buffer[] = new byte[16 * 1024];
+
+                if (last) {
+                    // last block, set the final bit
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(buffer);
+                        block.write(buffer, 0, n);
+                    }
+                } else {
+                    // sync flush, ends on a byte boundary without the final bit
+                    int n;
+                    do {
+                        n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        block.write(buffer, 0, n);
+                    } while (n == buffer.length);
+                }
+
+                out[first] = block.toByteArray();
+
+            } catch (Exception e) {
+                throw new CompressFailure(e.getMessage());
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+
+/**
+ * <p>Searches a block of bytes for any of a set of ASCII patterns in a single pass, ignoring case.</p>
+ * <p>This is a multi-pattern Horspool search: the scan looks at the last byte of a window as long as the shortest
+ * pattern and, if no pattern can end there, skips ahead by up to that length without looking at the bytes in
+ * between. Large emails with none of the patterns in them are therefore only partly read.</p>
+ */
+public class PatternScanner {
+
+    /** The patterns, in lower case. */
+    private byte patterns[][];
+
+    /** Length of the shortest pattern, the width of the scan window. */
+    private int window;
+
+    /** How far the window can move on when a given byte is the last byte in it. */
+    private int shift[];
+
+    /** Lower case version of each byte value. */
+    private static final byte LOWER[] = new byte[256];
+
+    static {
+        for (int n = 0; n < 256; n++)
+            LOWER[n] = (byte)(((n >= 'A') && (n <= 'Z')) ? n + ('a' - 'A') : n);
+    }
+
+    /**
+     * <p>Create a scanner for a set of patterns.</p>
+     * @param patterns The ASCII patterns to look for, none of which may be empty.
+     */
+    public PatternScanner(String patterns[]) {
+        this.patterns = new byte[patterns.length][];
+        window = Integer.MAX_VALUE;
+
+        for (int n = 0; n < patterns.length; n++) {
+            byte pattern[] = new byte[patterns[n].length()];
+            for (int i = 0; i < pattern.length; i++)
+                pattern[i] = LOWER[patterns[n].charAt(i) & 0xff];
+
+            this.patterns[n] = pattern;
+            window = Math.min(window, pattern.length);
+        }
+
+        // a byte that appears in the first window bytes of a pattern lets the window move on only as far as
+        // it takes to line that byte up
+        shift = new int[256];
+        for (int n = 0; n < 256; n++)
+            shift[n] = window;
+
+        for (int n = 0; n < this.patterns.length; n++) {
+            for (int i = 0; i < window - 1; i++) {
+                int b = this.patterns[n][i] & 0xff;
+                shift[b] = Math.min(shift[b], window - 1 - i);
+            }
+
+            // the last byte of the window is where a match is checked
+            shift[this.patterns[n][window - 1] & 0xff] = 0;
+        }
+
+        // both cases of a letter shift the same
+        for (int n = 'A'; n <= 'Z'; n++)
+            shift[n] = shift[n + ('a' - 'A')];
+    }
+
+    /** Returns true if any of the patterns appears in the data. */
+    public boolean matches(byte data[]) {
+        return indexOf(data, 0, data.length) >= 0;
+    }
+
+    /**
+     * <p>Return the position of the first pattern found in part of an array.</p>
+     * <p>Where patterns overlap, the one found first is not necessarily the one that starts first.</p>
+     * @return The offset into data of the start of the pattern, or -1 if none was found.
+     */
+    public int indexOf(byte data[], int offset, int length) {
+        int end = offset + length;
+        int i = offset + window - 1; // last byte of the window
+
+        while (i < end) {
+            int skip = shift[data[i] & 0xff];
+
+            if (skip > 0) {
+                i += skip;
+                continue;
+            }
+
+            int start = i - window + 1;
+            for (int n = 0; n < patterns.length; n++) {
+                if (matchesAt(patterns[n], data, start, end))
+                    return start;
+            }
+
+            i++;
+        }
+
+        return -1;
+    }
+
+    /** Returns true if a pattern appears at the given position. */
+    private static boolean matchesAt(byte pattern[], byte data[], int start, int end) {
+        if (start + pattern.length > end)
+            return false;
+
+        for (int n = 0; n < pattern.length; n++) {
+            if (LOWER[data[start + n] & 0xff] != pattern[n])
+                return false;
+        }
+
+        return true;
+    }
+}
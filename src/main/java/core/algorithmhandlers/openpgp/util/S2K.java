@@ -108,10 +108,13 @@ public class S2K {
     public SecretKey generateKey(byte passphrase[], int keyalgorithm) throws AlgorithmException {
     	
         // this is a modified key gen method, using Cryptix and GnuPG as the references.
-    	debug.Debug.println(1, "xxx S2K.generateKey(): octetcount = " + octetcount);
-    	debug.Debug.println(1, "xxx S2K.generateKey(): hashalg = " + hashalg);
-    	debug.Debug.println(1, "xxx S2K.generateKey(): keyalgorithm = " + keyalgorithm);
+    	if (debug.Debug.isEnabled(debug.Debug.OPENPGP, 1)) {
+    	    debug.Debug.println(debug.Debug.OPENPGP, 1, "xxx S2K.generateKey(): octetcount = " + octetcount);
+    	    debug.Debug.println(debug.Debug.OPENPGP, 1, "xxx S2K.generateKey(): hashalg = " + hashalg);
+    	    debug.Debug.println(debug.Debug.OPENPGP, 1, "xxx S2K.generateKey(): keyalgorithm = " + keyalgorithm);
+    	}
         
+        long start = system.Metrics.start();
         try {
             // create message digest
             MessageDigest md = MessageDigest.getInstance(HashAlgorithmSettings.getHashText(hashalg), "BC");
@@ -170,6 +173,8 @@ public class S2K {
         
         } catch (Exception e) {
             throw new AlgorithmException(e.getMessage());
+        } finally {
+            system.Metrics.stop(system.Metrics.SECRET_KEY_UNLOCK, start);
         }
         
     }
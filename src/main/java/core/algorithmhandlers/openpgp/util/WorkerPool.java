@@ -0,0 +1,57 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.algorithmhandlers.openpgp.util;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <p>Holds the fork-join pool shared by the bulk crypto operations (CFB decryption etc).</p>
+ * <p>The pool is created the first time it is asked for and is sized to the number of
+ * available processors. Its worker threads are daemons, so an idle pool will not keep the proxy alive.</p>
+ */
+public class WorkerPool {
+
+    /** The shared pool, created on demand. */
+    private static ForkJoinPool pool;
+
+    /** Return the shared pool, creating it if necessary. */
+    public static synchronized ForkJoinPool getPool() {
+        if (pool == null)
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+        return pool;
+    }
+
+    /** Return the number of threads the shared pool will run work on. */
+    public static int getParallelism() {
+        return getPool().getParallelism();
+    }
+}
@@ -36,24 +36,33 @@ import java.io.*;
 import java.util.Vector;
 import java.lang.StringBuffer;
 import java.util.StringTokenizer;
+import system.Metrics;
 
 /**
  * <p>This class is constructed by the email pipes and represents the an email complete
  * with headers inside the proxy.</p>
+ * <p>An email that has not been changed since it was parsed is written out exactly as it was received. Once it has 
+ * been changed, any of its mime components that have not been are still copied straight from the original.</p>
  */
 public class Email
 {
     /** Email headers */
-    private Vector headers;
+    private EmailHeaderList headers;
 
-    /** Non Mime message body */
+    /** Non Mime message body, null if it is still held as a region of the parsed email. */
     private byte [] body;
     
+    /** Non Mime message body as a region of the parsed email, null once it has been copied out. */
+    private ByteRegion bodyRegion;
+    
     /** Mime message body components. */
     private Vector mimeBody;
     
     /** Mime attachments */
     private Vector attachments;
+    
+    /** The email as it was parsed, null if it has since been changed. */
+    private ByteRegion original;
 
     /** 
      * <p>Create a new Email object with the given email data.</p>
@@ -64,7 +73,9 @@ public class Email
      * @throws EmailDataFormatException if there was a problem parsing the email.
      */
     public Email(byte [] email) throws EmailDataFormatException {
+        long start = Metrics.start();
         parseEmail(email);
+        Metrics.stop(Metrics.EMAIL_PARSE, start, email.length);
     }
     
     /**
@@ -74,11 +85,18 @@ public class Email
     public Email(Email email) {
        
         // copy headers
-        headers = (Vector)email.headers.clone();
+        headers = new EmailHeaderList(email.headers);
+        
+        // the original is never changed, so can be shared
+        original = email.original;
         
-        // copy body
-        body = new byte[email.body.length];
-        System.arraycopy(email.body, 0, body, 0, email.body.length);
+        // copy body (regions are never changed, so can be shared)
+        if (email.bodyRegion!=null) {
+            bodyRegion = email.bodyRegion;
+        } else {
+            body = new byte[email.body.length];
+            System.arraycopy(email.body, 0, body, 0, email.body.length);
+        }
         
         // copy mime body
         if (email.mimeBody!=null)
@@ -91,15 +109,25 @@ public class Email
     
     /** 
      * Set the non-mime email body to data.
+     * <p>Setting the array returned by getBody does not count as a change.</p>
      */
     public void setBody(byte [] data) {
+        if ((data!=body) || (bodyRegion!=null))
+            original = null;
+        
         body = data;
+        bodyRegion = null;
     }
     
     /** 
      * Get the non-mime email body.
      */
     public byte [] getBody() {
+        if (bodyRegion!=null) {
+            body = bodyRegion.toByteArray();
+            bodyRegion = null;
+        }
+        
         return body;
     }
     
@@ -120,9 +148,19 @@ public class Email
     
     /**
      * <p>Set all the mime body components of this email.</p>
+     * <p>Setting the same components as getMimeBody returned does not count as a change.</p>
      */
     public void setMimeBody(MimeComponent [] components) {
         
+        if ((mimeBody==null) || (mimeBody.size()!=components.length))
+            original = null;
+        else {
+            for (int n = 0; n < components.length; n++) {
+                if (mimeBody.elementAt(n)!=components[n])
+                    original = null;
+            }
+        }
+        
         mimeBody=new Vector();
         
         for (int n = 0; n < components.length; n++)
@@ -221,14 +259,7 @@ public class Email
      * @return An array of EmailHeader, or null if no headers are found (shouldn't happen!)
      */
     public EmailHeader [] getHeaderArray() {
-        if ((headers == null) || (headers.size()==0))
-            return null;
-        
-        EmailHeader tmp[] = new EmailHeader[headers.size()];
-        for (int n = 0; n < headers.size(); n++) 
-            tmp[n] = (EmailHeader)headers.elementAt(n);
-        
-        return tmp;
+        return headers.getHeaders();
     }
     
     /** 
@@ -237,28 +268,18 @@ public class Email
      * @return The an array of all matching headers, or null if none found.
      */
     public EmailHeader [] getHeader(String tag) {
-        if ((headers == null) || (headers.size()==0))
-            return null;
-        
-        Vector subset = new Vector();
-        
-        // look for matching tags
-        for (int n = 0; n < headers.size(); n++) {
-            EmailHeader head = (EmailHeader)headers.elementAt(n);
-            if (tag.compareToIgnoreCase(head.getTagName())==0)
-                subset.add(head);
-        }
-        
-        // did we find anything? return null if not
-        if (subset.size()==0) return null;
-        
-        // return array of headers
-        EmailHeader tmp[] = new EmailHeader[subset.size()];
-        for (int n = 0; n < subset.size(); n++) 
-            tmp[n] = (EmailHeader)subset.elementAt(n);
-        
-        return tmp;
-     
+        return headers.getHeaders(tag);
+    }
+    
+    /** 
+     * <p>Return a parameter of the email's Content-Type header, such as its boundary or charset.</p>
+     * <p>The parameters are parsed once, the first time one is asked for.</p>
+     * @return the value of the parameter, or null if there is no Content-Type header or it does not have the parameter.
+     * @throws EmailDataFormatException if the header was badly formatted.
+     */
+    public String getContentTypeParameter(String name) throws EmailDataFormatException {
+        EmailHeader type = headers.getFirst("Content-Type");
+        return (type==null) ? null : type.getParameter(name);
     }
     
     /**
@@ -270,20 +291,8 @@ public class Email
      */
     public void setHeader(String tag, String value) {
         
-        if ((headers==null) || (getHeader(tag)==null)) {
-            // tag does not already exist, add it
-            if (headers == null) headers = new Vector();
-            headers.add(new EmailHeader(tag, value));
-        } else {
-            for (int n = 0; n < headers.size(); n++) {
-                EmailHeader head = (EmailHeader)headers.elementAt(n);
-                if (tag.compareToIgnoreCase(head.getTagName())==0) {
-                    head.setTagValue(value);
-                    headers.set(n, head);
-                    return;
-                }
-            }
-        }
+        original = null;
+        headers.set(tag, value);
     }
     
     /**
@@ -309,6 +318,7 @@ public class Email
         if (attachments == null) attachments = new Vector();
         
         attachments.add(attachment);
+        original = null;
     }
     
     /**
@@ -320,8 +330,10 @@ public class Email
         if (attachments!=null) {
             for (int n=0; n<attachments.size(); n++) {
                 EmailAttachment tmp = (EmailAttachment)attachments.elementAt(n);
-                if (tmp.getFilename().compareTo(filename)==0)
+                if (tmp.getFilename().compareTo(filename)==0) {
                     attachments.removeElementAt(n);
+                    original = null;
+                }
                 
             }
         }
@@ -333,6 +345,9 @@ public class Email
      * the email will be invalid.</p>
      */
     public void purgeAttachments() {
+        if ((attachments!=null) && (attachments.size()>0))
+            original = null;
+        
         attachments = new Vector();
     }
    
@@ -343,41 +358,35 @@ public class Email
      */
     protected void parseEmail(byte [] email) throws EmailDataFormatException {
         
-        try {
-            
-            ByteArrayInputStream in = new ByteArrayInputStream(email);
-            
-            // pass email through mime decoder
-                MimeComponent mimeparts = MimeComponent.parseMimeComponent(in);//, MailParserTools.getBoundary(getHeaderArray()));
+        // pass email through mime decoder, which leaves the parts where they are in the email
+            ByteRegion region = new ByteRegion(email, 0, email.length);
+            MimeComponent mimeparts = MimeComponent.parseMimeComponent(region);
 
-                // analyse results
-                if (mimeparts == null)
-                    throw new EmailDataFormatException("Malformed email.");
+            // analyse results
+            if (mimeparts == null)
+                throw new EmailDataFormatException("Malformed email.");
                
-                // construct email
+            // construct email
+            bodyRegion = mimeparts.getDataRegion();
+            if (bodyRegion==null)
                 body = mimeparts.getData();
                 
-                EmailHeader heads[] = mimeparts.getHeaders();
-                headers = new Vector();
-                for (int n = 0; n < heads.length; n++)
-                    headers.add(heads[n]);
+            headers = mimeparts.getHeaderList();
  
-                MimeComponent subcomps [] = mimeparts.getSubComponents();
-                if (subcomps!=null) {
-                    mimeBody = new Vector();
-                    attachments = new Vector();
+            MimeComponent subcomps [] = mimeparts.getSubComponents();
+            if (subcomps!=null) {
+                mimeBody = new Vector();
+                attachments = new Vector();
                     
-                    for (int n = 0; n<subcomps.length; n++) {
-                        if (subcomps[n] instanceof EmailAttachment)
-                            attachments.add(subcomps[n]);
-                        else
-                            mimeBody.add(subcomps[n]);
-                    }
+                for (int n = 0; n<subcomps.length; n++) {
+                    if (subcomps[n] instanceof EmailAttachment)
+                        attachments.add(subcomps[n]);
+                    else
+                        mimeBody.add(subcomps[n]);
                 }
-        } catch (IOException e) {
-            throw new EmailDataFormatException(e.getMessage());
-        } 
-        
+            }
+            
+            original = region;
     }
     
     /** 
@@ -386,61 +395,105 @@ public class Email
     public byte [] getBytes() throws EmailDataFormatException {
         try {
             
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long start = Metrics.start();
+            ByteArrayOutputStream out = new ByteArrayOutputStream((original!=null) ? original.length() : 1024);
+            writeTo(out);
+            out.close();
             
-            // construct header
-            EmailHeader [] header = getHeaderArray();
-            for (int n = 0; n < header.length; n++) {
-                out.write(header[n].toString().getBytes());
-                out.write("\r\n".getBytes());
+            Metrics.stop(Metrics.EMAIL_SERIALIZE, start, out.size());
+            return out.toByteArray();
+            
+        } catch (IOException e) {
+            throw new EmailDataFormatException(e.getMessage());
+        }
+        
+    }
+    
+    /** 
+     * <p>Returns true if the email has been changed since it was parsed.</p>
+     * <p>The email is changed if any of its mime components are.</p>
+     */
+    public boolean isChanged() {
+        if (original==null)
+            return true;
+        
+        if (mimeBody!=null) {
+            for (int n = 0; n < mimeBody.size(); n++) {
+                if (((MimeComponent)mimeBody.elementAt(n)).isChanged())
+                    return true;
             }
+        }
+        
+        if (attachments!=null) {
+            for (int n = 0; n < attachments.size(); n++) {
+                if (((MimeComponent)attachments.elementAt(n)).isChanged())
+                    return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /** 
+     * <p>Write the email to a stream in a form compatible with electronic transmission.</p>
+     * <p>An email that has not been changed is copied straight to the stream as it was received. Otherwise the 
+     * headers and boundaries are rebuilt, and each mime component is written out with MimeComponent.writeTo.</p>
+     * @throws IOException if the stream could not be written to.
+     * @throws EmailDataFormatException if the email has mime components but no boundary.
+     */
+    public void writeTo(OutputStream out) throws IOException, EmailDataFormatException {
+            
+        if (!isChanged()) {
+            original.writeTo(out);
+            return;
+        }
+        
+        // construct header
+        for (int n = 0; n < headers.size(); n++) {
+            out.write(headers.getHeader(n).toString().getBytes());
+            out.write("\r\n".getBytes());
+        }
+
+        out.write("\r\n".getBytes()); 
 
-            out.write("\r\n".getBytes()); 
-                 
-            // construct body
+        // construct body
+        if (bodyRegion!=null)
+            bodyRegion.writeTo(out);
+        else
             out.write(body);
-            
-            // output any mime components
-            
-                // construct full mail 
-                Vector mimecomps = new Vector();
-                
-                    // add body components
-                    if ((mimeBody!=null) && (mimeBody.size()>0))
-                        mimecomps.addAll(mimeBody);
-                    
-                    // add attachments
-                    if ((attachments!=null) && (attachments.size()>0))
-                        mimecomps.addAll(attachments);
-                
-                // output any components
-                    if (mimecomps.size()>0) {
-                        String boundary = MailParserTools.getBoundary(getHeaderArray());
-                        if (boundary == null)
-                            throw new EmailDataFormatException("Badly formatted MIME header!");
 
+        // output any mime components
+
+            // construct full mail 
+            Vector mimecomps = new Vector();
+
+                // add body components
+                if ((mimeBody!=null) && (mimeBody.size()>0))
+                    mimecomps.addAll(mimeBody);
+
+                // add attachments
+                if ((attachments!=null) && (attachments.size()>0))
+                    mimecomps.addAll(attachments);
+
+            // output any components
+                if (mimecomps.size()>0) {
+                    String boundary = getContentTypeParameter("boundary");
+                    if (boundary == null)
+                        throw new EmailDataFormatException("Badly formatted MIME header!");
 
-                        out.write(new String("--"+boundary+"\r\n").getBytes()); // output first boundary
 
-                        for (int n = 0; n < mimecomps.size(); n++) {
-                            MimeComponent tmp = (MimeComponent)mimecomps.elementAt(n);
-                            out.write(tmp.getBytes());
+                    out.write(new String("--"+boundary+"\r\n").getBytes()); // output first boundary
 
-                            if (n==mimecomps.size()-1)
-                                out.write(new String("--"+boundary+"--\r\n").getBytes()); // output final boundary
-                            else
-                                out.write(new String("--"+boundary+"\r\n").getBytes()); // output boundary
-                        }
+                    for (int n = 0; n < mimecomps.size(); n++) {
+                        MimeComponent tmp = (MimeComponent)mimecomps.elementAt(n);
+                        tmp.writeTo(out);
+
+                        if (n==mimecomps.size()-1)
+                            out.write(new String("--"+boundary+"--\r\n").getBytes()); // output final boundary
+                        else
+                            out.write(new String("--"+boundary+"\r\n").getBytes()); // output boundary
                     }
-                   
-            out.close();
-            
-            return out.toByteArray();
-            
-        } catch (IOException e) {
-            throw new EmailDataFormatException(e.getMessage());
-        }
-        
+                }
     }
     
 }
\ No newline at end of file
@@ -60,28 +60,20 @@ public class EmailAttachment extends MimeComponent {
      * @throws EmailDataFormatException if the attachment could not be processed.
      */
     public EmailAttachment(EmailHeader [] headers, byte[] data) throws EmailDataFormatException {
-        EmailHeader encodingtype = null;
-        EmailHeader contentdisp = null;
-        
         String filename;
         
         // extract attachment header information
-        for (int n = 0; n < headers.length; n++) {
-            if (headers[n].getTagName().compareToIgnoreCase("Content-Disposition")==0)
-                contentdisp = headers[n];
-        }
+        setHeaders(headers);
+        EmailHeader contentdisp = getHeaderList().getLast("Content-Disposition");
         
         // if attachment, construct attachment else add to body.
-        if ((contentdisp!=null) && ((contentdisp.getTagValue().toLowerCase().indexOf("attachment")!=-1) || (contentdisp.getTagValue().toLowerCase().indexOf("inline")!=-1))) {
+        if ((contentdisp!=null) && ((contentdisp.getMainValue().equals("attachment")) || (contentdisp.getMainValue().equals("inline")))) {
             // this is an attachment
 
             // extract filename
-            try {
-                filename = contentdisp.getTagValue().substring(contentdisp.getTagValue().indexOf("filename=\"")+10);
-                filename = filename.substring(0,filename.indexOf("\""));    
-            } catch (IndexOutOfBoundsException i) {
+            filename = contentdisp.getParameter("filename");
+            if (filename == null)
                 throw new EmailDataFormatException("Could not extract filename from attachment");
-            }
 
         } else {
             // this isn't an attachment
@@ -89,7 +81,6 @@ public class EmailAttachment extends MimeComponent {
         }
 
         // store attachment info
-        setHeaders(headers);
         setFilename(filename);
         setData(data);
     }
@@ -105,31 +96,30 @@ public class EmailAttachment extends MimeComponent {
     }
 
     /**
-     * <p>Get the email attachment in its encoded form.</p> 
-     * <p>Returns the encoded form of the email attachment in its default format (BASE64).</p>
+     * <p>Write the email attachment in its encoded form to a stream.</p> 
+     * <p>Writes the encoded form of the email attachment in its default format (BASE64), or as it was in the email
+     * if it has not been changed.</p>
+     * @throws IOException if the stream could not be written to.
      * @throws EmailDataFormatException if there was a problem constructing the component.
      */
-    public byte [] getBytes() throws EmailDataFormatException {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-            // output headers
-            EmailHeader [] headers = getHeaders();
-            if ((headers != null) && (headers.length>0))
-                for (int n = 0; n < headers.length; n++) {
-                    out.write(headers[n].toString().getBytes());
-                    out.write("\r\n".getBytes());
-                }
+    public void writeTo(OutputStream out) throws IOException, EmailDataFormatException {
+        if (!isChanged()) {
+            super.writeTo(out);
+            return;
+        }
 
-            out.write("\r\n".getBytes());
+        // output headers
+        EmailHeader [] headers = getHeaders();
+        if ((headers != null) && (headers.length>0))
+            for (int n = 0; n < headers.length; n++) {
+                out.write(headers[n].toString().getBytes());
+                out.write("\r\n".getBytes());
+            }
 
-            // output file data
-            out.write(getData());
+        out.write("\r\n".getBytes());
 
-            return out.toByteArray();
-        } catch (Exception e) {
-            throw new EmailDataFormatException(e.getMessage());
-        }
+        // output file data
+        writeData(out);
     }
     
 }
@@ -94,6 +94,19 @@ public class EmailEnvelope {
         return null;
     }
     
+    /** 
+     * <p>Return the address part of a recipient, so that the envelope's "bob@example.com" and the header's 
+     * "Bob &lt;Bob@Example.com&gt;" can be compared.</p>
+     */
+    public static String getAddress(String recipient) {
+        int start = recipient.lastIndexOf('<');
+        int end = recipient.lastIndexOf('>');
+        if ((start >= 0) && (end > start))
+            recipient = recipient.substring(start + 1, end);
+        
+        return recipient.trim().toLowerCase();
+    }
+    
     /** Encapsulate an email. */
     public void wrapEmail(Email eml) {
         email = eml;
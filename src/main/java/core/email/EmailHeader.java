@@ -33,37 +33,165 @@ package core.email;
 import java.lang.String;
 import java.io.*;
 import java.util.Vector;
+import java.util.Hashtable;
+import java.util.Locale;
 import core.email.util.*;
+import core.exceptions.*;
 
 /**
  * <p>A class encapsulating an email header entry in the format tag : value.</p>
+ * <p>The value of a parsed header is left in the email until it is asked for, when its folded lines are joined
+ * together. The parameters of a structured header such as Content-Type are parsed the first time one is asked 
+ * for.</p>
  */
 public class EmailHeader {
     
     /** Name of the tag */
     private String tagName;
-    /** Value of tag */
+    /** Value of tag, null if it has not yet been read from the email. */
     private String tagValue;
     
+    /** The email the value was parsed from, null once the value has been read. */
+    private byte source[];
+    /** Start and end offsets in the email of each line of the value, without line endings. */
+    private int lines[];
+    
+    /** The value before any parameters, in lower case. Null until the parameters are parsed. */
+    private String mainValue;
+    /** The parameters of the value, by lower case name. Null until they are parsed. */
+    private Hashtable parameters;
+    /** Name of a parameter whose quoted value was not closed, if there is one. */
+    private String badParameter;
+    
     /** Creates a new instance of EmailHeader */
     public EmailHeader(String tag, String value) {
         tagName = tag;
         tagValue = value;
     }
     
+    /** 
+     * Creates a new instance of EmailHeader whose value is read from the email when it is needed.
+     * @param source The email, which must not be changed.
+     * @param lines Start and end offsets of each line of the value.
+     */
+    EmailHeader(String tag, byte source[], int lines[]) {
+        tagName = tag;
+        this.source = source;
+        this.lines = lines;
+    }
+    
     /** Get the name of the tag. */
     public String getTagName() {
         return tagName;
     }
     
-    /** Get the value of the tag. */
+    /** Get the value of the tag. Folded lines are joined with CRLF as they are in the email. */
     public String getTagValue() {
+        if (source!=null) {
+            if (lines.length == 2) {
+                tagValue = new String(source, lines[0], lines[1] - lines[0]);
+            } else {
+                StringBuffer sb = new StringBuffer();
+                for (int n = 0; n < lines.length; n += 2) {
+                    if (n > 0)
+                        sb.append("\r\n");
+                    sb.append(new String(source, lines[n], lines[n+1] - lines[n]));
+                }
+                tagValue = sb.toString();
+            }
+            
+            source = null;
+            lines = null;
+        }
+        
         return tagValue;
     }
     
     /** Set the value of the tag. */
     public void setTagValue(String value) {
         tagValue = value;
+        source = null;
+        lines = null;
+        parameters = null;
+    }
+    
+    /** 
+     * <p>Return the value before any parameters, trimmed and in lower case.</p>
+     * <p>For example "multipart/mixed" for a Content-Type header or "attachment" for a Content-Disposition header.</p>
+     */
+    public String getMainValue() {
+        if (parameters==null)
+            parseParameters();
+        
+        return mainValue;
+    }
+    
+    /** 
+     * <p>Return a parameter of a structured header such as Content-Type, eg. its boundary or charset.</p>
+     * <p>Parameter names are case insensitive. Quotes are removed from quoted values.</p>
+     * @param name The name of the parameter.
+     * @return the value of the parameter, or null if the header does not have it.
+     * @throws EmailDataFormatException if the parameter's quoted value is not closed.
+     */
+    public String getParameter(String name) throws EmailDataFormatException {
+        if (parameters==null)
+            parseParameters();
+        
+        name = name.toLowerCase(Locale.ENGLISH);
+        if (name.equals(badParameter))
+            throw new EmailDataFormatException("Email has a badly formatted MIME header!");
+        
+        return (String)parameters.get(name);
+    }
+    
+    /** Split the value into its main value and parameters. */
+    private void parseParameters() {
+        String value = getTagValue();
+        int length = value.length();
+        
+        parameters = new Hashtable();
+        badParameter = null;
+        
+        int pos = value.indexOf(';');
+        mainValue = ((pos < 0) ? value : value.substring(0, pos)).trim().toLowerCase(Locale.ENGLISH);
+        
+        // pos is always at the ; before the next parameter
+        while (pos >= 0) {
+            int equals = value.indexOf('=', pos);
+            int next = value.indexOf(';', pos + 1);
+            if (equals < 0)
+                break;
+            
+            if ((next >= 0) && (next < equals)) {
+                // parameter without a value
+                pos = next;
+                continue;
+            }
+            
+            String name = value.substring(pos + 1, equals).trim().toLowerCase(Locale.ENGLISH);
+            
+            pos = equals + 1;
+            while ((pos < length) && (Character.isWhitespace(value.charAt(pos))))
+                pos++;
+            
+            if ((pos < length) && (value.charAt(pos) == '"')) {
+                // quoted value, which may contain ;
+                int quote = value.indexOf('"', pos + 1);
+                if (quote < 0) {
+                    badParameter = name;
+                    break;
+                }
+                
+                if (!parameters.containsKey(name))
+                    parameters.put(name, value.substring(pos + 1, quote));
+                pos = value.indexOf(';', quote);
+            } else {
+                String token = value.substring(pos, (next < 0) ? length : next).trim();
+                if (!parameters.containsKey(name))
+                    parameters.put(name, token);
+                pos = next;
+            }
+        }
     }
     
     /** Return the tag in the format "tag: tagvalue\r\n". */
@@ -114,5 +242,75 @@ public class EmailHeader {
         
         return heads;
     }
+
+    /** 
+     * <p>Parse email headers from a region of an email.</p>
+     * <p>Works as parseHeaders(InputStream) does, leaving the reader on the blank line after the headers. Only the 
+     * tag names are read from the email, values are read when they are first asked for.</p>
+     * @param in the reader to read from, must be in the correct position.
+     * @return an array of EmailHeader objects containing the parsed email headers in sequence or null if no headers were found before blank line or end of stream.
+     */
+    public static EmailHeader [] parseHeaders(LineReader in) {
+        Vector v = new Vector();
+        byte source[] = in.getSource();
+
+        in.nextLine();
+        while (!in.isEmptyLine()) {
+
+            int lines[] = new int[2];
+            int count = 1;
+            lines[0] = in.getLineStart();
+            lines[1] = in.getLineEnd();
+            
+            // find the folded lines
+            in.nextLine();
+            while ((in.firstByte()=='\t') || (in.firstByte()==' ')) {
+                if (count * 2 == lines.length) {
+                    int tmp[] = new int[lines.length * 2];
+                    System.arraycopy(lines, 0, tmp, 0, lines.length);
+                    lines = tmp;
+                }
+                
+                lines[count * 2] = in.getLineStart();
+                lines[count * 2 + 1] = in.getLineEnd();
+                count++;
+                in.nextLine();
+            }
+            
+            // the tag ends at the first ": ", which is nearly always on the first line
+            int colon = lines[0];
+            while ((colon + 1 < lines[1]) && ((source[colon] != ':') || (source[colon + 1] != ' ')))
+                colon++;
+            
+            if (colon + 1 < lines[1]) {
+                int value[] = new int[count * 2];
+                System.arraycopy(lines, 0, value, 0, value.length);
+                value[0] = colon + 2;
+                
+                v.add(new EmailHeader(new String(source, lines[0], colon - lines[0]), source, value));
+            } else {
+                // join the lines and look again
+                StringBuffer sb = new StringBuffer();
+                for (int n = 0; n < count; n++) {
+                    if (n > 0)
+                        sb.append("\r\n");
+                    sb.append(new String(source, lines[n * 2], lines[n * 2 + 1] - lines[n * 2]));
+                }
+                
+                String header = sb.toString();
+                colon = header.indexOf(": ");
+                if (colon < 0)
+                    return null; // this isn't a valid header, so abort
+
+                v.add(new EmailHeader(header.substring(0, colon), header.substring(colon+2)));
+            }
+        }
+        
+        EmailHeader [] heads = new EmailHeader[v.size()];
+        for (int n = 0; n < v.size(); n++)
+            heads[n] = (EmailHeader)v.elementAt(n);
+        
+        return heads;
+    }
     
 }
@@ -0,0 +1,158 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.email;
+import java.util.Vector;
+import java.util.Hashtable;
+import java.util.Locale;
+
+/**
+ * <p>The headers of an email or mime component, in order.</p>
+ * <p>The headers are indexed by their lower case tag name, so that they can be looked up without searching the 
+ * whole list, which matters for emails with many Received and signature headers.</p>
+ */
+public class EmailHeaderList {
+
+    /** The headers in order. */
+    private Vector headers;
+
+    /** Vectors of headers by lower case tag name. */
+    private Hashtable index;
+
+    /** Creates a new empty list. */
+    public EmailHeaderList() {
+        headers = new Vector();
+        index = new Hashtable();
+    }
+
+    /** 
+     * Creates a new list containing the given headers. 
+     * @param headers The headers, may be null.
+     */
+    public EmailHeaderList(EmailHeader headers[]) {
+        this();
+
+        if (headers!=null) {
+            for (int n = 0; n < headers.length; n++)
+                add(headers[n]);
+        }
+    }
+
+    /** Creates a copy of a list, which shares its header objects. */
+    public EmailHeaderList(EmailHeaderList list) {
+        this();
+
+        for (int n = 0; n < list.size(); n++)
+            add(list.getHeader(n));
+    }
+
+    /** Return the index key of a tag name. */
+    private static String key(String tag) {
+        return tag.toLowerCase(Locale.ENGLISH);
+    }
+
+    /** Add a header to the end of the list. */
+    public void add(EmailHeader header) {
+        headers.add(header);
+
+        String key = key(header.getTagName());
+        Vector tagged = (Vector)index.get(key);
+        if (tagged==null) {
+            tagged = new Vector(1);
+            index.put(key, tagged);
+        }
+
+        tagged.add(header);
+    }
+
+    /** Return the number of headers. */
+    public int size() {
+        return headers.size();
+    }
+
+    /** Return the header at a position in the list. */
+    public EmailHeader getHeader(int n) {
+        return (EmailHeader)headers.elementAt(n);
+    }
+
+    /** Return all the headers in order, or null if there are none. */
+    public EmailHeader [] getHeaders() {
+        if (headers.size()==0)
+            return null;
+
+        EmailHeader tmp[] = new EmailHeader[headers.size()];
+        headers.copyInto(tmp);
+
+        return tmp;
+    }
+
+    /** 
+     * <p>Return all headers matching a given tag, in order.</p>
+     * <p>Note, the search is case insensitive.</p>
+     * @return an array of all matching headers, or null if none found.
+     */
+    public EmailHeader [] getHeaders(String tag) {
+        Vector tagged = (Vector)index.get(key(tag));
+        if (tagged==null)
+            return null;
+
+        EmailHeader tmp[] = new EmailHeader[tagged.size()];
+        tagged.copyInto(tmp);
+
+        return tmp;
+    }
+
+    /** Return the first header matching a given tag, or null if there is none. The search is case insensitive. */
+    public EmailHeader getFirst(String tag) {
+        Vector tagged = (Vector)index.get(key(tag));
+        return (tagged==null) ? null : (EmailHeader)tagged.firstElement();
+    }
+
+    /** Return the last header matching a given tag, or null if there is none. The search is case insensitive. */
+    public EmailHeader getLast(String tag) {
+        Vector tagged = (Vector)index.get(key(tag));
+        return (tagged==null) ? null : (EmailHeader)tagged.lastElement();
+    }
+
+    /**
+     * <p>Set a header.</p>
+     * <p>If the tag exists, the value of its first instance is changed. Otherwise it is added to the end.</p>
+     * @param tag The tag.
+     * @param value The value.
+     */
+    public void set(String tag, String value) {
+        EmailHeader head = getFirst(tag);
+        if (head==null)
+            add(new EmailHeader(tag, value));
+        else
+            head.setTagValue(value);
+    }
+}
@@ -37,7 +37,11 @@ import java.io.*;
 import java.util.Vector;
 
 /**
- * A class representing a MIME component.
+ * <p>A class representing a MIME component.</p>
+ * <p>A parsed component remembers where it came from in the email. Until it or one of its sub components is changed 
+ * it is written out exactly as it was read, so that the parts of an email which were not touched are copied straight
+ * from the original. Changes must be made with the set methods, changes made to the array returned by getData are 
+ * not noticed.</p>
  */
 public class MimeComponent {
     
@@ -55,14 +59,20 @@ public class MimeComponent {
 
     
     /** Component headers. */
-    private Vector componentHeaders;
+    private EmailHeaderList componentHeaders;
     
     /** Sub components. */
     private Vector subComponents;
     
-    /** The component's data. */
+    /** The component's data, null if it is still held as a region of the email. */
     private byte [] data;
     
+    /** The component's data as a region of the email it was parsed from, null once it has been copied out. */
+    private ByteRegion dataRegion;
+    
+    /** The whole component as it was parsed, null if it was not parsed or has since been changed. */
+    private ByteRegion original;
+    
     /** Data encoding format. */
     private int encoding;
     
@@ -82,27 +92,95 @@ public class MimeComponent {
         setSubComponents(subcomponents);
     }
   
-    /** Return the raw encoded data. */
+    /** 
+     * <p>Return the raw encoded data.</p> 
+     * <p>The data of a parsed component is copied out of the email the first time it is asked for.</p>
+     */
     public byte[] getData() {
+        if (dataRegion!=null) {
+            data = dataRegion.toByteArray();
+            dataRegion = null;
+        }
+        
         return data;
     }
     
-    /** Set the component's raw data with no conversion. */
+    /** 
+     * <p>Set the component's raw data with no conversion.</p> 
+     * <p>Setting the array returned by getData does not count as a change.</p>
+     */
     public void setData(byte data[]) {
+        if ((data!=this.data) || (dataRegion!=null))
+            original = null;
+        
         this.data = data;
+        dataRegion = null;
+    }
+    
+    /** Set the component's data to a region of the email it is being parsed from. */
+    void setDataRegion(ByteRegion region) {
+        data = null;
+        dataRegion = region;
+    }
+    
+    /** Return the component's data as a region of the email it was parsed from, or null if it has been copied out. */
+    ByteRegion getDataRegion() {
+        return dataRegion;
+    }
+    
+    /** Record the region of the email the whole component was parsed from. */
+    void setOriginal(ByteRegion region) {
+        original = region;
+    }
+    
+    /** 
+     * <p>Returns true if the component has been changed since it was parsed, or was not parsed at all.</p> 
+     * <p>A component is changed if any of its sub components are.</p>
+     */
+    public boolean isChanged() {
+        if (original==null)
+            return true;
+        
+        if (subComponents!=null) {
+            for (int n = 0; n < subComponents.size(); n++) {
+                if (((MimeComponent)subComponents.elementAt(n)).isChanged())
+                    return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /** Return the length of the raw encoded data, without copying it out of the email. */
+    public int getDataLength() {
+        if (dataRegion!=null)
+            return dataRegion.length();
+        
+        return (data!=null) ? data.length : 0;
+    }
+    
+    /** 
+     * <p>Write the raw encoded data to a stream, without copying it out of the email.</p> 
+     * @throws IOException if the stream could not be written to.
+     */
+    public void writeData(OutputStream out) throws IOException {
+        if (dataRegion!=null)
+            dataRegion.writeTo(out);
+        else if (data!=null)
+            out.write(data);
     }
     
     /** Parse header information and extract transfer encoding etc. */
     protected void parseHeaders() {
         
         // extract encoding
-        EmailHeader [] headers = getHeader("Content-Transfer-Encoding");     
-        if (headers!=null) {
-            if (headers[0].getTagValue().compareToIgnoreCase("7bit")==0) 
+        EmailHeader header = componentHeaders.getFirst("Content-Transfer-Encoding");     
+        if (header!=null) {
+            if (header.getTagValue().compareToIgnoreCase("7bit")==0) 
                 encoding = SEVENBIT;
-            else if(headers[0].getTagValue().compareToIgnoreCase("quoted-printable")==0)
+            else if(header.getTagValue().compareToIgnoreCase("quoted-printable")==0)
                 encoding = QUOTEDPRINTABLE;
-            else if(headers[0].getTagValue().compareToIgnoreCase("base64")==0)
+            else if(header.getTagValue().compareToIgnoreCase("base64")==0)
                 encoding = BASE64;
             else
                 encoding = RAW;
@@ -112,25 +190,30 @@ public class MimeComponent {
     /** Set the component headers. */
     public void setHeaders(EmailHeader [] headers){
         
-        componentHeaders = new Vector();
+        setHeaderList(new EmailHeaderList(headers));
+    }
+    
+    /** Set the component headers to a list, which is not copied. */
+    void setHeaderList(EmailHeaderList headers) {
         
-        for (int n = 0; n < headers.length; n++) 
-            componentHeaders.add(headers[n]);
+        original = null;
+        componentHeaders = headers;
         
         parseHeaders();
     }
     
+    /** Return the component's list of headers. */
+    EmailHeaderList getHeaderList() {
+        return componentHeaders;
+    }
+    
     /** Get the component headers. */
     public EmailHeader [] getHeaders() {
         
-        if ( (componentHeaders == null) || (componentHeaders.size()==0) )
+        if (componentHeaders == null)
             return null;
         
-        EmailHeader [] tmp = new EmailHeader[componentHeaders.size()];
-        for (int n = 0; n < componentHeaders.size(); n++)
-            tmp[n] = (EmailHeader)componentHeaders.elementAt(n);
-        
-        return tmp;
+        return componentHeaders.getHeaders();
     }
     
     /**
@@ -142,18 +225,11 @@ public class MimeComponent {
      */
     public void setHeader(String tag, String value) {
         
-        if ((componentHeaders==null) || (getHeader(tag)==null)) {
-            // tag does not already exist, add it
-            if (componentHeaders == null) componentHeaders = new Vector();
-            componentHeaders.add(new EmailHeader(tag, value));
-        } else {
-            for (int n = 0; n < componentHeaders.size(); n++) {
-                EmailHeader head = (EmailHeader)componentHeaders.elementAt(n);
-                if (tag.compareToIgnoreCase(head.getTagName())==0) {
-                    componentHeaders.set(n, head);
-                }
-            }
-        }
+        original = null;
+        
+        if (componentHeaders == null) 
+            componentHeaders = new EmailHeaderList();
+        componentHeaders.set(tag, value);
         
         parseHeaders();
     }
@@ -164,28 +240,32 @@ public class MimeComponent {
      * @return The an array of all matching headers, or null if none found.
      */
     public EmailHeader [] getHeader(String tag) {
-        if ((componentHeaders == null) || (componentHeaders.size()==0))
+        if (componentHeaders == null)
             return null;
         
-        Vector subset = new Vector();
-        
-        // look for matching tags
-        for (int n = 0; n < componentHeaders.size(); n++) {
-            EmailHeader head = (EmailHeader)componentHeaders.elementAt(n);
-            if (tag.compareToIgnoreCase(head.getTagName())==0)
-                subset.add(head);
-        }
-        
-        // did we find anything? return null if not
-        if (subset.size()==0) return null;
-        
-        // return array of headers
-        EmailHeader tmp[] = new EmailHeader[subset.size()];
-        for (int n = 0; n < subset.size(); n++) 
-            tmp[n] = (EmailHeader)subset.elementAt(n);
+        return componentHeaders.getHeaders(tag);
+    }
+    
+    /** 
+     * <p>Return a parameter of the component's Content-Type header, such as its boundary, charset or name.</p>
+     * <p>The parameters are parsed once, the first time one is asked for.</p>
+     * @return the value of the parameter, or null if there is no Content-Type header or it does not have the parameter.
+     * @throws EmailDataFormatException if the header was badly formatted.
+     */
+    public String getContentTypeParameter(String name) throws EmailDataFormatException {
+        if (componentHeaders == null)
+            return null;
         
-        return tmp;
-     
+        EmailHeader type = componentHeaders.getFirst("Content-Type");
+        return (type==null) ? null : type.getParameter(name);
+    }
+    
+    /** 
+     * <p>Return the boundary between the component's sub components, or null if it does not have one.</p>
+     * @throws EmailDataFormatException if the Content-Type header was badly formatted.
+     */
+    public String getBoundary() throws EmailDataFormatException {
+        return getContentTypeParameter("boundary");
     }
     
     /** Get the mime sub components (if any) */
@@ -205,6 +285,7 @@ public class MimeComponent {
         
         if (components!=null) {
 
+            original = null;
             subComponents = new Vector();
 
             for (int n =0; n<components.length; n++) 
@@ -215,6 +296,8 @@ public class MimeComponent {
     /** Add the sub component to the end of the already existing list. */
     public void addSubComponent(MimeComponent component) {
         if (component!=null) {
+            original = null;
+            
             if ((subComponents==null) || (subComponents.size()==0)) 
                 subComponents = new Vector();
 
@@ -229,49 +312,62 @@ public class MimeComponent {
         
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeTo(out);
+        
+            return out.toByteArray();
+        } catch (Exception e) {
+            throw new EmailDataFormatException(e.getMessage());
+        }
 
-            // output the headers
-            EmailHeader [] headers = getHeaders();
-            if ((headers != null) && (headers.length>0))
-                for (int n = 0; n < headers.length; n++) {
-                    out.write(headers[n].toString().getBytes());
-                    out.write("\r\n".getBytes());
-                }
-
-            out.write("\r\n".getBytes());
-
-            // write out component body
-            if (getData()!=null) {
-                out.write(getData());
-                //out.write("\r\n".getBytes());
+    }
+    
+    /** 
+     * <p>Write the component in its encoded form to a stream.</p>
+     * <p>If the component has not been changed since it was parsed it is copied straight from the email, otherwise
+     * its headers and boundaries are rebuilt and each sub component written out in the same way.</p>
+     * @throws IOException if the stream could not be written to.
+     * @throws EmailDataFormatException if there was a problem constructing the component.
+     */
+    public void writeTo(OutputStream out) throws IOException, EmailDataFormatException {
+        
+        if (!isChanged()) {
+            original.writeTo(out);
+            return;
+        }
+        
+        // output the headers
+        EmailHeader [] headers = getHeaders();
+        if ((headers != null) && (headers.length>0))
+            for (int n = 0; n < headers.length; n++) {
+                out.write(headers[n].toString().getBytes());
+                out.write("\r\n".getBytes());
             }
-            
-            // write out the body of the component if there are any
-
-            MimeComponent [] subs = getSubComponents();
-            
-            if ((subs != null) && (subs.length > 0)) {
-                // component has sub components. Render them out
 
-                // extract boundary              
-                String boundary = MailParserTools.getBoundary(getHeaders());
+        out.write("\r\n".getBytes());
 
-                out.write(new String("--"+boundary+"\r\n").getBytes()); // output first boundary
-                for (int n = 0; n < subs.length; n++) {
+        // write out component body
+        writeData(out);
+        
+        // write out the body of the component if there are any
 
-                    out.write(subs[n].getBytes());
-                    if (n==subs.length-1)
-                        out.write(new String("--"+boundary+"--\r\n").getBytes()); // output final boundary
-                    else
-                        out.write(new String("--"+boundary+"\r\n").getBytes()); // output boundary
-                }
-            } 
+        MimeComponent [] subs = getSubComponents();
         
-            return out.toByteArray();
-        } catch (Exception e) {
-            throw new EmailDataFormatException(e.getMessage());
-        }
+        if ((subs != null) && (subs.length > 0)) {
+            // component has sub components. Render them out
+
+            // extract boundary              
+            String boundary = getBoundary();
 
+            out.write(new String("--"+boundary+"\r\n").getBytes()); // output first boundary
+            for (int n = 0; n < subs.length; n++) {
+
+                subs[n].writeTo(out);
+                if (n==subs.length-1)
+                    out.write(new String("--"+boundary+"--\r\n").getBytes()); // output final boundary
+                else
+                    out.write(new String("--"+boundary+"\r\n").getBytes()); // output boundary
+            }
+        } 
     }
     
     /** How is this attachment encoded? */
@@ -302,28 +398,68 @@ public class MimeComponent {
      * @return the constructed mime component
      */
     public static MimeComponent [] parseMimeSubComponents(InputStream in, String boundary) throws IOException, EmailDataFormatException {
+        byte data[] = readAll(in);
+        return parseMimeSubComponents(new LineReader(new ByteRegion(data, 0, data.length)), boundary);
+    }
+    
+    /**
+     * <p>Parse mime components.</p>
+     * <p>This method parses out the mime component at the current stream position.</p>
+     * @param in Input stream to read data from (must be placed at the beginning of the header block).
+     * @throws IOException if there was an IO problem.
+     * @throws EmailFormatDataException if the email could not be parsed.
+     * @return the constructed mime component
+     */
+    public static MimeComponent parseMimeComponent(InputStream in) throws IOException, EmailDataFormatException {
+        byte data[] = readAll(in);
+        return parseMimeComponent(new ByteRegion(data, 0, data.length));
+    }
+    
+    /** Read the rest of a stream. */
+    private static byte [] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 256));
+        byte buffer[] = new byte[4096];
+        
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        
+        return out.toByteArray();
+    }
+    
+    /**
+     * <p>Parse mime sub components out of a region of an email.</p>
+     * <p>Reads from the line after a boundary to the end of the region. The data of each component is left in 
+     * the email and only copied out when it is asked for.</p>
+     * @param in Reader positioned after the first boundary line.
+     * @param boundary The boundary to seach for.
+     * @throws EmailFormatDataException if the email could not be parsed.
+     * @return the constructed mime components
+     */
+    static MimeComponent [] parseMimeSubComponents(LineReader in, String boundary) throws EmailDataFormatException {
         Vector subcomps = new Vector();
         
-        String line = null;
-        do { 
-            ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-            
-            do {
-                line = IOUtil.readLine(in);
-                if ( (!line.endsWith(boundary)) && (!line.endsWith(boundary+"--")) ) {
-                    tmp.write(line.getBytes());
-                    tmp.write("\r\n".getBytes());
-                }
-            } while ((in.available()>0) && (!line.endsWith(boundary)));
-            
-            
-            ByteArrayInputStream sub = new ByteArrayInputStream(tmp.toByteArray());
-            MimeComponent tmpsub = parseMimeComponent(sub);
-            if (tmpsub!=null)
-                subcomps.add(tmpsub);
-
-        } while ((in.available()>0) && (!line.endsWith(boundary+"--")));
+        byte separator[] = boundary.getBytes();
+        byte terminator[] = (boundary+"--").getBytes();
         
+        if (!in.available()) {
+            // nothing after the boundary, which leaves a single empty component
+            subcomps.add(new MimeComponent(new EmailHeader[0], new byte[0], null));
+        } else {
+            do { 
+                ByteRegion part = new ByteRegion(in.getSource(), true);
+
+                // collect the lines up to the next boundary, leaving out the terminator
+                do {
+                    in.nextLine();
+                    if ( (!in.endsWith(separator)) && (!in.endsWith(terminator)) )
+                        in.copyLineTo(part);
+                } while ((in.available()) && (!in.endsWith(separator)));
+
+                subcomps.add(parseMimeComponent(part));
+
+            } while ((in.available()) && (!in.endsWith(terminator)));
+        }
         
         MimeComponent [] tmp = new MimeComponent[subcomps.size()];
         for (int n = 0; n < tmp.length; n++)
@@ -333,80 +469,65 @@ public class MimeComponent {
     }
     
     /**
-     * <p>Parse mime components.</p>
-     * <p>This method parses out the mime component at the current stream position.</p>
-     * @param in Input stream to read data from (must be placed at the beginning of the header block).
-     * @throws IOException if there was an IO problem.
+     * <p>Parse a mime component out of a region of an email.</p>
+     * <p>The email is scanned once and the data of the component and its sub components are recorded as regions of
+     * it, rather than being copied out.</p>
+     * @param region The component, starting at the beginning of the header block.
      * @throws EmailFormatDataException if the email could not be parsed.
      * @return the constructed mime component
      */
-    public static MimeComponent parseMimeComponent(InputStream in) throws IOException, EmailDataFormatException {
+    public static MimeComponent parseMimeComponent(ByteRegion region) throws EmailDataFormatException {
+        LineReader in = new LineReader(region);
+        
         // read headers      
         EmailHeader [] heads = EmailHeader.parseHeaders(in);
         if (heads==null) // should have some headers
             throw new EmailDataFormatException("Malformed message header or no headers found");
         
         // test for attachment
-        EmailHeader contentdisp = null;
-        for (int n = 0; n < heads.length; n++) {
-            if (heads[n].getTagName().compareToIgnoreCase("Content-Disposition")==0)
-                contentdisp = heads[n];
-        }
+        EmailHeaderList headers = new EmailHeaderList(heads);
+        EmailHeader contentdisp = headers.getLast("Content-Disposition");
         
         MimeComponent rootnode = null;
         
-        if ((contentdisp!=null) && ((contentdisp.getTagValue().toLowerCase().indexOf("attachment")!=-1) || ((contentdisp.getTagValue().toLowerCase().indexOf("inline")!=-1) && (contentdisp.getTagValue().indexOf("filename=")!=-1)))) {
+        if ((contentdisp!=null) && ((contentdisp.getMainValue().equals("attachment")) || ((contentdisp.getMainValue().equals("inline")) && (contentdisp.getParameter("filename")!=null)))) {
             // this is an attachment (is explicitly an attachment, or inline with filename)     
-            rootnode = new EmailAttachment();          
+            rootnode = new EmailAttachment(heads, null);
         } else {
             // this is another mime type       
             rootnode = new MimeComponent();               
-            rootnode.setHeaders(heads);
+            rootnode.setHeaderList(headers);
         }
         
         // do the headers define a content boundary?
-        String hBoundary = null;
-        if (heads!=null)
-            hBoundary = MailParserTools.getBoundary(heads);
+        String hBoundary = rootnode.getBoundary();
 
         if (hBoundary!=null) {        
             // component defines a boundary, there are sub components
-            ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-            String line = null;
+            ByteRegion preamble = new ByteRegion(region.getSource(), true);
+            byte separator[] = hBoundary.getBytes();
             
             // read body
-            line = IOUtil.readLine(in);            
-            while ((in.available()>0) && (!line.endsWith(hBoundary))) {                
-                tmp.write(line.getBytes()); 
-                tmp.write("\r\n".getBytes());
-                line = IOUtil.readLine(in);                      
+            in.nextLine();
+            while ((in.available()) && (!in.endsWith(separator))) {
+                in.copyLineTo(preamble);
+                in.nextLine();
             }
                 
-            if (rootnode instanceof EmailAttachment) {
-                rootnode = new EmailAttachment(heads, tmp.toByteArray());
-            } else {
-                rootnode.setData(tmp.toByteArray());
-            }
+            rootnode.setDataRegion(preamble);
             
             // find sub components
             MimeComponent tmpsub [] = parseMimeSubComponents(in, hBoundary);
-            if (tmpsub!=null) {
-                for (int n = 0; n < tmpsub.length; n++)
-                    rootnode.addSubComponent(tmpsub[n]);
-            }
+            for (int n = 0; n < tmpsub.length; n++)
+                rootnode.addSubComponent(tmpsub[n]);
             
         } else {          
             // there are no sub components, the component consists of a body only         
-            byte [] body = new byte[in.available()];
-            in.read(body);
-
-            if (rootnode instanceof EmailAttachment) {
-                rootnode = new EmailAttachment(heads, body);
-            } else {
-                rootnode.setData(body);
-            }
+            rootnode.setDataRegion(in.remainder());
         }
         
+        rootnode.setOriginal(region);
+        
         return rootnode;
     }
 }
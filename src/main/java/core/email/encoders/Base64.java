@@ -30,11 +30,13 @@
  */
 
 package core.email.encoders;
-import java.io.ByteArrayOutputStream;
 
 /**
  * <p>A class that contains utility methods for encoding and decoding binary data to and from
  * Base 64 MIME encoding. </p>
+ * <p>The bulk methods work array to array: the output is sized up front and three octets are encoded to 
+ * (or four characters decoded from) each step using lookup tables. For streaming use see 
+ * {@link Base64OutputStream} and {@link Base64InputStream}.</p>
  */
 public class Base64 {
     
@@ -42,7 +44,7 @@ public class Base64 {
     private static final int MAX_LINE_LENGTH = 48;
     
     /** A lookup table for converting a 6 bit number block into its radix 64 encoded value. */
-    private final static char[] encodeLUT = {
+    private final static byte[] encodeLUT = {
         'A','B','C','D','E','F','G','H',
         'I','J','K','L','M','N','O','P',
         'Q','R','S','T','U','V','W','X',
@@ -78,52 +80,97 @@ public class Base64 {
      * <p>Takes an array of bytes and encodes them to base 64.</p>
      */
     public static byte[] encode(byte data[]) {
+        return encode(data, 0, data.length);
+    }
+    
+    /**
+     * <p>Takes part of an array of bytes and encodes it to base 64.</p>
+     * <p>Lines are 64 characters long and every line, including the last, ends with CR/LF.</p>
+     */
+    public static byte[] encode(byte data[], int offset, int length) {
+        byte out[] = new byte[encodedLength(length)];
+        encode(data, offset, length, out, 0);
         
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        // encode
-        int n = 0;
-        byte a, b, c; // bytes to process (we process three bytes at a time)
-        for (int cnt = 0; cnt < data.length/3; cnt++) {
-            a = data[n++];
-            b = data[n++];
-            c = data[n++];
-            
-            out.write(encodeLUT[(a >>> 2) & 0x3F]);
-            out.write(encodeLUT[((a << 4) & 0x30) + ((b >>> 4) & 0x0F)]);
-            out.write(encodeLUT[((b << 2) & 0x3C) + ((c >>> 6) & 0x03)]);
-            out.write(encodeLUT[c & 0x3F]); 
+        return out;
+    }
+    
+    /**
+     * <p>Encodes part of an array into a caller supplied array.</p>
+     * <p>The output array must have room for {@link #encodedLength(int)} bytes.</p>
+     * @return The number of bytes written.
+     */
+    public static int encode(byte data[], int offset, int length, byte out[], int outOffset) {
+        int n = offset;
+        int end = offset + length;
+        int pos = outOffset;
+        
+        // whole lines
+        while (end - n >= MAX_LINE_LENGTH) {
+            pos += encodeBlock(data, n, MAX_LINE_LENGTH, out, pos);
+            out[pos++] = '\r';
+            out[pos++] = '\n';
+            n += MAX_LINE_LENGTH;
+        }
+        
+        // last partial line. An empty input still gets a line ending.
+        if ((n < end) || (length == 0)) {
+            pos += encodeBlock(data, n, end - n, out, pos);
+            out[pos++] = '\r';
+            out[pos++] = '\n';
+        }
+        
+        return pos - outOffset;
+    }
+    
+    /**
+     * <p>Returns the size of the output of {@link #encode(byte[])} for the given number of input bytes.</p>
+     */
+    public static int encodedLength(int length) {
+        int lines = (length + MAX_LINE_LENGTH - 1) / MAX_LINE_LENGTH;
+        if (lines == 0) 
+            lines = 1;
+        
+        return ((length + 2) / 3) * 4 + lines * 2;
+    }
+    
+    /**
+     * <p>Encodes a block of bytes without inserting any line breaks, padding the end if needed.</p>
+     * @return The number of characters written, always a multiple of 4.
+     */
+    public static int encodeBlock(byte data[], int offset, int length, byte out[], int outOffset) {
+        int n = offset;
+        int end = offset + length - (length % 3);
+        int pos = outOffset;
+        
+        // three bytes at a time
+        while (n < end) {
+            int bits = ((data[n] & 0xFF) << 16) | ((data[n+1] & 0xFF) << 8) | (data[n+2] & 0xFF);
+            out[pos]   = encodeLUT[bits >>> 18];
+            out[pos+1] = encodeLUT[(bits >>> 12) & 0x3F];
+            out[pos+2] = encodeLUT[(bits >>> 6) & 0x3F];
+            out[pos+3] = encodeLUT[bits & 0x3F];
             
-            if (n % MAX_LINE_LENGTH == 0) {
-                out.write('\r');
-                out.write('\n');
-            }
+            n += 3;
+            pos += 4;
         }
         
         // process any remainder.
-        int remain = data.length % 3; // how much padding we need to add at the end.
+        int remain = length % 3; // how much padding we need to add at the end.
         if (remain == 1) {
-            a = data[n++];
-            
-            out.write(encodeLUT[(a >>> 2) & 0x3F]);
-            out.write(encodeLUT[((a << 4) & 0x30)]); 
-            out.write('=');
-            out.write('=');
+            int bits = (data[n] & 0xFF) << 16;
+            out[pos++] = encodeLUT[bits >>> 18];
+            out[pos++] = encodeLUT[(bits >>> 12) & 0x3F];
+            out[pos++] = '=';
+            out[pos++] = '=';
         } else if (remain == 2) {
-            a = data[n++];
-            b = data[n++];
-            
-            out.write(encodeLUT[(a >>> 2) & 0x3F]); 
-            out.write(encodeLUT[((a << 4) & 0x30) + ((b >>> 4) & 0x0F)]);
-            out.write(encodeLUT[((b << 2) & 0x3C)]); 
-            out.write('='); 
-        }
-        if (n == 0 || n % MAX_LINE_LENGTH != 0) {
-            out.write('\r');
-            out.write('\n');
+            int bits = ((data[n] & 0xFF) << 16) | ((data[n+1] & 0xFF) << 8);
+            out[pos++] = encodeLUT[bits >>> 18];
+            out[pos++] = encodeLUT[(bits >>> 12) & 0x3F];
+            out[pos++] = encodeLUT[(bits >>> 6) & 0x3F];
+            out[pos++] = '=';
         }
         
-        return out.toByteArray();
+        return pos - outOffset;
     }
     
     /**
@@ -132,55 +179,92 @@ public class Base64 {
      * @throws IllegalArgumentException if the data passed contained invalid characters or is the wrong length.
      */
     public static byte[] decode(byte data[]) {
+        return decode(data, 0, data.length);
+    }
+    
+    /**
+     * <p>Decodes part of an array of base64 encoded data.</p>
+     * @throws IllegalArgumentException if the data passed contained invalid characters or is the wrong length.
+     */
+    public static byte[] decode(byte data[], int offset, int length) {
+        byte ret[] = new byte[maxDecodedLength(length)];
+        int n = decode(data, offset, length, ret, 0);
         
-        int padCount = 0;
-        int realLength = 0;
-
-        for (int cnt = 0; cnt < data.length; cnt++)
-        {
-            if (data[cnt] > ' ')
-                realLength++;
-
-            if (data[cnt] == '=') 
-                padCount++;
-        }
-
-        if (realLength % 4 != 0)
-            throw new IllegalArgumentException("The PGP message is not correctly Radix64 encoded!");
+        if (n == ret.length)
+            return ret;
         
-        int cnt = 0;
-        int outputIndex = 0;
+        byte trimmed[] = new byte[n];
+        System.arraycopy(ret, 0, trimmed, 0, n);
+        return trimmed;
+    }
+    
+    /**
+     * <p>Decodes part of an array into a caller supplied array in a single pass.</p>
+     * <p>The output array must have room for {@link #maxDecodedLength(int)} bytes.</p>
+     * @return The number of bytes written.
+     * @throws IllegalArgumentException if the data passed contained invalid characters or is the wrong length.
+     */
+    public static int decode(byte data[], int offset, int length, byte out[], int outOffset) {
+        int cnt = offset;
+        int end = offset + length;
+        int outputIndex = outOffset;
         int n = 0;
-        byte[] t = new byte[4]; t[0] = t[1] = t[2] = t[3] = '=';
-        byte[] ret = new byte[(realLength/4)*3 - padCount];
+        byte[] t = new byte[4];
         
-        while (cnt < data.length)
-        {
+        while (cnt < end) {
+            
+            if (n == 0) {
+                // fast path, whole groups with no whitespace or padding. Any invalid 
+                // character makes its table entry -1 and so the combined value negative.
+                while (end - cnt >= 4) {
+                    int bits = (decodeLUT[data[cnt] & 0xFF] << 18) | (decodeLUT[data[cnt+1] & 0xFF] << 12)
+                        | (decodeLUT[data[cnt+2] & 0xFF] << 6) | decodeLUT[data[cnt+3] & 0xFF];
+                    
+                    if (bits < 0)
+                        break;
+                    
+                    out[outputIndex]   = (byte)(bits >> 16);
+                    out[outputIndex+1] = (byte)(bits >> 8);
+                    out[outputIndex+2] = (byte)bits;
+                    
+                    outputIndex += 3;
+                    cnt += 4;
+                }
+                
+                if (cnt >= end)
+                    break;
+            }
+            
             byte c = data[cnt++];
             if (c > ' ')
                 t[n++] = c;
             
-            if (n == 4)
-            {
-                outputIndex += decode(ret, outputIndex, t[0],t[1],t[2],t[3]);
+            if (n == 4) {
+                outputIndex += decodeQuad(out, outputIndex, t[0], t[1], t[2], t[3]);
                 n = 0;
-                t[0] = t[1] = t[2] = t[3] = '=';
             }
-            
         }
+        
         if (n > 0)
-            decode(ret, outputIndex, t[0], t[1], t[2], t[3]);
-
-        return ret;
+            throw new IllegalArgumentException("The PGP message is not correctly Radix64 encoded!");
+        
+        return outputIndex - outOffset;
+    }
+    
+    /**
+     * <p>Returns the largest number of bytes that decoding the given number of characters can produce.</p>
+     */
+    public static int maxDecodedLength(int length) {
+        return (length / 4) * 3;
     }
        
     /** Base64 decode a block of 4 bytes. */
-    private static int decode(byte[] ret, int ret_off, byte a, byte b, byte c, byte d)
+    static int decodeQuad(byte[] ret, int ret_off, byte a, byte b, byte c, byte d)
     {
-        byte da = decodeLUT[a];
-        byte db = decodeLUT[b];
-        byte dc = decodeLUT[c];
-        byte dd = decodeLUT[d];
+        byte da = decodeLUT[a & 0xFF];
+        byte db = decodeLUT[b & 0xFF];
+        byte dc = decodeLUT[c & 0xFF];
+        byte dd = decodeLUT[d & 0xFF];
 
         if (da == -1 || db == -1 || (dc == -1 && c != 0x3D) || (dd == -1 && d !=0x3D))
             throw new IllegalArgumentException("Invalid character [" + (a & 0xFF) + ", " + (b & 0xFF) + ", " + (c & 0xFF) + ", " + (d & 0xFF) + "]");
@@ -197,4 +281,3 @@ public class Base64 {
         return 3;
     }
 }
-
@@ -0,0 +1,194 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.email.encoders;
+import java.io.*;
+
+/**
+ * <p>An input stream filter that decodes base 64 data read from the underlying stream.</p>
+ * <p>As with {@link Base64#decode(byte[])}, whitespace and line breaks are ignored. The encoded data is 
+ * read a buffer at a time and decoded in bulk, so this can be used to decode large attachments without 
+ * holding both the encoded and decoded forms in memory.</p>
+ */
+public class Base64InputStream extends FilterInputStream {
+    
+    /** Size of the encoded data buffer. */
+    private static final int BUFFER_SIZE = 8192;
+    
+    /** Encoded data read from the underlying stream. */
+    private byte encoded[] = new byte[BUFFER_SIZE];
+    
+    /** Decoded data not yet returned to the caller. */
+    private byte decoded[] = new byte[Base64.maxDecodedLength(BUFFER_SIZE) + 3];
+    
+    /** Number of valid octets in decoded. */
+    private int decodedLength = 0;
+    
+    /** Next octet in decoded to be returned. */
+    private int decodedPos = 0;
+    
+    /** Characters of an incomplete group carried over between buffers. */
+    private byte carry[] = new byte[4];
+    
+    /** Number of characters in carry. */
+    private int carryLength = 0;
+    
+    /** Set when the underlying stream is exhausted. */
+    private boolean endOfStream = false;
+    
+    /** Creates a new base 64 decoder reading from the given stream. */
+    public Base64InputStream(InputStream in) {
+        super(in);
+    }
+    
+    /** Read a single decoded octet, or -1 at the end of the data. */
+    public int read() throws IOException {
+        while (decodedPos == decodedLength) {
+            if (endOfStream)
+                return -1;
+            
+            fill();
+        }
+        
+        return decoded[decodedPos++] & 0xFF;
+    }
+    
+    /** Read decoded octets into part of an array. */
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) return 0;
+        
+        int count = 0;
+        while (count < len) {
+            if (decodedPos == decodedLength) {
+                // don't block for more if we already have something to return
+                if ((endOfStream) || ((count > 0) && (in.available() <= 0)))
+                    break;
+                
+                fill();
+                continue;
+            }
+            
+            int n = Math.min(len - count, decodedLength - decodedPos);
+            System.arraycopy(decoded, decodedPos, b, off + count, n);
+            decodedPos += n;
+            count += n;
+        }
+        
+        if ((count == 0) && (endOfStream))
+            return -1;
+        
+        return count;
+    }
+    
+    /** Skip over decoded octets. */
+    public long skip(long n) throws IOException {
+        long count = 0;
+        while ((count < n) && (read() != -1))
+            count++;
+        
+        return count;
+    }
+    
+    /** Returns the number of decoded octets that can be read without blocking. */
+    public int available() throws IOException {
+        return decodedLength - decodedPos;
+    }
+    
+    /** Mark is not supported. */
+    public boolean markSupported() {
+        return false;
+    }
+    
+    /** Mark is not supported. */
+    public void mark(int readlimit) {
+    }
+    
+    /** Mark is not supported. */
+    public void reset() throws IOException {
+        throw new IOException("Mark/reset not supported on base64 streams.");
+    }
+    
+    /** Read the next buffer of encoded data and decode it. */
+    private void fill() throws IOException {
+        decodedPos = 0;
+        decodedLength = 0;
+        
+        int n = in.read(encoded, 0, encoded.length);
+        if (n == -1) {
+            endOfStream = true;
+            
+            if (carryLength > 0)
+                throw new IOException("The PGP message is not correctly Radix64 encoded!");
+            
+            return;
+        }
+        
+        try {
+            int pos = 0;
+            
+            // complete any group left over from the last buffer
+            while ((carryLength > 0) && (pos < n)) {
+                byte c = encoded[pos++];
+                if (c > ' ')
+                    carry[carryLength++] = c;
+                
+                if (carryLength == 4) {
+                    decodedLength += Base64.decodeQuad(decoded, decodedLength, carry[0], carry[1], carry[2], carry[3]);
+                    carryLength = 0;
+                }
+            }
+            
+            // find the end of the last complete group and decode up to there in bulk
+            int significant = 0;
+            for (int i = pos; i < n; i++)
+                if (encoded[i] > ' ')
+                    significant++;
+            
+            int remainder = significant % 4;
+            int end = n;
+            while (remainder > 0) {
+                end--;
+                if (encoded[end] > ' ')
+                    remainder--;
+            }
+            
+            decodedLength += Base64.decode(encoded, pos, end - pos, decoded, decodedLength);
+            
+            // keep the incomplete group for next time
+            for (int i = end; i < n; i++)
+                if (encoded[i] > ' ')
+                    carry[carryLength++] = encoded[i];
+            
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.email.encoders;
+import java.io.*;
+
+/**
+ * <p>An output stream filter that base 64 encodes everything written to it, wrapping the output into 
+ * CR/LF terminated lines.</p>
+ * <p>With the default line length the output is exactly what {@link Base64#encode(byte[])} produces for the
+ * same data, but without the whole message having to be held in memory. Call {@link #finish()} (or close the
+ * stream) to write out the final line.</p>
+ */
+public class Base64OutputStream extends FilterOutputStream {
+    
+    /** The default number of characters on each line. */
+    public static final int DEFAULT_LINE_LENGTH = 64;
+    
+    /** Octets waiting to be made up into a full line. */
+    private byte pending[];
+
+    /** Number of octets in pending. */
+    private int pendingLength = 0;
+
+    /** Encoded output line, plus CR/LF. */
+    private byte line[];
+
+    /** Set until the first line has been written. */
+    private boolean empty = true;
+
+    /** Set once the final line has been written. */
+    private boolean finished = false;
+    
+    /** Creates a new base 64 encoder writing lines of the default length. */
+    public Base64OutputStream(OutputStream out) {
+        this(out, DEFAULT_LINE_LENGTH);
+    }
+    
+    /** 
+     * Creates a new base 64 encoder. 
+     * @param lineLength Number of characters on each line, must be a positive multiple of 4. MIME allows up to 76.
+     */
+    public Base64OutputStream(OutputStream out, int lineLength) {
+        super(out);
+        
+        if ((lineLength <= 0) || (lineLength % 4 != 0))
+            throw new IllegalArgumentException("Base64 line length must be a positive multiple of 4.");
+        
+        pending = new byte[lineLength / 4 * 3];
+        line = new byte[lineLength + 2];
+    }
+
+    /** Write a single octet. */
+    public void write(int b) throws IOException {
+        if (finished) throw new IOException("Base64 stream already finished.");
+
+        pending[pendingLength++] = (byte)b;
+        if (pendingLength == pending.length) {
+            writeLine(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    /** Write part of an array of octets. */
+    public void write(byte b[], int off, int len) throws IOException {
+        if (finished) throw new IOException("Base64 stream already finished.");
+
+        // top up any partial line first
+        if (pendingLength > 0) {
+            int n = Math.min(len, pending.length - pendingLength);
+            System.arraycopy(b, off, pending, pendingLength, n);
+            pendingLength += n;
+            off += n;
+            len -= n;
+
+            if (pendingLength < pending.length)
+                return;
+
+            writeLine(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+
+        // whole lines straight from the caller's array
+        while (len >= pending.length) {
+            writeLine(b, off, pending.length);
+            off += pending.length;
+            len -= pending.length;
+        }
+
+        System.arraycopy(b, off, pending, 0, len);
+        pendingLength = len;
+    }
+
+    /**
+     * <p>Write out the last (possibly partial) line.</p>
+     * <p>The underlying stream is left open. Nothing more can be written once the stream is finished.</p>
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+
+        // an empty message still gets a line ending, as with Base64.encode
+        if ((pendingLength > 0) || (empty))
+            writeLine(pending, 0, pendingLength);
+
+        pendingLength = 0;
+        finished = true;
+    }
+
+    /** Finish the encoding and close the underlying stream. */
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+    
+    /** Has the final line been written? */
+    protected boolean isFinished() {
+        return finished;
+    }
+
+    /** Encode up to a line worth of octets and write it out with a CR/LF. */
+    private void writeLine(byte data[], int off, int len) throws IOException {
+        int pos = Base64.encodeBlock(data, off, len, line, 0);
+        line[pos++] = '\r';
+        line[pos++] = '\n';
+
+        out.write(line, 0, pos);
+        empty = false;
+    }
+}
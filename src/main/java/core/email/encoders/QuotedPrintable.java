@@ -37,19 +37,24 @@ import java.io.*;
  * Quoted printable MIME encoding. </p>
  * <p>Quoted printable text is pretty much 7bit ascii, but has a line length limit of 76 chars. Long lines are truncated with a soft
  * line break "=" and special characters are =xx escaped.</p>
+ * <p>For streaming use see {@link QuotedPrintableOutputStream} and {@link QuotedPrintableInputStream}.</p>
  */
 public class QuotedPrintable {
 
-    /** The maximum line length */
-    private static final int MAX_LINE_LENGTH = 70;
-    
     /** 
      * <p>Takes an array of byte and returns the 7bit mime encoding of it.</p>
      * <p>Since the byte array should already be text, this primarily involves wrapping long lines with
      * soft line breaks ("=").</p>
      */
     public static byte[] encode(byte data[]) throws IOException {
-        throw new IOException("Method not implemented");
+        // most text needs little escaping, so allow a little over the input size
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + data.length / 16 + 16);
+        
+        QuotedPrintableOutputStream qp = new QuotedPrintableOutputStream(out);
+        qp.write(data);
+        qp.finish();
+        
+        return out.toByteArray();
     }
     
     /** 
@@ -57,45 +62,14 @@ public class QuotedPrintable {
      * <p>Returns the raw 7bit ascii version of the text.</p>
      */
     public static byte[] decode(byte data[]) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)));
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-        while (in.ready()) {
-            String s = in.readLine();
-
-            if (s.endsWith("=")) {
-                // handle soft line break
-                s = s.substring(0,s.length()-1);
-                out.write(decodeEscaping(s));
-            } else {
-                out.write(decodeEscaping(s));
-                out.write("\r\n".getBytes());
-            }
-        }
-
-        return out.toByteArray();
-    }
-    
-    /** Decode the =XX escaping contained inside a document. */
-    private static byte [] decodeEscaping(String line) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        
-        int n = 0;
-        while (n<line.length()) {
-            if (line.charAt(n)=='=') {
-                try {
-                    out.write(Integer.parseInt(line.substring(n+1,n+3), 16));
-                } catch (NumberFormatException nfe) {
-                    throw new IOException("Invalid quoted-printable encoded data");
-                }
-                
-                n+=3;
-            } else {
-                out.write(line.charAt(n));
-                n++;
-            }
-        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 2);
+        QuotedPrintableInputStream in = new QuotedPrintableInputStream(new ByteArrayInputStream(data));
         
+        byte buffer[] = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+
         return out.toByteArray();
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.email.encoders;
+import java.io.*;
+
+/**
+ * <p>An input stream filter that decodes quoted printable text read from the underlying stream.</p>
+ * <p>Soft line breaks are removed and =XX escapes converted back to octets. Hard line breaks (CR/LF, CR or 
+ * LF) are returned as CR/LF, and a final line without a line break is given one, as with 
+ * {@link QuotedPrintable#decode(byte[])}.</p>
+ */
+public class QuotedPrintableInputStream extends FilterInputStream {
+    
+    /** Size of the encoded data buffer. */
+    private static final int BUFFER_SIZE = 8192;
+    
+    /** Decoder states. */
+    private static final int TEXT = 0;
+    private static final int ESCAPE = 1;
+    private static final int ESCAPE_DIGIT = 2;
+    private static final int SOFT_BREAK_CR = 3;
+    private static final int HARD_BREAK_CR = 4;
+    
+    /** A lookup table converting a hex digit to its value, -1 if it is not a hex digit. */
+    private static final byte hexLUT[] = new byte[256];
+    
+    static {
+        for (int n = 0; n < 256; n++)
+            hexLUT[n] = -1;
+        
+        for (int n = 0; n < 10; n++)
+            hexLUT['0' + n] = (byte)n;
+        
+        for (int n = 0; n < 6; n++) {
+            hexLUT['A' + n] = (byte)(10 + n);
+            hexLUT['a' + n] = (byte)(10 + n);
+        }
+    }
+    
+    /** Encoded data read from the underlying stream. */
+    private byte encoded[] = new byte[BUFFER_SIZE];
+    
+    /** Decoded data not yet returned to the caller, a line break can double the size. */
+    private byte decoded[] = new byte[BUFFER_SIZE * 2 + 2];
+    
+    /** Number of valid octets in decoded. */
+    private int decodedLength = 0;
+    
+    /** Next octet in decoded to be returned. */
+    private int decodedPos = 0;
+    
+    /** Current decoder state. */
+    private int state = TEXT;
+    
+    /** Value of the first digit of an escape. */
+    private int firstDigit = 0;
+    
+    /** Set if anything has been written on the current line. */
+    private boolean lineOpen = false;
+    
+    /** Set when the underlying stream is exhausted. */
+    private boolean endOfStream = false;
+    
+    /** Creates a new quoted printable decoder reading from the given stream. */
+    public QuotedPrintableInputStream(InputStream in) {
+        super(in);
+    }
+    
+    /** Read a single decoded octet, or -1 at the end of the data. */
+    public int read() throws IOException {
+        while (decodedPos == decodedLength) {
+            if (endOfStream)
+                return -1;
+            
+            fill();
+        }
+        
+        return decoded[decodedPos++] & 0xFF;
+    }
+    
+    /** Read decoded octets into part of an array. */
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) return 0;
+        
+        int count = 0;
+        while (count < len) {
+            if (decodedPos == decodedLength) {
+                // don't block for more if we already have something to return
+                if ((endOfStream) || ((count > 0) && (in.available() <= 0)))
+                    break;
+                
+                fill();
+                continue;
+            }
+            
+            int n = Math.min(len - count, decodedLength - decodedPos);
+            System.arraycopy(decoded, decodedPos, b, off + count, n);
+            decodedPos += n;
+            count += n;
+        }
+        
+        if ((count == 0) && (endOfStream))
+            return -1;
+        
+        return count;
+    }
+    
+    /** Skip over decoded octets. */
+    public long skip(long n) throws IOException {
+        long count = 0;
+        while ((count < n) && (read() != -1))
+            count++;
+        
+        return count;
+    }
+    
+    /** Returns the number of decoded octets that can be read without blocking. */
+    public int available() throws IOException {
+        return decodedLength - decodedPos;
+    }
+    
+    /** Mark is not supported. */
+    public boolean markSupported() {
+        return false;
+    }
+    
+    /** Mark is not supported. */
+    public void mark(int readlimit) {
+    }
+    
+    /** Mark is not supported. */
+    public void reset() throws IOException {
+        throw new IOException("Mark/reset not supported on quoted printable streams.");
+    }
+    
+    /** Read the next buffer of encoded data and decode it. */
+    private void fill() throws IOException {
+        decodedPos = 0;
+        decodedLength = 0;
+        
+        int n = in.read(encoded, 0, encoded.length);
+        if (n == -1) {
+            endOfStream = true;
+            
+            if (state == ESCAPE_DIGIT)
+                throw new IOException("Invalid quoted-printable encoded data");
+            
+            // a trailing "=" is a soft line break, otherwise close off the last line 
+            if ((state == TEXT) && (lineOpen)) {
+                decoded[decodedLength++] = '\r';
+                decoded[decodedLength++] = '\n';
+            }
+            
+            return;
+        }
+        
+        byte out[] = decoded;
+        int pos = decodedLength;
+        
+        for (int i = 0; i < n; i++) {
+            int c = encoded[i] & 0xFF;
+            
+            switch (state) {
+                case TEXT :
+                    if (c == '=') {
+                        state = ESCAPE;
+                    } else if (c == '\r') {
+                        out[pos++] = '\r';
+                        out[pos++] = '\n';
+                        lineOpen = false;
+                        state = HARD_BREAK_CR;
+                    } else if (c == '\n') {
+                        out[pos++] = '\r';
+                        out[pos++] = '\n';
+                        lineOpen = false;
+                    } else {
+                        out[pos++] = (byte)c;
+                        lineOpen = true;
+                    }
+                    break;
+                    
+                case HARD_BREAK_CR :
+                    // swallow the LF of a CR/LF pair, otherwise handle as text
+                    state = TEXT;
+                    if (c != '\n')
+                        i--;
+                    break;
+                    
+                case ESCAPE :
+                    if (c == '\r') {
+                        lineOpen = false;
+                        state = SOFT_BREAK_CR;
+                    } else if (c == '\n') {
+                        lineOpen = false;
+                        state = TEXT;
+                    } else if (hexLUT[c] >= 0) {
+                        firstDigit = hexLUT[c];
+                        state = ESCAPE_DIGIT;
+                    } else {
+                        throw new IOException("Invalid quoted-printable encoded data");
+                    }
+                    break;
+                    
+                case ESCAPE_DIGIT :
+                    if (hexLUT[c] < 0)
+                        throw new IOException("Invalid quoted-printable encoded data");
+                    
+                    out[pos++] = (byte)((firstDigit << 4) | hexLUT[c]);
+                    lineOpen = true;
+                    state = TEXT;
+                    break;
+                    
+                case SOFT_BREAK_CR :
+                    state = TEXT;
+                    if (c != '\n')
+                        i--;
+                    break;
+            }
+        }
+        
+        decodedLength = pos;
+    }
+}
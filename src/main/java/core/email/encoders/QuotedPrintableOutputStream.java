@@ -0,0 +1,238 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.email.encoders;
+import java.io.*;
+
+/**
+ * <p>An output stream filter that quoted printable encodes text written to it.</p>
+ * <p>Line breaks in the text (CR/LF, or a bare LF) are written as hard CR/LF line breaks. Long lines are 
+ * wrapped with soft line breaks ("=") so that no output line is longer than 76 characters. Octets that are 
+ * not printable ascii, "=", and whitespace at the end of a line are =XX escaped.</p>
+ */
+public class QuotedPrintableOutputStream extends FilterOutputStream {
+    
+    /** The maximum length of an encoded line, including a soft line break. */
+    public static final int MAX_LINE_LENGTH = 76;
+    
+    /** Hex digits for escaping. */
+    private static final byte hex[] = { 
+        '0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F' 
+    };
+    
+    /** Octets that can be written as they are. */
+    private static final boolean literal[] = new boolean[256];
+    
+    static {
+        for (int n = 33; n <= 126; n++)
+            literal[n] = true;
+        
+        literal['='] = false;
+    }
+    
+    /** Encoded output waiting to be written to the underlying stream. */
+    private byte buffer[] = new byte[4096];
+    
+    /** Number of bytes in buffer. */
+    private int bufferLength = 0;
+    
+    /** Number of characters on the current output line. */
+    private int lineLength = 0;
+    
+    /** A space or tab held back until we know whether it ends a line, or -1. */
+    private int pendingWhitespace = -1;
+    
+    /** Set when a CR has been held back to see if a LF follows. */
+    private boolean pendingCR = false;
+    
+    /** Set once the stream has been finished. */
+    private boolean finished = false;
+    
+    /** Creates a new quoted printable encoder writing to the given stream. */
+    public QuotedPrintableOutputStream(OutputStream out) {
+        super(out);
+    }
+    
+    /** Write a single octet. */
+    public void write(int b) throws IOException {
+        if (finished) throw new IOException("Quoted printable stream already finished.");
+        
+        encode(b & 0xFF);
+    }
+    
+    /** Write part of an array of octets. */
+    public void write(byte b[], int off, int len) throws IOException {
+        if (finished) throw new IOException("Quoted printable stream already finished.");
+        
+        int end = off + len;
+        for (int n = off; n < end; n++)
+            encode(b[n] & 0xFF);
+    }
+    
+    /** Write out any buffered output. */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+    
+    /**
+     * <p>Write out anything held back.</p>
+     * <p>The underlying stream is left open. Nothing more can be written once the stream is finished.</p>
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        
+        if (pendingCR) {
+            pendingCR = false;
+            flushWhitespace(false);
+            escaped('\r');
+        }
+        
+        // whitespace at the very end would be lost in transport, so escape it
+        flushWhitespace(true);
+        flushBuffer();
+        
+        finished = true;
+    }
+    
+    /** Finish the encoding and close the underlying stream. */
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+    
+    /** Encode a single octet. */
+    private void encode(int b) throws IOException {
+        if (pendingCR) {
+            pendingCR = false;
+            
+            if (b == '\n') {
+                flushWhitespace(true);
+                hardBreak();
+                return;
+            }
+            
+            flushWhitespace(false);
+            escaped('\r');
+        }
+        
+        if (literal[b]) {
+            if (pendingWhitespace != -1)
+                flushWhitespace(false);
+            
+            if (lineLength + 1 >= MAX_LINE_LENGTH)
+                softBreak();
+            
+            buffer(b);
+            lineLength++;
+            return;
+        }
+        
+        switch (b) {
+            case '\r' : 
+                pendingCR = true; 
+                break;
+            case '\n' :
+                flushWhitespace(true);
+                hardBreak();
+                break;
+            case ' ' :
+            case '\t' :
+                flushWhitespace(false);
+                pendingWhitespace = b;
+                break;
+            default :
+                flushWhitespace(false);
+                escaped(b);
+        }
+    }
+    
+    /** Write out held back whitespace, escaping it if it ends a line. */
+    private void flushWhitespace(boolean endOfLine) throws IOException {
+        if (pendingWhitespace == -1)
+            return;
+        
+        int b = pendingWhitespace;
+        pendingWhitespace = -1;
+        
+        if (endOfLine) {
+            escaped(b);
+        } else {
+            if (lineLength + 1 >= MAX_LINE_LENGTH)
+                softBreak();
+            
+            buffer(b);
+            lineLength++;
+        }
+    }
+    
+    /** Write an =XX escaped octet. */
+    private void escaped(int b) throws IOException {
+        if (lineLength + 3 >= MAX_LINE_LENGTH)
+            softBreak();
+        
+        buffer('=');
+        buffer(hex[b >>> 4]);
+        buffer(hex[b & 0x0F]);
+        lineLength += 3;
+    }
+    
+    /** Write a CR/LF line break from the text. */
+    private void hardBreak() throws IOException {
+        buffer('\r');
+        buffer('\n');
+        lineLength = 0;
+    }
+    
+    /** Wrap a long line. */
+    private void softBreak() throws IOException {
+        buffer('=');
+        buffer('\r');
+        buffer('\n');
+        lineLength = 0;
+    }
+    
+    /** Add a byte to the output buffer. */
+    private void buffer(int b) throws IOException {
+        if (bufferLength == buffer.length)
+            flushBuffer();
+        
+        buffer[bufferLength++] = (byte)b;
+    }
+    
+    /** Write the output buffer to the underlying stream. */
+    private void flushBuffer() throws IOException {
+        if (bufferLength > 0) {
+            out.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.email.util;
+import java.io.*;
+
+/**
+ * <p>A part of an email, held as offsets into the byte array the email was read into.</p>
+ * <p>The MIME parser uses regions so that it can find the parts of an email in a single pass without copying them.
+ * The bytes of a part are only copied out of the email when they are asked for, and can be written to a stream 
+ * without being copied at all.</p>
+ * <p>A region is made of one or more ranges of whole lines of the source. In a text region the lines are returned 
+ * with CRLF line endings whatever they were in the source, and the last line always has one. Where the source 
+ * already uses CRLF throughout, which is nearly always the case for email, this needs no conversion.</p>
+ * <p>Lines are split as IOUtil.readLine does, a CR ends a line and the byte after it is skipped.</p>
+ * @see LineReader
+ */
+public class ByteRegion {
+
+    /** The email the region is part of. */
+    private byte source[];
+
+    /** Start and end offsets of each range. */
+    private int ranges[];
+
+    /** Number of ranges. */
+    private int count;
+
+    /** Is this a text region, returned with CRLF line endings? */
+    private boolean text;
+
+    /** Number of bytes in the region, -1 if not yet worked out. */
+    private int length = -1;
+
+    /** Does the source need its line endings converted? Only valid once length is worked out. */
+    private boolean converted;
+
+    /**
+     * <p>Create a region covering part of a byte array, which is returned exactly as it is.</p>
+     * @param source The source array, which must not be changed while the region is in use.
+     * @param start Offset of the first byte.
+     * @param end Offset after the last byte.
+     */
+    public ByteRegion(byte source[], int start, int end) {
+        this(source, false);
+        add(start, end);
+    }
+
+    /**
+     * <p>Create an empty region of a byte array.</p>
+     * @param source The source array, which must not be changed while the region is in use.
+     * @param text Should the lines of the region be returned with CRLF line endings?
+     */
+    public ByteRegion(byte source[], boolean text) {
+        this.source = source;
+        this.text = text;
+        ranges = new int[4];
+    }
+
+    /**
+     * <p>Add a range of the source to the end of the region.</p>
+     * <p>In a text region the range must be made of whole lines.</p>
+     */
+    public void add(int start, int end) {
+        if (start >= end)
+            return;
+
+        length = -1;
+
+        // join on to the last range if there is no gap
+        if ((count > 0) && (ranges[count * 2 - 1] == start)) {
+            ranges[count * 2 - 1] = end;
+            return;
+        }
+
+        if (count * 2 == ranges.length) {
+            int tmp[] = new int[ranges.length * 2];
+            System.arraycopy(ranges, 0, tmp, 0, ranges.length);
+            ranges = tmp;
+        }
+
+        ranges[count * 2] = start;
+        ranges[count * 2 + 1] = end;
+        count++;
+    }
+
+    /** Return the source array. */
+    public byte[] getSource() {
+        return source;
+    }
+
+    /** Return the number of ranges. */
+    public int getRangeCount() {
+        return count;
+    }
+
+    /** Return the start offset of a range. */
+    public int getRangeStart(int range) {
+        return ranges[range * 2];
+    }
+
+    /** Return the end offset of a range. */
+    public int getRangeEnd(int range) {
+        return ranges[range * 2 + 1];
+    }
+
+    /** Is this a text region, returned with CRLF line endings? */
+    public boolean isText() {
+        return text;
+    }
+
+    /**
+     * <p>Return the offset of the end of the line starting at an offset, before its line ending.</p>
+     * @param data The array to look in.
+     * @param start Offset of the start of the line.
+     * @param end Offset of the end of the data.
+     */
+    public static int findLineEnd(byte data[], int start, int end) {
+        int n = start;
+        while ((n < end) && (data[n] != '\r') && (data[n] != '\n'))
+            n++;
+
+        return n;
+    }
+
+    /**
+     * <p>Return the offset of the next line, given the offset of the end of this one.</p>
+     * <p>A LF is skipped, as is a CR and the byte after it.</p>
+     */
+    public static int skipLineEnding(byte data[], int lineEnd, int end) {
+        if (lineEnd >= end)
+            return end;
+
+        if (data[lineEnd] == '\r')
+            return Math.min(lineEnd + 2, end);
+
+        return lineEnd + 1;
+    }
+
+    /** Returns true if the line ending at an offset is a CRLF. */
+    private static boolean isCRLF(byte data[], int lineEnd, int end) {
+        return (lineEnd + 1 < end) && (data[lineEnd] == '\r') && (data[lineEnd + 1] == '\n');
+    }
+
+    /** Return the number of bytes in the region. */
+    public int length() {
+        if (length >= 0)
+            return length;
+
+        int raw = 0;
+        int lines = 0;
+        converted = false;
+
+        for (int r = 0; r < count; r++) {
+            int start = ranges[r * 2];
+            int end = ranges[r * 2 + 1];
+            raw += end - start;
+
+            if (!text)
+                continue;
+
+            // work out the length with every line ending replaced by CRLF
+            int pos = start;
+            while (pos < end) {
+                int lineEnd = findLineEnd(source, pos, end);
+                if (!isCRLF(source, lineEnd, end))
+                    converted = true;
+
+                int next = skipLineEnding(source, lineEnd, end);
+                lines += (lineEnd - pos) + 2;
+                pos = next;
+            }
+        }
+
+        length = (converted) ? lines : raw;
+        return length;
+    }
+
+    /** Returns true if the region is empty. */
+    public boolean isEmpty() {
+        return length() == 0;
+    }
+
+    /** Copy the region out of the source into a new array. */
+    public byte[] toByteArray() {
+        byte data[] = new byte[length()];
+
+        if (!converted) {
+            int pos = 0;
+            for (int r = 0; r < count; r++) {
+                int size = ranges[r * 2 + 1] - ranges[r * 2];
+                System.arraycopy(source, ranges[r * 2], data, pos, size);
+                pos += size;
+            }
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            try {
+                writeConverted(out);
+            } catch (IOException e) {
+                // can't happen writing to memory
+                throw new IllegalStateException(e.getMessage());
+            }
+            data = out.toByteArray();
+        }
+
+        return data;
+    }
+
+    /**
+     * <p>Write the region to a stream.</p>
+     * <p>Unless line endings have to be converted, the ranges are written straight from the source.</p>
+     * @throws IOException if the stream could not be written to.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (length() == 0)
+            return;
+
+        if (!converted) {
+            for (int r = 0; r < count; r++)
+                out.write(source, ranges[r * 2], ranges[r * 2 + 1] - ranges[r * 2]);
+        } else {
+            writeConverted(out);
+        }
+    }
+
+    /** Write the lines of the region each followed by a CRLF. */
+    private void writeConverted(OutputStream out) throws IOException {
+        for (int r = 0; r < count; r++) {
+            int pos = ranges[r * 2];
+            int end = ranges[r * 2 + 1];
+
+            while (pos < end) {
+                int lineEnd = findLineEnd(source, pos, end);
+                out.write(source, pos, lineEnd - pos);
+                out.write('\r');
+                out.write('\n');
+                pos = skipLineEnding(source, lineEnd, end);
+            }
+        }
+    }
+}
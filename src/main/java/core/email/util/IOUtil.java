@@ -41,15 +41,46 @@ public class IOUtil {
     public IOUtil() {
     }
     
+    /** Number of bytes read at a time by readLine from streams supporting mark. */
+    private static final int LINE_CHUNK = 256;
+    
     /** 
      * <p>Read a full line from an input stream, returning it in a string. </p>
      * <p>Written because there are issues attached to using buffered readers in this context. </p>
+     * <p>If the stream supports mark, the line is read in chunks and the stream reset to just after the line, 
+     * rather than reading a byte at a time.</p>
      * @param in The stream to read from.
      * @return the line, or a zero length string if like was empty (other than end of line chars).
      */
     public static String readLine(InputStream in) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         
+        if (in.markSupported()) {
+            byte chunk[] = new byte[LINE_CHUNK];
+
+            while (true) {
+                in.mark(LINE_CHUNK);
+                int len = in.read(chunk);
+                if (len <= 0)
+                    break;
+
+                int n = 0;
+                while ((n < len) && (chunk[n] != '\r') && (chunk[n] != '\n'))
+                    n++;
+                out.write(chunk, 0, n);
+
+                if (n < len) {
+                    // put back what follows the end of line
+                    in.reset();
+                    in.skip(n + 1);
+                    if (chunk[n] == '\r') in.read(); // if there is a \r then next line will be a \n.. so skip it
+                    break;
+                }
+            }
+
+            return out.toString();
+        }
+        
         int b = in.read();
         while ( (b != '\r') && (b != '\n') && (b != -1)) {
             out.write(b);
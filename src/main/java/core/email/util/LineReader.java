@@ -0,0 +1,158 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.email.util;
+
+/**
+ * <p>Reads a ByteRegion a line at a time without copying it.</p>
+ * <p>After nextLine the current line is available as offsets into the region's source. Once the region has been
+ * read, nextLine returns an empty line, in the same way as IOUtil.readLine at the end of a stream.</p>
+ * @see ByteRegion
+ */
+public class LineReader {
+
+    /** The region being read. */
+    private ByteRegion region;
+
+    /** The range being read. */
+    private int range;
+
+    /** Offset of the next line. */
+    private int pos;
+
+    /** Offset of the start of the current line. */
+    private int lineStart;
+
+    /** Offset of the end of the current line, before its line ending. */
+    private int lineEnd;
+
+    /** Offset of the start of the next line. */
+    private int nextLine;
+
+    /** Create a reader positioned at the start of a region. */
+    public LineReader(ByteRegion region) {
+        this.region = region;
+        range = 0;
+        pos = (region.getRangeCount() > 0) ? region.getRangeStart(0) : 0;
+    }
+
+    /** Returns true if there is anything left to read. */
+    public boolean available() {
+        return (range < region.getRangeCount()) && ((pos < region.getRangeEnd(range)) || (range + 1 < region.getRangeCount()));
+    }
+
+    /** Move on to the next line. */
+    public void nextLine() {
+        // move on to the next range if this one has been read
+        if ((range < region.getRangeCount()) && (pos >= region.getRangeEnd(range)) && (range + 1 < region.getRangeCount())) {
+            range++;
+            pos = region.getRangeStart(range);
+        }
+
+        if (!available()) {
+            lineStart = lineEnd = nextLine = pos;
+            return;
+        }
+
+        byte source[] = region.getSource();
+        int end = region.getRangeEnd(range);
+
+        lineStart = pos;
+        lineEnd = ByteRegion.findLineEnd(source, pos, end);
+        nextLine = ByteRegion.skipLineEnding(source, lineEnd, end);
+        pos = nextLine;
+    }
+
+    /** Return the source array of the region being read. */
+    public byte[] getSource() {
+        return region.getSource();
+    }
+
+    /** Return the offset of the start of the current line. */
+    public int getLineStart() {
+        return lineStart;
+    }
+
+    /** Return the offset of the end of the current line, before its line ending. */
+    public int getLineEnd() {
+        return lineEnd;
+    }
+
+    /** Return the offset of the end of the current line, after its line ending. */
+    public int getNextLineStart() {
+        return nextLine;
+    }
+
+    /** Returns true if the current line is empty. */
+    public boolean isEmptyLine() {
+        return lineStart == lineEnd;
+    }
+
+    /** Return the first byte of the current line, or -1 if it is empty. */
+    public int firstByte() {
+        return (lineStart < lineEnd) ? region.getSource()[lineStart] & 0xff : -1;
+    }
+
+    /** Returns true if the current line ends with the given bytes. */
+    public boolean endsWith(byte suffix[]) {
+        if (lineEnd - lineStart < suffix.length)
+            return false;
+
+        byte source[] = region.getSource();
+        int start = lineEnd - suffix.length;
+        for (int n = 0; n < suffix.length; n++) {
+            if (source[start + n] != suffix[n])
+                return false;
+        }
+
+        return true;
+    }
+
+    /** Return the current line as a string, in the platform's default character set. */
+    public String getLine() {
+        return new String(region.getSource(), lineStart, lineEnd - lineStart);
+    }
+
+    /** Add the current line, with its line ending, to the end of another region of the same source. */
+    public void copyLineTo(ByteRegion to) {
+        to.add(lineStart, nextLine);
+    }
+
+    /** Return a region of everything not yet read, which is a text region if this one is. */
+    public ByteRegion remainder() {
+        ByteRegion rest = new ByteRegion(region.getSource(), region.isText());
+
+        for (int r = range; r < region.getRangeCount(); r++)
+            rest.add((r == range) ? pos : region.getRangeStart(r), region.getRangeEnd(r));
+
+        return rest;
+    }
+}
@@ -53,8 +53,6 @@ public class MailParserTools {
      * @throws EmailDataFormatException if the mime header was badly formatted.
      */
     public static String getBoundary(EmailHeader [] head) throws EmailDataFormatException {
-        String boundary = null;
-        
         EmailHeader bheader = null;
         for (int n = 0; n < head.length; n++)
             if (head[n].getTagName().compareToIgnoreCase("content-type")==0) {
@@ -62,21 +60,10 @@ public class MailParserTools {
                 break;
             }
         
-        //EmailHeader [] bheader = getHeader("content-type"); 
         if (bheader == null)
             return null;
 
-        try {
-            String contenttype = bheader.getTagValue();
-            if (contenttype.indexOf("boundary=\"")!= -1) {
-                boundary = contenttype.substring(contenttype.indexOf("boundary=\"")+10);
-                boundary = boundary.substring(0, boundary.indexOf("\""));
-            }
-        } catch (IndexOutOfBoundsException i) {
-            throw new EmailDataFormatException("Email has a badly formatted MIME header!");
-        }
-        
-        return boundary;
+        return bheader.getParameter("boundary");
     }
 
 }
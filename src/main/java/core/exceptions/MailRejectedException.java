@@ -0,0 +1,58 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.exceptions;
+
+/**
+ * <p>The email server refused an email.</p>
+ * <p>The exception records whether the refusal was permanent (eg an SMTP 5xx reply), in which case sending the 
+ * email again will not help, or temporary (eg an SMTP 4xx reply).</p>
+ */
+public class MailRejectedException extends ProxyServerCoreException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Will the server refuse the email again? */
+    private boolean permanent;
+
+    /** Creates a new instance of MailRejectedException with a clarification message that can be retrieved by getMessage(). 
+     * @param permanent True if the server will refuse the email again.
+     */
+    public MailRejectedException(String message, boolean permanent) {
+        super(message);
+        this.permanent = permanent;
+    }
+
+    /** Returns true if the server will refuse the email again, false if it may be accepted later. */
+    public boolean isPermanent() {
+        return permanent;
+    }
+}
@@ -47,6 +47,23 @@ public abstract interface RecvPipeClientInterface
      * @throws PipeCommunicationException if there was a general communication problem.
      */
     public abstract IPTPCommandResponse awaitCommandResponse() throws NoMappingPossibleException, PipeCommunicationException;
+
+    /**
+     * <p>Returns true if several commands can be sent to the server before the responses are read.</p>
+     * <p>If this returns true, sendCommands may be used and awaitCommandResponse then returns the responses in the 
+     * same order. It must only be called when no commands are waiting for a response.</p>
+     * @throws NoMappingPossibleException if no mapping is possible (future enhancement, see protocol spec).
+     * @throws PipeCommunicationException if there was a general communication problem.
+     */
+    public abstract boolean canPipeline() throws NoMappingPossibleException, PipeCommunicationException;
+
+    /**
+     * <p>Send several commands to the email server at once, without waiting for the responses.</p>
+     * @param commands[] The internal proxy protocol commands to send.
+     * @throws NoMappingPossibleException if no mapping is possible (future enhancement, see protocol spec).
+     * @throws PipeCommunicationException if there was a general communication problem.
+     */
+    public abstract void sendCommands(IPTPCommand commands[]) throws NoMappingPossibleException, PipeCommunicationException;
  
     /**
      * <p> Returns true if the socket is connected to the email server.</p>
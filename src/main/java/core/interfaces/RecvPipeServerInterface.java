@@ -37,6 +37,13 @@ public abstract interface RecvPipeServerInterface
      * @throws PipeCommunicationException if there was a general communication problem.
      */
     public abstract IPTPCommand awaitCommand() throws NoMappingPossibleException, PipeCommunicationException;
+
+    /**
+     * <p>Returns true if a command from the client is waiting to be read, ie awaitCommand will not block.</p>
+     * <p>This lets the pipe collect commands the client has pipelined.</p>
+     * @throws PipeCommunicationException if there was a general communication problem.
+     */
+    public abstract boolean isCommandWaiting() throws PipeCommunicationException;
     
     /**
      * <p>Send a command response back to the client.</p>
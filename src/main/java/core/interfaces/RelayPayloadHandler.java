@@ -0,0 +1,53 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.interfaces;
+import core.email.EmailEnvelope;
+import core.exceptions.*;
+
+/**
+ * <p>Processes the emails a core.RelayPipe intercepts.</p>
+ * <p>The relay pipe passes everything else between the email client and server as it is, so this is the only
+ * place encryption / decryption and signing / verification are done. It is called on the worker pool, so several 
+ * emails may be processed at once.</p>
+ * @see core.RelayPipe
+ */
+public interface RelayPayloadHandler {
+
+    /**
+     * <p>Process an email.</p>
+     * @param envelope The sender and recipients of an email being sent, or null for an email being retrieved.
+     * @param payload The email, with any dot stuffing removed.
+     * @return The email to pass on.
+     * @throws ProxyServerCoreException if the email could not be processed or the user aborted it.
+     */
+    public abstract byte[] processPayload(EmailEnvelope envelope, byte payload[]) throws ProxyServerCoreException;
+}
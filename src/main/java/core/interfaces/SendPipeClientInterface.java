@@ -47,6 +47,16 @@ public abstract interface SendPipeClientInterface
      * @throws PipeCommunicationException if there was a general communication problem.
      */
     public abstract IPTPCommandResponse awaitCommandResponse() throws NoMappingPossibleException, PipeCommunicationException;
+
+    /**
+     * <p>Send a group of commands to the email server and return a response for each, in order.</p>
+     * <p>This is used to send a complete email transaction (MAIL, RCPT..., DATA, SendData). Implementations may
+     * send several commands before reading the responses, if the server supports it, to save round trips.</p>
+     * @param commands[] The internal proxy protocol commands to send.
+     * @throws NoMappingPossibleException if no mapping is possible (future enhancement, see protocol spec).
+     * @throws PipeCommunicationException if there was a general communication problem.
+     */
+    public abstract IPTPCommandResponse [] sendCommands(IPTPCommand commands[]) throws NoMappingPossibleException, PipeCommunicationException;
  
     /**
      * <p> Returns true if the socket is connected to the email server.</p>
@@ -36,9 +36,40 @@ package core.iptp;
  */
 public abstract class IPTP {
     
+    /** <p>Character set used to carry raw message data in strings.</p>
+     * <p>ISO-8859-1 maps every byte to the character with the same value and back again, so 8 bit message data 
+     * passes through the proxy unchanged whatever the platform default character set is.</p>
+     */
+    public static final String DATA_CHARSET = "ISO-8859-1";
+
     /** Version of protocol this command is built on */
     private final String iptpVersion = "1.0";
 
+    /** Convert raw message data to a string, one character per byte. */
+    public static String dataToString(byte data[]) {
+        return dataToString(data, 0, data.length);
+    }
+
+    /** Convert part of some raw message data to a string, one character per byte. */
+    public static String dataToString(byte data[], int off, int len) {
+        try {
+            return new String(data, off, len, DATA_CHARSET);
+        } catch (java.io.UnsupportedEncodingException e) {
+            // every JVM supports ISO-8859-1
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /** Convert a string of raw message data back to bytes. */
+    public static byte[] stringToData(String data) {
+        try {
+            return data.getBytes(DATA_CHARSET);
+        } catch (java.io.UnsupportedEncodingException e) {
+            // every JVM supports ISO-8859-1
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
     /** Return the version of iptp this command is using. */
     public String getIPTPVersion() {
         return iptpVersion;
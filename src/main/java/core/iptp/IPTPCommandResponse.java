@@ -43,6 +43,9 @@ public abstract class IPTPCommandResponse extends IPTP {
 
     /** Was the last command (command that this is responding to) successful or not? */
     private boolean success;
+
+    /** If the command failed, will it fail again if it is retried? */
+    private boolean permanentFailure;
     
     public IPTPCommandResponse() {
     }
@@ -67,5 +70,19 @@ public abstract class IPTPCommandResponse extends IPTP {
     protected void setOk(boolean suc) {
         success = suc;
     }
+
+    /** Returns true if the command failed and retrying it later will not help (eg an SMTP 5xx reply). 
+     * @see #setPermanentFailure(boolean)
+     */
+    public boolean isPermanentFailure() {
+        return (!success) && (permanentFailure);
+    }
+
+    /** Set the flag denoting whether a failure is permanent or may go away if the command is retried later. 
+     * @see #isPermanentFailure()
+     */
+    public void setPermanentFailure(boolean permanent) {
+        permanentFailure = permanent;
+    }
     
 }
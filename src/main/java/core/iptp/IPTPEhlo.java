@@ -0,0 +1,60 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.iptp;
+
+/**
+ * <p>Greet the mail server and ask what extensions it supports.</p>
+ * <p>This maps to the SMTP EHLO command (RFC 2821). The response lists the extensions the server supports.</p>
+ * @see IPTPEhloResponse
+ */
+public class IPTPEhlo extends IPTPCommand {
+
+    /** The name the client gave for itself. */
+    private String domain;
+
+    /** Creates a new instance of IPTPEhlo
+     * @param domain The name of the client machine.
+     */
+    public IPTPEhlo(String domain) {
+        setDomain(domain);
+    }
+
+    /** Set the name of the client machine. */
+    protected void setDomain(String domain) {
+        this.domain = domain;
+    }
+
+    /** Get the name of the client machine. */
+    public String getDomain() {
+        return domain;
+    }
+}
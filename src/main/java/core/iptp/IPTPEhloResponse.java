@@ -0,0 +1,98 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.iptp;
+import java.util.Vector;
+
+/**
+ * <p>The mail server's greeting and list of supported extensions.</p>
+ * <p>Each extension is held as the keyword followed by any parameters, eg "SIZE 10240000". If the command failed
+ * the raw response is kept so that it can be passed back to the client.</p>
+ * @see IPTPEhlo
+ */
+public class IPTPEhloResponse extends IPTPCommandResponse {
+
+    /** The server's greeting (the text of the first line). */
+    private String greeting;
+
+    /** The supported extensions. */
+    private Vector extensions;
+
+    /** The raw response, for failures. */
+    private String rawResponse;
+
+    /** Creates a new instance of IPTPEhloResponse for a successful EHLO.
+     * @param greeting The server greeting.
+     * @param extensions The supported extensions, one String per extension.
+     */
+    public IPTPEhloResponse(String greeting, Vector extensions) {
+        setOk(true);
+        this.greeting = greeting;
+        this.extensions = extensions;
+        rawResponse = "";
+    }
+
+    /** Creates a new instance of IPTPEhloResponse for a failed EHLO.
+     * @param rawresponse The raw response from the server.
+     */
+    public IPTPEhloResponse(String rawresponse) {
+        setOk(false);
+        greeting = "";
+        extensions = new Vector();
+        rawResponse = rawresponse;
+    }
+
+    /** Get the server greeting. */
+    public String getGreeting() {
+        return greeting;
+    }
+
+    /** Get the supported extensions. */
+    public Vector getExtensions() {
+        return extensions;
+    }
+
+    /** Get the raw response, only set if the command failed. */
+    public String getRawResponse() {
+        return rawResponse;
+    }
+
+    /** Return true if the server supports the given extension keyword (eg "PIPELINING"). */
+    public boolean hasExtension(String keyword) {
+        for (int n = 0; n < extensions.size(); n++) {
+            String ext = (String)extensions.elementAt(n);
+            if ((ext.equalsIgnoreCase(keyword)) || (ext.toUpperCase().startsWith(keyword.toUpperCase() + " ")))
+                return true;
+        }
+
+        return false;
+    }
+}
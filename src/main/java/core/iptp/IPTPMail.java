@@ -39,10 +39,19 @@ public class IPTPMail extends IPTPCommand {
     
     /** The sender address */
     private String sender;
+
+    /** Extra MAIL parameters (eg "BODY=8BITMIME"), or an empty string */
+    private String parameters;
     
     /** Creates a new instance of IPTPMail */
     public IPTPMail(String from) {
+        this(from, "");
+    }
+
+    /** Creates a new instance of IPTPMail with extra parameters (eg "BODY=8BITMIME") */
+    public IPTPMail(String from, String params) {
         setSender(from);
+        parameters = params;
     }
  
     /** Set the sender address */
@@ -54,5 +63,10 @@ public class IPTPMail extends IPTPCommand {
     public String getSender() {
         return sender;
     }
+
+    /** Get the extra MAIL parameters, or an empty string if there are none */
+    public String getParameters() {
+        return parameters;
+    }
     
 }
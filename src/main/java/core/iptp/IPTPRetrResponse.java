@@ -36,8 +36,8 @@ package core.iptp;
  */
 public class IPTPRetrResponse extends IPTPCommandResponse {
 
-    /** The email. */
-    private String email;
+    /** The email, as raw bytes. */
+    private byte email[];
 
     /** Creates a new instance of IPTPRetrResponse
      * @param isok Was the command successful or not
@@ -48,14 +48,27 @@ public class IPTPRetrResponse extends IPTPCommandResponse {
         setMessage(message);
     }
 
+    /** Creates a new instance of IPTPRetrResponse
+     * @param isok Was the command successful or not
+     * @param message The raw email message, which is not copied
+     */
+    public IPTPRetrResponse(boolean isok, byte message[]) {
+        setOk(isok);
+        email = message;
+    }
+
     /** Set the email message. */
     protected void setMessage(String message) {
-        //email = new String(message);
-        email = message;
+        email = stringToData(message);
     }
 
     /** Get the email message. */
     public String getMessage() {
+        return dataToString(email);
+    }
+
+    /** Get the email message as raw bytes. The array is not copied, so must not be changed. */
+    public byte[] getMessageBytes() {
         return email;
     }
 
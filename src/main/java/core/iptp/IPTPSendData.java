@@ -30,6 +30,7 @@
  */
 
 package core.iptp;
+import core.email.Email;
 
 /**
  * <p>Send an email.</p>
@@ -40,23 +41,48 @@ package core.iptp;
  */
 public class IPTPSendData extends IPTPCommand {
     
-    /** The message. */
-    private String message;
+    /** The message, as raw bytes, or null if the command carries an Email. */
+    private byte message[];
+
+    /** The message, for an email to be written straight to the server, or null. */
+    private Email email;
     
     /** Creates a new instance of IPTPSendData */
     public IPTPSendData(String data) {
         setMessageData(data);
     }
+
+    /** Creates a new instance of IPTPSendData from raw message bytes, which are not copied. */
+    public IPTPSendData(byte data[]) {
+        message = data;
+    }
+
+    /** 
+     * <p>Creates a new instance of IPTPSendData for an email, which the protocol handler writes straight to the server
+     * with Email.writeTo rather than from a copy of the whole message.</p>
+     */
+    public IPTPSendData(Email email) {
+        this.email = email;
+    }
     
     /** Set the message data. */
     protected void setMessageData(String data) {
-        //message = new String(data);
-        message = data;
+        message = stringToData(data);
     }
     
-    /** Get the message data. */
+    /** Get the message data, or null if the command carries an Email. */
     public String getMessageData() {
+        return (message!=null) ? dataToString(message) : null;
+    }
+
+    /** Get the message data as raw bytes, or null if the command carries an Email. The array is not copied, so must not be changed. */
+    public byte[] getMessageBytes() {
         return message;
     }
+
+    /** Get the email to send, or null if the command carries raw bytes. */
+    public Email getEmail() {
+        return email;
+    }
     
 }
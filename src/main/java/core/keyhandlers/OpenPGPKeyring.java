@@ -295,7 +295,7 @@ public abstract class OpenPGPKeyring extends KeyFile {
                                 uidPacket = uid;
                                 
                                 // is this the key we were looking for?
-                                if (compareByteArrays(uid.getID(), id.getDefaultID())) {
+                                if (((OpenPGPStandardKeyIdentifier)id).matches(uid.getID())) {
                                     // it is 
                                     
                                     // is it a secret key (attempt to decrypt it if it is)
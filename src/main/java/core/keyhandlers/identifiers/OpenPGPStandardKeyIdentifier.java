@@ -35,6 +35,7 @@ import core.exceptions.KeyHandlerException;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.String;
+import java.util.Arrays;
 import java.util.StringTokenizer;
 
 /**
@@ -136,4 +137,29 @@ public class OpenPGPStandardKeyIdentifier implements KeyIdentifier {
         
     }
     
+    /**
+     * <p>Does a key's user ID match this identifier?</p>
+     * <p>A user ID matches if it is the same as getDefaultID(). An identifier made from just an address, as
+     * mail is addressed in the SMTP envelope, also matches a user ID with a name in front of that address, 
+     * ignoring the address' case, so that "bob@example.com" finds the key for "Bob &lt;Bob@Example.com&gt;".</p>
+     * @param userID The user ID packet data.
+     * @throws KeyHandlerException if something went wrong.
+     */
+    public boolean matches(byte userID[]) throws KeyHandlerException {
+        byte id[] = getDefaultID();
+        if (Arrays.equals(userID, id))
+            return true;
+        
+        if (getName().length > 0)
+            return false;
+        
+        String uid = new String(userID);
+        int start = uid.lastIndexOf('<');
+        int end = uid.lastIndexOf('>');
+        if ((start < 0) || (end < start))
+            return false;
+        
+        return uid.substring(start + 1, end).trim().equalsIgnoreCase(new String(getEmailAddress()).trim());
+    }
+    
 }
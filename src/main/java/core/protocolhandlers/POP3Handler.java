@@ -41,11 +41,69 @@ import java.util.*;
 /**
  * <p>POP3 Protocol handler.</p>
  * <p>This class is used with the IncomingEmailPipe to provide translation to and from the POP3 protocol.</p>
+ * <p>Commands may be pipelined (RFC 2449): several can be sent to the server before the responses are read, and 
+ * each response is matched to its command in order. PIPELINING is always listed in the capabilities passed back to
+ * the email client, as the proxy answers the client's commands in the order they arrive.</p>
  * <p>Implements IPTP v1</p>
  * @see core.IncomingEmailPipe
  */
 public class POP3Handler extends ProtocolHandler implements RecvPipeServerInterface, RecvPipeClientInterface {
 
+    /** Commands sent to the server that have not been answered yet, oldest first. */
+    private Vector pendingCommands = new Vector();
+
+    /** Capabilities listed by the server in reply to CAPA (one per line), or null if not known yet. */
+    private String serverCapabilities;
+
+    /**
+     * Connects the pipe to the email server.
+     * @throws PipeCommunicationException if there was a problem connecting to the remote computer.
+     */
+    public void connect() throws PipeCommunicationException {
+        pendingCommands.clear();
+        serverCapabilities = null;
+        super.connect();
+    }
+
+    /**
+     * <p>Returns true if several commands can be sent to the server before reading the responses.</p>
+     * <p>The first time this is called it asks the server for its capabilities, unless the client has already 
+     * done so. It must only be called when there are no commands waiting for a response.</p>
+     * @throws NoMappingPossibleException if no mapping is possible (future enhancement, see protocol spec).
+     * @throws PipeCommunicationException if there was a general communication problem.
+     */
+    public boolean canPipeline() throws NoMappingPossibleException, PipeCommunicationException {
+        if (serverCapabilities==null) {
+            sendCommand(new IPTPCapabilities());
+            awaitCommandResponse();
+
+            if (serverCapabilities==null)
+                serverCapabilities = ""; // CAPA not supported, don't ask again
+        }
+
+        return hasCapability(serverCapabilities, "PIPELINING");
+    }
+
+    /**
+     * <p>Returns true if there is a command from the email client waiting to be read.</p>
+     * @throws PipeCommunicationException if there was a general communication problem.
+     */
+    public boolean isCommandWaiting() throws PipeCommunicationException {
+        return isClientDataWaiting();
+    }
+
+    /** Returns true if a capability listing (one capability per line) includes the keyword. */
+    private static boolean hasCapability(String listing, String keyword) {
+        StringTokenizer st = new StringTokenizer(listing, "\r\n");
+        while (st.hasMoreTokens()) {
+            String capability = st.nextToken().trim();
+            if ((capability.equalsIgnoreCase(keyword)) || (capability.toUpperCase().startsWith(keyword.toUpperCase() + " ")))
+                return true;
+        }
+
+        return false;
+    }
+
    /**
      * <p>Awaits a command from the client.</p>
      * <p>This currently only maps selective commands (email transfer etc), otherwise the transaction is just relayed. See the Proxy Protocol
@@ -57,77 +115,41 @@ public class POP3Handler extends ProtocolHandler implements RecvPipeServerInterf
      */
     public IPTPCommand awaitCommand() throws NoMappingPossibleException, PipeCommunicationException {
 
-        IPTPCommand command = null;
+        // read the line from the client, it is matched where it is rather than being split into strings
+        ProtocolInputStream in = awaitRawCommandBytes();
+        if (in==null)
+            throw new PipeCommunicationException("Connection closed by client.");
+        byte line[] = in.getLine();
+        int length = in.getLineLength();
 
-        // read string from client
-        String rawcommandstring = awaitRawCommandLine();
-        rawcommandstring += "\r\n";
+        // find the command and its first parameter
+        int start = Verb.skipDelimiters(line, 0, length, true);
+        int end = Verb.wordEnd(line, start, length, true);
+        int parameterStart = Verb.skipDelimiters(line, end, length, true);
+        int parameterEnd = Verb.wordEnd(line, parameterStart, length, true);
+        boolean parameter = (parameterStart < parameterEnd);
 
-        // tokenize to obtain command
-        StringTokenizer st = new StringTokenizer(rawcommandstring,"\n\r -");
-        int numTokens = st.countTokens();
-        Vector tokens = new Vector();
-        while (st.hasMoreTokens()) {
-            tokens.add(st.nextToken());
+        switch (Verb.pack(line, start, end)) {
+            case Verb.USER:
+                return new IPTPUser((parameter) ? in.getLineString(parameterStart, parameterEnd) : "");
+            case Verb.PASS:
+                return new IPTPPass((parameter) ? in.getLineString(parameterStart, parameterEnd) : "");
+            case Verb.RETR:
+                return new IPTPRetr((parameter) ? Verb.parseInt(line, parameterStart, parameterEnd) : 0);
+            case Verb.LIST:
+                return (parameter) ? new IPTPList(Verb.parseInt(line, parameterStart, parameterEnd)) : new IPTPList();
+            case Verb.UIDL:
+                return (parameter) ? new IPTPUidl(Verb.parseInt(line, parameterStart, parameterEnd)) : new IPTPUidl();
+            case Verb.CAPA:
+                // request a list of capabilities from the server (rfc 2449)
+                return new IPTPCapabilities();
+            case Verb.QUIT:
+                // Tell the proxy server that mail transfer is about to begin
+                return new IPTPQuit();
+            default:
+                // relay everything else
+                return new IPTPRelay(in.getLineString() + "\r\n");
         }
-
-        // match command
-        String rawcommand = (String)tokens.elementAt(0);
-
-        if(rawcommand.compareToIgnoreCase("user")==0) {
-            if (numTokens>1) {
-                command = new IPTPUser((String)tokens.elementAt(1));
-            }
-            else {
-                command = new IPTPUser("");
-            }
-        }
-        else if(rawcommand.compareToIgnoreCase("pass")==0) {
-            if (numTokens>1) {
-                command = new IPTPPass((String)tokens.elementAt(1));
-            }
-            else {
-                command = new IPTPPass("");
-            }
-        }
-        else if(rawcommand.compareToIgnoreCase("retr")==0) {
-            if (numTokens>1) {
-                command = new IPTPRetr(Integer.parseInt((String)tokens.elementAt(1)));
-            }
-            else {
-                command = new IPTPRetr(0);
-            }
-        }
-        else if(rawcommand.compareToIgnoreCase("list")==0) {
-            if (numTokens>1) {
-                command = new IPTPList(Integer.parseInt((String)tokens.elementAt(1)));
-            }
-            else {
-                command = new IPTPList();
-            }
-        }
-        else if(rawcommand.compareToIgnoreCase("uidl")==0) {
-            if (numTokens>1) {
-                command = new IPTPUidl(Integer.parseInt((String)tokens.elementAt(1)));
-            }
-            else {
-                command = new IPTPUidl();
-            }
-        }
-        else if(rawcommand.compareToIgnoreCase("capa")==0) {
-            // request a list of capabilities from the server (rfc 2449)
-        	command = new IPTPCapabilities();
-        }
-        else if (rawcommand.compareToIgnoreCase("quit")==0) {
-            // Tell the proxy server that mail transfer is about to begin
-            command = new IPTPQuit();
-        }
-        else {
-            // relay everything else
-            command = new IPTPRelay(rawcommandstring);
-        }
-
-        return command;
     }
 
     /**
@@ -141,161 +163,148 @@ public class POP3Handler extends ProtocolHandler implements RecvPipeServerInterf
      */
     public IPTPCommandResponse awaitCommandResponse() throws NoMappingPossibleException, PipeCommunicationException {
 
-        IPTPCommandResponse commandresponse = null;
+        // match the response to the oldest command waiting for one
+        if (pendingCommands.size()>0)
+            lastCommandToServer = (IPTPCommand)pendingCommands.remove(0);
 
-        // read incoming data and obtain whether this should read more than one line (a bit of a hack)
-        String rawcommandresponsestring = awaitRawCommandResponseLine();
-        rawcommandresponsestring += "\r\n";
+        // read the status line, in POP3 only +ve results can be multiline
+        ProtocolInputStream in = awaitRawCommandResponseBytes();
+        if (in==null)
+            throw new PipeCommunicationException("Connection closed by server.");
+        boolean ok = (Verb.first(in.getLine(), 0, in.getLineLength(), false) == Verb.OK);
 
-        // tokenize the initial/only line received to obtain command
-        StringTokenizer st = new StringTokenizer(rawcommandresponsestring,"\n\r ");
-        int numTokens = st.countTokens();
-        Vector tokens = new Vector();
-        while (st.hasMoreTokens()) {
-            tokens.add(st.nextToken());
-        }
+        // the parser for the command reads the rest of the response
+        ResponseParser parser = null;
+        if (lastCommandToServer!=null)
+            parser = (ResponseParser)responseParsers.get(lastCommandToServer.getClass());
+        if (parser==null)
+            parser = relayParser;
 
-        // match command
-        String rawcommandresponse = (String)tokens.elementAt(0);
+        return parser.parse(this, ok);
+    }
 
-        // test whether we have to read multiple lines. In POP3 only +ve results can be multiline
-        if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-            if ((lastCommandToServer!=null) && (lastCommandToServer.isExpectingMultilineResponse())) {
-                // expecting multiline response
-                StringBuffer buffer = new StringBuffer();
-                buffer.append(rawcommandresponsestring);
+    /** Return the text of the status line after the status indicator. */
+    private String getStatusText() {
+        byte line[] = clientInputStream.getLine();
+        int length = clientInputStream.getLineLength();
 
-                do {
-                    rawcommandresponsestring = awaitRawCommandResponseLine();
-                    buffer.append(rawcommandresponsestring);
-                    buffer.append("\r\n");
-                } while (rawcommandresponsestring.compareToIgnoreCase(".")!=0);
+        int start = 0;
+        while ((start < length) && (line[start] != ' '))
+            start++;
 
-                rawcommandresponsestring = buffer.toString();
-            }
-        }
-        
-        // construct command
-        if (lastCommandToServer instanceof IPTPUser) {
-            // test if command was ok or not
-            if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-                // ok
-                commandresponse = new IPTPUserResponse(true);
-            }
-            else {
-                // not
-                commandresponse = new IPTPUserResponse(false);
-            }
-        }
-        else if(lastCommandToServer instanceof IPTPPass) {
-            // test if command was ok or not
-            if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-                // ok
-                commandresponse = new IPTPPassResponse(true);
-            }
-            else {
-                // not
-                commandresponse = new IPTPPassResponse(false);
-            }
-        }
-        else if(lastCommandToServer instanceof IPTPRetr) {
-            // test if command was ok or not
-            if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-                String message;
+        return clientInputStream.getLineString((start < length) ? start + 1 : 0, length);
+    }
 
-                // ok
-                try {
-                    message = rawcommandresponsestring.substring(rawcommandresponsestring.indexOf("\r\n")+2, rawcommandresponsestring.indexOf("\r\n.\r\n"));
-                } catch (IndexOutOfBoundsException e) {
-                    message = "";
-                }
+    /** Read the lines of a multi line response, joined by CRLF without a line ending after the last line. */
+    private String awaitListing() throws PipeCommunicationException {
+        byte listing[] = awaitRawCommandResponseData(false, false);
+        if (listing==null)
+            throw new PipeCommunicationException("Connection closed by server.");
 
-                commandresponse = new IPTPRetrResponse(true, message);
-            }
-            else {
-                // not
-                commandresponse = new IPTPRetrResponse(false, "");
-            }
-        }
-        else if (lastCommandToServer instanceof IPTPList) {
-            IPTPList c = (IPTPList)lastCommandToServer;
-            if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-                if (c.isExpectingMultilineResponse()) {
-                	if (rawcommandresponsestring.indexOf("\r\n") == rawcommandresponsestring.indexOf("\r\n.\r\n")) { // empty multiline response
-                		commandresponse = new IPTPListResponse(true);
-                	} else {
-                		commandresponse = new IPTPListResponse(true, rawcommandresponsestring.substring(rawcommandresponsestring.indexOf("\r\n")+2, rawcommandresponsestring.indexOf("\r\n.\r\n")));
-                	}
-                }
-                else {
-                    commandresponse = new IPTPListResponse(true, rawcommandresponsestring.substring(rawcommandresponsestring.indexOf(" ")+1, rawcommandresponsestring.indexOf("\r\n")));
-                }
-            }
-            else {
-                // not
-                commandresponse = new IPTPListResponse(false);
-            }
+        return IPTP.dataToString(listing);
+    }
+
+    /**
+     * <p>Reads the rest of a response to one type of command, once the status line has been read, and converts it.</p>
+     */
+    private static abstract class ResponseParser {
+        /**
+         * @param handler The handler whose server stream holds the status line.
+         * @param ok Was the status +OK?
+         */
+        abstract IPTPCommandResponse parse(POP3Handler handler, boolean ok) throws PipeCommunicationException;
+    }
+
+    /**
+     * <p>Parses a scan listing, which is multi line when no message number was given.</p>
+     */
+    private static abstract class ListingParser extends ResponseParser {
+        IPTPCommandResponse parse(POP3Handler handler, boolean ok) throws PipeCommunicationException {
+            if (!ok)
+                return create(handler, false, null);
+
+            if (!handler.lastCommandToServer.isExpectingMultilineResponse())
+                return create(handler, true, handler.getStatusText());
+
+            String listing = handler.awaitListing();
+            return create(handler, true, (listing.length()==0) ? null : listing);
         }
-        else if (lastCommandToServer instanceof IPTPUidl) {
-            IPTPUidl c = (IPTPUidl)lastCommandToServer;
-            if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-                if (c.isExpectingMultilineResponse()) {
-                	if (rawcommandresponsestring.indexOf("\r\n") == rawcommandresponsestring.indexOf("\r\n.\r\n")) { // empty multiline response
-                		commandresponse = new IPTPUidlResponse(true);
-                	} else {
-                		commandresponse = new IPTPUidlResponse(true, rawcommandresponsestring.substring(rawcommandresponsestring.indexOf("\r\n")+2, rawcommandresponsestring.indexOf("\r\n.\r\n")));
-                	}
-                }
-                else {
-                    commandresponse = new IPTPUidlResponse(true, rawcommandresponsestring.substring(rawcommandresponsestring.indexOf(" ")+1, rawcommandresponsestring.indexOf("\r\n")));
-                }
-            }
-            else {
-                // not
-                commandresponse = new IPTPUidlResponse(false);
-            }
+
+        /** Create the response, listing is null if there was none. */
+        abstract IPTPCommandResponse create(POP3Handler handler, boolean ok, String listing);
+    }
+
+    /** Parsers for the responses to each type of mapped command, keyed by the command's class. */
+    private static final Hashtable responseParsers = new Hashtable();
+
+    /** Parser for the responses to relayed commands, which are passed back as they are. */
+    private static final ResponseParser relayParser = new ResponseParser() {
+        IPTPCommandResponse parse(POP3Handler handler, boolean ok) throws PipeCommunicationException {
+            String status = handler.clientInputStream.getLineString() + "\r\n";
+            if ((!ok) || (handler.lastCommandToServer==null) || (!handler.lastCommandToServer.isExpectingMultilineResponse()))
+                return new IPTPRelayResponse(ok, status);
+
+            byte body[] = handler.awaitRawCommandResponseData(false, true);
+            if (body==null)
+                throw new PipeCommunicationException("Connection closed by server.");
+            return new IPTPRelayResponse(true, status + IPTP.dataToString(body) + ".\r\n");
         }
-        else if (lastCommandToServer instanceof IPTPCapabilities) {
-        	IPTPCapabilities c = (IPTPCapabilities)lastCommandToServer;
-            if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-                if (c.isExpectingMultilineResponse()) {
-                	if (rawcommandresponsestring.indexOf("\r\n") == rawcommandresponsestring.indexOf("\r\n.\r\n")) { // empty multiline response
-                		commandresponse = new IPTPCapabilitiesResponse(true);
-                	} else {
-                		commandresponse = new IPTPCapabilitiesResponse(true, rawcommandresponsestring.substring(rawcommandresponsestring.indexOf("\r\n")+2, rawcommandresponsestring.indexOf("\r\n.\r\n")));
-                	}
-                }
-                else {
-                    commandresponse = new IPTPCapabilitiesResponse(true, rawcommandresponsestring.substring(rawcommandresponsestring.indexOf(" ")+1, rawcommandresponsestring.indexOf("\r\n")));
-                }
+    };
+
+    static {
+        responseParsers.put(IPTPUser.class, new ResponseParser() {
+            IPTPCommandResponse parse(POP3Handler handler, boolean ok) {
+                return new IPTPUserResponse(ok);
             }
-            else {
-                // not
-                commandresponse = new IPTPCapabilitiesResponse(false);
+        });
+
+        responseParsers.put(IPTPPass.class, new ResponseParser() {
+            IPTPCommandResponse parse(POP3Handler handler, boolean ok) {
+                return new IPTPPassResponse(ok);
             }
-        }
-        else if(lastCommandToServer instanceof IPTPQuit) {
-            // quit response
-            // test if command was ok or not
-            if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-                // ok
-                commandresponse = new IPTPQuitResponse(true);
+        });
+
+        responseParsers.put(IPTPQuit.class, new ResponseParser() {
+            IPTPCommandResponse parse(POP3Handler handler, boolean ok) {
+                return new IPTPQuitResponse(ok);
             }
-            else {
-                // not
-                commandresponse = new IPTPQuitResponse(false);
+        });
+
+        responseParsers.put(IPTPRetr.class, new ResponseParser() {
+            IPTPCommandResponse parse(POP3Handler handler, boolean ok) throws PipeCommunicationException {
+                if (!ok)
+                    return new IPTPRetrResponse(false, "");
+
+                // the email is kept as bytes, and passed on as it was received
+                byte message[] = handler.awaitRawCommandResponseData(false, false);
+                if (message==null)
+                    throw new PipeCommunicationException("Connection closed by server.");
+                return new IPTPRetrResponse(true, message);
             }
-        }
-        else {
-            if (rawcommandresponse.compareToIgnoreCase("+OK")==0) {
-                commandresponse = new IPTPRelayResponse(true, rawcommandresponsestring);
+        });
+
+        responseParsers.put(IPTPList.class, new ListingParser() {
+            IPTPCommandResponse create(POP3Handler handler, boolean ok, String listing) {
+                return (listing==null) ? new IPTPListResponse(ok) : new IPTPListResponse(true, listing);
             }
-            else {
-                commandresponse = new IPTPRelayResponse(false, rawcommandresponsestring);
+        });
+
+        responseParsers.put(IPTPUidl.class, new ListingParser() {
+            IPTPCommandResponse create(POP3Handler handler, boolean ok, String listing) {
+                return (listing==null) ? new IPTPUidlResponse(ok) : new IPTPUidlResponse(true, listing);
             }
-        }
+        });
+
+        responseParsers.put(IPTPCapabilities.class, new ListingParser() {
+            IPTPCommandResponse create(POP3Handler handler, boolean ok, String listing) {
+                if (listing==null)
+                    return new IPTPCapabilitiesResponse(ok);
 
-        return commandresponse;
+                IPTPCapabilitiesResponse response = new IPTPCapabilitiesResponse(true, listing);
+                handler.serverCapabilities = response.getScanListing();
+                return response;
+            }
+        });
     }
 
     /**
@@ -311,43 +320,76 @@ public class POP3Handler extends ProtocolHandler implements RecvPipeServerInterf
     public void sendCommand(IPTPCommand command) throws NoMappingPossibleException, PipeCommunicationException {
 
         lastCommandToServer = command;
+        pendingCommands.add(command);
+
+        String raw = formatCommand(command);
+        if (raw!=null)
+            sendRawCommand(raw);
+    }
+
+    /**
+     * <p>Send several commands to the email server at once, without waiting for the responses.</p>
+     * <p>Only use this if canPipeline returns true. The responses are read with awaitCommandResponse, in order.</p>
+     * @param commands[] The commands to send.
+     * @throws NoMappingPossibleException if no mapping is possible (future enhancement, see protocol spec).
+     * @throws PipeCommunicationException if there was a general communication problem.
+     */
+    public void sendCommands(IPTPCommand commands[]) throws NoMappingPossibleException, PipeCommunicationException {
+        for (int n = 0; n < commands.length; n++) {
+            lastCommandToServer = commands[n];
+            pendingCommands.add(commands[n]);
+
+            String raw = formatCommand(commands[n]);
+            if (raw!=null)
+                writeRawCommand(raw);
+        }
+
+        flushRawCommands();
+    }
 
+    /**
+     * <p>Convert a command to the raw text sent to the server.</p>
+     * @return The raw command, or null if the command has no POP3 equivalent.
+     */
+    private String formatCommand(IPTPCommand command) {
         if (command instanceof IPTPUser) {
             IPTPUser c = (IPTPUser)command;
-            sendRawCommand("USER " + c.getUserID() + "\r\n");
+            return "USER " + c.getUserID() + "\r\n";
         }
         else if (command instanceof IPTPPass) {
             IPTPPass c = (IPTPPass)command;
-            sendRawCommand("PASS " + c.getPasscode() + "\r\n");
+            return "PASS " + c.getPasscode() + "\r\n";
         }
         else if (command instanceof IPTPRetr) {
             IPTPRetr c = (IPTPRetr)command;
-            sendRawCommand("RETR " + c.getMessageNo() + "\r\n");
+            return "RETR " + c.getMessageNo() + "\r\n";
         }
         else if (command instanceof IPTPList) {
             IPTPList c = (IPTPList)command;
             if (c.getMessageNo() >= 0)
-                sendRawCommand("LIST " + c.getMessageNo() + "\r\n");
+                return "LIST " + c.getMessageNo() + "\r\n";
             else
-                sendRawCommand("LIST\r\n");
+                return "LIST\r\n";
         }
         else if (command instanceof IPTPUidl) {
             IPTPUidl c = (IPTPUidl)command;
             if (c.getMessageNo() >= 0)
-                sendRawCommand("UIDL " + c.getMessageNo() + "\r\n");
+                return "UIDL " + c.getMessageNo() + "\r\n";
             else
-                sendRawCommand("UIDL\r\n");
+                return "UIDL\r\n";
         }
         else if (command instanceof IPTPCapabilities) {
-        	sendRawCommand("CAPA\r\n");
+        	return "CAPA\r\n";
         }
         else if(command instanceof IPTPQuit) {
-            sendRawCommand("QUIT\r\n");
+            return "QUIT\r\n";
         }
         else if (command instanceof IPTPRelay) {
             IPTPRelay c = (IPTPRelay)command;
-            sendRawCommand(c.getRelay());
+            return c.getRelay();
         }
+
+        return null;
     }
 
     /**
@@ -386,7 +428,7 @@ public class POP3Handler extends ProtocolHandler implements RecvPipeServerInterf
                 // ok
                 IPTPRetrResponse r = (IPTPRetrResponse)commandResponse;
                 //sendRawCommandResponse("+OK " + String.valueOf(r.getSize()) + " octets\r\n" + r.getMessage());
-                sendRawCommandResponse("+OK Message follows.\r\n" + r.getMessage() + "\r\n.\r\n");
+                sendRawCommandResponse("+OK Message follows.\r\n", r.getMessageBytes(), "\r\n.\r\n");
             }
             else {
                 // error
@@ -445,19 +487,13 @@ public class POP3Handler extends ProtocolHandler implements RecvPipeServerInterf
             if (commandResponse.isOk()) {
                 // ok
             	IPTPCapabilitiesResponse r = (IPTPCapabilitiesResponse)commandResponse;
-            	IPTPCapabilities c = (IPTPCapabilities)lastCommandToServer;
-                if (c.isExpectingMultilineResponse()) {
-                    // multiline
-                	if (r.getScanListing().length() == 0) { // avoid blank lines
-                		sendRawCommandResponse("+OK\r\n.\r\n"); 
-                	} else {
-                		sendRawCommandResponse("+OK\r\n" + r.getScanListing() + "\r\n.\r\n"); 
-                	}
-                }
-                else {
-                    // single line
-                    sendRawCommandResponse("+OK " + r.getScanListing() + "\r\n");
-                }
+
+                // CAPA is always multiline. Commands from the client are answered in order, so pipelining always works
+                String listing = r.getScanListing();
+                if (!hasCapability(listing, "PIPELINING"))
+                    listing = (listing.length() == 0) ? "PIPELINING" : listing + "\r\nPIPELINING";
+
+                sendRawCommandResponse("+OK\r\n" + listing + "\r\n.\r\n"); 
 
             }
             else {
@@ -0,0 +1,179 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.protocolhandlers;
+import core.exceptions.*;
+
+/**
+ * <p>Relays a POP3 session, intercepting only the emails the client retrieves (RFC 1939).</p>
+ * <p>Every command is passed to the server as it is. Each response is passed back as it is, except that the 
+ * email in a successful RETR response is collected and processed first, and STLS is left out of the CAPA 
+ * listing, as the proxy can not see into a TLS session. The proxy answers STLS itself.</p>
+ * <p>The client may pipeline commands (RFC 2449), the responses are matched to them in order.</p>
+ * @see POP3Handler
+ */
+public class POP3Relay extends RelayProtocol {
+
+    /** Single line response. */
+    private static final int SINGLE = 0;
+    /** Multiline response if it is positive. */
+    private static final int MULTI = 1;
+    /** Response to RETR. */
+    private static final int RETR = 2;
+    /** Response to CAPA. */
+    private static final int CAPA = 3;
+    /** Response to AUTH with a mechanism, which may be a challenge. */
+    private static final int AUTH = 4;
+
+    /** Has the first line of a multiline response been read? */
+    private boolean inResponse;
+    /** Is the email in the current response being collected? */
+    private boolean collecting;
+    /** Is the next line from the client an answer to an AUTH challenge rather than a command? */
+    private boolean challenged;
+
+    /** Create the protocol state for a new session, which starts with the server's greeting. */
+    public POP3Relay() {
+        expect(null, SINGLE, null);
+    }
+
+    public RelayProtocol newSession() {
+        return new POP3Relay();
+    }
+
+    public void clientLine(RelaySession session, byte line[], int off, int len) throws ProxyServerCoreException {
+        if (challenged) {
+            challenged = false;
+            session.send(RelaySession.SERVER, line, off, len);
+            return;
+        }
+
+        int kind = SINGLE;
+
+        switch (Verb.first(line, off, len, false)) {
+            case Verb.RETR:
+                kind = RETR;
+                break;
+            case Verb.TOP:
+                kind = MULTI;
+                break;
+            case Verb.LIST:
+            case Verb.UIDL:
+                kind = (hasArgument(line, off, len)) ? SINGLE : MULTI;
+                break;
+            case Verb.CAPA:
+                kind = CAPA;
+                break;
+            case Verb.AUTH:
+                kind = (hasArgument(line, off, len)) ? AUTH : MULTI;
+                break;
+            case Verb.STLS:
+                answer(session, "-ERR TLS is not available through the proxy.\r\n");
+                return;
+        }
+
+        expect(session, kind, null);
+        session.send(RelaySession.SERVER, line, off, len);
+    }
+
+    public void serverLine(RelaySession session, byte line[], int off, int len) throws ProxyServerCoreException {
+        int kind = getExpectedKind();
+
+        if (kind == LOCAL) {
+            // not asked for, pass it on
+            session.send(RelaySession.CLIENT, line, off, len);
+            return;
+        }
+
+        if (!inResponse) {
+            boolean ok = (Verb.first(line, off, len, false) == Verb.OK);
+
+            if ((kind == AUTH) && (!ok) && (len > 0) && (line[off] == '+')) {
+                // a challenge, the client's answer comes next
+                session.send(RelaySession.CLIENT, line, off, len);
+                challenged = true;
+                return;
+            }
+
+            if ((kind == RETR) && (ok)) {
+                // the status line is replaced once the email has been processed
+                inResponse = true;
+                collecting = true;
+                startPayload();
+                return;
+            }
+
+            session.send(RelaySession.CLIENT, line, off, len);
+            if ((ok) && ((kind == MULTI) || (kind == CAPA)))
+                inResponse = true;
+            else
+                answered(session);
+            return;
+        }
+
+        if (isDotLine(line, off, len)) {
+            if (collecting) {
+                collecting = false;
+                session.pause(RelaySession.SERVER);
+                session.submitPayload(null, takePayload());
+                return;
+            }
+
+            session.send(RelaySession.CLIENT, line, off, len);
+            endResponse(session);
+            return;
+        }
+
+        if (collecting)
+            appendPayload(line, off, len);
+        else if ((kind != CAPA) || (!isKeyword(line, off, len, "STLS")))
+            session.send(RelaySession.CLIENT, line, off, len);
+    }
+
+    public void payloadProcessed(RelaySession session, byte data[]) throws ProxyServerCoreException {
+        session.send(RelaySession.CLIENT, "+OK Message follows.\r\n");
+        session.sendDotTerminated(RelaySession.CLIENT, data);
+        endResponse(session);
+        session.resume(RelaySession.SERVER);
+    }
+
+    public void payloadFailed(RelaySession session, String message) throws ProxyServerCoreException {
+        session.send(RelaySession.CLIENT, "-ERR " + toResponseText(message) + "\r\n");
+        endResponse(session);
+        session.resume(RelaySession.SERVER);
+    }
+
+    /** The current multiline response has been passed on. */
+    private void endResponse(RelaySession session) {
+        inResponse = false;
+        answered(session);
+    }
+}
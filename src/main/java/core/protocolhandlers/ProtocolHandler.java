@@ -32,6 +32,8 @@
 package core.protocolhandlers;
 import core.exceptions.*;
 import core.iptp.*;
+import core.email.Email;
+import system.Metrics;
 import java.net.*;
 import java.io.*;
 
@@ -40,6 +42,8 @@ import java.io.*;
  * <p>This class provides low level methods and fields common to all protocol handlers.</p>
  * <p>It provides a common set of functions that make up the protocol transport layer.</p>
  * <p>Primarily this implements the low level methods of the Recv* and Send* interfaces.</p>
+ * <p>Both connections are read and written as bytes, a line at a time, so that email data passes through without
+ * being converted to and from characters.</p>
  * @see core.interfaces.RecvPipeClientInterface
  * @see core.interfaces.RecvPipeServerInterface
  * @see core.interfaces.SendPipeClientInterface
@@ -57,9 +61,9 @@ public abstract class ProtocolHandler {
     /** Socket to connect to remote machine with */
     protected Socket clientSocket;
     /** Stream to read from server */
-    protected BufferedReader clientInputStream;
+    protected ProtocolInputStream clientInputStream;
     /** Stream to write to server */
-    protected BufferedWriter clientOutputStream;
+    protected ProtocolOutputStream clientOutputStream;
 
     /** Port to listen for connection on */
     protected int listenPort;
@@ -68,9 +72,9 @@ public abstract class ProtocolHandler {
     /** Socket returned by serverSocket.accept() */
     protected Socket emailClientConnection;
     /** Stream to read from client */
-    protected BufferedReader serverInputStream;
+    protected ProtocolInputStream serverInputStream;
     /** Stream to write to client */
-    protected BufferedWriter serverOutputStream;
+    protected ProtocolOutputStream serverOutputStream;
 
     /** True if the we are connected to the server */
     private boolean clientConnected = false;
@@ -98,8 +102,8 @@ public abstract class ProtocolHandler {
         try {
             clientSocket = null;
             clientSocket = new Socket(connectHostname, connectPort);
-            clientInputStream = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            clientOutputStream = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+            clientInputStream = new ProtocolInputStream(clientSocket.getInputStream());
+            clientOutputStream = new ProtocolOutputStream(clientSocket.getOutputStream());
         } catch (IOException e) {
             clientConnected = false;
             throw new PipeCommunicationException("Could not connect to host, " + e.getMessage());
@@ -121,8 +125,8 @@ public abstract class ProtocolHandler {
             serverSocket = new ServerSocket(listenPort);
             emailClientConnection = serverSocket.accept();
 
-            serverInputStream = new BufferedReader(new InputStreamReader(emailClientConnection.getInputStream()));
-            serverOutputStream = new BufferedWriter(new OutputStreamWriter(emailClientConnection.getOutputStream()));
+            serverInputStream = new ProtocolInputStream(emailClientConnection.getInputStream());
+            serverOutputStream = new ProtocolOutputStream(emailClientConnection.getOutputStream());
 
             InetAddress i = emailClientConnection.getInetAddress();
             byte[] b = i.getAddress();
@@ -195,6 +199,21 @@ public abstract class ProtocolHandler {
         return emailClientConnected;
     }
 
+    /**
+     * <p> Returns true if data from the client is waiting to be read.</p>
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected boolean isClientDataWaiting() throws PipeCommunicationException {
+        if (emailClientConnection==null)
+            throw new PipeCommunicationException("Client socket not connected.");
+
+        try {
+            return serverInputStream.ready();
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
     /**
      * <p> Reads a single command line from the client, performing no protocol conversion.</p>
      * <p> Multiline responses must be explicitly tested for and read line by line. </p>
@@ -209,7 +228,7 @@ public abstract class ProtocolHandler {
 
         try {
 
-            data = serverInputStream.readLine();
+            data = serverInputStream.readLineString();
 
         } catch (IOException e) {
             throw new PipeCommunicationException(e.getMessage());
@@ -233,7 +252,7 @@ public abstract class ProtocolHandler {
 
         try {
 
-            data = clientInputStream.readLine();
+            data = clientInputStream.readLineString();
 
         } catch (IOException e) {
             throw new PipeCommunicationException(e.getMessage());
@@ -242,6 +261,82 @@ public abstract class ProtocolHandler {
         return data;
     }
 
+    /**
+     * <p>Reads a single command line from the client into the stream's line buffer, without making a string of it.</p>
+     * @return the stream holding the line (see ProtocolInputStream.getLine), or null if the client closed the connection.
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected ProtocolInputStream awaitRawCommandBytes() throws PipeCommunicationException {
+        if (emailClientConnection==null)
+            throw new PipeCommunicationException("Client socket not connected.");
+
+        try {
+            return (serverInputStream.readLine()) ? serverInputStream : null;
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Await a command line reply from the server into the stream's line buffer, without making a string of it.</p>
+     * @return the stream holding the line (see ProtocolInputStream.getLine), or null if the server closed the connection.
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected ProtocolInputStream awaitRawCommandResponseBytes() throws PipeCommunicationException {
+        if (clientSocket==null)
+            throw new PipeCommunicationException("Socket not connected to server.");
+
+        try {
+            return (clientInputStream.readLine()) ? clientInputStream : null;
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Read multi line data from the client, up to the line holding a single dot.</p>
+     * @param unstuff Remove dot stuffing from the data.
+     * @param lastLineEnding Should the last line of the data have a line ending?
+     * @return the data with CRLF line endings, or null if the client closed the connection first.
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected byte [] awaitRawCommandData(boolean unstuff, boolean lastLineEnding) throws PipeCommunicationException {
+        if (emailClientConnection==null)
+            throw new PipeCommunicationException("Client socket not connected.");
+
+        long start = Metrics.start();
+        try {
+            byte data[] = serverInputStream.readDotTerminated(unstuff, lastLineEnding);
+            if (data != null)
+                Metrics.stop(Metrics.SOCKET_READ, start, data.length);
+            return data;
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Read multi line data from the server, up to the line holding a single dot.</p>
+     * @param unstuff Remove dot stuffing from the data.
+     * @param lastLineEnding Should the last line of the data have a line ending?
+     * @return the data with CRLF line endings, or null if the server closed the connection first.
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected byte [] awaitRawCommandResponseData(boolean unstuff, boolean lastLineEnding) throws PipeCommunicationException {
+        if (clientSocket==null)
+            throw new PipeCommunicationException("Socket not connected to server.");
+
+        long start = Metrics.start();
+        try {
+            byte data[] = clientInputStream.readDotTerminated(unstuff, lastLineEnding);
+            if (data != null)
+                Metrics.stop(Metrics.SOCKET_READ, start, data.length);
+            return data;
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
     /**
      * <p>Send a raw command string to the server with absolutely no protocol conversion.</p>
      * @throws PipeCommunicationException if there was a problem.
@@ -252,11 +347,87 @@ public abstract class ProtocolHandler {
         if (clientSocket==null)
             throw new PipeCommunicationException("Socket not connected to server.");
 
+        long start = Metrics.start();
         try {
             clientOutputStream.write(command);
 
             clientOutputStream.flush();
 
+            Metrics.stop(Metrics.UPSTREAM_SEND, start, command.length());
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Write a raw command string for the server without sending it yet, so that several commands can be sent 
+     * together by flushRawCommands.</p>
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected void writeRawCommand(String command) throws PipeCommunicationException {
+        if (clientSocket==null)
+            throw new PipeCommunicationException("Socket not connected to server.");
+
+        try {
+            clientOutputStream.write(command);
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Write data such as an email for the server without sending it yet.</p>
+     * @param dotStuff Double any dot at the start of a line, as multi line data ended by a dot needs.
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected void writeRawCommandData(byte data[], boolean dotStuff) throws PipeCommunicationException {
+        if (clientSocket==null)
+            throw new PipeCommunicationException("Socket not connected to server.");
+
+        long start = Metrics.start();
+        try {
+            if (dotStuff)
+                clientOutputStream.writeDotStuffed(data);
+            else
+                clientOutputStream.write(data);
+            Metrics.stop(Metrics.UPSTREAM_SEND, start, data.length);
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Write an email for the server without sending it yet, dot stuffed.</p>
+     * <p>The email is written a part at a time with Email.writeTo, so the whole message is never copied into one array.</p>
+     * @throws PipeCommunicationException if there was a problem, or the email could not be written out.
+     */
+    protected void writeRawCommandEmail(Email email) throws PipeCommunicationException {
+        if (clientSocket==null)
+            throw new PipeCommunicationException("Socket not connected to server.");
+
+        long start = Metrics.start();
+        try {
+            email.writeTo(clientOutputStream.dotStuffing());
+            Metrics.stop(Metrics.UPSTREAM_SEND, start);
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        } catch (EmailDataFormatException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Send everything written by writeRawCommand and writeRawCommandData to the server.</p>
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected void flushRawCommands() throws PipeCommunicationException {
+        if (clientSocket==null)
+            throw new PipeCommunicationException("Socket not connected to server.");
+
+        long start = Metrics.start();
+        try {
+            clientOutputStream.flush();
+            Metrics.stop(Metrics.UPSTREAM_SEND, start);
         } catch (IOException e) {
             throw new PipeCommunicationException(e.getMessage());
         }
@@ -281,4 +452,31 @@ public abstract class ProtocolHandler {
             throw new PipeCommunicationException(e.getMessage());
         }
     }
+
+    /**
+     * <p>Send a command response to the client with data in the middle of it, such as an email, with no protocol 
+     * conversion.</p>
+     * <p>The data is written straight from the array.</p>
+     * @param head Text to send before the data.
+     * @param data The data.
+     * @param tail Text to send after the data.
+     * @throws PipeCommunicationException if there was a problem.
+     */
+    protected void sendRawCommandResponse(String head, byte data[], String tail) throws PipeCommunicationException {
+        // talk to client
+
+        if (emailClientConnection==null)
+            throw new PipeCommunicationException("Client socket not connected.");
+
+        try {
+            serverOutputStream.write(head);
+            serverOutputStream.write(data);
+            serverOutputStream.write(tail);
+
+            serverOutputStream.flush();
+
+        } catch (IOException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,226 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.protocolhandlers;
+import core.iptp.*;
+import java.io.*;
+
+/**
+ * <p>Reads a protocol stream a line at a time, without converting it to characters.</p>
+ * <p>Lines end with CRLF, CR or LF, as they do for BufferedReader. The current line is held in an array that is 
+ * reused for each line, so reading a line does not create any objects unless it is asked for as a string. Multi 
+ * line data such as an email is collected straight into a byte array.</p>
+ * @see ProtocolOutputStream
+ */
+public class ProtocolInputStream {
+
+    /** Size of the read buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The stream being read. */
+    private InputStream in;
+
+    /** Bytes read from the stream. */
+    private byte buffer[] = new byte[BUFFER_SIZE];
+
+    /** Offset of the next byte in the buffer. */
+    private int pos;
+
+    /** Number of bytes in the buffer. */
+    private int limit;
+
+    /** The last line ended with a CR, so skip a LF if it comes next. */
+    private boolean skipLF;
+
+    /** The current line, without its line ending. */
+    private byte line[] = new byte[256];
+
+    /** Length of the current line. */
+    private int lineLength;
+
+    /** Create a line reader over a stream. */
+    public ProtocolInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    /** Read more of the stream into the buffer, returning false at the end of the stream. */
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0)
+            return false;
+
+        pos = 0;
+        limit = read;
+        return true;
+    }
+
+    /** Returns true if a line can be read without blocking, as BufferedReader.ready does. */
+    public boolean ready() throws IOException {
+        if (skipLF) {
+            if ((pos >= limit) && (in.available() > 0))
+                fill();
+
+            if (pos < limit) {
+                if (buffer[pos] == '\n')
+                    pos++;
+                skipLF = false;
+            }
+        }
+
+        return (pos < limit) || (in.available() > 0);
+    }
+
+    /** Add bytes to the end of the current line. */
+    private void append(byte data[], int off, int len) {
+        if (lineLength + len > line.length) {
+            byte tmp[] = new byte[Math.max(line.length * 2, lineLength + len)];
+            System.arraycopy(line, 0, tmp, 0, lineLength);
+            line = tmp;
+        }
+
+        System.arraycopy(data, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    /**
+     * <p>Read the next line.</p>
+     * @return false if the end of the stream was reached before anything was read.
+     * @throws IOException if the stream could not be read.
+     */
+    public boolean readLine() throws IOException {
+        lineLength = 0;
+
+        while (true) {
+            if ((pos >= limit) && (!fill()))
+                return lineLength > 0;
+
+            if (skipLF) {
+                skipLF = false;
+                if (buffer[pos] == '\n') {
+                    pos++;
+                    continue;
+                }
+            }
+
+            int start = pos;
+            while ((pos < limit) && (buffer[pos] != '\r') && (buffer[pos] != '\n'))
+                pos++;
+
+            append(buffer, start, pos - start);
+
+            if (pos < limit) {
+                skipLF = (buffer[pos] == '\r');
+                pos++;
+                return true;
+            }
+        }
+    }
+
+    /** Return the array holding the current line, which is reused for the next line. */
+    public byte[] getLine() {
+        return line;
+    }
+
+    /** Return the length of the current line. */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    /** Returns true if the current line is a single dot, which ends multi line data. */
+    public boolean isDotLine() {
+        return (lineLength == 1) && (line[0] == '.');
+    }
+
+    /** Return the current line as a string, one character per byte. */
+    public String getLineString() {
+        return IPTP.dataToString(line, 0, lineLength);
+    }
+
+    /** Return part of the current line, from start up to end, as a string. */
+    public String getLineString(int start, int end) {
+        return IPTP.dataToString(line, start, end - start);
+    }
+
+    /**
+     * <p>Read the next line as a string, one character per byte.</p>
+     * @return the line, or null at the end of the stream.
+     * @throws IOException if the stream could not be read.
+     */
+    public String readLineString() throws IOException {
+        return (readLine()) ? getLineString() : null;
+    }
+
+    /**
+     * <p>Read lines up to a line holding a single dot, returning them with CRLF line endings.</p>
+     * <p>The dot line is read but not returned. The lines are collected in one array, which is copied once to 
+     * return it.</p>
+     * @param unstuff Remove the dot that was added to the start of any line starting with a dot (RFC 2821 4.5.2).
+     * @param lastLineEnding Should the last line have a line ending? If not, the CRLFs only separate the lines.
+     * @return the lines, or null if the end of the stream was reached first.
+     * @throws IOException if the stream could not be read.
+     */
+    public byte[] readDotTerminated(boolean unstuff, boolean lastLineEnding) throws IOException {
+        byte data[] = new byte[BUFFER_SIZE];
+        int size = 0;
+
+        while (readLine()) {
+            if (isDotLine()) {
+                if ((!lastLineEnding) && (size > 0))
+                    size -= 2;
+
+                byte result[] = new byte[size];
+                System.arraycopy(data, 0, result, 0, size);
+                return result;
+            }
+
+            int start = ((unstuff) && (lineLength > 0) && (line[0] == '.')) ? 1 : 0;
+            int length = lineLength - start;
+
+            if (size + length + 2 > data.length) {
+                byte tmp[] = new byte[Math.max(data.length * 2, size + length + 2)];
+                System.arraycopy(data, 0, tmp, 0, size);
+                data = tmp;
+            }
+
+            System.arraycopy(line, start, data, size, length);
+            size += length;
+            data[size++] = '\r';
+            data[size++] = '\n';
+        }
+
+        return null;
+    }
+
+    /** Close the stream. */
+    public void close() throws IOException {
+        in.close();
+    }
+}
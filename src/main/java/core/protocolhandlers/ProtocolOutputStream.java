@@ -0,0 +1,182 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.protocolhandlers;
+import java.io.*;
+
+/**
+ * <p>A buffered stream for writing protocol commands and data, without converting them from characters.</p>
+ * <p>Strings are written one byte per character, as ISO-8859-1 does, and email data is written straight from its 
+ * byte array.</p>
+ * <p>As BufferedWriter does, writes are synchronized and closing the stream a second time does nothing, since 
+ * the pipes may disconnect from a different thread.</p>
+ * @see ProtocolInputStream
+ */
+public class ProtocolOutputStream extends OutputStream {
+
+    /** Size of the write buffer. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The stream being written to, or null once closed. */
+    private OutputStream out;
+
+    /** Bytes waiting to be written. */
+    private byte buffer[] = new byte[BUFFER_SIZE];
+
+    /** Number of bytes in the buffer. */
+    private int count;
+
+    /** Create a buffered stream over another stream. */
+    public ProtocolOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Write out the contents of the buffer. */
+    private void flushBuffer() throws IOException {
+        if (out == null)
+            throw new IOException("Stream closed");
+
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /** Write a byte. */
+    public synchronized void write(int b) throws IOException {
+        if (count == buffer.length)
+            flushBuffer();
+
+        buffer[count++] = (byte)b;
+    }
+
+    /** Write part of an array, large writes going straight to the stream. */
+    public synchronized void write(byte data[], int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            flushBuffer();
+            out.write(data, off, len);
+            return;
+        }
+
+        if (count + len > buffer.length)
+            flushBuffer();
+
+        System.arraycopy(data, off, buffer, count, len);
+        count += len;
+    }
+
+    /** Write a string, one byte per character. Characters that ISO-8859-1 can not hold are written as '?'. */
+    public synchronized void write(String s) throws IOException {
+        int length = s.length();
+        for (int n = 0; n < length; n++) {
+            if (count == buffer.length)
+                flushBuffer();
+
+            char c = s.charAt(n);
+            buffer[count++] = (byte)((c <= 0xff) ? c : '?');
+        }
+    }
+
+    /**
+     * <p>Write email data, doubling any dot at the start of a line so that it is not taken as the end of the data 
+     * (RFC 2821 4.5.2).</p>
+     */
+    public synchronized void writeDotStuffed(byte data[]) throws IOException {
+        int start = 0;
+        for (int n = 0; n < data.length; n++) {
+            if ((data[n] == '.') && ((n == 0) || (data[n - 1] == '\n'))) {
+                // write up to and including the dot, then the dot again
+                write(data, start, n + 1 - start);
+                start = n;
+            }
+        }
+
+        write(data, start, data.length - start);
+    }
+
+    /**
+     * <p>Return a stream that writes email data to this one dot stuffed, as writeDotStuffed does, for data written a
+     * piece at a time (eg by Email.writeTo). The data is taken to start at the beginning of a line.</p>
+     */
+    public OutputStream dotStuffing() {
+        return new OutputStream() {
+            /** Was the last byte written the end of a line? */
+            private boolean lineStart = true;
+
+            public void write(int b) throws IOException {
+                synchronized (ProtocolOutputStream.this) {
+                    if ((lineStart) && (b == '.'))
+                        ProtocolOutputStream.this.write('.');
+                    ProtocolOutputStream.this.write(b);
+                }
+                lineStart = (b == '\n');
+            }
+
+            public void write(byte data[], int off, int len) throws IOException {
+                if (len == 0)
+                    return;
+
+                synchronized (ProtocolOutputStream.this) {
+                    int start = off;
+                    for (int n = off; n < off + len; n++) {
+                        if ((data[n] == '.') && ((n == off) ? lineStart : (data[n - 1] == '\n'))) {
+                            // write up to and including the dot, then the dot again
+                            ProtocolOutputStream.this.write(data, start, n + 1 - start);
+                            start = n;
+                        }
+                    }
+
+                    ProtocolOutputStream.this.write(data, start, off + len - start);
+                }
+                lineStart = (data[off + len - 1] == '\n');
+            }
+        };
+    }
+
+    /** Write out anything buffered and flush the stream. */
+    public synchronized void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /** Flush and close the stream. */
+    public synchronized void close() throws IOException {
+        if (out == null)
+            return;
+
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+            out = null;
+        }
+    }
+}
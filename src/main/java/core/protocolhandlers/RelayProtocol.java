@@ -0,0 +1,219 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.protocolhandlers;
+import core.exceptions.*;
+import java.util.LinkedList;
+
+/**
+ * <p>The protocol state of one RelaySession.</p>
+ * <p>A relay protocol works on the lines passing between the email client and server as bytes. It forwards
+ * everything as it was received except for the emails the proxy has to process, which it collects and passes to
+ * the session as payloads, and the few commands the proxy answers itself.</p>
+ * <p>The responses the client is waiting for are kept in order, so that a response the proxy gives itself is not
+ * sent until the server has answered every command the client sent before it.</p>
+ * @see RelaySession
+ * @see core.RelayPipe
+ */
+public abstract class RelayProtocol {
+
+    /** Kind of an expected response that the proxy gives itself. */
+    protected static final int LOCAL = -1;
+
+    /** A response the client is waiting for. */
+    private static class Expected {
+        int kind;
+        Object value;
+
+        Expected(int kind, Object value) {
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+    /** Responses the client is waiting for, oldest first. */
+    private LinkedList expected = new LinkedList();
+
+    /** Email being collected. */
+    private byte payload[] = new byte[0];
+    /** Number of bytes collected. */
+    private int payloadSize;
+
+    /** Return a new protocol state for a new session, with the same settings as this one. */
+    public abstract RelayProtocol newSession();
+
+    /** A line from the email client, including its line ending. The array is reused once this returns. */
+    public abstract void clientLine(RelaySession session, byte line[], int off, int len) throws ProxyServerCoreException;
+
+    /** A line from the email server, including its line ending. The array is reused once this returns. */
+    public abstract void serverLine(RelaySession session, byte line[], int off, int len) throws ProxyServerCoreException;
+
+    /** An email passed to the session has been processed. */
+    public abstract void payloadProcessed(RelaySession session, byte data[]) throws ProxyServerCoreException;
+
+    /** An email passed to the session could not be processed. */
+    public abstract void payloadFailed(RelaySession session, String message) throws ProxyServerCoreException;
+
+    /** Add a response the client is waiting for. */
+    protected void expect(RelaySession session, int kind, Object value) {
+        expected.add(new Expected(kind, value));
+        if (expected.size() == 1)
+            answerLocally(session);
+    }
+
+    /**
+     * <p>Queue a response the proxy gives itself.</p>
+     * <p>It is sent once the responses to the commands before it have been.</p>
+     */
+    protected void answer(RelaySession session, String response) {
+        expect(session, LOCAL, response);
+    }
+
+    /** Return the kind of the oldest response the client is waiting for, or LOCAL if there is none. */
+    protected int getExpectedKind() {
+        return (expected.isEmpty()) ? LOCAL : ((Expected)expected.getFirst()).kind;
+    }
+
+    /** Return the value stored with the oldest response the client is waiting for. */
+    protected Object getExpectedValue() {
+        return ((Expected)expected.getFirst()).value;
+    }
+
+    /** Change the kind of the oldest response the client is waiting for. */
+    protected void setExpectedKind(int kind) {
+        ((Expected)expected.getFirst()).kind = kind;
+    }
+
+    /** The oldest response the client was waiting for has been sent. */
+    protected void answered(RelaySession session) {
+        expected.removeFirst();
+        answerLocally(session);
+    }
+
+    /** Send the responses the proxy gives itself that are now due. */
+    private void answerLocally(RelaySession session) {
+        while ((!expected.isEmpty()) && (answerLocally(session, getExpectedKind(), getExpectedValue())))
+            expected.removeFirst();
+    }
+
+    /**
+     * <p>The response to a command has become the oldest the client is waiting for.</p>
+     * <p>Override this for responses the proxy gives itself, calling this for the rest.</p>
+     * @return true if the proxy has answered the command itself.
+     */
+    protected boolean answerLocally(RelaySession session, int kind, Object value) {
+        if (kind != LOCAL)
+            return false;
+
+        session.send(RelaySession.CLIENT, (String)value);
+        return true;
+    }
+
+    /** Start collecting an email. */
+    protected void startPayload() {
+        payloadSize = 0;
+    }
+
+    /** Add a line to the email being collected, removing the dot stuffing (RFC 2821 4.5.2). */
+    protected void appendPayload(byte line[], int off, int len) {
+        if ((len > 0) && (line[off] == '.')) {
+            off++;
+            len--;
+        }
+
+        if (payloadSize + len > payload.length) {
+            byte tmp[] = new byte[Math.max(payload.length * 2, Math.max(payloadSize + len, 8192))];
+            System.arraycopy(payload, 0, tmp, 0, payloadSize);
+            payload = tmp;
+        }
+
+        System.arraycopy(line, off, payload, payloadSize, len);
+        payloadSize += len;
+    }
+
+    /** Return the email collected, and free the space used to collect it. */
+    protected byte[] takePayload() {
+        byte data[] = new byte[payloadSize];
+        System.arraycopy(payload, 0, data, 0, payloadSize);
+        payload = new byte[0];
+        payloadSize = 0;
+        return data;
+    }
+
+    /** Returns true if a line is a single dot, which ends dot terminated data. */
+    protected static boolean isDotLine(byte line[], int off, int len) {
+        if ((len < 2) || (line[off] != '.'))
+            return false;
+
+        return ((len == 2) && (line[off + 1] == '\n')) || ((len == 3) && (line[off + 1] == '\r') && (line[off + 2] == '\n'));
+    }
+
+    /**
+     * <p>Returns true if a line starts with a keyword, ignoring case, followed by a space or the end of the line.</p>
+     * <p>The keyword must be in upper case.</p>
+     */
+    protected static boolean isKeyword(byte line[], int off, int len, String keyword) {
+        int length = keyword.length();
+        if (len < length)
+            return false;
+
+        for (int n = 0; n < length; n++) {
+            int b = line[off + n];
+            if ((b >= 'a') && (b <= 'z'))
+                b -= 'a' - 'A';
+            if (b != keyword.charAt(n))
+                return false;
+        }
+
+        return (len == length) || (line[off + length] == ' ') || (line[off + length] == '\r') || (line[off + length] == '\n');
+    }
+
+    /** Returns true if there is anything other than spaces after the first word of a line. */
+    protected static boolean hasArgument(byte line[], int off, int len) {
+        int n = off;
+        int end = off + len;
+
+        while ((n < end) && (line[n] != ' ') && (line[n] != '\r') && (line[n] != '\n'))
+            n++;
+        while ((n < end) && (line[n] == ' '))
+            n++;
+
+        return (n < end) && (line[n] != '\r') && (line[n] != '\n');
+    }
+
+    /** Make an error message safe to send as a single response line. */
+    protected static String toResponseText(String message) {
+        if (message == null)
+            return "";
+
+        return message.replace('\r', ' ').replace('\n', ' ');
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.protocolhandlers;
+import core.email.EmailEnvelope;
+import core.exceptions.*;
+import core.iptp.IPTP;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.LinkedList;
+
+/**
+ * <p>One email client connection being relayed to the email server by a core.RelayPipe.</p>
+ * <p>Bytes read from either side are split into lines and passed to the session's RelayProtocol, which forwards
+ * them to the other side, answers them itself or collects them into an email (a payload) to be processed. Lines
+ * are passed on as the bytes they were received as, they are never converted to strings.</p>
+ * <p>Output is queued until the channel can take it. Reading from a side stops while too much of what it sent is
+ * still waiting to be written to the other side, or while its protocol has paused it.</p>
+ * <p>Sessions are only used from the relay pipe's selector thread.</p>
+ * @see core.RelayPipe
+ * @see RelayProtocol
+ */
+public class RelaySession {
+
+    /** The email client side of the session. */
+    public static final int CLIENT = 0;
+    /** The email server side of the session. */
+    public static final int SERVER = 1;
+
+    /** Initial size of the input buffers, which grow to hold longer lines. */
+    private static final int BUFFER_SIZE = 4096;
+    /** Longest line accepted from either side. */
+    public static final int MAX_LINE = 1024 * 1024;
+    /** Size of the blocks output is collected in. */
+    private static final int OUTPUT_BLOCK = 8192;
+    /** Amount of output that may wait for a side before reading from the other side stops. */
+    private static final int OUTPUT_LIMIT = 256 * 1024;
+
+    /** CRLF */
+    private static final byte CRLF[] = { '\r', '\n' };
+    /** The line ending dot terminated data. */
+    private static final byte DOT_LINE[] = { '.', '\r', '\n' };
+
+    /** The protocol state of the session. */
+    private RelayProtocol protocol;
+
+    /** The channel to each side, the server's is null until it has been opened. */
+    private SocketChannel channels[] = new SocketChannel[2];
+    /** The selection key of each side, null until the channel is ready. */
+    private SelectionKey keys[] = new SelectionKey[2];
+    /** Bytes read from each side that have not been passed to the protocol yet. */
+    private ByteBuffer input[] = new ByteBuffer[2];
+    /** Blocks waiting to be written to each side, oldest first. */
+    private LinkedList output[] = new LinkedList[2];
+    /** The last block queued for each side, if more can be added to it. */
+    private ByteBuffer openBlock[] = new ByteBuffer[2];
+    /** Number of bytes waiting to be written to each side. */
+    private int outputSize[] = new int[2];
+    /** Has the protocol stopped reading from the side? */
+    private boolean paused[] = new boolean[2];
+    /** Has the side closed its connection? */
+    private boolean ended[] = new boolean[2];
+
+    /** Close once the output has been written. */
+    private boolean closing;
+    /** Is a payload being processed? */
+    private boolean busy;
+
+    /** Payload waiting to be processed, or null. */
+    private byte payload[];
+    /** Envelope of the waiting payload. */
+    private EmailEnvelope payloadEnvelope;
+
+    /**
+     * <p>Create a session for a connection from an email client.</p>
+     * @param client The client's channel, which must be non blocking.
+     * @param protocol The protocol state for this session.
+     */
+    public RelaySession(SocketChannel client, RelayProtocol protocol) {
+        this.protocol = protocol;
+        channels[CLIENT] = client;
+
+        for (int n = 0; n < 2; n++) {
+            input[n] = ByteBuffer.allocate(BUFFER_SIZE);
+            output[n] = new LinkedList();
+        }
+    }
+
+    /** Return the channel to a side. */
+    public SocketChannel getChannel(int side) {
+        return channels[side];
+    }
+
+    /** Set the channel to the email server, which must be non blocking. */
+    public void setServerChannel(SocketChannel server) {
+        channels[SERVER] = server;
+    }
+
+    /** Set the selection key of a side once its channel is ready for reading and writing. */
+    public void setKey(int side, SelectionKey key) {
+        keys[side] = key;
+    }
+
+    /** Return the side a channel belongs to. */
+    public int getSide(SelectableChannel channel) {
+        return (channel == channels[CLIENT]) ? CLIENT : SERVER;
+    }
+
+    // Used by the protocol
+
+    /** Queue bytes to be written to a side. */
+    public void send(int side, byte data[], int off, int len) {
+        ByteBuffer block = openBlock[side];
+        if ((block == null) || (block.capacity() - block.limit() < len)) {
+            block = ByteBuffer.allocate(Math.max(OUTPUT_BLOCK, len));
+            block.limit(0);
+            output[side].add(block);
+            openBlock[side] = block;
+        }
+
+        int end = block.limit();
+        System.arraycopy(data, off, block.array(), end, len);
+        block.limit(end + len);
+        outputSize[side] += len;
+    }
+
+    /** Queue a line the proxy sends itself, one byte per character. */
+    public void send(int side, String line) {
+        byte data[] = IPTP.stringToData(line);
+        send(side, data, 0, data.length);
+    }
+
+    /**
+     * <p>Queue an email to be written to a side as dot terminated data.</p>
+     * <p>Any dot at the start of a line is doubled (RFC 2821 4.5.2), the last line is given a line ending if it
+     * has none, and the line holding a single dot is added.</p>
+     */
+    public void sendDotTerminated(int side, byte data[]) {
+        int dots = 0;
+        for (int n = 0; n < data.length; n++)
+            if ((data[n] == '.') && ((n == 0) || (data[n - 1] == '\n')))
+                dots++;
+
+        byte stuffed[] = data;
+        if (dots > 0) {
+            stuffed = new byte[data.length + dots];
+            int out = 0;
+            for (int n = 0; n < data.length; n++) {
+                if ((data[n] == '.') && ((n == 0) || (data[n - 1] == '\n')))
+                    stuffed[out++] = '.';
+                stuffed[out++] = data[n];
+            }
+        }
+
+        // queued as it is, the email is not copied again
+        output[side].add(ByteBuffer.wrap(stuffed));
+        outputSize[side] += stuffed.length;
+        openBlock[side] = null;
+
+        if ((data.length > 0) && (data[data.length - 1] != '\n'))
+            send(side, CRLF, 0, CRLF.length);
+        send(side, DOT_LINE, 0, DOT_LINE.length);
+    }
+
+    /** Stop passing lines from a side to the protocol, they are kept until it is resumed. */
+    public void pause(int side) {
+        paused[side] = true;
+    }
+
+    /** Start passing lines from a side to the protocol again. */
+    public void resume(int side) {
+        paused[side] = false;
+    }
+
+    /**
+     * <p>Pass an email to the relay pipe to be processed.</p>
+     * <p>The protocol is called back with payloadProcessed or payloadFailed once it has been.</p>
+     * @param envelope The sender and recipients of an email being sent, or null for an email being retrieved.
+     * @param data The email, with any dot stuffing removed.
+     */
+    public void submitPayload(EmailEnvelope envelope, byte data[]) {
+        payloadEnvelope = envelope;
+        payload = data;
+    }
+
+    /** Close the session once everything queued has been written. */
+    public void close() {
+        closing = true;
+    }
+
+    // Used by the relay pipe
+
+    /** Returns true if the protocol has passed an email to be processed. */
+    public boolean hasPayload() {
+        return payload != null;
+    }
+
+    /** Return the envelope of the email to be processed. */
+    public EmailEnvelope getPayloadEnvelope() {
+        return payloadEnvelope;
+    }
+
+    /** Return the email to be processed, which is then being processed until completePayload is called. */
+    public byte[] takePayload() {
+        byte data[] = payload;
+        payload = null;
+        payloadEnvelope = null;
+        busy = true;
+        return data;
+    }
+
+    /**
+     * <p>Pass the result of processing an email back to the protocol.</p>
+     * @param result The processed email, or the ProxyServerCoreException it could not be processed because of.
+     * @throws ProxyServerCoreException if there was a problem relaying the rest of the session.
+     */
+    public void completePayload(Object result) throws ProxyServerCoreException {
+        busy = false;
+
+        if (result instanceof byte[])
+            protocol.payloadProcessed(this, (byte[])result);
+        else
+            protocol.payloadFailed(this, ((Exception)result).getMessage());
+
+        // lines read while the email was processed
+        process(CLIENT);
+        process(SERVER);
+    }
+
+    /**
+     * <p>Read what a side has sent and pass the lines to the protocol.</p>
+     * @return false if the side has closed its connection.
+     * @throws IOException if the channel could not be read.
+     * @throws ProxyServerCoreException if there was a problem relaying the lines.
+     */
+    public boolean read(int side) throws IOException, ProxyServerCoreException {
+        ByteBuffer in = input[side];
+
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_LINE)
+                throw new PipeCommunicationException("Line longer than " + MAX_LINE + " bytes.");
+
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2, MAX_LINE));
+            in.flip();
+            bigger.put(in);
+            input[side] = in = bigger;
+        }
+
+        if (channels[side].read(in) < 0) {
+            // send what is left, then close
+            ended[side] = true;
+            closing = true;
+            return false;
+        }
+
+        process(side);
+
+        // the protocol may have resumed the other side, which may have lines waiting
+        process((side == CLIENT) ? SERVER : CLIENT);
+        return true;
+    }
+
+    /**
+     * <p>Pass the complete lines read from a side to the protocol, until it pauses the side.</p>
+     * @throws ProxyServerCoreException if there was a problem relaying the lines.
+     */
+    private void process(int side) throws ProxyServerCoreException {
+        ByteBuffer in = input[side];
+        byte data[] = in.array();
+        int end = in.position();
+        int start = 0;
+
+        while ((!paused[side]) && (!closing)) {
+            int n = start;
+            while ((n < end) && (data[n] != '\n'))
+                n++;
+
+            if (n == end)
+                break;
+
+            if (side == CLIENT)
+                protocol.clientLine(this, data, start, n + 1 - start);
+            else
+                protocol.serverLine(this, data, start, n + 1 - start);
+
+            start = n + 1;
+        }
+
+        // keep what is left at the start of the buffer
+        if (start > 0) {
+            System.arraycopy(data, start, data, 0, end - start);
+            in.position(end - start);
+        }
+    }
+
+    /**
+     * <p>Write as much of the output queued for a side as the channel will take.</p>
+     * @throws IOException if the channel could not be written to.
+     */
+    public void write(int side) throws IOException {
+        LinkedList queue = output[side];
+
+        while (!queue.isEmpty()) {
+            ByteBuffer block = (ByteBuffer)queue.getFirst();
+            int before = block.remaining();
+            channels[side].write(block);
+            outputSize[side] -= before - block.remaining();
+
+            if (block.hasRemaining())
+                return;
+
+            queue.removeFirst();
+            if (block == openBlock[side])
+                openBlock[side] = null;
+        }
+    }
+
+    /** Set which events the selector waits for on each side. */
+    public void updateInterest() {
+        for (int side = 0; side < 2; side++) {
+            if ((keys[side] == null) || (!keys[side].isValid()))
+                continue;
+
+            int other = 1 - side;
+            int ops = 0;
+
+            if ((!ended[side]) && (!paused[side]) && (!closing) && (outputSize[other] < OUTPUT_LIMIT))
+                ops |= SelectionKey.OP_READ;
+            if (outputSize[side] > 0)
+                ops |= SelectionKey.OP_WRITE;
+
+            keys[side].interestOps(ops);
+        }
+    }
+
+    /** Returns true if the session has ended and everything that can be written has been. */
+    public boolean isFinished() {
+        if ((!closing) || (busy))
+            return false;
+
+        for (int side = 0; side < 2; side++)
+            if ((!ended[side]) && (keys[side] != null) && (outputSize[side] > 0))
+                return false;
+
+        return true;
+    }
+
+    /** Close both channels. */
+    public void closeChannels() {
+        for (int side = 0; side < 2; side++) {
+            try {
+                if (channels[side] != null)
+                    channels[side].close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
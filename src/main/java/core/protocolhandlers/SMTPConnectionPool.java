@@ -0,0 +1,495 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.protocolhandlers;
+import core.exceptions.*;
+import core.iptp.*;
+import core.email.encoders.Base64;
+import java.io.UnsupportedEncodingException;
+import java.net.*;
+import java.util.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>A pool of open connections to upstream SMTP servers.</p>
+ * <p>Opening a connection to a mail server costs a TCP handshake, the server greeting and EHLO, which can take 
+ * longer than sending a small email. The pool keeps connections open between transactions so that they can be 
+ * reused for the next email to the same server.</p>
+ * <p>Connections are keyed by relay host, port and login. A connection is reset (RSET) when it is returned, checked
+ * with a NOOP before it is reused if it has been idle for a while, and closed (QUIT) once it has been idle for 
+ * longer than the idle timeout. No more than a fixed number of connections are opened to any one server for one 
+ * login, callers wait for a free connection when the limit has been reached.</p>
+ * <p>Connections are opened with EHLO (falling back to HELO). If a user name is given the connection then logs in
+ * with AUTH PLAIN, or AUTH LOGIN if the server does not offer PLAIN, so a connection is only ever reused for the 
+ * login it was opened with. The key only holds a digest of the password.</p>
+ * @see core.OutgoingEmailPipe
+ */
+public class SMTPConnectionPool {
+
+    /** Default number of connections allowed to one server. */
+    public static final int MAX_PER_HOST = 4;
+
+    /** Default time a connection may sit unused before it is closed, in milliseconds. */
+    public static final long IDLE_TIMEOUT = 60 * 1000;
+
+    /** Default time a connection may sit unused before it is checked with NOOP, in milliseconds. */
+    public static final long CHECK_INTERVAL = 5 * 1000;
+
+    /** Connections allowed per server. */
+    private int maxPerHost;
+
+    /** Idle time before a connection is closed. */
+    private long idleTimeout;
+
+    /** Idle time before a connection is checked. */
+    private long checkInterval;
+
+    /** Name to give in EHLO / HELO. */
+    private String heloName;
+
+    /** Idle connections per server and login (String key -> Vector of PooledConnection), most recently used last. */
+    private Hashtable idle;
+
+    /** Number of open connections per server and login (String key -> Integer), idle or in use. */
+    private Hashtable open;
+
+    /** Connections in use (SMTPHandler -> PooledConnection). */
+    private Hashtable busy;
+
+    /** Closes connections that have been idle too long. */
+    private Timer evictor;
+
+    /** Set once the pool has been closed. */
+    private boolean closed;
+
+    /** Connections opened. */
+    private long opened;
+
+    /** Times an existing connection was reused. */
+    private long reused;
+
+    /** An open connection and when it was last used. */
+    private static class PooledConnection {
+        SMTPHandler handler;
+        String key;
+        long lastUsed;
+
+        PooledConnection(SMTPHandler handler, String key) {
+            this.handler = handler;
+            this.key = key;
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * <p>Create a pool with the default limits.</p>
+     */
+    public SMTPConnectionPool() {
+        this(MAX_PER_HOST, IDLE_TIMEOUT, CHECK_INTERVAL);
+    }
+
+    /**
+     * <p>Create a pool.</p>
+     * @param maxPerHost The largest number of connections to open to one server.
+     * @param idleTimeout How long in milliseconds a connection may be unused before it is closed.
+     * @param checkInterval How long in milliseconds a connection may be unused before it is checked with NOOP 
+     * before being reused.
+     */
+    public SMTPConnectionPool(int maxPerHost, long idleTimeout, long checkInterval) {
+        this.maxPerHost = maxPerHost;
+        this.idleTimeout = idleTimeout;
+        this.checkInterval = checkInterval;
+
+        idle = new Hashtable();
+        open = new Hashtable();
+        busy = new Hashtable();
+
+        try {
+            heloName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            heloName = "localhost";
+        }
+
+        evictor = new Timer(true);
+        evictor.schedule(new TimerTask() {
+            public void run() {
+                evictIdle();
+            }
+        }, idleTimeout, Math.max(idleTimeout / 2, 1));
+    }
+
+    /**
+     * <p>Get a connection to a server, ready to start a mail transaction.</p>
+     * <p>An idle connection is reused if there is a healthy one, otherwise a new one is opened. If the limit of 
+     * connections to the server has been reached this waits until one is released.</p>
+     * @param host The server host name.
+     * @param port The server port.
+     * @return A connected handler. Pass it back to release when finished.
+     * @throws PipeCommunicationException if a connection could not be opened.
+     * @throws ProxyServerCoreException if the server refused the connection or the pool has been closed.
+     */
+    public SMTPHandler acquire(String host, int port) throws ProxyServerCoreException {
+        return acquire(host, port, null, null);
+    }
+
+    /**
+     * <p>Get a connection to a server, logged in as the given user and ready to start a mail transaction.</p>
+     * @param host The server host name.
+     * @param port The server port.
+     * @param user The user name to log in with, or null not to log in.
+     * @param password The user's password.
+     * @return A connected handler. Pass it back to release when finished.
+     * @throws MailRejectedException if the server did not accept the login.
+     * @throws PipeCommunicationException if a connection could not be opened.
+     * @throws ProxyServerCoreException if the server refused the connection or the pool has been closed.
+     * @see #acquire(String, int)
+     */
+    public SMTPHandler acquire(String host, int port, String user, String password) throws ProxyServerCoreException {
+        String key = key(host, port, user, password);
+
+        while (true) {
+            PooledConnection c = null;
+
+            synchronized (this) {
+                while (true) {
+                    if (closed)
+                        throw new ProxyServerCoreException("Connection pool has been closed.");
+
+                    Vector v = (Vector)idle.get(key);
+                    if ((v!=null) && (v.size()>0)) {
+                        c = (PooledConnection)v.remove(v.size()-1);
+                        break;
+                    }
+
+                    if (getOpen(key) < maxPerHost) {
+                        // reserve a slot, the connection is opened outside the lock
+                        open.put(key, new Integer(getOpen(key) + 1));
+                        break;
+                    }
+
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new ProxyServerCoreException("Interrupted while waiting for a connection to " + host + ":" + port);
+                    }
+                }
+
+                if (c!=null)
+                    busy.put(c.handler, c);
+            }
+
+            if (c==null) {
+                // new connection
+                try {
+                    c = new PooledConnection(openConnection(host, port, user, password), key);
+                } catch (ProxyServerCoreException e) {
+                    closed(key);
+                    throw e;
+                }
+
+                synchronized (this) {
+                    busy.put(c.handler, c);
+                    opened++;
+                }
+                return c.handler;
+            }
+
+            // reuse, checking first if the server may have dropped it
+            long age = System.currentTimeMillis() - c.lastUsed;
+            if ((age < idleTimeout) && ((age < checkInterval) || (command(c.handler, "NOOP")))) {
+                synchronized (this) {
+                    reused++;
+                }
+                return c.handler;
+            }
+
+            discard(c.handler);
+        }
+    }
+
+    /**
+     * <p>Return a connection to the pool.</p>
+     * <p>If reusable is true the transaction is reset and the connection is kept for the next caller, otherwise 
+     * (for example after a communication error) it is closed.</p>
+     * @param handler A handler returned by acquire.
+     * @param reusable Can the connection be used again?
+     */
+    public void release(SMTPHandler handler, boolean reusable) {
+        PooledConnection c;
+        synchronized (this) {
+            c = (PooledConnection)busy.get(handler);
+        }
+        if (c==null)
+            return;
+
+        if ((!reusable) || (closed) || (!command(handler, "RSET"))) {
+            discard(handler);
+            return;
+        }
+
+        synchronized (this) {
+            busy.remove(handler);
+            c.lastUsed = System.currentTimeMillis();
+
+            Vector v = (Vector)idle.get(c.key);
+            if (v==null) {
+                v = new Vector();
+                idle.put(c.key, v);
+            }
+            v.add(c);
+
+            notifyAll();
+        }
+    }
+
+    /**
+     * <p>Close connections that have been idle for longer than the idle timeout.</p>
+     * <p>This is called periodically by the pool.</p>
+     */
+    public void evictIdle() {
+        Vector expired = new Vector();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            for (Enumeration e = idle.elements(); e.hasMoreElements(); ) {
+                Vector v = (Vector)e.nextElement();
+                for (int n = v.size() - 1; n >= 0; n--) {
+                    PooledConnection c = (PooledConnection)v.elementAt(n);
+                    if ((closed) || (now - c.lastUsed >= idleTimeout)) {
+                        v.remove(n);
+                        expired.add(c);
+                    }
+                }
+            }
+        }
+
+        for (int n = 0; n < expired.size(); n++) {
+            PooledConnection c = (PooledConnection)expired.elementAt(n);
+            quit(c.handler);
+            closed(c.key);
+        }
+    }
+
+    /**
+     * <p>Close the pool.</p>
+     * <p>Idle connections are closed now, connections in use are closed when they are released.</p>
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        evictor.cancel();
+        evictIdle();
+    }
+
+    /** Return the number of connections open to a server without logging in, idle or in use. */
+    public synchronized int getOpenConnections(String host, int port) {
+        return getOpen(key(host, port, null, null));
+    }
+
+    /** Return the number of connections open to a server for a login, idle or in use. */
+    public synchronized int getOpenConnections(String host, int port, String user, String password) {
+        return getOpen(key(host, port, user, password));
+    }
+
+    /** Return the number of idle connections to a server that have not logged in. */
+    public synchronized int getIdleConnections(String host, int port) {
+        return getIdleConnections(host, port, null, null);
+    }
+
+    /** Return the number of idle connections to a server for a login. */
+    public synchronized int getIdleConnections(String host, int port, String user, String password) {
+        Vector v = (Vector)idle.get(key(host, port, user, password));
+        return (v==null) ? 0 : v.size();
+    }
+
+    /** Return the number of connections opened since the pool was created. */
+    public synchronized long getOpenedCount() {
+        return opened;
+    }
+
+    /** Return the number of times a connection was reused. */
+    public synchronized long getReusedCount() {
+        return reused;
+    }
+
+    /** Open and greet a new connection, logging in if there is a user name. */
+    private SMTPHandler openConnection(String host, int port, String user, String password) throws ProxyServerCoreException {
+        SMTPHandler handler = new SMTPHandler();
+        handler.initClientConnection(host, port);
+        handler.connect();
+
+        try {
+            if (!handler.awaitCommandResponse().isOk())
+                throw new ProxyServerCoreException("Mail server " + host + " refused connection.");
+
+            // EHLO lets the handler find out which extensions (PIPELINING etc) it can use
+            handler.sendCommand(new IPTPEhlo(heloName));
+            if ((!handler.awaitCommandResponse().isOk()) && (!command(handler, "HELO " + heloName)))
+                throw new ProxyServerCoreException("Mail server " + host + " did not accept HELO.");
+
+            if (user!=null)
+                login(handler, host, user, password);
+        } catch (ProxyServerCoreException e) {
+            quit(handler);
+            throw e;
+        }
+
+        return handler;
+    }
+
+    /**
+     * <p>Log in with AUTH PLAIN, falling back to AUTH LOGIN if the server does not support PLAIN (504).</p>
+     * @throws MailRejectedException if the server did not accept the login.
+     */
+    private void login(SMTPHandler handler, String host, String user, String password) throws ProxyServerCoreException {
+        String plain = base64("\0" + user + "\0" + password);
+
+        IPTPCommandResponse response = send(handler, "AUTH PLAIN " + plain);
+        if (hasCode(response, "334")) {
+            // the server wants the credentials on their own line
+            response = send(handler, plain);
+        } else if (hasCode(response, "504")) {
+            response = send(handler, "AUTH LOGIN");
+            if (hasCode(response, "334"))
+                response = send(handler, base64(user));
+            if (hasCode(response, "334"))
+                response = send(handler, base64(password));
+        }
+
+        if (!hasCode(response, "235"))
+            throw new MailRejectedException("Mail server " + host + " did not accept the login for " + user + ".", response.isPermanentFailure());
+    }
+
+    /** Send a line to the server and return its response. */
+    private IPTPCommandResponse send(SMTPHandler handler, String line) throws ProxyServerCoreException {
+        handler.sendCommand(new IPTPRelay(line + "\r\n"));
+        return handler.awaitCommandResponse();
+    }
+
+    /** Returns true if a relayed response has the given code. */
+    private static boolean hasCode(IPTPCommandResponse response, String code) {
+        return (response instanceof IPTPRelayResponse) && (((IPTPRelayResponse)response).getRelay().startsWith(code));
+    }
+
+    /** Base64 encode a string (as UTF-8) on one line. */
+    private static String base64(String text) {
+        try {
+            byte data[] = text.getBytes("UTF8");
+            byte out[] = new byte[((data.length + 2) / 3) * 4];
+            return new String(out, 0, Base64.encodeBlock(data, 0, data.length, out, 0), "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            // every java platform has UTF-8
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /** The key connections to a server are pooled under. Connections that log in are keyed by a digest of the login. */
+    private static String key(String host, int port, String user, String password) {
+        String key = host + ":" + port;
+        if (user==null)
+            return key;
+
+        try {
+            byte hash[] = MessageDigest.getInstance("SHA-1").digest((user + "\0" + password).getBytes("UTF8"));
+
+            StringBuffer hex = new StringBuffer(key).append('/');
+            for (int n = 0; n < hash.length; n++) {
+                hex.append(Character.forDigit((hash[n] >> 4) & 0x0f, 16));
+                hex.append(Character.forDigit(hash[n] & 0x0f, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform has SHA-1
+            throw new RuntimeException(e.getMessage());
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /** Send a simple command and return true if the server answered with a success code. */
+    private boolean command(SMTPHandler handler, String command) {
+        try {
+            handler.sendCommand(new IPTPRelay(command + "\r\n"));
+            return handler.awaitCommandResponse().isOk();
+        } catch (ProxyServerCoreException e) {
+            return false;
+        }
+    }
+
+    /** Say goodbye to the server and close the connection, ignoring any errors. */
+    private void quit(SMTPHandler handler) {
+        try {
+            handler.sendCommand(new IPTPQuit());
+            handler.awaitCommandResponse();
+        } catch (ProxyServerCoreException e) {
+            // closing anyway
+        }
+
+        try {
+            handler.disconnectFromServer();
+        } catch (ProxyServerCoreException e) {
+            // already gone
+        }
+    }
+
+    /** Close a connection taken from the pool. */
+    private void discard(SMTPHandler handler) {
+        PooledConnection c;
+        synchronized (this) {
+            c = (PooledConnection)busy.remove(handler);
+        }
+
+        quit(handler);
+        if (c!=null)
+            closed(c.key);
+    }
+
+    /** Record that a connection to a server has been closed. */
+    private synchronized void closed(String key) {
+        int count = getOpen(key) - 1;
+        if (count > 0)
+            open.put(key, new Integer(count));
+        else
+            open.remove(key);
+
+        notifyAll();
+    }
+
+    /** Number of open connections to a server. */
+    private int getOpen(String key) {
+        Integer count = (Integer)open.get(key);
+        return (count==null) ? 0 : count.intValue();
+    }
+}
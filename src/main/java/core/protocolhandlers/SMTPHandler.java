@@ -41,6 +41,12 @@ import java.util.*;
 /**
  * <p>SMTP Protocol handler.</p>
  * <p>This class is used with the OutgoingEmailPipe to provide translation to and from the SMTP protocol.</p>
+ * <p>The extensions the mail server lists in reply to EHLO are remembered and used when sending a group of commands
+ * with sendCommands: PIPELINING (RFC 2920) sends the envelope in one round trip and CHUNKING (RFC 3030) sends the 
+ * message with BDAT instead of DATA so no dot stuffing is needed. A BODY=8BITMIME parameter on MAIL (RFC 1652) is
+ * only passed on if the server supports 8BITMIME. The extension list passed back to the email client always includes PIPELINING (the proxy
+ * answers pipelined commands in order) but leaves out CHUNKING and BINARYMIME, which the client side does not 
+ * support.</p>
  * <p>Implements IPTP v1</p>
  * @see core.OutgoingEmailPipe
  */
@@ -49,6 +55,31 @@ public class SMTPHandler extends ProtocolHandler implements SendPipeServerInterf
     /** Used by await command to give the context of the issued command. */
     private IPTPCommandResponse lastCommandResponseToClient;
 
+    /** Extensions listed by the mail server in reply to EHLO, or null if EHLO has not been sent. */
+    private IPTPEhloResponse serverExtensions;
+
+    /** The last response read from the server, reused for each response. */
+    private byte response[] = new byte[256];
+
+    /** Length of the last response in the response buffer. */
+    private int responseLength;
+
+    /**
+     * Connects the pipe to the email server.
+     * @throws PipeCommunicationException if there was a problem connecting to the remote computer.
+     */
+    public void connect() throws PipeCommunicationException {
+        serverExtensions = null;
+        super.connect();
+    }
+
+    /**
+     * <p>Returns true if the mail server listed the given extension (eg "PIPELINING") in reply to EHLO.</p>
+     */
+    public boolean isServerCapable(String keyword) {
+        return (serverExtensions!=null) && (serverExtensions.hasExtension(keyword));
+    }
+
     /**
      * <p>Awaits a command from the client.</p>
      * <p>This currently only maps selective commands (email transfer etc), otherwise the transaction is just relayed. See the Proxy Protocol
@@ -60,90 +91,79 @@ public class SMTPHandler extends ProtocolHandler implements SendPipeServerInterf
      */
     public IPTPCommand awaitCommand() throws NoMappingPossibleException, PipeCommunicationException {
 
-        IPTPCommand command = null;
-
-        // read string from client
-        String rawcommandstring = awaitRawCommandLine();
-        rawcommandstring += "\r\n";
-
-        // tokenize to obtain command
-        StringTokenizer st = new StringTokenizer(rawcommandstring,"\n\r ");
-        int numTokens = st.countTokens();
-        Vector tokens = new Vector();
-        while (st.hasMoreTokens()) {
-            tokens.add(st.nextToken());
+        // read the line from the client, it is matched where it is rather than being split into strings
+        ProtocolInputStream in = awaitRawCommandBytes();
+        if (in==null)
+            throw new PipeCommunicationException("Connection closed by client.");
+        byte line[] = in.getLine();
+        int length = in.getLineLength();
+
+        if ((lastCommandResponseToClient instanceof IPTPDataResponse) && (lastCommandResponseToClient.isOk())) {
+            // if the last response was a successful data send request then this is the email data, whatever the
+            // line looks like. Read the rest of it as bytes, removing dot stuffing (RFC 2821 4.5.2)
+            int start = ((length>0) && (line[0]=='.')) ? 1 : 0;
+            byte first[] = new byte[length - start + 2];
+            System.arraycopy(line, start, first, 0, length - start);
+            first[first.length-2] = '\r';
+            first[first.length-1] = '\n';
+
+            byte rest[] = awaitRawCommandData(true, true);
+            if (rest==null)
+                throw new PipeCommunicationException("Connection closed by client.");
+
+            byte data[] = new byte[first.length + rest.length];
+            System.arraycopy(first, 0, data, 0, first.length);
+            System.arraycopy(rest, 0, data, first.length, rest.length);
+
+            return new IPTPSendData(data);
         }
 
-        // match command
-        String rawcommand = (String)tokens.elementAt(0);
-
-        if(rawcommand.compareToIgnoreCase("mail")==0) {
-
-            // Tell the proxy server that mail transfer is about to begin
-
-            if (numTokens>1) {
-
-                String address;
-
-                // try and extract address, should work if address has been properly formatted
-                try {
-                    address = rawcommandstring.substring(rawcommandstring.indexOf("<")+1, rawcommandstring.indexOf(">"));
-                } catch (IndexOutOfBoundsException e) {
-                    address = "";
-                }
-
-                command = new IPTPMail(address);
-            }
-            else
-                command = new IPTPMail("");
+        // find the command and its first parameter
+        int start = Verb.skipDelimiters(line, 0, length, false);
+        int end = Verb.wordEnd(line, start, length, false);
+        int parameterStart = Verb.skipDelimiters(line, end, length, false);
+        int parameterEnd = Verb.wordEnd(line, parameterStart, length, false);
+        boolean parameter = (parameterStart < parameterEnd);
+
+        switch (Verb.pack(line, start, end)) {
+            case Verb.MAIL:
+                // Tell the proxy server that mail transfer is about to begin
+                return new IPTPMail((parameter) ? getAddress(in) : "");
+            case Verb.RCPT:
+                // add a recipent
+                return new IPTPRcpt((parameter) ? getAddress(in) : "");
+            case Verb.DATA:
+                // data request. See protocol spec for IPTPSendData caveats
+                return new IPTPData();
+            case Verb.QUIT:
+                return new IPTPQuit();
+            case Verb.EHLO:
+                // greeting, the server's extension list is filtered on the way back
+                return new IPTPEhlo((parameter) ? in.getLineString(parameterStart, parameterEnd) : "");
+            default:
+                // relay everything else
+                return new IPTPRelay(in.getLineString() + "\r\n");
         }
-        else if (rawcommand.compareToIgnoreCase("rcpt")==0) {
-            // add a recipent
-            if (numTokens>1) {
+    }
 
-                String address;
+    /** Return the address between the angle brackets of the current command line, or "" if it has none. */
+    private static String getAddress(ProtocolInputStream in) {
+        byte line[] = in.getLine();
+        int length = in.getLineLength();
 
-                // try and extract address, should work if address has been properly formatted
-                try {
-                    address = rawcommandstring.substring(rawcommandstring.indexOf("<")+1, rawcommandstring.indexOf(">"));
-                } catch (IndexOutOfBoundsException e) {
-                    address = "";
-                }
+        int start = 0;
+        while ((start < length) && (line[start] != '<'))
+            start++;
+        start = (start < length) ? start + 1 : 0;
 
-                command = new IPTPRcpt(address);
-            }
-            else
-                command = new IPTPRcpt("");
-        }
-        else if (rawcommand.compareToIgnoreCase("data")==0) {
-            // data request. See protocol spec for IPTPSendData caveats
-            command = new IPTPData();
-        }
-        else if (rawcommand.compareToIgnoreCase("quit")==0) {
-            // Tell the proxy server that mail transfer is about to begin
-            command = new IPTPQuit();
-        }
-        else {
-            if ((lastCommandResponseToClient instanceof IPTPDataResponse) && (lastCommandResponseToClient.isOk())) {
-                // if the last response was a successful data send request then this SHOULD be the email data
-                // read everything into a buffer and then parse result
-                StringBuffer data = new StringBuffer();
-                data.append(rawcommandstring);
-
-                while ((rawcommandstring = awaitRawCommandLine()).compareToIgnoreCase(".")!=0) {
-                    data.append(rawcommandstring);
-                    data.append("\r\n");
-                }
-
-                command = new IPTPSendData(data.toString());
-            }
-            else {
-                // relay everything else
-                command = new IPTPRelay(rawcommandstring);
-            }
-        }
+        int end = 0;
+        while ((end < length) && (line[end] != '>'))
+            end++;
 
-        return command;
+        // should work if address has been properly formatted
+        if ((end >= length) || (end < start))
+            return "";
+        return in.getLineString(start, end);
     }
 
     /**
@@ -157,106 +177,155 @@ public class SMTPHandler extends ProtocolHandler implements SendPipeServerInterf
      */
     public IPTPCommandResponse awaitCommandResponse() throws NoMappingPossibleException, PipeCommunicationException {
 
-        IPTPCommandResponse commandresponse = null;
-
-        // read complete incoming response
-        String tmp;
-        StringBuffer buffer = new StringBuffer();
+        // read complete incoming response into the response buffer, taking the code from the first line
+        responseLength = 0;
+        int code = -1;
+        boolean last;
         do {
-            tmp = awaitRawCommandResponseLine();
-            buffer.append(tmp);
-            buffer.append("\r\n");
-        } while (tmp.charAt(3)!=' ');
-        String rawcommandresponsestring = buffer.toString();
-
-        // tokenize to obtain command
-        StringTokenizer st = new StringTokenizer(rawcommandresponsestring,"\n\r -");
-        int numTokens = st.countTokens();
-        Vector tokens = new Vector();
-        while (st.hasMoreTokens()) {
-            tokens.add(st.nextToken());
+            ProtocolInputStream in = awaitRawCommandResponseBytes();
+            if (in==null)
+                throw new PipeCommunicationException("Connection closed by server.");
+            byte line[] = in.getLine();
+            int length = in.getLineLength();
+
+            if (responseLength==0)
+                code = Verb.code(line, 0, length);
+
+            // a bare response code is treated as the last line
+            last = (length<4) || (line[3]==' ');
+            appendResponse(line, length, (length<4));
+        } while (!last);
+
+        // the parser for the command converts it
+        ResponseParser parser = null;
+        if (lastCommandToServer!=null)
+            parser = (ResponseParser)responseParsers.get(lastCommandToServer.getClass());
+        if (parser==null)
+            parser = relayParser;
+
+        // 5xx replies are permanent, 4xx may succeed later
+        IPTPCommandResponse commandResponse = parser.parse(this, code);
+        commandResponse.setPermanentFailure((code>=500) && (code<600));
+        return commandResponse;
+    }
+
+    /** Append a line and CRLF to the response buffer, with a space after the line if pad is set. */
+    private void appendResponse(byte line[], int length, boolean pad) {
+        int needed = responseLength + length + 3;
+        if (needed > response.length) {
+            byte grown[] = new byte[Math.max(needed, response.length * 2)];
+            System.arraycopy(response, 0, grown, 0, responseLength);
+            response = grown;
         }
 
-        // match command
-        String rawcommandresponse = (String)tokens.elementAt(0);
+        System.arraycopy(line, 0, response, responseLength, length);
+        responseLength += length;
+        if (pad)
+            response[responseLength++] = ' ';
+        response[responseLength++] = '\r';
+        response[responseLength++] = '\n';
+    }
 
-        if (lastCommandToServer instanceof IPTPMail) {
-            // mail repsonse, see if ok or not
+    /** Return the response in the response buffer as a string. */
+    private String getResponseText() {
+        return IPTP.dataToString(response, 0, responseLength);
+    }
 
-            // test if command was ok or not
-            if (rawcommandresponse.compareToIgnoreCase("250")==0) {
-                // ok
-                commandresponse = new IPTPMailResponse(true);
-            }
-            else {
-                // not
-                commandresponse = new IPTPMailResponse(false);
-            }
-        }
-        else if(lastCommandToServer instanceof IPTPRcpt) {
-            if ((rawcommandresponse.compareToIgnoreCase("250")==0) || (rawcommandresponse.compareToIgnoreCase("251")==0)) {
-                // ok
-                commandresponse = new IPTPRcptResponse(true);
-            }
-            else {
-                // not
-                commandresponse = new IPTPRcptResponse(false);
+    /**
+     * <p>Converts a complete server response to one type of command.</p>
+     */
+    private static abstract class ResponseParser {
+        /**
+         * @param handler The handler whose response buffer holds the response.
+         * @param code The response code, or -1 if the response did not start with one.
+         */
+        abstract IPTPCommandResponse parse(SMTPHandler handler, int code);
+    }
+
+    /** Parsers for the responses to each type of mapped command, keyed by the command's class. */
+    private static final Hashtable responseParsers = new Hashtable();
+
+    /** Parser for the responses to relayed commands, which are passed back as they are. */
+    private static final ResponseParser relayParser = new ResponseParser() {
+        IPTPCommandResponse parse(SMTPHandler handler, int code) {
+            boolean success;
+            switch (code) {
+                case 211:
+                case 214:
+                case 220:
+                case 221:
+                case 250:
+                case 251:
+                case 354:
+                    success = true;
+                    break;
+                default:
+                    success = false;
             }
+
+            return new IPTPRelayResponse(success, handler.getResponseText());
         }
-        else if(lastCommandToServer instanceof IPTPData) {
-            // test if command was ok or not
-            if (rawcommandresponse.compareToIgnoreCase("354")==0) {
-                // ok
-                commandresponse = new IPTPDataResponse(true);
-            }
-            else {
-                // not
-                commandresponse = new IPTPDataResponse(false);
+    };
+
+    static {
+        responseParsers.put(IPTPMail.class, new ResponseParser() {
+            IPTPCommandResponse parse(SMTPHandler handler, int code) {
+                return new IPTPMailResponse(code==250);
             }
-        }
-        else if(lastCommandToServer instanceof IPTPSendData) {
-            // test if command was ok or not
-            if (rawcommandresponse.compareToIgnoreCase("250")==0) {
-                // ok
-                commandresponse = new IPTPSendDataResponse(true);
+        });
+
+        responseParsers.put(IPTPRcpt.class, new ResponseParser() {
+            IPTPCommandResponse parse(SMTPHandler handler, int code) {
+                return new IPTPRcptResponse((code==250) || (code==251));
             }
-            else {
-                // not
-                commandresponse = new IPTPSendDataResponse(false);
+        });
+
+        responseParsers.put(IPTPData.class, new ResponseParser() {
+            IPTPCommandResponse parse(SMTPHandler handler, int code) {
+                return new IPTPDataResponse(code==354);
             }
-        }
-        else if(lastCommandToServer instanceof IPTPQuit) {
-            // quit response
+        });
 
-            // test if command was ok or not
-            if (rawcommandresponse.compareToIgnoreCase("221")==0) {
-                // ok
-                commandresponse = new IPTPQuitResponse(true);
+        responseParsers.put(IPTPSendData.class, new ResponseParser() {
+            IPTPCommandResponse parse(SMTPHandler handler, int code) {
+                return new IPTPSendDataResponse(code==250);
             }
-            else {
-                // not
-                commandresponse = new IPTPQuitResponse(false);
+        });
+
+        responseParsers.put(IPTPQuit.class, new ResponseParser() {
+            IPTPCommandResponse parse(SMTPHandler handler, int code) {
+                return new IPTPQuitResponse(code==221);
             }
-        }
-        else {
-            // relay everything else
-            boolean success = false; // assume fail
-            if (
-                // if any of the success codes then set to true
-                ("220".compareToIgnoreCase((String)rawcommandresponse)==0) ||
-                ("250".compareToIgnoreCase((String)rawcommandresponse)==0) ||
-                ("251".compareToIgnoreCase((String)rawcommandresponse)==0) ||
-                ("354".compareToIgnoreCase((String)rawcommandresponse)==0) ||
-                ("211".compareToIgnoreCase((String)rawcommandresponse)==0) ||
-                ("214".compareToIgnoreCase((String)rawcommandresponse)==0) ||
-                ("221".compareToIgnoreCase((String)rawcommandresponse)==0)
-            )
-                success = true;
-
-            commandresponse = new IPTPRelayResponse(success, rawcommandresponsestring);
-        }
+        });
+
+        responseParsers.put(IPTPEhlo.class, new ResponseParser() {
+            IPTPCommandResponse parse(SMTPHandler handler, int code) {
+                if (code!=250)
+                    return new IPTPEhloResponse(handler.getResponseText());
+
+                // first line is the greeting, each following line is an extension
+                byte response[] = handler.response;
+                String greeting = null;
+                Vector extensions = new Vector();
+                int start = 0;
+                while (start < handler.responseLength) {
+                    int end = start;
+                    while (response[end] != '\r')
+                        end++;
+
+                    String text = (end - start > 4) ? IPTP.dataToString(response, start + 4, end - start - 4) : "";
+                    if (greeting==null)
+                        greeting = text;
+                    else
+                        extensions.add(text);
+
+                    start = end + 2;
+                }
 
-        return commandresponse;
+                handler.serverExtensions = new IPTPEhloResponse(greeting, extensions);
+                return handler.serverExtensions;
+            }
+        });
     }
 
     /**
@@ -273,29 +342,186 @@ public class SMTPHandler extends ProtocolHandler implements SendPipeServerInterf
 
         lastCommandToServer = command;
 
+        if (writeCommand(command))
+            flushRawCommands();
+    }
+
+    /**
+     * <p>Send a group of commands to the email server and return the responses.</p>
+     * <p>If the server supports PIPELINING, commands up to and including DATA are sent together and their 
+     * responses read afterwards. If it supports CHUNKING, DATA followed by the message is replaced by a single 
+     * BDAT, so that a whole MAIL, RCPT..., BDAT transaction takes one round trip. If the server refuses DATA the 
+     * message is not sent.</p>
+     * @param commands[] The commands to send, in order.
+     * @return A response for each command.
+     * @throws NoMappingPossibleException if no mapping is possible (future enhancement, see protocol spec).
+     * @throws PipeCommunicationException if there was a general communication problem.
+     */
+    public IPTPCommandResponse [] sendCommands(IPTPCommand commands[]) throws NoMappingPossibleException, PipeCommunicationException {
+
+        IPTPCommandResponse responses[] = new IPTPCommandResponse[commands.length];
+
+        boolean pipelining = isServerCapable("PIPELINING");
+        boolean chunking = isServerCapable("CHUNKING");
+
+        int n = 0;
+        while (n < commands.length) {
+
+            // write a group of commands that can be sent without waiting for a response
+            int first = n;
+            int last = n;
+
+            for (; n < commands.length; n++) {
+                IPTPCommand c = commands[n];
+
+                if ((chunking) && (c instanceof IPTPData) && (n+1 < commands.length) && (commands[n+1] instanceof IPTPSendData)) {
+                    // BDAT does not need DATA first
+                    responses[n] = new IPTPDataResponse(true);
+                    continue;
+                }
+
+                if ((chunking) && (c instanceof IPTPSendData) && (n>0) && (commands[n-1] instanceof IPTPData)) {
+                    byte data[] = getMessageBytes((IPTPSendData)c); // BDAT needs the size first
+                    boolean crlf = (data.length>=2) && (data[data.length-2]=='\r') && (data[data.length-1]=='\n');
+                    writeRawCommand("BDAT " + (data.length + ((crlf) ? 0 : 2)) + " LAST\r\n");
+                    writeRawCommandData(data, false);
+                    if (!crlf)
+                        writeRawCommand("\r\n");
+                }
+                else {
+                    writeCommand(c);
+                }
+
+                last = n;
+
+                // anything that changes what comes next has to be the last command in the group
+                if ((!pipelining) || (c instanceof IPTPData) || (c instanceof IPTPSendData) || (c instanceof IPTPQuit) 
+                    || (c instanceof IPTPEhlo) || (c instanceof IPTPRelay)) {
+                    n++;
+                    break;
+                }
+            }
+
+            flushRawCommands();
+
+            for (int i = first; i <= last; i++) {
+                if (responses[i]!=null) continue;
+
+                lastCommandToServer = commands[i];
+                responses[i] = awaitCommandResponse();
+            }
+
+            // never send the message if the server has not asked for it
+            if ((commands[last] instanceof IPTPData) && (!responses[last].isOk())) {
+                while ((n < commands.length) && (commands[n] instanceof IPTPSendData))
+                    responses[n++] = new IPTPSendDataResponse(false);
+            }
+        }
+
+        return responses;
+    }
+
+    /**
+     * <p>Write a command for the server, without sending it yet.</p>
+     * <p>Email data is written straight from its byte array or Email, dot stuffed and followed by the final dot.</p>
+     * @return false if the command has no SMTP equivalent, so nothing was written.
+     */
+    private boolean writeCommand(IPTPCommand command) throws PipeCommunicationException {
+        if (command instanceof IPTPSendData) {
+            IPTPSendData c = (IPTPSendData)command;
+            if (c.getEmail()!=null)
+                writeRawCommandEmail(c.getEmail());
+            else
+                writeRawCommandData(c.getMessageBytes(), true);
+            writeRawCommand("\r\n.\r\n");
+            return true;
+        }
+
+        String raw = formatCommand(command);
+        if (raw==null)
+            return false;
+
+        writeRawCommand(raw);
+        return true;
+    }
+
+    /** Return the message an IPTPSendData carries as bytes, writing out its email if it has one. */
+    private byte[] getMessageBytes(IPTPSendData command) throws PipeCommunicationException {
+        if (command.getEmail()==null)
+            return command.getMessageBytes();
+
+        try {
+            return command.getEmail().getBytes();
+        } catch (EmailDataFormatException e) {
+            throw new PipeCommunicationException(e.getMessage());
+        }
+    }
+
+    /**
+     * <p>Convert a command to the raw text sent to the server.</p>
+     * <p>Email data is not converted, see writeCommand.</p>
+     * @param command The command.
+     * @return The raw command, or null if the command has no SMTP equivalent.
+     */
+    private String formatCommand(IPTPCommand command) {
         if (command instanceof IPTPMail) {
             IPTPMail c = (IPTPMail)command;
-            sendRawCommand("MAIL FROM:<" + c.getSender() + ">\r\n");
+            String params = c.getParameters();
+            if ((params.equalsIgnoreCase("BODY=8BITMIME")) && (!isServerCapable("8BITMIME")))
+                params = ""; // send as before and hope for the best
+
+            return "MAIL FROM:<" + c.getSender() + ">" + ((params.length()>0) ? " " + params : "") + "\r\n";
         }
         else if (command instanceof IPTPRcpt) {
             IPTPRcpt c = (IPTPRcpt)command;
-            sendRawCommand("RCPT TO:<" + c.getRecipient() + ">\r\n");
+            return "RCPT TO:<" + c.getRecipient() + ">\r\n";
         }
         else if (command instanceof IPTPData) {
-            IPTPData c = (IPTPData)command;
-            sendRawCommand("DATA\r\n");
+            return "DATA\r\n";
         }
-        else if (command instanceof IPTPSendData) {
-            IPTPSendData c = (IPTPSendData)command;
-            sendRawCommand(c.getMessageData() + "\r\n.\r\n");
+        else if (command instanceof IPTPEhlo) {
+            IPTPEhlo c = (IPTPEhlo)command;
+            return "EHLO " + c.getDomain() + "\r\n";
         }
         else if(command instanceof IPTPQuit) {
-            sendRawCommand("QUIT" + "\r\n");
+            return "QUIT" + "\r\n";
         }
         else if (command instanceof IPTPRelay) {
             IPTPRelay c = (IPTPRelay)command;
-            sendRawCommand(c.getRelay());
+            return c.getRelay();
         }
+
+        return null;
+    }
+
+    /** Build the EHLO response for the email client from the server's, listing only extensions the proxy supports. */
+    private String formatEhloResponse(IPTPEhloResponse response) {
+        Vector lines = new Vector();
+        lines.add(response.getGreeting());
+
+        Vector extensions = response.getExtensions();
+        for (int n = 0; n < extensions.size(); n++) {
+            String ext = (String)extensions.elementAt(n);
+            String keyword = ext.toUpperCase();
+            if (keyword.indexOf(' ')>0)
+                keyword = keyword.substring(0, keyword.indexOf(' '));
+
+            // the proxy reads email data from the client with DATA only
+            if ((keyword.equals("CHUNKING")) || (keyword.equals("BINARYMIME")))
+                continue;
+
+            lines.add(ext);
+        }
+
+        // commands from the client are answered in order, so pipelining always works
+        if (!response.hasExtension("PIPELINING"))
+            lines.add("PIPELINING");
+
+        StringBuffer out = new StringBuffer();
+        for (int n = 0; n < lines.size(); n++)
+            out.append(((n < lines.size()-1) ? "250-" : "250 ") + lines.elementAt(n) + "\r\n");
+
+        return out.toString();
     }
 
     /**
@@ -361,6 +587,21 @@ public class SMTPHandler extends ProtocolHandler implements SendPipeServerInterf
                 sendRawCommandResponse("500 Proxy failed to quit\r\n");
             }
         }
+        else if (commandResponse instanceof IPTPEhloResponse) {
+            IPTPEhloResponse cr = (IPTPEhloResponse)commandResponse;
+            if (cr.isOk()) {
+                // ok
+                sendRawCommandResponse(formatEhloResponse(cr));
+            }
+            else if (cr.getRawResponse().length()>0) {
+                // pass the server's error on so the client falls back to HELO
+                sendRawCommandResponse(cr.getRawResponse());
+            }
+            else {
+                // error
+                sendRawCommandResponse("502 Command not implemented\r\n");
+            }
+        }
         else if (commandResponse instanceof IPTPRelayResponse) {
             IPTPRelayResponse cr = (IPTPRelayResponse)commandResponse;
             sendRawCommandResponse(cr.getRelay());
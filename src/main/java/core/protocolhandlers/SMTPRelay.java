@@ -0,0 +1,306 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.protocolhandlers;
+import core.email.EmailEnvelope;
+import core.exceptions.*;
+import core.iptp.IPTP;
+
+/**
+ * <p>Relays an SMTP session, intercepting only the emails the client sends (RFC 2821).</p>
+ * <p>Every command other than DATA is passed to the server as it is, and the responses passed back as they are. 
+ * The sender and recipients the server accepts are noted, so that the email can be encrypted for them.</p>
+ * <p>The proxy answers DATA itself once the responses to the client's earlier commands have been passed back, 
+ * and collects the email. Only once the email has been processed is DATA sent to the server, followed by the 
+ * processed email, and the server's final response passed back. If the email can not be processed the server never 
+ * sees it and the client is told why, so the session can carry on. The server still holds the sender and recipients
+ * then, so the proxy clears them with RSET before reading any more commands from the client.</p>
+ * <p>CHUNKING and BINARYMIME are left out of the EHLO response, as the email has to be sent with DATA, and so is 
+ * STARTTLS, as the proxy can not see into a TLS session. The proxy answers BDAT and STARTTLS itself.</p>
+ * @see SMTPHandler
+ */
+public class SMTPRelay extends RelayProtocol {
+
+    /** Response passed back as it is. */
+    private static final int FORWARD = 0;
+    /** Response to EHLO, with the extensions the proxy can not relay left out. */
+    private static final int EHLO = 1;
+    /** Response to RCPT, the recipient is noted if it is accepted. */
+    private static final int RCPT = 2;
+    /** Response to AUTH, which may be a challenge. */
+    private static final int AUTH = 3;
+    /** DATA from the client, answered by the proxy. */
+    private static final int DATA = 4;
+    /** Response to DATA sent by the proxy once the email has been processed. */
+    private static final int SERVER_DATA = 5;
+    /** Response to the processed email. */
+    private static final int DATA_END = 6;
+    /** Response to RSET sent by the proxy after an email could not be processed, not passed back. */
+    private static final int RESET = 7;
+
+    /** Extensions left out of the EHLO response. */
+    private static final String HIDDEN_EXTENSIONS[] = { "CHUNKING", "BINARYMIME", "STARTTLS" };
+
+    /** Sender and recipients of the current email, or null if MAIL has not been sent. */
+    private EmailEnvelope envelope;
+    /** Is the email being collected? */
+    private boolean collecting;
+    /** Is the next line from the client an answer to an AUTH challenge rather than a command? */
+    private boolean challenged;
+    /** The processed email, until the server is ready for it. */
+    private byte processed[];
+    /** Line of an EHLO response held back in case it turns out to be the last. */
+    private byte heldLine[];
+    /** Has the first line of the EHLO response been read? */
+    private boolean ehloStarted;
+
+    /** Create the protocol state for a new session, which starts with the server's greeting. */
+    public SMTPRelay() {
+        expect(null, FORWARD, null);
+    }
+
+    public RelayProtocol newSession() {
+        return new SMTPRelay();
+    }
+
+    public void clientLine(RelaySession session, byte line[], int off, int len) throws ProxyServerCoreException {
+        if (collecting) {
+            if (isDotLine(line, off, len)) {
+                collecting = false;
+                session.pause(RelaySession.CLIENT);
+                session.submitPayload(envelope, takePayload());
+            } else {
+                appendPayload(line, off, len);
+            }
+            return;
+        }
+
+        if (challenged) {
+            challenged = false;
+            session.send(RelaySession.SERVER, line, off, len);
+            return;
+        }
+
+        int kind = FORWARD;
+        Object value = null;
+
+        switch (Verb.first(line, off, len, false)) {
+            case Verb.EHLO:
+                kind = EHLO;
+                break;
+            case Verb.MAIL:
+                envelope = new EmailEnvelope();
+                envelope.setSender(getAddress(line, off, len));
+                break;
+            case Verb.RCPT:
+                kind = RCPT;
+                value = getAddress(line, off, len);
+                break;
+            case Verb.RSET:
+                envelope = null;
+                break;
+            case Verb.AUTH:
+                kind = AUTH;
+                break;
+            case Verb.DATA:
+                if (envelope == null)
+                    answer(session, "503 5.5.1 MAIL first.\r\n");
+                else
+                    expect(session, DATA, null);
+                return;
+            case Verb.BDAT:
+                answer(session, "502 5.5.1 BDAT is not available through the proxy, use DATA.\r\n");
+                return;
+            default:
+                if (isKeyword(line, off, len, "STARTTLS")) {
+                    answer(session, "454 4.7.0 TLS is not available through the proxy.\r\n");
+                    return;
+                }
+        }
+
+        expect(session, kind, value);
+        session.send(RelaySession.SERVER, line, off, len);
+    }
+
+    public void serverLine(RelaySession session, byte line[], int off, int len) throws ProxyServerCoreException {
+        int kind = getExpectedKind();
+        boolean last = (len < 4) || (line[off + 3] != '-');
+        byte code = (len > 0) ? line[off] : 0;
+
+        switch (kind) {
+            case LOCAL:
+                // not asked for, pass it on
+                session.send(RelaySession.CLIENT, line, off, len);
+                return;
+
+            case EHLO:
+                ehloLine(session, line, off, len, last, code);
+                break;
+
+            case RCPT:
+                session.send(RelaySession.CLIENT, line, off, len);
+                if ((last) && (code == '2') && (envelope != null))
+                    envelope.addRecipient((String)getExpectedValue());
+                break;
+
+            case AUTH:
+                session.send(RelaySession.CLIENT, line, off, len);
+                if ((last) && (code == '3')) {
+                    // a challenge, the client's answer comes next
+                    challenged = true;
+                    return;
+                }
+                break;
+
+            case SERVER_DATA:
+                if (code != '3') {
+                    // refused, this is the client's answer to the email
+                    session.send(RelaySession.CLIENT, line, off, len);
+                    if (last)
+                        dataEnd(session);
+                    return;
+                }
+
+                if (last) {
+                    session.sendDotTerminated(RelaySession.SERVER, processed);
+                    processed = null;
+                    setExpectedKind(DATA_END);
+                }
+                return;
+
+            case DATA_END:
+                session.send(RelaySession.CLIENT, line, off, len);
+                if (last)
+                    dataEnd(session);
+                return;
+
+            case RESET:
+                // the client did not send RSET, so it does not get the response
+                if (last) {
+                    answered(session);
+                    session.resume(RelaySession.CLIENT);
+                }
+                return;
+
+            default:
+                session.send(RelaySession.CLIENT, line, off, len);
+        }
+
+        if (last)
+            answered(session);
+    }
+
+    public void payloadProcessed(RelaySession session, byte data[]) throws ProxyServerCoreException {
+        processed = data;
+        session.send(RelaySession.SERVER, "DATA\r\n");
+        expect(session, SERVER_DATA, null);
+    }
+
+    public void payloadFailed(RelaySession session, String message) throws ProxyServerCoreException {
+        answer(session, "554 5.6.0 " + toResponseText(message) + "\r\n");
+        envelope = null;
+
+        // the server has the sender and recipients but never saw DATA, it would refuse the client's next MAIL
+        session.send(RelaySession.SERVER, "RSET\r\n");
+        expect(session, RESET, null);
+    }
+
+    protected boolean answerLocally(RelaySession session, int kind, Object value) {
+        if (kind != DATA)
+            return super.answerLocally(session, kind, value);
+
+        // earlier commands have been answered, now take the email
+        session.send(RelaySession.CLIENT, "354 Start mail input; end with <CRLF>.<CRLF>\r\n");
+        collecting = true;
+        startPayload();
+        return true;
+    }
+
+    /** The email has been sent, or refused, and the client told. */
+    private void dataEnd(RelaySession session) {
+        processed = null;
+        envelope = null;
+        answered(session);
+        session.resume(RelaySession.CLIENT);
+    }
+
+    /**
+     * <p>Pass on a line of the EHLO response, leaving out the extensions the proxy can not relay.</p>
+     * <p>Each line is held back until the next arrives, so that if the last line is left out the one before it can 
+     * be made the last.</p>
+     */
+    private void ehloLine(RelaySession session, byte line[], int off, int len, boolean last, byte code) {
+        boolean hidden = false;
+
+        if ((ehloStarted) && (code == '2') && (len > 4)) {
+            for (int n = 0; n < HIDDEN_EXTENSIONS.length; n++)
+                if (isKeyword(line, off + 4, len - 4, HIDDEN_EXTENSIONS[n]))
+                    hidden = true;
+        }
+        ehloStarted = true;
+
+        if (!hidden) {
+            if (heldLine != null)
+                session.send(RelaySession.CLIENT, heldLine, 0, heldLine.length);
+
+            heldLine = new byte[len];
+            System.arraycopy(line, off, heldLine, 0, len);
+        }
+
+        if (last) {
+            if (heldLine.length > 3)
+                heldLine[3] = ' ';
+            session.send(RelaySession.CLIENT, heldLine, 0, heldLine.length);
+            heldLine = null;
+            ehloStarted = false;
+        }
+    }
+
+    /** Return the address between the angle brackets of a MAIL or RCPT command, or an empty string. */
+    private static String getAddress(byte line[], int off, int len) {
+        int start = off;
+        int end = off + len;
+
+        while ((start < end) && (line[start] != '<'))
+            start++;
+
+        int n = start;
+        while ((n < end) && (line[n] != '>'))
+            n++;
+
+        if (n >= end)
+            return "";
+
+        byte address[] = new byte[n - start - 1];
+        System.arraycopy(line, start + 1, address, 0, address.length);
+        return IPTP.dataToString(address);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package core.protocolhandlers;
+
+import core.iptp.IPTP;
+
+/**
+ * <p>Recognises the command verbs and response codes of the mail protocols from the bytes of a line, without 
+ * making strings of them.</p>
+ * <p>A word of up to four characters is packed, upper cased, into an int one byte per character, so that verbs can 
+ * be matched with a switch. Words are separated by spaces and line endings, and optionally by dashes.</p>
+ */
+public final class Verb {
+
+    /** Not a word of up to four characters. */
+    public static final int NONE = 0;
+
+    public static final int APOP = ('A' << 24) | ('P' << 16) | ('O' << 8) | 'P';
+    public static final int AUTH = ('A' << 24) | ('U' << 16) | ('T' << 8) | 'H';
+    public static final int BDAT = ('B' << 24) | ('D' << 16) | ('A' << 8) | 'T';
+    public static final int CAPA = ('C' << 24) | ('A' << 16) | ('P' << 8) | 'A';
+    public static final int DATA = ('D' << 24) | ('A' << 16) | ('T' << 8) | 'A';
+    public static final int DELE = ('D' << 24) | ('E' << 16) | ('L' << 8) | 'E';
+    public static final int EHLO = ('E' << 24) | ('H' << 16) | ('L' << 8) | 'O';
+    public static final int HELO = ('H' << 24) | ('E' << 16) | ('L' << 8) | 'O';
+    public static final int LIST = ('L' << 24) | ('I' << 16) | ('S' << 8) | 'T';
+    public static final int MAIL = ('M' << 24) | ('A' << 16) | ('I' << 8) | 'L';
+    public static final int NOOP = ('N' << 24) | ('O' << 16) | ('O' << 8) | 'P';
+    public static final int PASS = ('P' << 24) | ('A' << 16) | ('S' << 8) | 'S';
+    public static final int QUIT = ('Q' << 24) | ('U' << 16) | ('I' << 8) | 'T';
+    public static final int RCPT = ('R' << 24) | ('C' << 16) | ('P' << 8) | 'T';
+    public static final int RETR = ('R' << 24) | ('E' << 16) | ('T' << 8) | 'R';
+    public static final int RSET = ('R' << 24) | ('S' << 16) | ('E' << 8) | 'T';
+    public static final int STAT = ('S' << 24) | ('T' << 16) | ('A' << 8) | 'T';
+    public static final int STLS = ('S' << 24) | ('T' << 16) | ('L' << 8) | 'S';
+    public static final int TOP = ('T' << 16) | ('O' << 8) | 'P';
+    public static final int UIDL = ('U' << 24) | ('I' << 16) | ('D' << 8) | 'L';
+    public static final int USER = ('U' << 24) | ('S' << 16) | ('E' << 8) | 'R';
+
+    /** The POP3 positive response. */
+    public static final int OK = ('+' << 16) | ('O' << 8) | 'K';
+
+    private Verb() {
+    }
+
+    /** Returns true if a byte separates words. */
+    private static boolean isDelimiter(byte b, boolean dash) {
+        return (b == ' ') || (b == '\r') || (b == '\n') || ((dash) && (b == '-'));
+    }
+
+    /** Return the index of the first byte from start that is not a delimiter, or end. */
+    public static int skipDelimiters(byte line[], int start, int end, boolean dash) {
+        while ((start < end) && (isDelimiter(line[start], dash)))
+            start++;
+        return start;
+    }
+
+    /** Return the index of the first delimiter from start, or end. */
+    public static int wordEnd(byte line[], int start, int end, boolean dash) {
+        while ((start < end) && (!isDelimiter(line[start], dash)))
+            start++;
+        return start;
+    }
+
+    /** Pack the word from start to end, or return NONE if it is empty or longer than four characters. */
+    public static int pack(byte line[], int start, int end) {
+        if ((start >= end) || (end - start > 4))
+            return NONE;
+
+        int verb = 0;
+        for (int n = start; n < end; n++) {
+            int b = line[n] & 0xff;
+            if ((b >= 'a') && (b <= 'z'))
+                b -= 'a' - 'A';
+            verb = (verb << 8) | b;
+        }
+        return verb;
+    }
+
+    /** Pack the first word of a line. */
+    public static int first(byte line[], int off, int len, boolean dash) {
+        int start = skipDelimiters(line, off, off + len, dash);
+        return pack(line, start, wordEnd(line, start, off + len, dash));
+    }
+
+    /** Return the three digit response code at the start of an SMTP response line, or -1 if there is none. */
+    public static int code(byte line[], int off, int len) {
+        int start = skipDelimiters(line, off, off + len, true);
+        if (wordEnd(line, start, off + len, true) - start != 3)
+            return -1;
+
+        int code = 0;
+        for (int n = start; n < start + 3; n++) {
+            if ((line[n] < '0') || (line[n] > '9'))
+                return -1;
+            code = code * 10 + (line[n] - '0');
+        }
+        return code;
+    }
+
+    /**
+     * <p>Parse a decimal number from start to end, as Integer.parseInt does.</p>
+     * @throws NumberFormatException if it is not a number.
+     */
+    public static int parseInt(byte line[], int start, int end) {
+        boolean negative = (start < end) && (line[start] == '-');
+        int n = (negative) ? start + 1 : start;
+        if (n >= end)
+            throw new NumberFormatException("For input string: \"" + IPTP.dataToString(line, start, end - start) + "\"");
+
+        long value = 0;
+        for (; n < end; n++) {
+            if ((line[n] < '0') || (line[n] > '9') || (value > Integer.MAX_VALUE))
+                throw new NumberFormatException("For input string: \"" + IPTP.dataToString(line, start, end - start) + "\"");
+            value = value * 10 + (line[n] - '0');
+        }
+
+        if (negative)
+            value = -value;
+        if ((value > Integer.MAX_VALUE) || (value < Integer.MIN_VALUE))
+            throw new NumberFormatException("For input string: \"" + IPTP.dataToString(line, start, end - start) + "\"");
+        return (int)value;
+    }
+}
@@ -32,21 +32,158 @@
 package debug;
 import java.io.PrintStream;
 import java.lang.String;
+import java.util.Hashtable;
 
 /**
  * <p>Simple debugging utility class.</p>
+ * <p>Messages have a level, and may belong to a subsystem whose level is set apart from the default level. Callers 
+ * that build a message out of values should test isEnabled first, so that nothing is built while debugging is off.</p>
+ * <p>Messages that are enabled are queued in a bounded ring buffer and written out by a background thread, so the
+ * thread logging a message never waits for the stream (which in the proxy is the status window). If the buffer is 
+ * full the oldest message is dropped. Each subsystem can also be limited to a number of messages a second. Dropped 
+ * and suppressed messages are counted in the output.</p>
  */
 public class Debug {
     
+    /** Subsystem for OpenPGP packet and algorithm processing. */
+    public static final String OPENPGP = "openpgp";
+    
+    /** Subsystem for reading and validating key stores. */
+    public static final String KEYSTORE = "keystore";
+    
+    /** Subsystem for the user interface. */
+    public static final String UI = "ui";
+    
+    /** Number of messages that can be waiting to be written. */
+    public static final int BUFFER_SIZE = 1024;
+    
     /** Debug level */
     private static int level;
     
+    /** Levels set for subsystems, String to Integer. Other subsystems use the default level. */
+    private static Hashtable levels = new Hashtable();
+    
+    /** The highest level set, so most disabled messages are turned away without a lookup. */
+    private static volatile int maxLevel;
+    
+    /** Messages a second allowed for each subsystem, 0 for no limit. */
+    private static int rateLimit;
+    
+    /** Rate limiting state for each subsystem, String to Rate. */
+    private static Hashtable rates = new Hashtable();
+    
+    /** Should messages be written by the background thread? */
+    private static boolean asynchronous = true;
+    
+    /** Guards the ring buffer. */
+    private static final Object lock = new Object();
+    
+    /** Serialises writing, so that messages come out in order. */
+    private static final Object outputLock = new Object();
+    
+    /** The ring buffer, a stream, message and whether to end the line for each entry. */
+    private static PrintStream streams[] = new PrintStream[BUFFER_SIZE];
+    private static String messages[] = new String[BUFFER_SIZE];
+    private static boolean newlines[] = new boolean[BUFFER_SIZE];
+    
+    /** Index of the oldest message in the ring buffer. */
+    private static int head;
+    
+    /** Number of messages in the ring buffer. */
+    private static int count;
+    
+    /** Messages dropped since the last one was written. */
+    private static int dropped;
+    
+    /** The background thread, started with the first message. */
+    private static Thread writer;
+    
+    /** Messages counted against the rate limit of a subsystem in the current second. */
+    private static class Rate {
+        long second;
+        int count;
+        int suppressed;
+    }
+    
+    /** Writes queued messages out. */
+    private static class Writer extends Thread {
+        Writer() {
+            super("Debug output");
+            setDaemon(true);
+        }
+        
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (lock) {
+                        while (count==0)
+                            lock.wait();
+                    }
+                    flush();
+                }
+            } catch (InterruptedException e) {
+                // stop
+            }
+        }
+    }
+    
     /** 
      * <p>Set debug level.</p>
      * <p>0 - off, 1, 2, 3 etc higher levels of detail.</p>
      */
     public static void setLevel(int lvl) {
         level = lvl;
+        updateMaxLevel();
+    }
+    
+    /** 
+     * <p>Set the debug level of a subsystem, overriding the default level.</p>
+     * @param subsystem The subsystem, such as OPENPGP.
+     * @param lvl 0 - off, 1, 2, 3 etc higher levels of detail.
+     */
+    public static void setLevel(String subsystem, int lvl) {
+        levels.put(subsystem, new Integer(lvl));
+        updateMaxLevel();
+    }
+    
+    /** Return the debug level of a subsystem. */
+    public static int getLevel(String subsystem) {
+        Integer lvl = (subsystem==null) ? null : (Integer)levels.get(subsystem);
+        return (lvl==null) ? level : lvl.intValue();
+    }
+    
+    private static synchronized void updateMaxLevel() {
+        int max = level;
+        java.util.Enumeration e = levels.elements();
+        while (e.hasMoreElements())
+            max = Math.max(max, ((Integer)e.nextElement()).intValue());
+        maxLevel = max;
+    }
+    
+    /** Returns true if messages of the given level are printed by default. */
+    public static boolean isEnabled(int lvl) {
+        return level>=lvl;
+    }
+    
+    /** Returns true if messages of the given level are printed for a subsystem. */
+    public static boolean isEnabled(String subsystem, int lvl) {
+        return (maxLevel>=lvl) && (getLevel(subsystem)>=lvl);
+    }
+    
+    /** 
+     * <p>Limit the number of messages each subsystem can print a second.</p>
+     * @param messages Messages a second, or 0 for no limit.
+     */
+    public static void setRateLimit(int messages) {
+        rateLimit = messages;
+    }
+    
+    /** 
+     * <p>Set whether messages are written by a background thread (the default), or as they are printed.</p>
+     */
+    public static void setAsynchronous(boolean async) {
+        flush();
+        asynchronous = async;
     }
     
     /** <p>Print some output data to the given stream.</p>
@@ -56,7 +193,7 @@ public class Debug {
      */
     public static void println(PrintStream stream, int lvl, String data) {
         if (level>=lvl) 
-            stream.println(data);
+            write(null, stream, data, true);
     }
     
     /** <p>Print some output data to standard out.</p>
@@ -67,18 +204,24 @@ public class Debug {
         println(System.out, lvl, data);
     }
     
+    /** <p>Print some output data for a subsystem to standard out.</p>
+     * @param subsystem The subsystem the message is from, such as OPENPGP.
+     * @param lvl The debug level of this message - message won't be printed unless lvl is >= the subsystem's level.
+     * @param data String to output.
+     */
+    public static void println(String subsystem, int lvl, String data) {
+        if (isEnabled(subsystem, lvl))
+            write(subsystem, System.out, data, true);
+    }
+    
     /** <p>Print some hex data to the given stream.</p>
      * @param stream Where to write the text.
      * @param lvl The debug level of this message - message won't be printed unless lvl is >= level set buy setLevel.
      * @param data array of byte holding the raw data you want to dump as hex.
      */
     public static void hexDump(PrintStream stream, int lvl, byte []data) {
-        if (level>=lvl) {
-            for (int cnt = 0; cnt < data.length; cnt++)
-                stream.print(Integer.toHexString(data[cnt] & 0xFF).toUpperCase() + " ");
-
-            stream.println();
-        }
+        if (level>=lvl)
+            write(null, stream, toHex(data), true);
     }
     
     /** <p>Print some hex data to the standard out.</p>
@@ -89,9 +232,153 @@ public class Debug {
         hexDump(System.out, lvl, data);
     }
     
+    /** <p>Print some hex data for a subsystem to the standard out.</p>
+     * @param subsystem The subsystem the data is from, such as OPENPGP.
+     * @param lvl The debug level of this message - message won't be printed unless lvl is >= the subsystem's level.
+     * @param data array of byte holding the raw data you want to dump as hex.
+     */
+    public static void hexDump(String subsystem, int lvl, byte []data) {
+        if (isEnabled(subsystem, lvl))
+            write(subsystem, System.out, toHex(data), true);
+    }
+    
     public static void hexDump(int lvl, byte data) {
         if (level>=lvl) {
-           System.out.print(Integer.toHexString(data & 0xFF).toUpperCase() + " ");
+            write(null, System.out, Integer.toHexString(data & 0xFF).toUpperCase() + " ", false);
+        }
+    }
+    
+    private static String toHex(byte data[]) {
+        StringBuffer hex = new StringBuffer(data.length * 3);
+        for (int cnt = 0; cnt < data.length; cnt++) {
+            hex.append(Integer.toHexString(data[cnt] & 0xFF).toUpperCase());
+            hex.append(' ');
+        }
+        return hex.toString();
+    }
+    
+    /** Apply the rate limit and queue a message, or write it straight away if not asynchronous. */
+    private static void write(String subsystem, PrintStream stream, String data, boolean newline) {
+        if (rateLimit > 0) {
+            String suppressed = limit(subsystem);
+            if (suppressed == null)
+                return;
+            if (suppressed.length() > 0)
+                write(stream, suppressed, true);
+        }
+        
+        write(stream, data, newline);
+    }
+    
+    /**
+     * Count a message against its subsystem's rate limit.
+     * @return null if the message should be suppressed, otherwise a note of the messages suppressed in the last 
+     * second if there were any, or "".
+     */
+    private static String limit(String subsystem) {
+        String key = (subsystem==null) ? "" : subsystem;
+        long second = System.currentTimeMillis() / 1000;
+        
+        synchronized (rates) {
+            Rate rate = (Rate)rates.get(key);
+            if (rate==null) {
+                rate = new Rate();
+                rates.put(key, rate);
+            }
+            
+            String note = "";
+            if (rate.second != second) {
+                if (rate.suppressed > 0)
+                    note = "[debug: " + rate.suppressed + " " + ((subsystem==null) ? "" : subsystem + " ") + "messages suppressed]";
+                rate.second = second;
+                rate.count = 0;
+                rate.suppressed = 0;
+            }
+            
+            if (++rate.count > rateLimit) {
+                rate.suppressed++;
+                return null;
+            }
+            return note;
+        }
+    }
+    
+    private static void write(PrintStream stream, String data, boolean newline) {
+        if (!asynchronous) {
+            synchronized (outputLock) {
+                print(stream, data, newline);
+            }
+            return;
+        }
+        
+        synchronized (lock) {
+            if (count == BUFFER_SIZE) {
+                // drop the oldest
+                streams[head] = null;
+                messages[head] = null;
+                head = (head + 1) % BUFFER_SIZE;
+                count--;
+                dropped++;
+            }
+            
+            int tail = (head + count) % BUFFER_SIZE;
+            streams[tail] = stream;
+            messages[tail] = data;
+            newlines[tail] = newline;
+            count++;
+            
+            if (writer==null) {
+                writer = new Writer();
+                writer.start();
+                
+                // write out whatever is left when the program ends
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+            lock.notify();
+        }
+    }
+    
+    private static void print(PrintStream stream, String data, boolean newline) {
+        if (newline)
+            stream.println(data);
+        else
+            stream.print(data);
+    }
+    
+    /**
+     * <p>Write out every message waiting in the ring buffer, on this thread.</p>
+     */
+    public static void flush() {
+        synchronized (outputLock) {
+            while (true) {
+                PrintStream stream;
+                String data;
+                boolean newline;
+                int lost;
+                
+                synchronized (lock) {
+                    if (count==0)
+                        return;
+                    
+                    stream = streams[head];
+                    data = messages[head];
+                    newline = newlines[head];
+                    streams[head] = null;
+                    messages[head] = null;
+                    head = (head + 1) % BUFFER_SIZE;
+                    count--;
+                    lost = dropped;
+                    dropped = 0;
+                }
+                
+                if (lost > 0)
+                    stream.println("[debug: " + lost + " messages dropped]");
+                print(stream, data, newline);
+            }
         }
     }
 }
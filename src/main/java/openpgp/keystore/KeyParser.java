@@ -126,7 +126,6 @@ public class KeyParser {
 	public KeyStore getKeyStore(String publicKeyring, String privateKeyring) 
 			throws KeyringStructureException {
 		
-        debug.Debug.setLevel(1);
         primaryKeys.clear();
         KeyStore keyStore = new KeyStore();
         try {
@@ -215,9 +214,10 @@ public class KeyParser {
 	public KeyStore getKeyStore(InputStream publicKeyStream,
 			InputStream privateKeyStream) throws KeyringStructureException {
 
-		debug.Debug.setLevel(1);
-		debug.Debug.println(1, "publicKeyData reference: " + publicKeyStream);
-		debug.Debug.println(1, "privateKeyData reference: " + privateKeyStream);
+		if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1)) {
+			debug.Debug.println(debug.Debug.KEYSTORE, 1, "publicKeyData reference: " + publicKeyStream);
+			debug.Debug.println(debug.Debug.KEYSTORE, 1, "privateKeyData reference: " + privateKeyStream);
+		}
 		primaryKeys.clear();
 		KeyStore keyStore = new KeyStore();
 		try {
@@ -344,8 +344,9 @@ public class KeyParser {
 				}
 			}
 		}
-		debug.Debug.println(1, "Data has " + keyStore.getChildCount() + 
-				" key(s)");
+		if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+			debug.Debug.println(debug.Debug.KEYSTORE, 1, "Data has " + keyStore.getChildCount() + 
+					" key(s)");
 	}
 	
 	/** Method to merge the public/private keys of matching certificates */
@@ -414,7 +415,7 @@ public class KeyParser {
     // PublicKeyring = { PublicCertificate }.
     private void publicKeyring() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx publicKeyring()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx publicKeyring()");
     	scan();
     	for (;;) {
 			if (sym != -1) publicCertificate(); 
@@ -425,7 +426,7 @@ public class KeyParser {
     // PrivateKeyring = { PrivateCertificate }.
     private void privateKeyring() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx privateKeyring()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx privateKeyring()");
     	scan();
     	for (;;) {
 			if (sym != -1) privateCertificate(); 
@@ -437,7 +438,7 @@ public class KeyParser {
     //  {UserAttribute} { PublicSubkey }.
     private void publicCertificate() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx publicCertificate()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx publicCertificate()");
     	publicPrimaryKey();
     	for (;;) {
     		userID();
@@ -451,7 +452,7 @@ public class KeyParser {
     //  {UserAttribute} { PrivateSubkey }.
     private void privateCertificate() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx privateCertificate()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx privateCertificate()");
     	privatePrimaryKey();
     	for (;;) {
     		userID();
@@ -464,7 +465,7 @@ public class KeyParser {
     // PublicPrimaryKey = PublicKeyPacket [ TrustPacket ] {Signature}.
     private void publicPrimaryKey() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx publicPrimaryKey()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx publicPrimaryKey()");
     	// public key packet is always at the start of a new certificate
     	check(PublicKeyPacket_);
     	currentKey = new PrimarySigningKey((PublicKeyPacket)cp);
@@ -488,7 +489,7 @@ public class KeyParser {
     // PrivatePrimaryKey = SecretKeyPacket [ TrustPacket ] {Signature}.
     private void privatePrimaryKey() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx privatePrimaryKey()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx privatePrimaryKey()");
     	check(SecretKeyPacket_);
     	currentKey = new PrimarySigningKey((SecretKeyPacket)cp);
     	List keyList;
@@ -512,10 +513,11 @@ public class KeyParser {
     // UserID = UserIDPacket [ TrustPacket ] { Signature }.
     private void userID() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx userID()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx userID()");
     	check(UserIDPacket_);
     	UserID uid = new UserID((UserIDPacket)cp, currentKey);
-    	debug.Debug.println(1, "xxx              : " + uid.getUserID());
+    	if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+    		debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx              : " + uid.getUserID());
     	currentKey.addUserID(uid);
     	if (sym == TrustPacket_) {
     		scan();
@@ -529,7 +531,7 @@ public class KeyParser {
     // UserAttribute = UserAttributePacket [ TrustPacket ] { Signature }.
     private void userAttribute() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx userAttribute()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx userAttribute()");
     	check(UserAttributePacket_);
     	UserAttribute ua = new UserAttribute((UserAttributePacket)cp, currentKey);
     	currentKey.addUserAttribute(ua);
@@ -545,7 +547,7 @@ public class KeyParser {
     // Signature = SignaturePacket [ TrustPacket ].
     private void signature(Signable signable) 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx signature()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx signature()");
     	check(SignaturePacket_);
     	Signature sig = new Signature((SignaturePacket)cp);
     	signable.addSignature(sig);
@@ -560,7 +562,7 @@ public class KeyParser {
     // PublicSubkey = PublicSubkeyPacket [ TrustPacket ] Signature [ Signature ].
     private Subkey publicSubkey() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx publicSubkey()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx publicSubkey()");
     	check(PublicSubkeyPacket_);
     	Subkey subkey = new Subkey((PublicSubkeyPacket)cp);
     	currentKey.addSubkey(subkey);
@@ -578,7 +580,7 @@ public class KeyParser {
     // PrivateSubkey = SecretSubkeyPacket [ TrustPacket ] Signature [ Signature ].
     private Subkey privateSubkey() 
     		throws KeyringStructureException, AlgorithmException, IOException {
-    	debug.Debug.println(1, "xxx privateSubkey()");
+    	debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx privateSubkey()");
     	check(SecretSubkeyPacket_);
     	Subkey subkey = new Subkey((SecretSubkeyPacket)cp);
     	currentKey.addSubkey(subkey);
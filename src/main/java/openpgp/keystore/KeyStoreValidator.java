@@ -34,25 +34,29 @@ public class KeyStoreValidator {
 				if (keyList != null && keyList.size() == 1) {
 					PrimarySigningKey key = (PrimarySigningKey)keyList.get(0);
 					if (!sig.isVerified()) {
-						debug.Debug.println(1, "Verify certification " +
-								"from key ID " + key.getShortKeyID() +
-								" (" + key.getPrimaryEmailAddress() + ")");
+						if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+							debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verify certification " +
+									"from key ID " + key.getShortKeyID() +
+									" (" + key.getPrimaryEmailAddress() + ")");
 						boolean result = sig.verifyCertificationSignature(key);
-						debug.Debug.println(1, "Valid: " + result);
+						if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+							debug.Debug.println(debug.Debug.KEYSTORE, 1, "Valid: " + result);
 					}
 					if (sig.isRevoked() && sig.isVerified() &&
 							!sig.getRevocationSignature().isVerified()) {
-						debug.Debug.println(1, "Verify revocation " +
-								"from key ID " + key.getShortKeyID() +
-								" (" + key.getPrimaryEmailAddress() + ")");
+						if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+							debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verify revocation " +
+									"from key ID " + key.getShortKeyID() +
+									" (" + key.getPrimaryEmailAddress() + ")");
 						boolean result = sig.verifyRevocationSignature(key);
-						debug.Debug.println(1, "Valid: " + result);
+						if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+							debug.Debug.println(debug.Debug.KEYSTORE, 1, "Valid: " + result);
 					}
 				} else {
 					if (keyList == null)
-						debug.Debug.println(1, "Error: Signing key not found");
-					else
-						debug.Debug.println(1, "Error: " + keyList.size() + 
+						debug.Debug.println(debug.Debug.KEYSTORE, 1, "Error: Signing key not found");
+					else if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+						debug.Debug.println(debug.Debug.KEYSTORE, 1, "Error: " + keyList.size() + 
 								" key matches found");
 				}
 			} catch(Exception e) {
@@ -72,11 +76,13 @@ public class KeyStoreValidator {
 			// validate key revocation signatures
 			if (psk.isRevoked() && !psk.getRevocationSignature().isVerified()) {
 				try {
-					debug.Debug.println(1, "Verify direct key revocation " +
-							"of key ID " + psk.getShortKeyID() + " (" + 
-							psk.getPrimaryEmailAddress() + ")");
+					if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+						debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verify direct key revocation " +
+								"of key ID " + psk.getShortKeyID() + " (" + 
+								psk.getPrimaryEmailAddress() + ")");
 					boolean isValid = psk.verifyRevocationSignature(psk);
-					debug.Debug.println(1, "Valid: " + isValid);
+					if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+						debug.Debug.println(debug.Debug.KEYSTORE, 1, "Valid: " + isValid);
 				} catch(KeyMismatchException e) {
 					e.printStackTrace();
 				} catch(RevocationException e) {
@@ -107,11 +113,13 @@ public class KeyStoreValidator {
 				Subkey sk = (Subkey)ski.next();
 				if (sk.isRevoked() && !sk.getRevocationSignature().isVerified()) {
 					try {
-						debug.Debug.println(1, "Verify subkey revocation " +
-								"from key ID " + psk.getShortKeyID() +
-								" (" + psk.getPrimaryEmailAddress() + ")");
+						if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+							debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verify subkey revocation " +
+									"from key ID " + psk.getShortKeyID() +
+									" (" + psk.getPrimaryEmailAddress() + ")");
 						boolean isValid = sk.verifyRevocationSignature(psk);
-						debug.Debug.println(1, "Valid: " + isValid);
+						if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+							debug.Debug.println(debug.Debug.KEYSTORE, 1, "Valid: " + isValid);
 					} catch(KeyMismatchException e) {
 						e.printStackTrace();
 					} catch(RevocationException e) {
@@ -124,11 +132,13 @@ public class KeyStoreValidator {
 					Signature sig = (Signature)sigs.next();
 					if (!sig.isVerified()) {
 						try {
-							debug.Debug.println(1, "Verify subkey binding " +
-									"from key ID " + psk.getShortKeyID() +
-									" (" + psk.getPrimaryEmailAddress() + ")");
+							if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+								debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verify subkey binding " +
+										"from key ID " + psk.getShortKeyID() +
+										" (" + psk.getPrimaryEmailAddress() + ")");
 							boolean isValid = sk.verifyBindingSignature();
-							debug.Debug.println(1, "Valid: " + isValid);
+							if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+								debug.Debug.println(debug.Debug.KEYSTORE, 1, "Valid: " + isValid);
 						} catch(KeyMismatchException e) {
 							e.printStackTrace();
 						} catch(VerificationException e) {
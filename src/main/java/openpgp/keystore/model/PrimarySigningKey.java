@@ -372,10 +372,11 @@ public class PrimarySigningKey extends KeyPair implements UserBindable {
 			getTrust().getTrust()[0] |= TrustValues.OWNERTRUST_KEY_REVOKED;
 		} else {
 			// Ignore the revocation, it failed the initial revocation test
-			debug.Debug.println(1, "xxx Revocation signature failed the " +
-					"validity test. Revocation signature key ID = " + 
-					signature.getSigningKeyLongID() + ", key " +
-					"ID = " + getLongKeyID());
+			if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+				debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx Revocation signature failed the " +
+						"validity test. Revocation signature key ID = " + 
+						signature.getSigningKeyLongID() + ", key " +
+						"ID = " + getLongKeyID());
 		}
 	}
 	
@@ -456,8 +457,9 @@ public class PrimarySigningKey extends KeyPair implements UserBindable {
 		// and discard the revocation signature.
 		boolean isValidSignature = false;
 		if (this.isRevoked() && getRevocationSignature() != null) {
-			debug.Debug.println(1, "Verifying primary signing key revocation " +
-					"signature for key ID " + this.getShortKeyID());
+			if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+				debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verifying primary signing key revocation " +
+						"signature for key ID " + this.getShortKeyID());
 			try {
 				// retrieve the revocation signature to verify
 				Signature revocationSig = getRevocationSignature();
@@ -483,8 +485,9 @@ public class PrimarySigningKey extends KeyPair implements UserBindable {
 				if (isValidSignature) {
 					revocationSig.setVerified(isValidSignature);
 				} else {
-					debug.Debug.println(1, "Discarding invalid key revocation" +
-							" signature for key ID " + this.getShortKeyID());
+					if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+						debug.Debug.println(debug.Debug.KEYSTORE, 1, "Discarding invalid key revocation" +
+								" signature for key ID " + this.getShortKeyID());
 					this.isRevoked = false;
 					this.revocationSignature = null;
 				}
@@ -470,12 +470,13 @@ public class Signature implements ExportableKeyringPacketWrapper, Revocable,
 			this.isRevoked = true;
 		} else {
 			// Ignore the revocation, it failed the initial revocation test
-			debug.Debug.println(1, "xxx Revocation signature failed the " +
-					"validity test. Revocation signature made on " + 
-					signature.getCreationDate() + ", cert signature made on " + 
-					getCreationDate() + ", revocation signature key ID = " + 
-					signature.getSigningKeyLongID() + ", cert signature key " +
-					"ID = " + getSigningKeyLongID());
+			if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+				debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx Revocation signature failed the " +
+						"validity test. Revocation signature made on " + 
+						signature.getCreationDate() + ", cert signature made on " + 
+						getCreationDate() + ", revocation signature key ID = " + 
+						signature.getSigningKeyLongID() + ", cert signature key " +
+						"ID = " + getSigningKeyLongID());
 		}
 	}
 	
@@ -622,9 +623,10 @@ public class Signature implements ExportableKeyringPacketWrapper, Revocable,
 		// and discard the revocation signature.
 		boolean isValidSignature = false;
 		if (this.isRevoked && getRevocationSignature() != null) {
-			debug.Debug.println(1, "Verifying revocation signature for " +
-					"signature certifying '" + 
-					((UserObject)getParent()).toString() + "'");
+			if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+				debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verifying revocation signature for " +
+						"signature certifying '" + 
+						((UserObject)getParent()).toString() + "'");
 			
 			try {
 				// retrieve the revocation signature to verify
@@ -648,10 +650,11 @@ public class Signature implements ExportableKeyringPacketWrapper, Revocable,
 				if (isValidSignature) {
 					revocationSig.setVerified(isValidSignature);
 				} else {
-					debug.Debug.println(1, "Discarding invalid certification " +
-							"revocation signature on signature by key ID '" + 
-							this.getSigningKeyShortID() + "' certifying " +
-							"'" + ((UserObject)getParent()).toString() + "'");
+					if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+						debug.Debug.println(debug.Debug.KEYSTORE, 1, "Discarding invalid certification " +
+								"revocation signature on signature by key ID '" + 
+								this.getSigningKeyShortID() + "' certifying " +
+								"'" + ((UserObject)getParent()).toString() + "'");
 					this.isRevoked = false;
 					this.revocationSignature = null;
 				}
@@ -681,9 +684,10 @@ public class Signature implements ExportableKeyringPacketWrapper, Revocable,
 		// and discard the revocation signature.
 		boolean isValidSignature = false;
 		PrimarySigningKey psk = (PrimarySigningKey)getParent().getParent();
-		debug.Debug.println(1, "Verifying certification signature " +
-				"binding key ID " + psk.getShortKeyID() + " with '" +
-				((UserObject)getParent()).toString() + "'");
+		if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+			debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verifying certification signature " +
+					"binding key ID " + psk.getShortKeyID() + " with '" +
+					((UserObject)getParent()).toString() + "'");
 		if (!signer.getLongKeyID().equals(getSigningKeyLongID())) { 
 			throw new KeyMismatchException("The key ID of the signing key " +
 					"does not match the signers key ID on the signature"); 
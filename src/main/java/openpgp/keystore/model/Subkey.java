@@ -125,10 +125,11 @@ public class Subkey extends KeyPair {
 			getTrust().getTrust()[0] |= TrustValues.OWNERTRUST_KEY_REVOKED;
 		} else {
 			// Ignore the revocation, it failed the initial revocation test
-			debug.Debug.println(1, "xxx Revocation signature failed the " +
-					"validity test. Revocation signature key ID = " + 
-					signature.getSigningKeyLongID() + ", signing key " +
-					"ID = " + signingKeyID);
+			if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+				debug.Debug.println(debug.Debug.KEYSTORE, 1, "xxx Revocation signature failed the " +
+						"validity test. Revocation signature key ID = " + 
+						signature.getSigningKeyLongID() + ", signing key " +
+						"ID = " + signingKeyID);
 		}
 	}
 	
@@ -217,8 +218,9 @@ public class Subkey extends KeyPair {
 					key.getShortKeyID());
 		}
 		if (this.isRevoked() && getRevocationSignature() != null) {
-			debug.Debug.println(1, "Verifying subkey revocation signature for " +
-					"key ID " + this.getShortKeyID());
+			if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+				debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verifying subkey revocation signature for " +
+						"key ID " + this.getShortKeyID());
 			try {
 				// retrieve the revocation signature to verify
 				Signature revocationSig = getRevocationSignature();
@@ -245,9 +247,10 @@ public class Subkey extends KeyPair {
 				if (isValidSignature) {
 					revocationSig.setVerified(isValidSignature);
 				} else {
-					debug.Debug.println(1, "Discarding invalid subkey " +
-							"revocation signature on subkey ID " + 
-							this.getShortKeyID());
+					if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+						debug.Debug.println(debug.Debug.KEYSTORE, 1, "Discarding invalid subkey " +
+								"revocation signature on subkey ID " + 
+								this.getShortKeyID());
 					this.isRevoked = false;
 					this.revocationSignature = null;
 				}
@@ -275,9 +278,10 @@ public class Subkey extends KeyPair {
 		// and discard the revocation signature.
 		boolean isValidSignature = false;
 		PrimarySigningKey parent = (PrimarySigningKey)getParent();
-		debug.Debug.println(1, "Verifying subkey binding signature " +
-				"made by signing key ID " + parent.getShortKeyID() + " over " +
-				"itself and subkey ID " + this.getShortKeyID());
+		if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1))
+			debug.Debug.println(debug.Debug.KEYSTORE, 1, "Verifying subkey binding signature " +
+					"made by signing key ID " + parent.getShortKeyID() + " over " +
+					"itself and subkey ID " + this.getShortKeyID());
 		Signature sbs = null;  // subkey binding signature
 		// sanity check 1 - every subkey must have a signature
 		Iterator it = this.getSignatureIterator(); 
@@ -310,7 +314,7 @@ public class Subkey extends KeyPair {
 					sbs.setVerified(isValidSignature);
 					setVerified(isValidSignature);
 				} else {
-					debug.Debug.println(1, "Invalid subkey binding signature");
+					debug.Debug.println(debug.Debug.KEYSTORE, 1, "Invalid subkey binding signature");
 				}
 			} catch(Exception e) {
 				throw new VerificationException(e.getMessage());
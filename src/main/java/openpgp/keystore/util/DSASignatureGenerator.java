@@ -59,10 +59,12 @@ public class DSASignatureGenerator {
 		tmp = tmp.multiply(kInv);
 		s = tmp.mod(q);
 		
-		debug.Debug.println(1, "          R: " + 
-				StringHelper.toHexString(r.toByteArray()));
-		debug.Debug.println(1, "          S: " + 
-				StringHelper.toHexString(s.toByteArray()));
+		if (debug.Debug.isEnabled(debug.Debug.KEYSTORE, 1)) {
+			debug.Debug.println(debug.Debug.KEYSTORE, 1, "          R: " + 
+					StringHelper.toHexString(r.toByteArray()));
+			debug.Debug.println(debug.Debug.KEYSTORE, 1, "          S: " + 
+					StringHelper.toHexString(s.toByteArray()));
+		}
 		
 		return new DSASignature(r, s);
 	}
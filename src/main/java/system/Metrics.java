@@ -0,0 +1,476 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package system;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * <p>Counts and times the stages an email passes through in the proxy, so that it can be seen where the time goes.</p>
+ * <p>Code around a stage calls start, and stop with the stage's name when it is done. Each stage keeps a count, the 
+ * total and longest time, a histogram of times in powers of two (from which percentiles are estimated) and the 
+ * number of bytes handled. Times are recorded for the whole proxy, and for the pipe and session the current thread 
+ * is working for if it has said so with beginSession or setCurrentScopes.</p>
+ * <p>Gauges report values such as the number of active sessions or the cache hit rate when asked for.</p>
+ * <p>Everything is available over JMX once registerMBeans has been called (under the domain "secemail"), and as 
+ * plain text from dump.</p>
+ */
+public class Metrics {
+
+    /** Reading email data from a socket. */
+    public static final String SOCKET_READ = "socket.read";
+    /** Writing commands and email data to the mail server. */
+    public static final String UPSTREAM_SEND = "upstream.send";
+    /** Parsing an email. */
+    public static final String EMAIL_PARSE = "email.parse";
+    /** Writing an email back out as bytes. */
+    public static final String EMAIL_SERIALIZE = "email.serialize";
+    /** Looking for a key, this is followed by "." and the name of the key handler's class. */
+    public static final String KEY_LOOKUP = "key.lookup";
+    /** Turning a pass phrase into a key to unlock a secret key (S2K). */
+    public static final String SECRET_KEY_UNLOCK = "secretkey.unlock";
+    /** Public key encryption, decryption, signing and verification. */
+    public static final String PUBLIC_KEY = "publickey";
+    /** Symmetric encryption and decryption. */
+    public static final String SYMMETRIC = "symmetric";
+    /** Compressing and decompressing data. */
+    public static final String COMPRESSION = "compression";
+    /** Ascii armoring and disarming. */
+    public static final String ARMOR = "armor";
+
+    /** Number of histogram buckets, bucket n counts times of up to 2^n microseconds. */
+    private static final int BUCKETS = 40;
+
+    /** JMX domain. */
+    private static final String DOMAIN = "secemail";
+
+    /** Are stages being timed? */
+    private static volatile boolean enabled = true;
+
+    /** Times for the whole proxy. */
+    private static final Scope all = new Scope("all");
+
+    /** Scopes for each pipe, by name. */
+    private static final Hashtable pipes = new Hashtable();
+
+    /** Gauges by name. */
+    private static final TreeMap gauges = new TreeMap();
+
+    /** The scopes (Scope[]) the current thread records times in as well as all. */
+    private static final ThreadLocal current = new ThreadLocal();
+
+    /** Sessions between beginSession and endSession, or counted by sessionStarted. */
+    private static final AtomicInteger activeSessions = new AtomicInteger();
+
+    /** Where the MBeans are registered, null if they are not. */
+    private static MBeanServer server;
+
+    static {
+        addGauge("sessions.active", new Gauge() {
+            public long getValue() {
+                return activeSessions.get();
+            }
+        });
+    }
+
+    /** Turn timing on or off (it is on to begin with). */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /** Returns true if stages are being timed. */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Return the time a stage started, to pass to stop. */
+    public static long start() {
+        return (enabled) ? System.nanoTime() : 0;
+    }
+
+    /** Record a stage that started at the time start returned. */
+    public static void stop(String stage, long start) {
+        stop(stage, start, 0);
+    }
+
+    /** Record a stage that handled some bytes and started at the time start returned. */
+    public static void stop(String stage, long start, long bytes) {
+        if (!enabled)
+            return;
+
+        long nanos = System.nanoTime() - start;
+        all.getStage(stage).record(nanos, bytes);
+
+        Scope scopes[] = (Scope[])current.get();
+        if (scopes != null) {
+            for (int n = 0; n < scopes.length; n++)
+                scopes[n].getStage(stage).record(nanos, bytes);
+        }
+    }
+
+    /** Return the scope holding the times for a pipe, creating it if necessary. */
+    public static Scope getPipeScope(String name) {
+        synchronized (pipes) {
+            Scope scope = (Scope)pipes.get(name);
+            if (scope == null) {
+                scope = new Scope(name);
+                pipes.put(name, scope);
+            }
+            return scope;
+        }
+    }
+
+    /** Return the scope holding the times for the whole proxy. */
+    public static Scope getScope() {
+        return all;
+    }
+
+    /**
+     * <p>Start timing a session on the current thread, for a pipe.</p>
+     * @return the scope the session's times are kept in, until endSession is called.
+     */
+    public static Scope beginSession(Scope pipe) {
+        Scope session = new Scope(pipe.getName() + " session");
+        current.set(new Scope[] {pipe, session});
+        activeSessions.incrementAndGet();
+        return session;
+    }
+
+    /** Stop timing the session begun on the current thread. */
+    public static void endSession() {
+        if (current.get() != null) {
+            current.set(null);
+            activeSessions.decrementAndGet();
+        }
+    }
+
+    /** Count a session that is not tied to a thread as started. */
+    public static void sessionStarted() {
+        activeSessions.incrementAndGet();
+    }
+
+    /** Count a session that is not tied to a thread as finished. */
+    public static void sessionFinished() {
+        activeSessions.decrementAndGet();
+    }
+
+    /** Return the scopes the current thread records in, to pass to another thread's setCurrentScopes. */
+    public static Object getCurrentScopes() {
+        return current.get();
+    }
+
+    /** Record in the given scopes on this thread, when doing work for another thread. Null records in none. */
+    public static void setCurrentScopes(Object scopes) {
+        current.set(scopes);
+    }
+
+    /** Add (or replace) a gauge. */
+    public static void addGauge(String name, Gauge gauge) {
+        synchronized (gauges) {
+            gauges.put(name, gauge);
+        }
+        register(gaugeName(name), gauge, Gauge.class);
+    }
+
+    /**
+     * <p>Register every stage and gauge with the platform MBean server, and any added later.</p>
+     */
+    public static synchronized void registerMBeans() {
+        if (server != null)
+            return;
+        server = ManagementFactory.getPlatformMBeanServer();
+
+        register(DOMAIN + ":type=Metrics", new MetricsMBean() {
+            public String getDump() {
+                return dump();
+            }
+        }, MetricsMBean.class);
+
+        all.register();
+        synchronized (pipes) {
+            Enumeration e = pipes.elements();
+            while (e.hasMoreElements())
+                ((Scope)e.nextElement()).register();
+        }
+
+        synchronized (gauges) {
+            Iterator i = gauges.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry entry = (Map.Entry)i.next();
+                register(gaugeName((String)entry.getKey()), entry.getValue(), Gauge.class);
+            }
+        }
+    }
+
+    private static String gaugeName(String name) {
+        return DOMAIN + ":type=Gauge,name=" + ObjectName.quote(name);
+    }
+
+    /** Register an MBean if MBeans are being registered, replacing any with the same name. */
+    private static synchronized void register(String name, Object bean, Class type) {
+        if (server == null)
+            return;
+
+        try {
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(new StandardMBean(bean, type), objectName);
+        } catch (JMException e) {
+            // metrics are not worth failing for
+            debug.Debug.println(1, "Could not register " + name + " : " + e.getMessage());
+        }
+    }
+
+    /** Return everything as plain text, one line for each stage and gauge. */
+    public static String dump() {
+        StringBuffer out = new StringBuffer();
+
+        synchronized (gauges) {
+            Iterator i = gauges.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry entry = (Map.Entry)i.next();
+                out.append(pad((String)entry.getKey(), 32));
+                out.append(((Gauge)entry.getValue()).getValue());
+                out.append("\n");
+            }
+        }
+
+        all.dump(out);
+        Vector scopes;
+        synchronized (pipes) {
+            scopes = new Vector(pipes.values());
+        }
+        for (int n = 0; n < scopes.size(); n++)
+            ((Scope)scopes.elementAt(n)).dump(out);
+
+        return out.toString();
+    }
+
+    private static String pad(String text, int width) {
+        StringBuffer padded = new StringBuffer(text);
+        do {
+            padded.append(' ');
+        } while (padded.length() < width);
+        return padded.toString();
+    }
+
+    private static String millis(double ms) {
+        return Long.toString(Math.round(ms * 1000) / 1000) + "." + Long.toString(1000 + (Math.round(ms * 1000) % 1000)).substring(1);
+    }
+
+    /** <p>A value that is read when it is reported.</p> */
+    public interface Gauge {
+        long getValue();
+    }
+
+    /** <p>The plain text dump, over JMX.</p> */
+    public interface MetricsMBean {
+        String getDump();
+    }
+
+    /** <p>What is reported for a stage over JMX.</p> */
+    public interface StageMBean {
+        long getCount();
+        long getBytes();
+        double getMeanMillis();
+        double getMaxMillis();
+        double getMedianMillis();
+        double getPercentile99Millis();
+    }
+
+    /** <p>The count, times and bytes for one stage.</p> */
+    public static class Stage implements StageMBean {
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        void record(long time, long handled) {
+            count.incrementAndGet();
+            nanos.addAndGet(time);
+            bytes.addAndGet(handled);
+
+            long max;
+            while (time > (max = maxNanos.get())) {
+                if (maxNanos.compareAndSet(max, time))
+                    break;
+            }
+
+            long micros = time / 1000;
+            int bucket = (micros == 0) ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public double getMeanMillis() {
+            long n = count.get();
+            return (n == 0) ? 0 : nanos.get() / (n * 1000000.0);
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1000000.0;
+        }
+
+        public double getMedianMillis() {
+            return getPercentileMillis(50);
+        }
+
+        public double getPercentile99Millis() {
+            return getPercentileMillis(99);
+        }
+
+        /** Return the time below which the given percentage of times fell, to the next power of two microseconds. */
+        public double getPercentileMillis(double percent) {
+            long total = 0;
+            for (int n = 0; n < BUCKETS; n++)
+                total += buckets.get(n);
+            if (total == 0)
+                return 0;
+
+            long wanted = (long)Math.ceil(total * percent / 100);
+            long seen = 0;
+            for (int n = 0; n < BUCKETS; n++) {
+                seen += buckets.get(n);
+                if (seen >= wanted)
+                    return (1L << n) / 1000.0;
+            }
+            return getMaxMillis();
+        }
+
+        public String toString() {
+            return name + " " + getCount() + " x " + millis(getMeanMillis()) + "ms";
+        }
+    }
+
+    /** <p>The stages recorded for the whole proxy, a pipe or a session.</p> */
+    public static class Scope {
+        private final String name;
+        private final Hashtable stages = new Hashtable();
+        private boolean registered;
+
+        public Scope(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /** Return a stage, creating it if necessary. */
+        public Stage getStage(String stage) {
+            Stage s = (Stage)stages.get(stage);
+            if (s != null)
+                return s;
+
+            synchronized (this) {
+                s = (Stage)stages.get(stage);
+                if (s == null) {
+                    s = new Stage(stage);
+                    stages.put(stage, s);
+                    if (registered)
+                        register(s);
+                }
+                return s;
+            }
+        }
+
+        /** Return the stages recorded so far, sorted by name. */
+        public Stage[] getStages() {
+            TreeMap sorted = new TreeMap(stages);
+            Stage s[] = new Stage[sorted.size()];
+            sorted.values().toArray(s);
+            return s;
+        }
+
+        synchronized void register() {
+            registered = true;
+            Enumeration e = stages.elements();
+            while (e.hasMoreElements())
+                register((Stage)e.nextElement());
+        }
+
+        private void register(Stage stage) {
+            Metrics.register(DOMAIN + ":type=Stage,scope=" + ObjectName.quote(name) + ",name=" + ObjectName.quote(stage.getName()), 
+                stage, StageMBean.class);
+        }
+
+        void dump(StringBuffer out) {
+            Stage s[] = getStages();
+            if (s.length == 0)
+                return;
+
+            out.append("[" + name + "]\n");
+            out.append(pad("stage", 32) + pad("count", 10) + pad("mean ms", 12) + pad("median ms", 12) + pad("99% ms", 12) + pad("max ms", 12) + "bytes\n");
+            for (int n = 0; n < s.length; n++) {
+                out.append(pad(s[n].getName(), 32));
+                out.append(pad(Long.toString(s[n].getCount()), 10));
+                out.append(pad(millis(s[n].getMeanMillis()), 12));
+                out.append(pad(millis(s[n].getMedianMillis()), 12));
+                out.append(pad(millis(s[n].getPercentile99Millis()), 12));
+                out.append(pad(millis(s[n].getMaxMillis()), 12));
+                out.append(s[n].getBytes());
+                out.append("\n");
+            }
+        }
+
+        /** Return the stages on one line. */
+        public String toString() {
+            Stage s[] = getStages();
+            StringBuffer out = new StringBuffer();
+            for (int n = 0; n < s.length; n++) {
+                if (n > 0)
+                    out.append(", ");
+                out.append(s[n].toString());
+            }
+            return out.toString();
+        }
+    }
+}
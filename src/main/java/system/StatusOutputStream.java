@@ -38,13 +38,15 @@ import java.lang.*;
  * status text.</p>
  * <p>You can give this class to System to let you redirect stdout & stderr to any class that
  * implements the StatusOutputInterface.</p>
+ * <p>Text is passed on a whole number of lines at a time, once for each write, so the StatusOutputInterface should
+ * only queue it and return (it may be called from any thread).</p>
  * @see StatusOutputInterface
  */
 public class StatusOutputStream extends OutputStream {
 
     /** Where to write the data. */
     private StatusOutputInterface outputStream;
-    /** Text buffer */
+    /** Text buffer, holding the start of a line that has not been ended yet. */
     private StringBuffer buffer;
 
     /** Creates a new instance of StatusOutputStream. */
@@ -54,9 +56,11 @@ public class StatusOutputStream extends OutputStream {
     }
 
     /** Flush the buffer. */
-    public void flush() {
-        outputStream.appendStatusText(buffer.toString());
-        buffer.delete(0,buffer.length());
+    public synchronized void flush() {
+        if (buffer.length()>0) {
+            outputStream.appendStatusText(buffer.toString());
+            buffer.setLength(0);
+        }
     }
     
     /** <p>Write a byte to the stream.</p>
@@ -64,9 +68,27 @@ public class StatusOutputStream extends OutputStream {
      * <p>To speed up screen writes, this class only flushes the buffer once an end of line character is received.</p>
      * @see StatusOutputInterface#appendStatusText(String)
      */
-    public void write(int param) throws java.io.IOException {
-        buffer.append((char)param);
+    public synchronized void write(int param) throws java.io.IOException {
+        buffer.append((char)(param & 0xFF));
         if ( ((param & 0xFF) == 13) || ((param & 0xFF) == 10)) flush(); 
     }
 
+    /** <p>Write some bytes to the stream.</p>
+     * <p>Every complete line written is passed to the StatusOutputInterface object together, the end of an 
+     * unfinished line is kept until its end of line character is received.</p>
+     * @see StatusOutputInterface#appendStatusText(String)
+     */
+    public synchronized void write(byte b[], int off, int len) throws java.io.IOException {
+        // find the end of the last complete line
+        int end = off + len;
+        while ((end > off) && (b[end-1] != 13) && (b[end-1] != 10))
+            end--;
+
+        for (int n = off; n < off + len; n++) {
+            buffer.append((char)(b[n] & 0xFF));
+            if (n == end - 1)
+                flush();
+        }
+    }
+
 }
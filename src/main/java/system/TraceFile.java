@@ -0,0 +1,198 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package system;
+import java.io.*;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <p>Appends trace records, one JSON object a line, to a file.</p>
+ * <p>Records are queued and written by a background thread, so that the thread processing an email never waits for 
+ * the disk. If the queue is full the record is dropped, and the number dropped is written in place of the records 
+ * once there is room. Nothing is queued until a file has been opened.</p>
+ */
+public class TraceFile {
+
+    /** Number of records that can be waiting to be written. */
+    public static final int QUEUE_SIZE = 1024;
+
+    /** Records waiting to be written. */
+    private static final LinkedBlockingQueue queue = new LinkedBlockingQueue(QUEUE_SIZE);
+
+    /** The file records are appended to, null if tracing is off. */
+    private static volatile File file;
+
+    /** Records queued and written, so that flush knows when it has caught up. Guarded by the queue. */
+    private static long queued;
+    private static long written;
+
+    /** Records dropped since the last one was written. */
+    private static int dropped;
+
+    /** The background thread, started with the first file. */
+    private static Thread writer;
+
+    /** Writes queued records out. */
+    private static class Output extends Thread {
+        Output() {
+            super("Trace output");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    String record = (String)queue.take();
+                    int count = 1;
+                    File to = file;
+
+                    BufferedWriter target = null;
+                    try {
+                        if (to == null)
+                            record = null; // closed, the record is lost
+                        else
+                            target = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(to, true), "UTF-8"));
+                        while (record != null) {
+                            target.write(record);
+                            target.newLine();
+                            record = (String)queue.poll();
+                            if (record != null)
+                                count++;
+                        }
+
+                        int lost = takeDropped();
+                        if ((lost > 0) && (target != null)) {
+                            target.write("{\"dropped\":" + lost + "}");
+                            target.newLine();
+                        }
+                    } catch (IOException e) {
+                        // tracing is not worth failing for, drop what could not be written
+                        debug.Debug.println(1, "Could not write trace file : " + e.getMessage());
+                    } finally {
+                        try {
+                            if (target != null)
+                                target.close();
+                        } catch (IOException e) {
+                            // as above
+                        }
+                    }
+
+                    synchronized (queue) {
+                        written += count;
+                        queue.notifyAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stop
+            }
+        }
+    }
+
+    /** Start appending records to a file. */
+    public static synchronized void open(File trace) {
+        file = trace;
+        if (writer == null) {
+            writer = new Output();
+            writer.start();
+        }
+    }
+
+    /** Stop tracing, once the records already queued have been written. */
+    public static void close() {
+        flush();
+        file = null;
+    }
+
+    /** Returns true if records are being written, so callers need not build records that would be thrown away. */
+    public static boolean isEnabled() {
+        return file != null;
+    }
+
+    /** Queue a record (a JSON object without a line ending) to be written. */
+    public static void write(String record) {
+        if (file == null)
+            return;
+
+        synchronized (queue) {
+            if (queue.offer(record))
+                queued++;
+            else
+                dropped++;
+        }
+    }
+
+    /** Wait until every record queued so far has been written. */
+    public static void flush() {
+        synchronized (queue) {
+            long target = queued;
+            try {
+                while ((written < target) && (file != null))
+                    queue.wait(100);
+            } catch (InterruptedException e) {
+                // give up
+            }
+        }
+    }
+
+    private static int takeDropped() {
+        synchronized (queue) {
+            int lost = dropped;
+            dropped = 0;
+            return lost;
+        }
+    }
+
+    /** Return a string as a JSON string literal. */
+    public static String quote(String text) {
+        StringBuffer out = new StringBuffer(text.length() + 2);
+        out.append('"');
+        for (int n = 0; n < text.length(); n++) {
+            char c = text.charAt(n);
+            switch (c) {
+                case '"' : out.append("\\\""); break;
+                case '\\' : out.append("\\\\"); break;
+                case '\n' : out.append("\\n"); break;
+                case '\r' : out.append("\\r"); break;
+                case '\t' : out.append("\\t"); break;
+                default :
+                    if (c < 0x20) {
+                        String hex = Integer.toHexString(c);
+                        out.append("\\u0000".substring(0, 6 - hex.length()));
+                        out.append(hex);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+        return out.toString();
+    }
+}
@@ -68,6 +68,10 @@ import java.lang.String;
 
 import java.awt.Image;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import java.util.concurrent.atomic.*;
+
 
 
 /**
@@ -100,6 +104,18 @@ public class MainWindow extends javax.swing.JFrame implements StatusOutputInterf
 
         initComponents();   
 
+        statusTimer = new javax.swing.Timer(STATUS_DELAY, new java.awt.event.ActionListener() {
+
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+
+                showPendingStatus();
+
+            }
+
+        });
+
+        statusTimer.setRepeats(false);
+
     }
 
 
@@ -289,11 +305,74 @@ public class MainWindow extends javax.swing.JFrame implements StatusOutputInterf
 
     public void appendStatusText(String text) {
 
-        jTextArea1.append(text);
+        // queue the text, the display is only touched on the event dispatch thread
+
+        pendingStatus.offer(text);
+
+
+        // if the display falls behind, text older than the scrollback would never be seen anyway
+
+        if (pendingCount.incrementAndGet() > STATUS_LINES) {
+
+            if (pendingStatus.poll() != null)
+
+                pendingCount.decrementAndGet();
+
+        }
 
-        jScrollPane1.getVerticalScrollBar().setValue(jTextArea1.getHeight() - jTextArea1.getVisibleRect().height );
 
+        if (statusScheduled.compareAndSet(false, true))
 
+            statusTimer.start();
+
+    }
+
+
+    /** Show the queued status text, a batch at a time, keeping only the last STATUS_LINES lines. */
+
+    private void showPendingStatus() {
+
+        statusScheduled.set(false);
+
+
+        StringBuffer text = new StringBuffer();
+
+        String piece;
+
+        while ((piece = (String)pendingStatus.poll()) != null) {
+
+            pendingCount.decrementAndGet();
+
+            text.append(piece);
+
+        }
+
+        if (text.length()==0)
+
+            return;
+
+
+        jTextArea1.append(text.toString());
+
+
+        int excess = jTextArea1.getLineCount() - STATUS_LINES;
+
+        if (excess > 0) {
+
+            try {
+
+                jTextArea1.replaceRange("", 0, jTextArea1.getLineEndOffset(excess - 1));
+
+            } catch (javax.swing.text.BadLocationException e) {
+
+                // the lines are there, they were just counted
+
+            }
+
+        }
+
+
+        jTextArea1.setCaretPosition(jTextArea1.getDocument().getLength());
 
     }
 
@@ -315,5 +394,34 @@ public class MainWindow extends javax.swing.JFrame implements StatusOutputInterf
 
     private ConfigurationData configurationFile;
 
+    /** Most lines kept in the status window, the oldest are removed as new ones arrive. */
+
+    public static final int STATUS_LINES = 1000;
+
+
+    /** Milliseconds to wait, once status text arrives, before showing it along with anything that follows. */
+
+    private static final int STATUS_DELAY = 100;
+
+
+    /** Status text waiting to be shown, added by any thread and taken on the event dispatch thread. */
+
+    private final ConcurrentLinkedQueue pendingStatus = new ConcurrentLinkedQueue();
+
+
+    /** Number of pieces of text in pendingStatus. */
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+
+    /** Set while statusTimer is due to show the pending text. */
+
+    private final AtomicBoolean statusScheduled = new AtomicBoolean();
+
+
+    /** Shows the pending status text. */
+
+    private javax.swing.Timer statusTimer;
+
 }
 
@@ -77,7 +77,6 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
     public OpenPGPKeyManager(ConfigurationData configFile) {
 //        super(frame, modal);
         configurationData = configFile;
-        debug.Debug.setLevel(2);
         keyParser = new KeyParser();
         long t1, t2, t3;
         t1 = System.currentTimeMillis();
@@ -87,7 +86,7 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
         loadKeySearchComponents();
         loadResultsModel();
         t3 = System.currentTimeMillis();
-        debug.Debug.println(1, "xxx initComponents() took " + (t2-t1) + "ms" +
+        debug.Debug.println(debug.Debug.UI, 1, "xxx initComponents() took " + (t2-t1) + "ms" +
                 ", loadKeyringModel() took " + (t3-t2) + "ms");
     }
     
@@ -2019,7 +2018,7 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
                     keys[0]);
         
         if (choice != null) {  // an option was chosen, no cancellation
-            debug.Debug.println(1, "Key Server chosen: '" + choice + "'");
+            debug.Debug.println(debug.Debug.UI, 1, "Key Server chosen: '" + choice + "'");
             
             KeyServer ks = (KeyServer)keyServers.get(choice);
             KeyObject[] keyObj = new KeyObject[1];
@@ -2202,10 +2201,10 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
     }//GEN-LAST:event_keySearchByComboBoxActionPerformed
 
     private void keySearchButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_keySearchButtonActionPerformed
-    	debug.Debug.println(1, "Key search button pressed");
+    	debug.Debug.println(debug.Debug.UI, 1, "Key search button pressed");
         KeyHandler kh = (KeyHandler)keySearchComboBox.getSelectedItem();
         if (kh != null) {
-            debug.Debug.println(1, "Key Handler " + kh.toString() + " chosen");
+            debug.Debug.println(debug.Debug.UI, 1, "Key Handler " + kh.toString() + " chosen");
             KeyIdentifier id = null;
             boolean isValid = true;
             int criteria = keySearchByComboBox.getSelectedIndex();
@@ -2226,13 +2225,13 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
                     } else {
                         try {
                         	byte[] ba = KeyUtils.getKeyID(keyID);
-                        	debug.Debug.println(1, "key id byte length = " + ba.length + ", hex: " + StringHelper.toHexString(ba)); 
+                        	debug.Debug.println(debug.Debug.UI, 1, "key id byte length = " + ba.length + ", hex: " + StringHelper.toHexString(ba)); 
                         	id = new OpenPGPKeyIDKeyIdentifier(ba);
                         } catch(KeyHandlerException e) {e.printStackTrace(); isValid = false;}
                     }
                     break;
                 case 2:  // free text
-                    debug.Debug.println(1, "Search String: " + 
+                    debug.Debug.println(debug.Debug.UI, 1, "Search String: " + 
                             keySearchFreeTextField.getText());
                     id = new OpenPGPFreeTextKeyIdentifier(
                             keySearchFreeTextField.getText());
@@ -2240,7 +2239,7 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
             }
             String resultsMessage = " ";
             if (isValid) {
-            	debug.Debug.println(1, "isValid = " + isValid);
+            	debug.Debug.println(debug.Debug.UI, 1, "isValid = " + isValid);
                 try {
                 	KeyObject[] keyData = kh.findKeys(id, null);
                     if (keyData != null && keyData.length > 0) {
@@ -2271,7 +2270,7 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
                             "for keys:\n" + e.getMessage(),
                             "Key Search Error", JOptionPane.ERROR_MESSAGE);
                 }
-            } else {debug.Debug.println(1, "isValid = " + isValid);}
+            } else {debug.Debug.println(debug.Debug.UI, 1, "isValid = " + isValid);}
             keySearchResultsLabel.setText(resultsMessage);
         }
     }//GEN-LAST:event_keySearchButtonActionPerformed
@@ -2400,7 +2399,7 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
         String choice = (String)signingKeyComboBox.getSelectedItem();
         if (choice != null) {  // an option was chosen
             PrimarySigningKey certifier = (PrimarySigningKey)keyMap.get(choice);
-            debug.Debug.println(1, "Key ID chosen: '" + certifier.getShortKeyID() + "'");
+            debug.Debug.println(debug.Debug.UI, 1, "Key ID chosen: '" + certifier.getShortKeyID() + "'");
             
             PassPhrase passPhrase = requestPassPhrase();
             
@@ -2450,7 +2449,7 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
             
             if (passPhrase != null) {  // operation was not cancelled
             	String emailInFull = emailName + " <" + emailAddress + ">";
-                debug.Debug.println(1, "Adding email address '" + emailInFull +
+                debug.Debug.println(debug.Debug.UI, 1, "Adding email address '" + emailInFull +
                         "' here");
                 try {
                 	OpenPGPStandardKeyIdentifier userIdentifier = 
@@ -2669,7 +2668,7 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
                     keyRevocationReasons,
                     keyRevocationReasons[0]);
         
-        debug.Debug.println(1, "Option chosen: '" + choice + "'");
+        debug.Debug.println(debug.Debug.UI, 1, "Option chosen: '" + choice + "'");
         if (choice != null) {  // an option was chosen, no cancellation
             int reason = 0;
             for (int i = 0; i < keyRevocationReasons.length; ++i) {
@@ -2739,7 +2738,7 @@ public class OpenPGPKeyManager extends javax.swing.JFrame implements Observer {
                     keyRevocationReasons,
                     keyRevocationReasons[0]);
         
-        debug.Debug.println(1, "Option chosen: '" + choice + "'");
+        debug.Debug.println(debug.Debug.UI, 1, "Option chosen: '" + choice + "'");
         if (choice != null) {  // an option was chosen, no cancellation
             int reason = 0;
             for (int i = 0; i < keyRevocationReasons.length; ++i) {
@@ -0,0 +1,218 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.algorithmhandlers.openpgp.util.*;
+import core.email.encoders.Base64;
+import core.exceptions.ChecksumFailureException;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.Random;
+
+/**
+ * <p>Checks the table driven CRC-24 against a bit at a time reference and that the armor stream filters 
+ * produce and accept the same radix-64 format as before.</p>
+ */
+public class TestArmorStreams extends TestCase {
+
+    /** Data lengths to try, chosen to hit triple and line boundaries. */
+    private final int lengths[] = { 0, 1, 2, 3, 47, 48, 49, 95, 96, 97, 1000, 65537 };
+
+    /** Reference CRC-24 from RFC 2440 section 6.1. */
+    private long referenceCRC(byte data[]) {
+        long crc = 0xb704ceL;
+        for (int i = 0; i < data.length; i++) {
+            crc ^= (data[i] & 0xFF) << 16;
+            for (int b = 0; b < 8; b++) {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0)
+                    crc ^= 0x1864cfbL;
+            }
+        }
+        return crc & 0xffffffL;
+    }
+
+    private byte[] randomData(int length) {
+        byte data[] = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /** The old armor: base64 body followed by the base64 checksum. */
+    private String referenceArmor(byte data[]) {
+        long crc = referenceCRC(data);
+        byte crcBytes[] = { (byte)(crc >> 16), (byte)(crc >> 8), (byte)crc };
+        return new String(Base64.encode(data)) + "=" + new String(Base64.encode(crcBytes));
+    }
+
+    private void assertBytesEqual(String message, byte expected[], byte actual[]) {
+        assertEquals(message + " length", expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            if (expected[i] != actual[i])
+                fail(message + " differs at offset " + i);
+    }
+
+    public void testCRC24() {
+        for (int i = 0; i < lengths.length; i++) {
+            byte data[] = randomData(lengths[i]);
+            long expected = referenceCRC(data);
+
+            assertEquals("one shot crc, length " + lengths[i], expected, CRC24.crcOctets(data));
+
+            // feed it in uneven pieces
+            CRC24 crc = new CRC24();
+            int pos = 0;
+            int step = 1;
+            while (pos < data.length) {
+                int n = Math.min(step, data.length - pos);
+                if (n == 1)
+                    crc.update(data[pos]);
+                else
+                    crc.update(data, pos, n);
+                pos += n;
+                step = step * 2 + 1;
+            }
+            assertEquals("incremental crc, length " + lengths[i], expected, crc.getValue());
+
+            crc.reset();
+            crc.update(data);
+            assertEquals("crc after reset, length " + lengths[i], expected, crc.getValue());
+        }
+    }
+
+    public void testArmorFormat() throws Exception {
+        for (int i = 0; i < lengths.length; i++) {
+            byte data[] = randomData(lengths[i]);
+            String expected = referenceArmor(data);
+
+            assertEquals("armor, length " + lengths[i], expected, Armory.armor(data));
+
+            // byte at a time and in odd sized pieces through the stream
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ArmoredOutputStream armored = new ArmoredOutputStream(out);
+            int pos = 0;
+            while (pos < data.length) {
+                if (pos % 2 == 0) {
+                    armored.write(data[pos++]);
+                } else {
+                    int n = Math.min(37, data.length - pos);
+                    armored.write(data, pos, n);
+                    pos += n;
+                }
+            }
+            armored.close();
+            assertEquals("armor stream, length " + lengths[i], expected, out.toString("US-ASCII"));
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        for (int i = 0; i < lengths.length; i++) {
+            byte data[] = randomData(lengths[i]);
+            String ascii = Armory.armor(data);
+
+            assertBytesEqual("disarm string, length " + lengths[i], data, Armory.disarm(ascii));
+            assertBytesEqual("disarm bytes, length " + lengths[i], data, Armory.disarm(ascii.getBytes()));
+
+            // with a footer and unix line endings
+            String unix = ascii.replaceAll("\r\n", "\n") + "-----END PGP MESSAGE-----\n";
+            ArmoredInputStream in = new ArmoredInputStream(new ByteArrayInputStream(unix.getBytes()));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1)
+                out.write(c);
+
+            assertBytesEqual("armor input stream, length " + lengths[i], data, out.toByteArray());
+            assertTrue(in.hasChecksum());
+            assertTrue(in.isChecksumValid());
+        }
+    }
+
+    /** Returns at most a few bytes from each read, as a socket might. */
+    private static class TrickleInputStream extends FilterInputStream {
+        private int step = 0;
+
+        TrickleInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            step = (step % 7) + 1;
+            return super.read(b, off, Math.min(len, step));
+        }
+    }
+
+    public void testSplitReads() throws Exception {
+        for (int i = 0; i < lengths.length; i++) {
+            byte data[] = randomData(lengths[i]);
+            String ascii = Armory.armor(data) + "\r\n-----END PGP MESSAGE-----\r\n";
+
+            // groups and line breaks split across the reads of the underlying stream, read back in odd sized pieces
+            ArmoredInputStream in = new ArmoredInputStream(new TrickleInputStream(new ByteArrayInputStream(ascii.getBytes())));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte buffer[] = new byte[5000];
+            int n;
+            while ((n = in.read(buffer, 0, 1 + (out.size() % buffer.length))) != -1)
+                out.write(buffer, 0, n);
+
+            assertBytesEqual("split reads, length " + lengths[i], data, out.toByteArray());
+            assertTrue(in.isChecksumValid());
+        }
+    }
+
+    public void testBadChecksum() throws Exception {
+        byte data[] = randomData(200);
+        String ascii = Armory.armor(data);
+
+        // flip one character of the body
+        char bad = (ascii.charAt(10) == 'A') ? 'B' : 'A';
+        String corrupt = ascii.substring(0, 10) + bad + ascii.substring(11);
+
+        try {
+            Armory.disarm(corrupt);
+            fail("Corrupt armor was accepted.");
+        } catch (ChecksumFailureException e) {
+            // expected
+        }
+
+        // no checksum at all
+        String truncated = ascii.substring(0, ascii.lastIndexOf("\r\n="));
+        try {
+            Armory.disarm(truncated);
+            fail("Armor without a checksum was accepted.");
+        } catch (ChecksumFailureException e) {
+            fail("Missing checksum reported as a CRC failure.");
+        } catch (core.exceptions.AlgorithmException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.algorithmhandlers.openpgp.util.*;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.security.MessageDigest;
+
+/**
+ * <p>Checks the canonical text transformations used for clear text signing.</p>
+ */
+public class TestCanonicalText extends TestCase {
+
+    private byte[] ascii(String s) throws Exception {
+        return s.getBytes("US-ASCII");
+    }
+
+    private String text(byte b[]) throws Exception {
+        return new String(b, "US-ASCII");
+    }
+
+    public void testDashEscape() throws Exception {
+        assertEquals("", text(Armory.dashEscapeText(ascii(""))));
+        assertEquals("abc\r\n", text(Armory.dashEscapeText(ascii("abc"))));
+        assertEquals("- -----BEGIN\r\n- -\r\n -x\r\ntext \r\n", 
+            text(Armory.dashEscapeText(ascii("-----BEGIN\n-\r -x\r\ntext "))));
+
+        // the string version still works
+        assertEquals("- - a\r\n\r\n", Armory.dashEscapeText("- a\n\n"));
+    }
+
+    public void testRemoveDashEscaping() throws Exception {
+        assertEquals("-----BEGIN\r\n-\r\n-x\r\n\r\n", 
+            text(Armory.removeDashEscaping(ascii("- -----BEGIN\n-\r-x\r\n- \r\n"))));
+
+        // escaping then unescaping gives back the text with canonical line endings
+        String s = "-a\n- b\n--\nplain\r\n";
+        assertEquals("-a\r\n- b\r\n--\r\nplain\r\n", text(Armory.removeDashEscaping(Armory.dashEscapeText(ascii(s)))));
+    }
+
+    public void testFormatForCTSigning() throws Exception {
+        assertEquals("", text(Armory.formatForCTSigning(ascii(""))));
+        assertEquals("abc", text(Armory.formatForCTSigning(ascii("abc\r\n"))));
+        assertEquals("abc\r\n", text(Armory.formatForCTSigning(ascii("abc \t\r\n\r\n"))));
+        assertEquals("a\r\n\r\n b", text(Armory.formatForCTSigning(ascii("a\t\n   \r b  "))));
+        assertEquals("a\r\n\r\nb", text(Armory.formatForCTSigning(ascii("a\r\r\nb"))));
+
+        // long runs of trailing whitespace are still stripped
+        StringBuffer spaces = new StringBuffer();
+        for (int n = 0; n < 1000; n++)
+            spaces.append(' ');
+        assertEquals("a\r\nb", text(Armory.formatForCTSigning(ascii("a" + spaces + "\r\nb" + spaces))));
+    }
+
+    public void testFormatForCTVerification() throws Exception {
+        String body = "Hello, \r\n-- \r\nsig line\t\r\n---\r\n";
+        byte escaped[] = Armory.dashEscapeText(ascii(body));
+
+        assertEquals(text(Armory.formatForCTSigning(ascii(body))), text(Armory.formatForCTVerification(escaped)));
+        assertEquals("Hello,\r\n--\r\nsig line\r\n---", text(Armory.formatForCTVerification(escaped)));
+    }
+
+    public void testDigest() throws Exception {
+        StringBuffer body = new StringBuffer();
+        for (int n = 0; n < 2000; n++)
+            body.append("- line ").append(n).append("  \n");
+
+        byte data[] = ascii(body.toString());
+        int flags = CanonicalTextOutputStream.SIGNING | CanonicalTextOutputStream.REMOVE_DASH_ESCAPING;
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        byte expected[] = md.digest(CanonicalTextOutputStream.transform(data, flags));
+
+        // hash directly, feeding the data in odd sized pieces
+        md.reset();
+        CanonicalTextOutputStream out = new CanonicalTextOutputStream(md, flags);
+        int pos = 0;
+        while (pos < data.length) {
+            int n = Math.min(333, data.length - pos);
+            out.write(data, pos, n);
+            pos += n;
+        }
+        out.finish();
+
+        byte actual[] = md.digest();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], actual[i]);
+    }
+}
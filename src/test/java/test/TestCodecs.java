@@ -0,0 +1,203 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.email.encoders.*;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.Random;
+
+/**
+ * <p>Checks the bulk base 64 and quoted printable codecs against known values, and that the stream 
+ * wrappers give the same results as the bulk methods.</p>
+ */
+public class TestCodecs extends TestCase {
+
+    /** Data lengths to try, chosen to hit group, line and buffer boundaries. */
+    private final int lengths[] = { 0, 1, 2, 3, 47, 48, 49, 96, 1000, 8191, 8192, 8193, 100000 };
+
+    private byte[] randomData(int length) {
+        byte data[] = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private void assertBytesEqual(String message, byte expected[], byte actual[]) {
+        assertEquals(message + " length", expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            if (expected[i] != actual[i])
+                fail(message + " differs at offset " + i);
+    }
+
+    /** Read everything from a stream a few bytes at a time. */
+    private byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte buffer[] = new byte[37];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+
+        return out.toByteArray();
+    }
+
+    public void testBase64KnownValues() throws Exception {
+        // RFC 4648 test vectors
+        String plain[] = { "", "f", "fo", "foo", "foob", "fooba", "foobar" };
+        String encoded[] = { "", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy" };
+
+        for (int i = 0; i < plain.length; i++) {
+            assertEquals(encoded[i] + "\r\n", new String(Base64.encode(plain[i].getBytes("US-ASCII")), "US-ASCII"));
+            assertEquals(plain[i], new String(Base64.decode(encoded[i].getBytes("US-ASCII")), "US-ASCII"));
+        }
+
+        // whitespace is ignored
+        assertEquals("foobar", new String(Base64.decode(" Zm9v\r\n\tYmFy \r\n".getBytes("US-ASCII")), "US-ASCII"));
+    }
+
+    public void testBase64Invalid() throws Exception {
+        try {
+            Base64.decode("Zm9vY".getBytes("US-ASCII"));
+            fail("Wrong length accepted.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        try {
+            Base64.decode("Zm9*".getBytes("US-ASCII"));
+            fail("Invalid character accepted.");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testBase64Bulk() throws Exception {
+        for (int i = 0; i < lengths.length; i++) {
+            byte data[] = randomData(lengths[i]);
+            byte encoded[] = Base64.encode(data);
+
+            assertEquals("encoded length, length " + lengths[i], Base64.encodedLength(data.length), encoded.length);
+
+            // every line but the last is 64 characters
+            String lines[] = new String(encoded, "US-ASCII").split("\r\n");
+            for (int l = 0; l < lines.length - 1; l++)
+                assertEquals(64, lines[l].length());
+
+            assertBytesEqual("round trip, length " + lengths[i], data, Base64.decode(encoded));
+        }
+    }
+
+    public void testBase64Streams() throws Exception {
+        for (int i = 0; i < lengths.length; i++) {
+            byte data[] = randomData(lengths[i]);
+            byte encoded[] = Base64.encode(data);
+
+            // default line length matches the bulk encoder
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Base64OutputStream b64 = new Base64OutputStream(out);
+            int pos = 0;
+            while (pos < data.length) {
+                if (pos % 2 == 0) {
+                    b64.write(data[pos++]);
+                } else {
+                    int n = Math.min(1001, data.length - pos);
+                    b64.write(data, pos, n);
+                    pos += n;
+                }
+            }
+            b64.close();
+            assertBytesEqual("output stream, length " + lengths[i], encoded, out.toByteArray());
+
+            // MIME line length
+            out = new ByteArrayOutputStream();
+            b64 = new Base64OutputStream(out, 76);
+            b64.write(data);
+            b64.close();
+            String lines[] = out.toString("US-ASCII").split("\r\n");
+            for (int l = 0; l < lines.length - 1; l++)
+                assertEquals(76, lines[l].length());
+
+            assertBytesEqual("input stream, length " + lengths[i], data, 
+                readAll(new Base64InputStream(new ByteArrayInputStream(out.toByteArray()))));
+        }
+    }
+
+    public void testQuotedPrintableDecode() throws Exception {
+        String encoded = "Caf=C3=A9 au lait=\r\n, s'il vous pla=\nit\r\nline two\nline three";
+        byte expected[] = "Caf\u00e9 au lait, s'il vous plait\r\nline two\r\nline three\r\n".getBytes("UTF-8");
+
+        assertBytesEqual("decode", expected, QuotedPrintable.decode(encoded.getBytes("US-ASCII")));
+
+        // a trailing soft break gives no final line ending
+        assertEquals("abc", new String(QuotedPrintable.decode("abc=".getBytes("US-ASCII")), "US-ASCII"));
+        assertEquals("abc", new String(QuotedPrintable.decode("abc=\r\n".getBytes("US-ASCII")), "US-ASCII"));
+
+        try {
+            QuotedPrintable.decode("bad =ZZ escape".getBytes("US-ASCII"));
+            fail("Invalid escape accepted.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testQuotedPrintableEncode() throws Exception {
+        StringBuffer text = new StringBuffer();
+        text.append("A line with = and trailing space \r\n");
+        text.append("\u00e9t\u00e9\r\n");
+        for (int i = 0; i < 300; i++)
+            text.append((char)('a' + i % 26));
+        text.append("\r\n\tlast\t");
+
+        byte data[] = text.toString().getBytes("ISO-8859-1");
+        byte encoded[] = QuotedPrintable.encode(data);
+        String ascii = new String(encoded, "US-ASCII");
+
+        assertTrue(ascii.startsWith("A line with =3D and trailing space=20\r\n=E9t=E9\r\n"));
+
+        String lines[] = ascii.split("\r\n");
+        for (int l = 0; l < lines.length; l++) {
+            assertTrue("line too long: " + lines[l], lines[l].length() <= 76);
+            for (int c = 0; c < lines[l].length(); c++) {
+                char ch = lines[l].charAt(c);
+                assertTrue((ch == '\t') || ((ch >= 32) && (ch <= 126)));
+            }
+        }
+
+        // decoding gives back the text, with a line ending added to the last line
+        byte expected[] = (text.toString() + "\r\n").getBytes("ISO-8859-1");
+        assertBytesEqual("round trip", expected, QuotedPrintable.decode(encoded));
+
+        // and the streams agree
+        assertBytesEqual("input stream", expected, 
+            readAll(new QuotedPrintableInputStream(new ByteArrayInputStream(encoded))));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import debug.Debug;
+
+import junit.framework.TestCase;
+import java.io.*;
+
+/**
+ * <p>Checks that debugging output is gated by level per subsystem, queued without losing order, and rate limited.</p>
+ */
+public class TestDebug extends TestCase {
+
+    private ByteArrayOutputStream output;
+    private PrintStream out;
+    private PrintStream stdOut;
+
+    protected void setUp() {
+        output = new ByteArrayOutputStream();
+        out = new PrintStream(output, true);
+        stdOut = System.out;
+        System.setOut(out);
+    }
+
+    protected void tearDown() {
+        Debug.flush();
+        System.setOut(stdOut);
+        Debug.setLevel(0);
+        Debug.setLevel(Debug.OPENPGP, 0);
+        Debug.setLevel(Debug.KEYSTORE, 0);
+        Debug.setRateLimit(0);
+    }
+
+    private String[] lines() {
+        Debug.flush();
+        String text = output.toString().trim();
+        return (text.length()==0) ? new String[0] : text.split("\\r?\\n");
+    }
+
+    public void testLevels() {
+        Debug.setLevel(0);
+        Debug.setLevel(Debug.OPENPGP, 2);
+
+        assertFalse(Debug.isEnabled(1));
+        assertTrue(Debug.isEnabled(Debug.OPENPGP, 2));
+        assertFalse(Debug.isEnabled(Debug.OPENPGP, 3));
+        assertFalse(Debug.isEnabled(Debug.KEYSTORE, 1));
+
+        Debug.println(1, "default");
+        Debug.println(Debug.KEYSTORE, 1, "keystore");
+        Debug.println(Debug.OPENPGP, 2, "openpgp");
+        Debug.hexDump(Debug.OPENPGP, 1, new byte[] {0x0a, (byte)0xff});
+
+        String lines[] = lines();
+        assertEquals(2, lines.length);
+        assertEquals("openpgp", lines[0]);
+        assertEquals("A FF", lines[1].trim());
+    }
+
+    public void testOrder() {
+        Debug.setLevel(1);
+
+        // nothing is lost or reordered while the buffer has room
+        for (int n = 0; n < 100; n++)
+            Debug.println(1, "line " + n);
+        String lines[] = lines();
+        assertEquals(100, lines.length);
+        for (int n = 0; n < 100; n++)
+            assertEquals("line " + n, lines[n]);
+    }
+
+    public void testRateLimit() throws Exception {
+        Debug.setLevel(Debug.OPENPGP, 1);
+        Debug.setRateLimit(5);
+
+        // wait for the start of a second, so that the messages fall in one
+        long second = System.currentTimeMillis() / 1000;
+        while (System.currentTimeMillis() / 1000 == second)
+            Thread.sleep(5);
+
+        for (int n = 0; n < 20; n++)
+            Debug.println(Debug.OPENPGP, 1, "message " + n);
+        assertEquals(5, lines().length);
+
+        // the next message reports how many were left out
+        Thread.sleep(1000);
+        Debug.println(Debug.OPENPGP, 1, "later");
+        String lines[] = lines();
+        assertEquals("[debug: 15 openpgp messages suppressed]", lines[5]);
+        assertEquals("later", lines[6]);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.email.*;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Checks header lookup, folded header values and Content-Type parameters.</p>
+ */
+public class TestEmailHeaderList extends TestCase {
+
+    private static final String EMAIL = 
+        "Received: from a\r\n" +
+        "\tby b\r\n" +
+        "received: from c\r\n" +
+        "Subject: headers\r\n" +
+        "Content-Type: Multipart/Mixed; charset=us-ascii;\r\n" +
+        "\tBOUNDARY=simple\r\n" +
+        "\r\n" +
+        "--simple\r\n" +
+        "Content-Type: text/plain; name=\"a;b.txt\"\r\n" +
+        "\r\n" +
+        "text\r\n" +
+        "--simple\r\n" +
+        "Content-Type: application/octet-stream\r\n" +
+        "Content-Disposition: attachment; filename=file.bin\r\n" +
+        "\r\n" +
+        "AAEC\r\n" +
+        "--simple--\r\n";
+
+    public void testLookup() throws Exception {
+        Email email = new Email(EMAIL.getBytes("ISO-8859-1"));
+
+        EmailHeader received[] = email.getHeader("RECEIVED");
+        assertEquals(2, received.length);
+        assertEquals("from a\r\n\tby b", received[0].getTagValue());
+        assertEquals("received", received[1].getTagName());
+        assertEquals(4, email.getHeaderArray().length);
+        assertNull(email.getHeader("x-missing"));
+
+        email.setHeader("subject", "changed");
+        assertEquals("Subject: changed", email.getHeader("Subject")[0].toString());
+        assertEquals(4, email.getHeaderArray().length);
+    }
+
+    public void testParameters() throws Exception {
+        Email email = new Email(EMAIL.getBytes("ISO-8859-1"));
+
+        assertEquals("simple", email.getContentTypeParameter("boundary"));
+        assertEquals("us-ascii", email.getContentTypeParameter("Charset"));
+        assertEquals("multipart/mixed", email.getHeader("content-type")[0].getMainValue());
+
+        // unquoted boundary and filename are understood
+        MimeComponent text = email.getMimeBody()[0];
+        assertEquals("a;b.txt", text.getContentTypeParameter("name"));
+        assertNull(text.getBoundary());
+        assertEquals("file.bin", email.getAttachments()[0].getFilename());
+
+        EmailHeader header = new EmailHeader("Content-Type", "multipart/mixed; boundary=\"open");
+        try {
+            header.getParameter("boundary");
+            fail("unclosed quote accepted");
+        } catch (core.exceptions.EmailDataFormatException e) {
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.*;
+import core.protocolhandlers.*;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * <p>Checks the incoming mail cache (memory limit, encrypted disk cache, unique id lookup), and that the incoming
+ * pipe downloads listed emails ahead of the client and sends emails from the cache in later sessions.</p>
+ */
+public class TestIncomingMailCache extends TestCase {
+
+    /** A fake POP3 server with three emails that records every command it is sent. */
+    private static class FakePOP3Server extends Thread {
+        ServerSocket socket;
+        Vector lines = new Vector();
+
+        FakePOP3Server() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    Socket s = socket.accept();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+                    Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+                    out.write("+OK fake POP3\r\n");
+                    out.flush();
+
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        lines.add(line);
+                        String command = line.toUpperCase();
+
+                        if (command.startsWith("UIDL")) {
+                            out.write("+OK\r\n1 uid-1\r\n2 uid-2\r\n3 uid-3\r\n.\r\n");
+                        } else if (command.startsWith("RETR")) {
+                            String n = line.substring(5);
+                            out.write("+OK\r\nSubject: message " + n + "\r\n\r\nBody of message " + n + "\r\n.\r\n");
+                        } else if (command.startsWith("QUIT")) {
+                            out.write("+OK bye\r\n");
+                            out.flush();
+                            break;
+                        } else {
+                            out.write("+OK\r\n");
+                        }
+                        out.flush();
+                    }
+                    s.close();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        synchronized int count(String line) {
+            int count = 0;
+            for (int n = 0; n < lines.size(); n++) {
+                if (line.equals(lines.elementAt(n)))
+                    count++;
+            }
+            return count;
+        }
+    }
+
+    private byte[] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    public void testMemoryLimit() throws Exception {
+        IncomingMailCache cache = new IncomingMailCache(100);
+
+        cache.put("a", "1", new byte[40]);
+        cache.put("b", "2", new byte[40]);
+        assertNotNull(cache.get("1")); // 1 is now the most recently used
+        cache.put("c", "3", new byte[40]);
+
+        assertTrue(cache.getMemoryUsed() <= 100);
+        assertNotNull(cache.getByUid("a"));
+        assertFalse(cache.containsUid("b"));
+        assertNull(cache.get("2"));
+        assertNotNull(cache.getByUid("c"));
+
+        // too large to be worth caching
+        cache.put("d", "4", new byte[60]);
+        assertFalse(cache.contains("4"));
+    }
+
+    public void testDiskCache() throws Exception {
+        File directory = new File("TestIncomingMailCache");
+        IncomingMailCache cache = new IncomingMailCache(100, directory, 1000);
+
+        byte first[] = bytes("Subject: one\r\n\r\nThe plain text, first.");
+        byte second[] = bytes("Subject: two\r\n\r\nThe plain text, second.");
+        byte third[] = bytes("Subject: three\r\n\r\nThe plain text, third.");
+        cache.put("a", IncomingMailCache.digest(first), first);
+        cache.put("b", IncomingMailCache.digest(second), second);
+        cache.put("c", IncomingMailCache.digest(third), third);
+
+        // the first email has been moved to disk, and is not readable there
+        assertTrue(cache.getDiskUsed() > 0);
+        File files[] = directory.listFiles();
+        assertEquals(1, files.length);
+        byte stored[] = new byte[(int)files[0].length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(files[0]));
+        in.readFully(stored);
+        in.close();
+        assertTrue(new String(stored, "ISO-8859-1").indexOf("plain text") < 0);
+
+        // but comes back from it intact
+        assertTrue(Arrays.equals(first, cache.getByUid("a")));
+        assertTrue(Arrays.equals(second, cache.get(IncomingMailCache.digest(second))));
+        assertTrue(Arrays.equals(third, cache.getByUid("c")));
+
+        cache.clear();
+        assertEquals(0, directory.listFiles().length);
+        directory.delete();
+    }
+
+    private Socket connect(int port) throws Exception {
+        for (int n = 0; n < 50; n++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        throw new IOException("Proxy did not start");
+    }
+
+    /** Read a multiline response, returning the lines without the terminating dot. */
+    private Vector readMultiline(BufferedReader in) throws IOException {
+        Vector lines = new Vector();
+        String line;
+        while (!(line = in.readLine()).equals("."))
+            lines.add(line);
+        return lines;
+    }
+
+    /** List the emails, wait for the proxy to download them and then download one. */
+    private void doSession(int port, FakePOP3Server server, int message) throws Exception {
+        Socket s = null;
+        BufferedReader in = null;
+        String greeting = null;
+
+        // the proxy may still be closing the last session's listening socket
+        for (int n = 0; (n < 50) && (greeting == null); n++) {
+            s = connect(port);
+            in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+            try {
+                greeting = in.readLine();
+            } catch (IOException e) {
+                s.close();
+                Thread.sleep(20);
+            }
+        }
+        assertTrue(greeting.startsWith("+OK"));
+        Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+        out.write("USER someone\r\n");
+        out.flush();
+        assertTrue(in.readLine().startsWith("+OK"));
+
+        out.write("UIDL\r\n");
+        out.flush();
+        assertEquals(4, readMultiline(in).size());
+
+        for (int n = 0; (n < 100) && (server.count("RETR 3") == 0); n++)
+            Thread.sleep(20);
+        Thread.sleep(100);
+
+        out.write("RETR " + message + "\r\n");
+        out.flush();
+        Vector email = readMultiline(in);
+        assertTrue(((String)email.elementAt(0)).startsWith("+OK"));
+        assertEquals("Subject: message " + message, email.elementAt(1));
+        assertEquals("Body of message " + message, email.elementAt(3));
+
+        out.write("QUIT\r\n");
+        out.flush();
+        assertTrue(in.readLine().startsWith("+OK"));
+        s.close();
+    }
+
+    public void testPrefetch() throws Exception {
+        FakePOP3Server server = new FakePOP3Server();
+
+        ServerSocket tmp = new ServerSocket(0);
+        int port = tmp.getLocalPort();
+        tmp.close();
+
+        POP3Handler pop3 = new POP3Handler();
+        pop3.initServerConnection(port);
+        pop3.initClientConnection("127.0.0.1", server.socket.getLocalPort());
+
+        IncomingMailCache cache = new IncomingMailCache(IncomingMailCache.MEMORY_LIMIT);
+        IncomingEmailPipe pipe = new IncomingEmailPipe(pop3, null, null, null, null, pop3);
+        pipe.setCache(cache, 5);
+        pipe.setDaemon(true);
+        pipe.start();
+
+        try {
+            // every listed email is downloaded while the client is idle, and RETR 2 is answered from the cache
+            doSession(port, server, 2);
+            assertEquals(1, server.count("RETR 1"));
+            assertEquals(1, server.count("RETR 2"));
+            assertEquals(1, server.count("RETR 3"));
+
+            // the emails are still cached in the next session, so nothing is downloaded again
+            doSession(port, server, 3);
+            assertEquals(1, server.count("RETR 3"));
+            assertEquals(2, server.count("UIDL"));
+            assertTrue(cache.getHits() >= 2);
+        } finally {
+            pipe.stopPipe();
+            server.socket.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.*;
+
+import org.bouncycastle.jce.provider.*;
+import junit.framework.TestCase;
+import java.io.*;
+import java.security.*;
+import java.util.Random;
+
+/**
+ * <p>Checks the incremental signing and verification API on SignatureMaterial against the JCE signature 
+ * classes, and that feeding data in pieces gives the same result as the one shot methods.</p>
+ */
+public class TestIncrementalSignature extends TestCase {
+
+    private final byte keyID[] = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    private KeyPair rsaKeys;
+
+    protected void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA", "BC");
+        gen.initialize(1024, new SecureRandom());
+        rsaKeys = gen.generateKeyPair();
+    }
+
+    private byte[] randomData(int length) {
+        byte data[] = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /** Sign the data in uneven pieces. */
+    private void update(SignatureMaterial material, byte data[]) throws Exception {
+        int pos = 0;
+        int step = 1;
+        while (pos < data.length) {
+            int n = Math.min(step, data.length - pos);
+            material.update(data, pos, n);
+            pos += n;
+            step = step * 3 + 1;
+        }
+    }
+
+    /** The V3 trailer is simple enough to rebuild here, so compare the RSA signature with the JCE one. */
+    private void doRSAV3(int hashAlgorithm) throws Exception {
+        byte data[] = randomData(10000);
+
+        V3SignatureMaterial material = new V3SignatureMaterial(keyID, 0x00, PublicKeyAlgorithmSettings.RSA_SIGN, hashAlgorithm);
+        material.initSign(rsaKeys.getPrivate());
+        update(material, data);
+        material.finishSign();
+
+        ByteArrayOutputStream signed = new ByteArrayOutputStream();
+        signed.write(data);
+        signed.write(material.getSignatureType());
+        signed.write((int)(material.getCreateDate() >> 24));
+        signed.write((int)(material.getCreateDate() >> 16));
+        signed.write((int)(material.getCreateDate() >> 8));
+        signed.write((int)material.getCreateDate());
+
+        String hashName = HashAlgorithmSettings.getHashText(hashAlgorithm);
+
+        Signature jce = Signature.getInstance(hashName + "withRSA", "BC");
+        jce.initSign(rsaKeys.getPrivate());
+        jce.update(signed.toByteArray());
+        byte expected[] = new java.math.BigInteger(1, jce.sign()).toByteArray();
+        byte actual[] = new java.math.BigInteger(1, MPI.getBytes(material.getSignature())).toByteArray();
+
+        assertEquals(hashName + " signature length", expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(hashName + " signature", expected[i], actual[i]);
+
+        // quick check bits come from the signed digest
+        byte digest[] = MessageDigest.getInstance(hashName, "BC").digest(signed.toByteArray());
+        assertEquals(hashName + " hash", ((digest[0] & 0xFF) << 8) | (digest[1] & 0xFF), material.getHash());
+
+        assertTrue(hashName + " verify", material.verify(rsaKeys.getPublic(), data));
+    }
+
+    public void testRSAV3WithMD5() throws Exception {
+        doRSAV3(HashAlgorithmSettings.MD5);
+    }
+
+    public void testRSAV3WithSHA1() throws Exception {
+        doRSAV3(HashAlgorithmSettings.SHA1);
+    }
+
+    public void testRSAV3WithRIPEMD160() throws Exception {
+        doRSAV3(HashAlgorithmSettings.RIPEMD160);
+    }
+
+    public void testRSAV3WithSHA256() throws Exception {
+        doRSAV3(HashAlgorithmSettings.SHA256);
+    }
+
+    public void testRSAV3WithSHA512() throws Exception {
+        doRSAV3(HashAlgorithmSettings.SHA512);
+    }
+
+    private void doV4(int pkAlgorithm, KeyPair keys) throws Exception {
+        byte data[] = randomData(100000);
+
+        V4SignatureMaterial material = new V4SignatureMaterial(0, keyID, 0x00, pkAlgorithm, HashAlgorithmSettings.SHA1);
+        material.initSign(keys.getPrivate());
+        update(material, data);
+        material.finishSign();
+
+        // one shot and incremental verification agree
+        assertTrue(material.verify(keys.getPublic(), data));
+
+        material.initVerify(keys.getPublic());
+        update(material, data);
+        assertTrue(material.finishVerify());
+
+        // and tampering is noticed
+        data[500] ^= 1;
+        assertFalse(material.verify(keys.getPublic(), data));
+    }
+
+    public void testRSAV4() throws Exception {
+        doV4(PublicKeyAlgorithmSettings.RSA_SIGN, rsaKeys);
+    }
+
+    /** A signature value larger than the modulus of the key verifying it is not valid, rather than an error. */
+    public void testRSAWrongKey() throws Exception {
+        byte data[] = randomData(1000);
+
+        V4SignatureMaterial material = new V4SignatureMaterial(0, keyID, 0x00, PublicKeyAlgorithmSettings.RSA_SIGN, HashAlgorithmSettings.SHA1);
+        material.initSign(rsaKeys.getPrivate());
+        update(material, data);
+        material.finishSign();
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA", "BC");
+        gen.initialize(512, new SecureRandom());
+
+        material.initVerify(gen.generateKeyPair().getPublic());
+        update(material, data);
+        assertFalse(material.finishVerify());
+    }
+
+    public void testDSAV4() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("DSA", "BC");
+        gen.initialize(1024, new SecureRandom());
+
+        doV4(PublicKeyAlgorithmSettings.DSA, gen.generateKeyPair());
+    }
+
+    public void testCanonicalTextStream() throws Exception {
+        byte text[] = "Some signed text  \r\n- with a dashed line\n\n".getBytes("US-ASCII");
+
+        V4SignatureMaterial material = new V4SignatureMaterial(0, keyID, 0x01, PublicKeyAlgorithmSettings.RSA_SIGN, HashAlgorithmSettings.SHA1);
+        material.initSign(rsaKeys.getPrivate());
+        CanonicalTextOutputStream out = new CanonicalTextOutputStream(material.getUpdateStream(), CanonicalTextOutputStream.SIGNING);
+        out.write(text);
+        out.finish();
+        material.finishSign();
+
+        assertTrue(material.verify(rsaKeys.getPublic(), Armory.formatForCTSigning(text)));
+    }
+}
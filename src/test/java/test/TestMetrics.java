@@ -0,0 +1,120 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import system.Metrics;
+
+import junit.framework.TestCase;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+/**
+ * <p>Checks that stage times are recorded for the whole proxy and the current pipe and session, and are available 
+ * over JMX and in the dump.</p>
+ */
+public class TestMetrics extends TestCase {
+
+    protected void tearDown() {
+        Metrics.setCurrentScopes(null);
+        Metrics.setEnabled(true);
+    }
+
+    /** Record a stage as having taken about the given number of milliseconds. */
+    private void record(String stage, long millis, long bytes) {
+        Metrics.stop(stage, System.nanoTime() - millis * 1000000, bytes);
+    }
+
+    public void testStage() {
+        for (int n = 0; n < 99; n++)
+            record("test.stage", 1, 10);
+        record("test.stage", 100, 10);
+
+        Metrics.Stage stage = Metrics.getScope().getStage("test.stage");
+        assertEquals(100, stage.getCount());
+        assertEquals(1000, stage.getBytes());
+        assertTrue(stage.getMaxMillis() >= 100);
+        assertTrue(stage.getMeanMillis() >= 1.99);
+
+        // percentiles are rounded up to a power of two microseconds
+        assertTrue(stage.getMedianMillis() >= 1);
+        assertTrue(stage.getMedianMillis() < 4);
+        assertTrue(stage.getPercentileMillis(100) >= 100);
+
+        Metrics.setEnabled(false);
+        record("test.stage", 1, 10);
+        assertEquals(100, stage.getCount());
+    }
+
+    public void testScopes() {
+        Metrics.Scope pipe = Metrics.getPipeScope("TestPipe");
+        assertSame(pipe, Metrics.getPipeScope("TestPipe"));
+
+        Metrics.Scope session = Metrics.beginSession(pipe);
+        record("test.scoped", 1, 0);
+        Object scopes = Metrics.getCurrentScopes();
+        Metrics.endSession();
+
+        record("test.scoped", 1, 0);
+        assertEquals(1, session.getStage("test.scoped").getCount());
+        assertEquals(1, pipe.getStage("test.scoped").getCount());
+
+        // another thread working for the session
+        Metrics.setCurrentScopes(scopes);
+        record("test.scoped", 1, 0);
+        assertEquals(2, session.getStage("test.scoped").getCount());
+        assertTrue(session.toString().startsWith("test.scoped 2 x "));
+    }
+
+    public void testReporting() throws Exception {
+        Metrics.addGauge("test.gauge", new Metrics.Gauge() {
+            public long getValue() {
+                return 42;
+            }
+        });
+        record("test.reported", 1, 5);
+
+        String dump = Metrics.dump();
+        assertTrue(dump.indexOf("test.gauge") >= 0);
+        assertTrue(dump.indexOf("42") >= 0);
+        assertTrue(dump.indexOf("test.reported") >= 0);
+
+        Metrics.registerMBeans();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(new Long(42), server.getAttribute(new ObjectName("secemail:type=Gauge,name=\"test.gauge\""), "Value"));
+        assertEquals(new Long(1), server.getAttribute(
+            new ObjectName("secemail:type=Stage,scope=\"all\",name=\"test.reported\""), "Count"));
+
+        // stages created after registering are registered too
+        record("test.later", 1, 5);
+        assertTrue(server.isRegistered(new ObjectName("secemail:type=Stage,scope=\"all\",name=\"test.later\"")));
+    }
+}
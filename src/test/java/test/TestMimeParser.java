@@ -0,0 +1,163 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.email.*;
+import core.email.util.*;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * <p>Checks the region based MIME parser: parts are found without being copied, a CRLF email is written back
+ * byte for byte, other line endings are converted to CRLF and 8 bit data is left alone. Also checks that the parts 
+ * of an email that have not been changed are written out as they were received.</p>
+ */
+public class TestMimeParser extends TestCase {
+
+    private static final String MULTIPART = 
+        "From: a@example.com\r\n" +
+        "To: b@example.com\r\n" +
+        "Subject: parts\r\n" +
+        "Content-Type: multipart/mixed;\r\n" +
+        "\tboundary=\"BOUNDARY\"\r\n" +
+        "\r\n" +
+        "This is a multi-part message in MIME format.\r\n" +
+        "\r\n" +
+        "--BOUNDARY\r\n" +
+        "Content-Type: text/plain\r\n" +
+        "\r\n" +
+        "Caf\u00e9 au lait.\r\n" +
+        "\r\n" +
+        "--BOUNDARY\r\n" +
+        "Content-Type: application/octet-stream; name=\"file.bin\"\r\n" +
+        "Content-Transfer-Encoding: base64\r\n" +
+        "Content-Disposition: attachment; filename=\"file.bin\"\r\n" +
+        "\r\n" +
+        "AAECAwQF\r\n" +
+        "--BOUNDARY--\r\n";
+
+    private byte[] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    public void testRoundTrip() throws Exception {
+        byte data[] = bytes(MULTIPART);
+        Email email = new Email(data);
+
+        MimeComponent body[] = email.getMimeBody();
+        assertEquals(1, body.length);
+        assertEquals("Content-Type", body[0].getHeaders()[0].getTagName());
+        assertEquals(bytes("Caf\u00e9 au lait.\r\n\r\n").length, body[0].getDataLength());
+
+        EmailAttachment attachments[] = email.getAttachments();
+        assertEquals(1, attachments.length);
+        assertEquals("file.bin", attachments[0].getFilename());
+        assertTrue(Arrays.equals(new byte[] { 0, 1, 2, 3, 4, 5 }, attachments[0].decode()));
+
+        // nothing has been changed, so the email is written back as it was (8 bit text included)
+        assertTrue(Arrays.equals(data, email.getBytes()));
+        assertTrue(Arrays.equals(data, new Email(email).getBytes()));
+        assertTrue(Arrays.equals(bytes("Caf\u00e9 au lait.\r\n\r\n"), body[0].getData()));
+    }
+
+    public void testLineEndings() throws Exception {
+        // LF only email comes out with CRLF line endings in its parts
+        StringBuffer lf = new StringBuffer();
+        for (int i = 0; i < MULTIPART.length(); i++) {
+            if (MULTIPART.charAt(i) != '\r')
+                lf.append(MULTIPART.charAt(i));
+        }
+        Email email = new Email(bytes(lf.toString()));
+
+        assertTrue(Arrays.equals(bytes("Caf\u00e9 au lait.\r\n\r\n"), email.getMimeBody()[0].getData()));
+        assertEquals("multipart/mixed;\r\n\tboundary=\"BOUNDARY\"", email.getHeader("content-type")[0].getTagValue());
+    }
+
+    public void testRegion() throws Exception {
+        byte data[] = bytes("xxone\r\ntwo\nthree");
+
+        ByteRegion crlf = new ByteRegion(data, true);
+        crlf.add(2, 7);
+        assertEquals(5, crlf.length());
+
+        ByteRegion text = new ByteRegion(data, true);
+        text.add(2, 7);
+        text.add(7, data.length);
+        assertEquals(1, text.getRangeCount());
+        assertTrue(Arrays.equals(bytes("one\r\ntwo\r\nthree\r\n"), text.toByteArray()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ByteRegion(data, 2, data.length).writeTo(out);
+        assertTrue(Arrays.equals(bytes("one\r\ntwo\nthree"), out.toByteArray()));
+
+        LineReader in = new LineReader(text);
+        in.nextLine();
+        assertEquals("one", in.getLine());
+        in.nextLine();
+        assertTrue(in.endsWith(bytes("wo")));
+        in.nextLine();
+        assertEquals("three", in.getLine());
+        assertFalse(in.available());
+        in.nextLine();
+        assertTrue(in.isEmptyLine());
+    }
+
+    public void testUnchangedParts() throws Exception {
+        // the epilogue would be moved into the last part if the email was rebuilt
+        byte data[] = bytes(MULTIPART + "epilogue\r\n");
+        Email email = new Email(data);
+        assertFalse(email.isChanged());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        email.writeTo(out);
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+
+        // setting the same data back is not a change
+        MimeComponent text = email.getMimeBody()[0];
+        text.setData(text.getData());
+        email.setMimeBody(email.getMimeBody());
+        assertFalse(email.isChanged());
+
+        // change the attachment, the text part is still copied from the email
+        EmailAttachment attachment = email.getAttachments()[0];
+        attachment.setData(bytes("BgcI\r\n"));
+        assertTrue(email.isChanged());
+        assertFalse(text.isChanged());
+
+        String result = new String(email.getBytes(), "ISO-8859-1");
+        assertTrue(result.indexOf("--BOUNDARY\r\nContent-Type: text/plain\r\n\r\nCaf\u00e9 au lait.\r\n\r\n--BOUNDARY\r\n") > 0);
+        assertTrue(result.endsWith("BgcI\r\n--BOUNDARY--\r\n"));
+        assertTrue(Arrays.equals(new byte[] { 6, 7, 8 }, new Email(email.getBytes()).getAttachments()[0].decode()));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.*;
+
+import org.bouncycastle.jce.provider.*;
+import junit.framework.TestCase;
+import java.io.*;
+import java.security.*;
+
+/**
+ * <p>Checks that a one pass signed literal survives encoding inside a compressed packet and can be 
+ * verified from a digest built while the data is read, before the signature packet is seen.</p>
+ */
+public class TestOnePassSignature extends TestCase {
+
+    private final byte keyID[] = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+    private KeyPair keys;
+
+    protected void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA", "BC");
+        gen.initialize(1024, new SecureRandom());
+        keys = gen.generateKeyPair();
+    }
+
+    /** Write a one pass signed literal in a compressed packet and read the packets back. */
+    private ContainerPacket roundTrip(int sigType, byte data[]) throws Exception {
+        V4SignatureMaterial material = new V4SignatureMaterial(0, keyID, sigType, PublicKeyAlgorithmSettings.RSA_SIGN, HashAlgorithmSettings.SHA1);
+        material.initSign(keys.getPrivate());
+        if (sigType == 0x01) {
+            CanonicalTextOutputStream text = new CanonicalTextOutputStream(material.getUpdateStream(), 0);
+            text.write(data);
+            text.finish();
+        } else {
+            material.update(data);
+        }
+        material.finishSign();
+
+        CompressedDataPacket cp = new CompressedDataPacket(CompressedDataPacket.ZIP);
+        cp.add(new OnePassSignaturePacket(sigType, HashAlgorithmSettings.SHA1, PublicKeyAlgorithmSettings.RSA_SIGN, keyID, false));
+        cp.add(new LiteralDataPacket((byte)(sigType == 0x01 ? 't' : 'b'), "_CONSOLE", data));
+        cp.add(new SignaturePacket(material));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OpenPGPPacketOutputStream pOut = new OpenPGPPacketOutputStream(out);
+        pOut.writePacket(cp);
+        pOut.close();
+
+        Packet p = new OpenPGPPacketInputStream(new ByteArrayInputStream(out.toByteArray())).readPacket();
+        assertTrue(p instanceof CompressedDataPacket);
+
+        ContainerPacket container = (ContainerPacket)p;
+        assertEquals(3, container.getNumberPacked());
+        assertTrue(container.unpack(0) instanceof OnePassSignaturePacket);
+        assertTrue(container.unpack(1) instanceof LiteralDataPacket);
+        assertTrue(container.unpack(2) instanceof SignaturePacket);
+
+        return container;
+    }
+
+    public void testBinary() throws Exception {
+        byte data[] = new byte[20000];
+        new java.util.Random(1).nextBytes(data);
+
+        ContainerPacket container = roundTrip(0x00, data);
+        OnePassSignaturePacket onePass = (OnePassSignaturePacket)container.unpack(0);
+
+        MessageDigest digest = MessageDigest.getInstance(HashAlgorithmSettings.getHashText(onePass.getHashAlgorithm()), "BC");
+        digest.update(((LiteralDataPacket)container.unpack(1)).getData());
+
+        SignaturePacket sig = (SignaturePacket)container.unpack(2);
+        assertTrue(sig.getSignatureData().verify(keys.getPublic(), digest));
+
+        // a digest of other data must fail
+        digest.reset();
+        digest.update(new byte[] { 1, 2, 3 });
+        assertFalse(sig.getSignatureData().verify(keys.getPublic(), digest));
+    }
+
+    public void testText() throws Exception {
+        byte text[] = "First line\nsecond line\r\n".getBytes("US-ASCII");
+
+        ContainerPacket container = roundTrip(0x01, text);
+        assertEquals(0x01, ((OnePassSignaturePacket)container.unpack(0)).getType());
+
+        MessageDigest digest = MessageDigest.getInstance("SHA1", "BC");
+        digest.update(CanonicalTextOutputStream.transform(((LiteralDataPacket)container.unpack(1)).getData(), 0));
+
+        assertTrue(((SignaturePacket)container.unpack(2)).getSignatureData().verify(keys.getPublic(), digest));
+    }
+}
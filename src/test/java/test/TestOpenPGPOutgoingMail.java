@@ -0,0 +1,290 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.*;
+
+import core.email.*;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.OpenPGPStandardKeyIdentifier;
+import core.keyhandlers.parameters.*;
+import core.exceptions.*;
+import core.algorithmhandlers.*;
+import core.algorithmhandlers.keymaterial.RSAAlgorithmParameters;
+import core.algorithmhandlers.openpgp.OpenPGPPacketInputStream;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.*;
+import core.keyhandlers.keydata.OpenPGPKeyData;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.*;
+import java.security.*;
+
+/**
+ * <p>Runs outgoing email through the OpenPGP handler with a freshly generated key.</p>
+ */
+public class TestOpenPGPOutgoingMail extends TestCase {
+
+    private static final String MULTIPART = 
+        "From: Alice <alice@example.com>\r\n" +
+        "To: bob@example.com\r\n" +
+        "Subject: parts\r\n" +
+        "Content-Type: multipart/mixed;\r\n" +
+        "\tboundary=\"BOUNDARY\"\r\n" +
+        "\r\n" +
+        "This is a multi-part message in MIME format.\r\n" +
+        "\r\n" +
+        "--BOUNDARY\r\n" +
+        "Content-Type: text/plain\r\n" +
+        "\r\n" +
+        "First part.\r\n" +
+        "\r\n" +
+        "--BOUNDARY\r\n" +
+        "Content-Type: text/plain\r\n" +
+        "\r\n" +
+        "Second part.\r\n" +
+        "\r\n" +
+        "--BOUNDARY\r\n" +
+        "Content-Type: application/octet-stream; name=\"file.bin\"\r\n" +
+        "Content-Transfer-Encoding: base64\r\n" +
+        "Content-Disposition: attachment; filename=\"file.bin\"\r\n" +
+        "\r\n" +
+        "AAECAwQF\r\n" +
+        "--BOUNDARY--\r\n";
+
+    /** Counts the look ups made against a key store. */
+    private static class CountingKeyHandler extends KeyHandler {
+        private KeyHandler keys;
+        private int lookups;
+
+        public CountingKeyHandler(KeyHandler keys) {
+            this.keys = keys;
+        }
+
+        public synchronized KeyObject[] findKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException, ChecksumFailureException {
+            lookups++;
+            return keys.findKeys(id, parameters);
+        }
+
+        public void addKeys(KeyObject key[], KeyIdentifier idDetails[], KeyHandlerParameters parameters[]) throws KeyHandlerException {
+            keys.addKeys(key, idDetails, parameters);
+        }
+
+        public int removeKeys(KeyIdentifier id, KeyHandlerParameters parameters) throws KeyHandlerException {
+            return keys.removeKeys(id, parameters);
+        }
+
+        public void changeSetting(KeyHandlerParameters parameters) throws KeyHandlerException {
+            keys.changeSetting(parameters);
+        }
+
+        public String getDescription() {
+            return "Counting " + keys.getDescription();
+        }
+    }
+
+    private static final String PLAIN = 
+        "From: Alice <alice@example.com>\r\n" +
+        "To: Bob <bob@example.com>\r\n" +
+        "Subject: secret\r\n" +
+        "\r\n" +
+        "Hello Bob\r\n";
+
+    private File secring;
+    private File carolSecring;
+    private File pubring;
+
+    /** Make a key pair, putting the secret key in secret (protected with the passphrase "test") and the public key in pubring. */
+    private void addKey(String name, String address, File secret) throws Exception {
+        RSAAlgorithmParameters key = new RSAAlgorithmParameters();
+        key.generateKeyPair(PublicKeyAlgorithmSettings.getDefaultKeySize(1), SecureRandom.getInstance("SHA1PRNG"));
+        OpenPGPStandardKeyIdentifier id[] = new OpenPGPStandardKeyIdentifier[] {new OpenPGPStandardKeyIdentifier(name.getBytes(), address.getBytes())};
+        Date now = new Date();
+
+        new OpenPGPSecretKeyring(secret.getPath(), null).addKeys(new KeyData[] {new KeyData(key)}, id,
+            new OpenPGPAddSecretKeyParameters[] {new OpenPGPAddSecretKeyParameters(now, 1, 1, null, null, null, "test".getBytes(), SymmetricAlgorithmSettings.CAST5, HashAlgorithmSettings.SHA1)});
+        new OpenPGPPublicKeyring(pubring.getPath(), null).addKeys(new KeyData[] {new KeyData(key)}, id,
+            new OpenPGPAddKeyParameters[] {new OpenPGPAddKeyParameters(now, 1, 1, null, null, null)});
+    }
+
+    protected void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        secring = File.createTempFile("secring", ".pgp");
+        secring.delete();
+        carolSecring = File.createTempFile("secring", ".pgp");
+        carolSecring.delete();
+        pubring = File.createTempFile("pubring", ".pgp");
+        pubring.delete();
+
+        // alice signs, bob is written to and carol is sent a blind copy
+        addKey("Alice", "alice@example.com", secring);
+        addKey("Bob", "bob@example.com", secring);
+        addKey("Carol", "carol@example.com", carolSecring);
+    }
+
+    protected void tearDown() {
+        secring.delete();
+        carolSecring.delete();
+        pubring.delete();
+    }
+
+    /** Return the key IDs, in hex, of the session key packets in an encrypted body. */
+    private static Vector getSessionKeyIDs(Email email) throws Exception {
+        // the armored data is between the armor headers and the footer
+        String body = new String(email.getBody(), "ISO-8859-1");
+        String armored = body.substring(body.indexOf("\r\n\r\n") + 4, body.indexOf("-----END PGP MESSAGE-----"));
+
+        Vector ids = new Vector();
+        OpenPGPPacketInputStream in = new OpenPGPPacketInputStream(new ByteArrayInputStream(Armory.disarm(armored)));
+        for (Packet p = in.readPacket(); p != null; p = in.readPacket())
+            if (p instanceof PublicKeyEncryptedSessionKeyPacket)
+                ids.add(toHex(((PublicKeyEncryptedSessionKeyPacket)p).getKeyID()));
+
+        return ids;
+    }
+
+    /** Return the key ID, in hex, of the key the public keyring holds for the address. */
+    private String getKeyID(String address) throws Exception {
+        KeyObject keys[] = new OpenPGPPublicKeyring(pubring.getPath(), null).findKeys(new OpenPGPStandardKeyIdentifier(address), null);
+        assertNotNull("No key for " + address, keys);
+        return toHex(((OpenPGPKeyData)keys[keys.length - 1]).getKeyID());
+    }
+
+    private static String toHex(byte data[]) {
+        StringBuffer s = new StringBuffer();
+        for (int n = 0; n < data.length; n++)
+            s.append(Integer.toHexString((data[n] & 0xff) | 0x100).substring(1));
+        return s.toString();
+    }
+
+    public void testSignedMultipart() throws Exception {
+        CountingKeyHandler keys = new CountingKeyHandler(new OpenPGPSecretKeyring(secring.getPath(), null));
+        OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5);
+
+        Email signed = handler.processOutgoingMail(false, true, new KeyHandler[0], new KeyHandler[] {keys},
+            new Email(MULTIPART.getBytes("ISO-8859-1")), new PassPhrase[] {new PassPhrase("test".getBytes())});
+
+        // the key was looked up once for the whole email, not once per part
+        assertEquals(1, keys.lookups);
+
+        // both text parts were signed
+        MimeComponent body[] = signed.getMimeBody();
+        assertEquals(2, body.length);
+        String first = new String(body[0].getData(), "ISO-8859-1");
+        String second = new String(body[1].getData(), "ISO-8859-1");
+        assertTrue(first, first.startsWith("-----BEGIN PGP SIGNED MESSAGE-----"));
+        assertTrue(first, first.indexOf("First part.") > 0);
+        assertTrue(first, first.indexOf("-----BEGIN PGP SIGNATURE-----") > 0);
+        assertTrue(second, second.startsWith("-----BEGIN PGP SIGNED MESSAGE-----"));
+        assertTrue(second, second.indexOf("Second part.") > 0);
+        assertTrue(second, second.indexOf("-----BEGIN PGP SIGNATURE-----") > 0);
+
+        // and the attachment got a detached signature
+        EmailAttachment attachments[] = signed.getAttachments();
+        assertEquals(2, attachments.length);
+        assertEquals("file.bin.sig", attachments[1].getFilename());
+    }
+
+    public void testPreparedRecipients() throws Exception {
+        OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5);
+        CountingKeyHandler keys = new CountingKeyHandler(new OpenPGPPublicKeyring(pubring.getPath(), null));
+        KeyHandler publicKeys[] = new KeyHandler[] {keys};
+
+        // the envelope names bob by address alone, as the client gives him in RCPT TO
+        OutgoingMailPreparation prep = handler.beginOutgoingMail(publicKeys);
+        handler.addOutgoingRecipient(prep, "bob@example.com");
+        assertEquals(1, keys.lookups);
+
+        Email encrypted = handler.processOutgoingMail(true, false, publicKeys, new KeyHandler[0],
+            new Email(PLAIN.getBytes("ISO-8859-1")), null, prep);
+
+        // the prepared packet was used, and is for the key the To header finds
+        assertEquals(1, keys.lookups);
+        Vector ids = getSessionKeyIDs(encrypted);
+        assertEquals(1, ids.size());
+        assertEquals(getKeyID("Bob <bob@example.com>"), ids.elementAt(0));
+        assertEquals(ids, getSessionKeyIDs(handler.processOutgoingMail(true, false, publicKeys, new KeyHandler[0],
+            new Email(PLAIN.getBytes("ISO-8859-1")), null)));
+
+        // and bob can read it
+        Email decrypted = handler.processIncomingMail(publicKeys, new KeyHandler[] {new OpenPGPSecretKeyring(secring.getPath(), null)},
+            encrypted, new PassPhrase[] {new PassPhrase("test".getBytes())});
+        assertTrue(new String(decrypted.getBytes(), "ISO-8859-1").indexOf("Hello Bob") >= 0);
+    }
+
+    public void testBccCopy() throws Exception {
+        OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5);
+        KeyHandler publicKeys[] = new KeyHandler[] {new OpenPGPPublicKeyring(pubring.getPath(), null)};
+
+        // prepared for both envelope recipients
+        OutgoingMailPreparation prep = handler.beginOutgoingMail(publicKeys);
+        handler.addOutgoingRecipient(prep, "bob@example.com");
+        handler.addOutgoingRecipient(prep, "carol@example.com");
+
+        Email plain = new Email(PLAIN.getBytes("ISO-8859-1"));
+        Email main = handler.processOutgoingMail(true, false, publicKeys, new KeyHandler[0], plain, null, prep);
+        Email blind = handler.processOutgoingMail(true, false, publicKeys, new KeyHandler[0], plain, null, prep, new String[] {"carol@example.com"});
+
+        // the copy for bob and the other To and Cc recipients does not give carol away
+        String bob = getKeyID("bob@example.com");
+        String carol = getKeyID("carol@example.com");
+        Vector ids = getSessionKeyIDs(main);
+        assertEquals(1, ids.size());
+        assertTrue(ids.contains(bob));
+        assertFalse(ids.contains(carol));
+
+        // carol's own copy is encrypted to her as well
+        ids = getSessionKeyIDs(blind);
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains(bob));
+        assertTrue(ids.contains(carol));
+
+        Email decrypted = handler.processIncomingMail(publicKeys, new KeyHandler[] {new OpenPGPSecretKeyring(carolSecring.getPath(), null)},
+            blind, new PassPhrase[] {new PassPhrase("test".getBytes())});
+        assertTrue(new String(decrypted.getBytes(), "ISO-8859-1").indexOf("Hello Bob") >= 0);
+    }
+
+    public void testWrongPassPhrase() throws Exception {
+        OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5);
+
+        try {
+            handler.processOutgoingMail(false, true, new KeyHandler[0], new KeyHandler[] {new OpenPGPSecretKeyring(secring.getPath(), null)},
+                new Email(MULTIPART.getBytes("ISO-8859-1")), new PassPhrase[] {new PassPhrase("wrong".getBytes())});
+            fail("Signed with the wrong passphrase");
+        } catch (ChecksumFailureException e) {
+            // the bad passphrase reaches the caller, rather than being lost in a signing task
+        }
+    }
+}
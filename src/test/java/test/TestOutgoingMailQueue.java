@@ -0,0 +1,465 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.*;
+import core.email.*;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.OpenPGPStandardKeyIdentifier;
+import core.keyhandlers.parameters.OpenPGPAddSecretKeyParameters;
+import core.algorithmhandlers.*;
+import core.algorithmhandlers.keymaterial.RSAAlgorithmParameters;
+import core.algorithmhandlers.openpgp.util.*;
+import core.protocolhandlers.SMTPConnectionPool;
+import core.protocolhandlers.SMTPHandler;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.security.*;
+
+/**
+ * <p>Checks that the outgoing mail queue spools email to disk, survives a restart, backs off failed deliveries
+ * and gives up on email that fails too often, and that a pipe in store-and-forward mode accepts email without the 
+ * mail server and delivers it in the background.</p>
+ */
+public class TestOutgoingMailQueue extends TestCase {
+
+    private File dir;
+
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("outqueue", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        delete(dir);
+    }
+
+    private void delete(File f) {
+        File files[] = f.listFiles();
+        for (int n = 0; (files != null) && (n < files.length); n++)
+            delete(files[n]);
+        f.delete();
+    }
+
+    private EmailEnvelope makeEnvelope() {
+        EmailEnvelope envelope = new EmailEnvelope();
+        envelope.setSender("alice@example.com");
+        envelope.addRecipient("bob@example.com");
+        envelope.addRecipient("carol@example.com");
+        return envelope;
+    }
+
+    public void testPersistence() throws Exception {
+        OutgoingMailQueue queue = new OutgoingMailQueue(dir);
+        byte data[] = "Subject: test\r\n\r\nHello\r\n".getBytes();
+
+        QueuedEmail queued = queue.enqueue(makeEnvelope(), data, true, false);
+        assertEquals(1, queue.getDepth());
+        assertTrue(new File(dir, queued.getID() + ".eml").exists());
+        assertTrue(new File(dir, queued.getID() + ".env").exists());
+
+        // half written email from a crash
+        new FileOutputStream(new File(dir, "orphan.eml")).close();
+        new FileOutputStream(new File(dir, "partial.env.tmp")).close();
+
+        OutgoingMailQueue reloaded = new OutgoingMailQueue(dir);
+        assertEquals(1, reloaded.getDepth());
+        assertFalse(new File(dir, "orphan.eml").exists());
+        assertFalse(new File(dir, "partial.env.tmp").exists());
+
+        QueuedEmail batch[] = reloaded.takeBatch(10);
+        assertEquals(1, batch.length);
+        assertEquals(queued.getID(), batch[0].getID());
+        assertTrue(Arrays.equals(data, batch[0].getData()));
+        assertEquals("alice@example.com", batch[0].getSender());
+        assertEquals(2, batch[0].getNumberOfRecipients());
+        assertEquals("carol@example.com", batch[0].getRecipient(1));
+        assertTrue(batch[0].getEncrypt());
+        assertFalse(batch[0].getSign());
+        assertEquals(1, reloaded.getInFlight());
+
+        reloaded.delivered(batch[0]);
+        assertEquals(0, reloaded.getDepth());
+        assertEquals(1, reloaded.getDeliveredCount());
+        assertFalse(new File(dir, queued.getID() + ".eml").exists());
+        assertFalse(new File(dir, queued.getID() + ".env").exists());
+    }
+
+    public void testSpoolEncryption() throws Exception {
+        OutgoingMailQueue queue = new OutgoingMailQueue(dir);
+        byte data[] = "Subject: secret\r\n\r\nThe plans are in the usual place.\r\n".getBytes();
+        QueuedEmail queued = queue.enqueue(makeEnvelope(), data, true, false);
+
+        // the message data is not on disk in the clear
+        File eml = new File(dir, queued.getID() + ".eml");
+        byte spooled[] = new byte[(int)eml.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(eml));
+        in.readFully(spooled);
+        in.close();
+        assertEquals(-1, new String(spooled, "ISO-8859-1").indexOf("usual place"));
+
+        // email spooled by an earlier run of the proxy can not be decrypted any more
+        Properties p = loadEnvelope(queued);
+        p.setProperty("spoolkey", "earlier");
+        FileOutputStream out = new FileOutputStream(new File(dir, "0-0.env"));
+        p.store(out, null);
+        out.close();
+        out = new FileOutputStream(new File(dir, "0-0.eml"));
+        out.write(spooled);
+        out.close();
+
+        OutgoingMailQueue reloaded = new OutgoingMailQueue(dir);
+        assertEquals(1, reloaded.getDepth());
+        assertEquals(1, reloaded.getUndeliverableCount());
+        assertTrue(new File(dir, "failed/0-0.eml").exists());
+        assertTrue(Arrays.equals(data, reloaded.takeBatch(10)[0].getData()));
+    }
+
+    public void testBatching() throws Exception {
+        OutgoingMailQueue queue = new OutgoingMailQueue(dir);
+        for (int n = 0; n < 5; n++)
+            queue.enqueue(makeEnvelope(), ("Subject: " + n + "\r\n\r\n").getBytes(), false, false);
+
+        QueuedEmail first[] = queue.takeBatch(3);
+        QueuedEmail second[] = queue.takeBatch(3);
+        assertEquals(3, first.length);
+        assertEquals(2, second.length);
+        assertEquals("Subject: 0\r\n\r\n", new String(first[0].getData()));
+        assertEquals("Subject: 4\r\n\r\n", new String(second[1].getData()));
+        assertEquals(5, queue.getInFlight());
+    }
+
+    public void testRetryAndDeadLetter() throws Exception {
+        OutgoingMailQueue queue = new OutgoingMailQueue(dir, 50, 100, 3);
+        QueuedEmail queued = queue.enqueue(makeEnvelope(), "Subject: retry\r\n\r\n".getBytes(), false, true);
+
+        QueuedEmail batch[] = queue.takeBatch(1);
+        long failedAt = System.currentTimeMillis();
+        assertTrue(queue.failed(batch[0], "451 try again", false));
+        assertEquals(1, queue.getDepth());
+
+        // not due again until the retry delay has passed
+        batch = queue.takeBatch(1);
+        assertTrue(System.currentTimeMillis() - failedAt >= 40);
+        assertEquals(1, batch[0].getAttempts());
+        assertEquals("451 try again", batch[0].getLastError());
+
+        // attempts survive a restart
+        assertEquals("1", loadEnvelope(queued).getProperty("attempts"));
+
+        assertTrue(queue.failed(batch[0], "451 try again", false));
+        batch = queue.takeBatch(1);
+        assertFalse(queue.failed(batch[0], "451 try again", false));
+
+        assertEquals(0, queue.getDepth());
+        assertEquals(1, queue.getUndeliverableCount());
+        assertEquals(3, queue.getFailedAttempts());
+        assertFalse(new File(dir, queued.getID() + ".eml").exists());
+        assertTrue(new File(new File(dir, "failed"), queued.getID() + ".eml").exists());
+        assertTrue(new File(new File(dir, "failed"), queued.getID() + ".env").exists());
+
+        // failed email is not loaded again
+        assertEquals(0, new OutgoingMailQueue(dir).getDepth());
+    }
+
+    public void testPermanentFailure() throws Exception {
+        OutgoingMailQueue queue = new OutgoingMailQueue(dir);
+        queue.enqueue(makeEnvelope(), "Subject: bad\r\n\r\n".getBytes(), true, true);
+
+        QueuedEmail batch[] = queue.takeBatch(1);
+        assertFalse(queue.failed(batch[0], "no key", true));
+        assertEquals(0, queue.getDepth());
+        assertEquals(1, queue.getUndeliverableCount());
+    }
+
+    public void testClose() throws Exception {
+        final OutgoingMailQueue queue = new OutgoingMailQueue(dir);
+
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                queue.close();
+            }
+        }.start();
+
+        assertNull(queue.takeBatch(1));
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        int port = s.getLocalPort();
+        s.close();
+        return port;
+    }
+
+    /** Send a line to the pipe and return the last line of its answer. */
+    private static String command(BufferedReader in, Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+
+        String reply;
+        do {
+            reply = in.readLine();
+        } while (reply.charAt(3) == '-');
+        return reply;
+    }
+
+    public void testStoreAndForward() throws Exception {
+        OutgoingMailQueue queue = new OutgoingMailQueue(dir);
+        int port = freePort();
+
+        // nothing is listening on the mail server port
+        SMTPHandler server = new SMTPHandler();
+        server.initServerConnection(port);
+        SMTPHandler client = new SMTPHandler();
+        client.initClientConnection("127.0.0.1", freePort());
+
+        OutgoingEmailPipe pipe = new OutgoingEmailPipe(server, null, new KeyHandler[0], null, new KeyHandler[0], client, false, false);
+        pipe.setQueue(queue, null, "127.0.0.1", freePort(), 0, 1);
+        pipe.setDaemon(true);
+        pipe.start();
+
+        Socket s = null;
+        for (int n = 0; (s == null) && (n < 50); n++) {
+            try {
+                s = new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+        Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+        assertTrue(in.readLine().startsWith("220"));
+        assertTrue(command(in, out, "EHLO client").startsWith("250"));
+        assertTrue(command(in, out, "RCPT TO:<bob@example.com>").startsWith("503"));
+        assertTrue(command(in, out, "MAIL FROM:<alice@example.com>").startsWith("250"));
+        assertTrue(command(in, out, "MAIL FROM:<alice@example.com>").startsWith("503"));
+        assertTrue(command(in, out, "RCPT TO:<bob@example.com>").startsWith("250"));
+        assertTrue(command(in, out, "DATA").startsWith("354"));
+        assertTrue(command(in, out, "Subject: queued\r\n\r\nHello\r\n.").startsWith("250"));
+        assertTrue(command(in, out, "QUIT").startsWith("221"));
+        s.close();
+
+        QueuedEmail batch[] = queue.takeBatch(1);
+        assertEquals("alice@example.com", batch[0].getSender());
+        assertEquals("bob@example.com", batch[0].getRecipient(0));
+        assertEquals("Subject: queued\r\n\r\nHello\r\n", new String(batch[0].getData()));
+
+        pipe.stopPipe();
+    }
+
+    /** A mail server that refuses nobody@example.com outright and accepts everything else. */
+    private static class FakeServer extends Thread {
+        ServerSocket socket;
+        StringBuffer received = new StringBuffer();
+
+        FakeServer() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                Socket s = socket.accept();
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+                Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+                out.write("220 fake ESMTP\r\n");
+                out.flush();
+
+                String line;
+                boolean data = false;
+                while ((line = in.readLine()) != null) {
+                    if (data) {
+                        if (!line.equals(".")) {
+                            received.append(line).append("\r\n");
+                            continue;
+                        }
+                        data = false;
+                        out.write("250 queued\r\n");
+                    } else if (line.toUpperCase().startsWith("RCPT TO:<NOBODY")) {
+                        out.write("550 no such user\r\n");
+                    } else if (line.toUpperCase().startsWith("DATA")) {
+                        data = true;
+                        out.write("354 go ahead\r\n");
+                    } else {
+                        out.write("250 ok\r\n");
+                    }
+                    out.flush();
+                }
+                s.close();
+            } catch (IOException e) {
+                // dropped
+            }
+        }
+    }
+
+    public void testDelivery() throws Exception {
+        OutgoingMailQueue queue = new OutgoingMailQueue(dir, 60000, 60000, 10);
+        FakeServer mailServer = new FakeServer();
+        SMTPConnectionPool pool = new SMTPConnectionPool();
+        int port = mailServer.socket.getLocalPort();
+
+        EmailEnvelope refused = new EmailEnvelope();
+        refused.setSender("alice@example.com");
+        refused.addRecipient("nobody@example.com");
+        queue.enqueue(refused, "Subject: refused\r\n\r\n".getBytes(), false, false);
+        queue.enqueue(makeEnvelope(), "Subject: accepted\r\n\r\n".getBytes(), false, false);
+
+        SMTPHandler server = new SMTPHandler();
+        server.initServerConnection(freePort());
+        SMTPHandler client = new SMTPHandler();
+        client.initClientConnection("127.0.0.1", port);
+        OutgoingEmailPipe pipe = new OutgoingEmailPipe(server, null, new KeyHandler[0], null, new KeyHandler[0], client, false, false);
+        pipe.setQueue(queue, pool, "127.0.0.1", port, 1, 10);
+
+        for (int n = 0; (queue.getDepth() > 0) && (n < 250); n++)
+            Thread.sleep(20);
+
+        // the 5xx is not retried, and the connection goes back to the pool
+        assertEquals(0, queue.getDepth());
+        assertEquals(1, queue.getDeliveredCount());
+        assertEquals(1, queue.getUndeliverableCount());
+        assertEquals(1, new File(dir, "failed").list().length / 2);
+        assertEquals(1, pool.getIdleConnections("127.0.0.1", port));
+
+        queue.close();
+        pool.close();
+        mailServer.socket.close();
+    }
+
+    /** Answers every passphrase request with "test", noting who asked. */
+    private static class Requester implements PassPhraseRequester {
+        int asked;
+        Thread thread;
+
+        public PassPhraseResponse requestPassPhrase(String title, String message) {
+            asked++;
+            thread = Thread.currentThread();
+            return new PassPhraseResponse() {
+                public int getResponseCode() { return OK; }
+                public byte[] getPassPhrase() { return "test".getBytes(); }
+            };
+        }
+    }
+
+    public void testSignedStoreAndForward() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        // alice's signing key, protected with the passphrase "test"
+        File keyring = File.createTempFile("secring", ".pgp");
+        keyring.delete();
+        OpenPGPSecretKeyring ring = new OpenPGPSecretKeyring(keyring.getPath(), null);
+        RSAAlgorithmParameters key = new RSAAlgorithmParameters();
+        key.generateKeyPair(PublicKeyAlgorithmSettings.getDefaultKeySize(1), SecureRandom.getInstance("SHA1PRNG"));
+        ring.addKeys(new KeyData[] {new KeyData(key)},
+            new OpenPGPStandardKeyIdentifier[] {new OpenPGPStandardKeyIdentifier("Alice".getBytes(), "alice@example.com".getBytes())},
+            new OpenPGPAddSecretKeyParameters[] {new OpenPGPAddSecretKeyParameters(new Date(), 1, 1, null, null, null, "test".getBytes(), SymmetricAlgorithmSettings.CAST5, HashAlgorithmSettings.SHA1)});
+
+        OutgoingMailQueue queue = new OutgoingMailQueue(dir, 60000, 60000, 10);
+        FakeServer mailServer = new FakeServer();
+        SMTPConnectionPool pool = new SMTPConnectionPool();
+        int port = mailServer.socket.getLocalPort();
+        Requester requester = new Requester();
+
+        int pipePort = freePort();
+        SMTPHandler server = new SMTPHandler();
+        server.initServerConnection(pipePort);
+        SMTPHandler client = new SMTPHandler();
+        client.initClientConnection("127.0.0.1", port);
+        OutgoingEmailPipe pipe = new OutgoingEmailPipe(server, new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5), new KeyHandler[] {ring}, requester, new KeyHandler[0], client, false, true);
+        pipe.setQueue(queue, pool, "127.0.0.1", port, 1, 10);
+        pipe.setDaemon(true);
+        pipe.start();
+
+        try {
+            Socket s = null;
+            for (int n = 0; (s == null) && (n < 50); n++) {
+                try {
+                    s = new Socket("127.0.0.1", pipePort);
+                } catch (IOException e) {
+                    Thread.sleep(20);
+                }
+            }
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+            assertTrue(in.readLine().startsWith("220"));
+            assertTrue(command(in, out, "MAIL FROM:<alice@example.com>").startsWith("250"));
+            assertTrue(command(in, out, "RCPT TO:<bob@example.com>").startsWith("250"));
+            assertTrue(command(in, out, "DATA").startsWith("354"));
+            assertTrue(command(in, out, "From: Alice <alice@example.com>\r\nSubject: signed\r\n\r\nHello\r\n.").startsWith("250"));
+
+            // the passphrase was asked for by the pipe before the email was accepted
+            assertEquals(1, requester.asked);
+            assertSame(pipe, requester.thread);
+
+            assertTrue(command(in, out, "QUIT").startsWith("221"));
+            s.close();
+
+            for (int n = 0; (queue.getDeliveredCount() == 0) && (n < 500); n++)
+                Thread.sleep(20);
+
+            // the delivery worker signed it with the cached passphrase
+            assertEquals(1, queue.getDeliveredCount());
+            assertEquals(0, queue.getUndeliverableCount());
+            String delivered = mailServer.received.toString();
+            assertTrue(delivered, delivered.indexOf("-----BEGIN PGP SIGNED MESSAGE-----") >= 0);
+            assertTrue(delivered, delivered.indexOf("-----BEGIN PGP SIGNATURE-----") >= 0);
+            assertEquals(1, requester.asked);
+        } finally {
+            pipe.stopPipe();
+            queue.close();
+            pool.close();
+            mailServer.socket.close();
+            keyring.delete();
+        }
+    }
+
+    private Properties loadEnvelope(QueuedEmail email) throws IOException {
+        Properties p = new Properties();
+        FileInputStream in = new FileInputStream(new File(dir, email.getID() + ".env"));
+        p.load(in);
+        in.close();
+        return p;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.*;
+import core.protocolhandlers.*;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * <p>Checks that the incoming pipe advertises PIPELINING to the email client and passes pipelined RETR commands
+ * on to a pipelining POP3 server in one go, returning the emails in order.</p>
+ */
+public class TestPOP3Pipelining extends TestCase {
+
+    /** A fake POP3 server that counts how many groups of commands it was sent (round trips). */
+    private static class FakePOP3Server extends Thread {
+        ServerSocket socket;
+        boolean pipelining;
+        Vector lines = new Vector();
+        Vector groups = new Vector();
+
+        FakePOP3Server(boolean pipelining) throws IOException {
+            this.pipelining = pipelining;
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                Socket s = socket.accept();
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+                Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+                out.write("+OK fake POP3\r\n");
+                out.flush();
+
+                String line;
+                Vector group = new Vector();
+                while ((line = in.readLine()) != null) {
+                    lines.add(line);
+                    group.add(line);
+                    String command = line.toUpperCase();
+
+                    if (command.startsWith("CAPA")) {
+                        out.write("+OK\r\nUIDL\r\n" + (pipelining ? "PIPELINING\r\n" : "") + ".\r\n");
+                    } else if (command.startsWith("RETR")) {
+                        String n = line.substring(5);
+                        out.write("+OK\r\nSubject: message " + n + "\r\n\r\nBody of message " + n + "\r\n.\r\n");
+                    } else if (command.startsWith("QUIT")) {
+                        out.write("+OK bye\r\n");
+                        out.flush();
+                        break;
+                    } else {
+                        out.write("+OK\r\n");
+                    }
+
+                    // answer once everything the client sent in one go has been read
+                    if (!in.ready()) {
+                        out.flush();
+                        groups.add(group);
+                        group = new Vector();
+                    }
+                }
+                s.close();
+            } catch (IOException e) {
+                // dropped
+            }
+        }
+    }
+
+    private FakePOP3Server server;
+    private IncomingEmailPipe pipe;
+    private int port;
+
+    private void startPipe(boolean pipelining) throws Exception {
+        server = new FakePOP3Server(pipelining);
+
+        ServerSocket tmp = new ServerSocket(0);
+        port = tmp.getLocalPort();
+        tmp.close();
+
+        POP3Handler pop3 = new POP3Handler();
+        pop3.initServerConnection(port);
+        pop3.initClientConnection("127.0.0.1", server.socket.getLocalPort());
+
+        pipe = new IncomingEmailPipe(pop3, null, null, null, null, pop3);
+        pipe.setDaemon(true);
+        pipe.start();
+    }
+
+    protected void tearDown() throws Exception {
+        pipe.stopPipe();
+        server.socket.close();
+    }
+
+    private Socket connect() throws Exception {
+        for (int n = 0; n < 50; n++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        throw new IOException("Proxy did not start");
+    }
+
+    /** Read a multiline response, returning the lines without the terminating dot. */
+    private Vector readMultiline(BufferedReader in) throws IOException {
+        Vector lines = new Vector();
+        String line;
+        while (!(line = in.readLine()).equals("."))
+            lines.add(line);
+        return lines;
+    }
+
+    private void doSession(boolean pipelining) throws Exception {
+        startPipe(pipelining);
+
+        Socket s = connect();
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+        Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+        assertTrue(in.readLine().startsWith("+OK"));
+
+        // the proxy always offers pipelining to the client
+        out.write("CAPA\r\n");
+        out.flush();
+        Vector capa = readMultiline(in);
+        assertEquals("+OK", capa.elementAt(0));
+        assertTrue(capa.contains("UIDL"));
+        assertTrue(capa.contains("PIPELINING"));
+
+        out.write("RETR 1\r\nRETR 2\r\nRETR 3\r\nQUIT\r\n");
+        out.flush();
+
+        for (int n = 1; n <= 3; n++) {
+            Vector message = readMultiline(in);
+            assertTrue(((String)message.elementAt(0)).startsWith("+OK"));
+            assertEquals("Subject: message " + n, message.elementAt(1));
+            assertEquals("Body of message " + n, message.elementAt(3));
+        }
+        assertTrue(in.readLine().startsWith("+OK"));
+        s.close();
+    }
+
+    public void testPipelinedServer() throws Exception {
+        doSession(true);
+
+        // CAPA from the client, then all three RETRs together
+        Vector retrs = new Vector();
+        retrs.add("RETR 1");
+        retrs.add("RETR 2");
+        retrs.add("RETR 3");
+        assertTrue(server.groups.contains(retrs));
+    }
+
+    public void testLockStepServer() throws Exception {
+        doSession(false);
+
+        // the server did not offer pipelining, so each RETR is sent on its own
+        for (int n = 0; n < server.groups.size(); n++)
+            assertEquals(1, ((Vector)server.groups.elementAt(n)).size());
+        assertTrue(server.lines.contains("RETR 3"));
+    }
+}
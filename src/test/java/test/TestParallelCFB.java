@@ -0,0 +1,169 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.*;
+
+import org.bouncycastle.jce.provider.*;
+import junit.framework.TestCase;
+import java.security.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * <p>Checks that the chunked CFB decryptor produces exactly the same plaintext as the single
+ * threaded JCE cipher path, for both plain CFB and OpenPGP CFB with resync.</p>
+ */
+public class TestParallelCFB extends TestCase {
+
+    /** Data lengths to try, chosen to hit block and chunk boundaries. */
+    private final int lengths[] = { 1, 7, 8, 15, 16, 17, 100, 1000, 4093, 65536 };
+
+    /** The JCE OpenPGP CFB mode needs at least a block of data to encrypt, so start from there. */
+    private final int resyncLengths[] = { 16, 17, 18, 31, 100, 1000, 4093, 65536 };
+
+    protected void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private Key generateKey(int skAlgorithm) throws Exception {
+        KeyGenerator k = KeyGenerator.getInstance(SymmetricAlgorithmSettings.getCipherText(skAlgorithm), "BC");
+        k.init(SymmetricAlgorithmSettings.getDefaultKeySize(skAlgorithm), SecureRandom.getInstance("SHA1PRNG"));
+        return k.generateKey();
+    }
+
+    private void assertBytesEqual(String message, byte expected[], byte actual[]) {
+        assertEquals(message + " length", expected.length, actual.length);
+        for (int n = 0; n < expected.length; n++)
+            assertEquals(message + " offset " + n, expected[n], actual[n]);
+    }
+
+    /** Plain CFB, as used by the integrity protected data packet. */
+    private void doPlainCFBTest(int skAlgorithm) throws Exception {
+        SecureRandom rnd = SecureRandom.getInstance("SHA1PRNG");
+        Key key = generateKey(skAlgorithm);
+        int blockSize = SymmetricAlgorithmSettings.getDefaultBlockSize(skAlgorithm)/8;
+        String cipherText = SymmetricAlgorithmSettings.getCipherText(skAlgorithm) + "/CFB/NoPadding";
+
+        for (int n = 0; n < lengths.length; n++) {
+            byte raw[] = new byte[lengths[n]];
+            rnd.nextBytes(raw);
+
+            Cipher cipher = Cipher.getInstance(cipherText, "BC");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[blockSize]));
+            byte enc[] = cipher.doFinal(raw);
+
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(new byte[blockSize]));
+            byte serial[] = cipher.doFinal(enc);
+
+            byte parallel[] = CFBDecryptor.decrypt(skAlgorithm, key.getEncoded(), new byte[blockSize], enc, 0, enc.length, blockSize * 3);
+
+            assertBytesEqual("CFB " + lengths[n], serial, parallel);
+            assertBytesEqual("CFB plaintext " + lengths[n], raw, parallel);
+        }
+    }
+
+    /** OpenPGP CFB with resync, as used by the plain symmetrically encrypted data packet. */
+    private void doResyncCFBTest(int skAlgorithm) throws Exception {
+        SecureRandom rnd = SecureRandom.getInstance("SHA1PRNG");
+        Key key = generateKey(skAlgorithm);
+        int blockSize = SymmetricAlgorithmSettings.getDefaultBlockSize(skAlgorithm)/8;
+
+        for (int n = 0; n < resyncLengths.length; n++) {
+            byte raw[] = new byte[resyncLengths[n]];
+            rnd.nextBytes(raw);
+
+            byte ivdata[] = new byte[blockSize];
+            rnd.nextBytes(ivdata);
+
+            Cipher cipher = Cipher.getInstance(SymmetricAlgorithmSettings.getFullCipherText(skAlgorithm), "BC");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(ivdata));
+            byte enc[] = cipher.doFinal(raw);
+
+            cipher = Cipher.getInstance(SymmetricAlgorithmSettings.getFullCipherText(skAlgorithm), "BC");
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            byte serial[] = cipher.doFinal(enc);
+
+            byte parallel[] = CFBDecryptor.decryptWithResync(skAlgorithm, key.getEncoded(), enc, blockSize * 2);
+
+            assertBytesEqual("PGP CFB " + resyncLengths[n], serial, parallel);
+        }
+    }
+
+    /** Round trip a packet large enough to take the parallel path. */
+    private void doPacketTest(EncryptedDataPacket dp, int skAlgorithm) throws Exception {
+        SecureRandom rnd = SecureRandom.getInstance("SHA1PRNG");
+        Key key = generateKey(skAlgorithm);
+        SessionKey sk = new SessionKey(skAlgorithm, key.getEncoded());
+
+        byte raw[] = new byte[CFBDecryptor.PARALLEL_THRESHOLD * 2 + 123];
+        rnd.nextBytes(raw);
+
+        dp.add(new LiteralDataPacket((byte)'b', "large.dat", raw));
+        dp.encryptAndEncode(sk);
+
+        EncryptedDataPacket r_p = (EncryptedDataPacket)new core.algorithmhandlers.openpgp.OpenPGPPacketInputStream(
+                new java.io.ByteArrayInputStream(dp.encodePacket())).readPacket();
+        r_p.decryptAndDecode(sk);
+
+        assertBytesEqual("Packet data", raw, ((LiteralDataPacket)r_p.unpack(0)).getData());
+    }
+
+    public void testPlainCFBWithAES128() throws Exception {
+        doPlainCFBTest(SymmetricAlgorithmSettings.AES128);
+    }
+
+    public void testPlainCFBWithCAST5() throws Exception {
+        doPlainCFBTest(SymmetricAlgorithmSettings.CAST5);
+    }
+
+    public void testResyncCFBWithIDEA() throws Exception {
+        doResyncCFBTest(SymmetricAlgorithmSettings.IDEA);
+    }
+
+    public void testResyncCFBWithAES256() throws Exception {
+        doResyncCFBTest(SymmetricAlgorithmSettings.AES256);
+    }
+
+    public void testResyncCFBWith3DES() throws Exception {
+        doResyncCFBTest(SymmetricAlgorithmSettings.TRIPLEDES);
+    }
+
+    public void testLargeSEDPWithAES128() throws Exception {
+        doPacketTest(new SymmetricallyEncryptedDataPacket(), SymmetricAlgorithmSettings.AES128);
+    }
+
+    public void testLargeSEIPDPWithAES128() throws Exception {
+        doPacketTest(new SymmetricallyEncryptedIntegrityProtectedDataPacket(), SymmetricAlgorithmSettings.AES128);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.algorithmhandlers.openpgp.*;
+import core.algorithmhandlers.openpgp.packets.*;
+import core.algorithmhandlers.openpgp.util.*;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * <p>Checks that the block parallel compressor produces raw DEFLATE and ZLIB streams that the
+ * standard inflater reads back to the original data.</p>
+ */
+public class TestParallelDeflate extends TestCase {
+
+    /** Produce some compressible text with a bit of noise in it. */
+    private byte[] makeData(int length) {
+        Random rnd = new Random(length);
+        String words[] = { "secure ", "email ", "proxy ", "OpenPGP ", "packet ", "\r\n", "attachment ", "signature " };
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+
+        while (out.size() < length) {
+            if (rnd.nextInt(10) == 0)
+                out.write(rnd.nextInt(256));
+            else {
+                byte word[] = words[rnd.nextInt(words.length)].getBytes();
+                out.write(word, 0, Math.min(word.length, length - out.size()));
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    private byte[] inflate(byte compressed[], boolean nowrap) throws IOException {
+        InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed), new Inflater(nowrap));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte buffer[] = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private void doTest(int length, int blockSize) throws Exception {
+        byte data[] = makeData(length);
+
+        assertTrue("Raw deflate of " + length, Arrays.equals(data, inflate(ParallelDeflater.deflate(data, Deflater.DEFAULT_COMPRESSION, blockSize), true)));
+        assertTrue("Zlib of " + length, Arrays.equals(data, inflate(ParallelDeflater.zlib(data, Deflater.DEFAULT_COMPRESSION, blockSize), false)));
+        assertTrue("Zlib level 9 of " + length, Arrays.equals(data, inflate(ParallelDeflater.zlib(data, 9, blockSize), false)));
+    }
+
+    public void testSmallBlocks() throws Exception {
+        doTest(0, 1024);
+        doTest(1, 1024);
+        doTest(1024, 1024);
+        doTest(1025, 1024);
+        doTest(100000, 1024);
+    }
+
+    public void testDefaultBlocks() throws Exception {
+        doTest(ParallelDeflater.BLOCK_SIZE * 5 + 17, ParallelDeflater.BLOCK_SIZE);
+    }
+
+    /** Round trip a compressed packet large enough to take the parallel path. */
+    public void testLargeCompressedDataPacket() throws Exception {
+        byte data[] = makeData(ParallelDeflater.PARALLEL_THRESHOLD * 2);
+
+        for (byte algorithm = CompressedDataPacket.ZIP; algorithm <= CompressedDataPacket.ZLIB; algorithm++) {
+            CompressedDataPacket cp = new CompressedDataPacket(algorithm);
+            cp.add(new LiteralDataPacket((byte)'b', "large.dat", data));
+
+            CompressedDataPacket r_p = (CompressedDataPacket)new OpenPGPPacketInputStream(
+                    new ByteArrayInputStream(cp.encodePacket())).readPacket();
+
+            assertTrue("Packet data", Arrays.equals(data, ((LiteralDataPacket)r_p.unpack(0)).getData()));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.*;
+
+import core.*;
+import core.email.*;
+import core.interfaces.*;
+import core.keyhandlers.*;
+import core.keyhandlers.identifiers.OpenPGPStandardKeyIdentifier;
+import core.keyhandlers.parameters.*;
+import core.algorithmhandlers.*;
+import core.algorithmhandlers.keymaterial.RSAAlgorithmParameters;
+import core.algorithmhandlers.openpgp.util.*;
+import core.protocolhandlers.POP3Handler;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.*;
+import java.security.*;
+
+/**
+ * <p>Checks that emails processed at the same time, as the RelayPipe's payload threads do, ask the user for a 
+ * passphrase one at a time, and that a passphrase entered for one email is used for the others waiting.</p>
+ */
+public class TestPassPhrasePrompts extends TestCase {
+
+    /** Answers with the passphrase "test", after a pause, recording how many dialogs were open at once. */
+    private static class Requester implements PassPhraseRequester {
+        int asked;
+        int open;
+        int mostOpen;
+
+        public PassPhraseResponse requestPassPhrase(String title, String message) {
+            synchronized (this) {
+                asked++;
+                open++;
+                mostOpen = Math.max(open, mostOpen);
+            }
+
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+            }
+
+            synchronized (this) {
+                open--;
+            }
+
+            return new PassPhraseResponse() {
+                public int getResponseCode() { return OK; }
+                public byte[] getPassPhrase() { return "test".getBytes(); }
+            };
+        }
+    }
+
+    private File secring;
+    private File pubring;
+
+    protected void setUp() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        // alice's key pair, the secret key protected with the passphrase "test"
+        RSAAlgorithmParameters key = new RSAAlgorithmParameters();
+        key.generateKeyPair(PublicKeyAlgorithmSettings.getDefaultKeySize(1), SecureRandom.getInstance("SHA1PRNG"));
+        OpenPGPStandardKeyIdentifier alice[] = new OpenPGPStandardKeyIdentifier[] {new OpenPGPStandardKeyIdentifier("Alice".getBytes(), "alice@example.com".getBytes())};
+        Date now = new Date();
+
+        secring = File.createTempFile("secring", ".pgp");
+        secring.delete();
+        new OpenPGPSecretKeyring(secring.getPath(), null).addKeys(new KeyData[] {new KeyData(key)}, alice,
+            new OpenPGPAddSecretKeyParameters[] {new OpenPGPAddSecretKeyParameters(now, 1, 1, null, null, null, "test".getBytes(), SymmetricAlgorithmSettings.CAST5, HashAlgorithmSettings.SHA1)});
+
+        pubring = File.createTempFile("pubring", ".pgp");
+        pubring.delete();
+        new OpenPGPPublicKeyring(pubring.getPath(), null).addKeys(new KeyData[] {new KeyData(key)}, alice,
+            new OpenPGPAddKeyParameters[] {new OpenPGPAddKeyParameters(now, 1, 1, null, null, null)});
+    }
+
+    protected void tearDown() {
+        secring.delete();
+        pubring.delete();
+    }
+
+    public void testOnePromptAtATime() throws Exception {
+        OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5);
+        KeyHandler publicKeys[] = new KeyHandler[] {new OpenPGPPublicKeyring(pubring.getPath(), null)};
+        KeyHandler secretKeys[] = new KeyHandler[] {new OpenPGPSecretKeyring(secring.getPath(), null)};
+
+        Email plain = new Email("From: bob@example.com\r\nTo: Alice <alice@example.com>\r\nSubject: secret\r\n\r\nHello Alice\r\n".getBytes("ISO-8859-1"));
+        final byte encrypted[] = handler.processOutgoingMail(true, false, publicKeys, new KeyHandler[0], plain, null).getBytes();
+
+        Requester requester = new Requester();
+        POP3Handler pop3 = new POP3Handler();
+        final IncomingEmailPipe pipe = new IncomingEmailPipe(pop3, handler, secretKeys, requester, publicKeys, pop3);
+
+        // several emails arriving together, each needing the passphrase
+        final Vector results = new Vector();
+        Thread threads[] = new Thread[3];
+        for (int n = 0; n < threads.length; n++) {
+            threads[n] = new Thread() {
+                public void run() {
+                    try {
+                        results.add(new String(pipe.processPayload(null, encrypted), "ISO-8859-1"));
+                    } catch (Exception e) {
+                        results.add(e);
+                    }
+                }
+            };
+            threads[n].start();
+        }
+        for (int n = 0; n < threads.length; n++)
+            threads[n].join(60000);
+
+        // the user saw one dialog, and the passphrase entered unlocked every email
+        assertEquals(1, requester.mostOpen);
+        assertEquals(1, requester.asked);
+        assertEquals(threads.length, results.size());
+        for (int n = 0; n < results.size(); n++)
+            assertTrue(results.elementAt(n).toString(), results.elementAt(n).toString().indexOf("Hello Alice") >= 0);
+    }
+}
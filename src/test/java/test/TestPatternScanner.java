@@ -0,0 +1,99 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.algorithmhandlers.*;
+import core.algorithmhandlers.openpgp.util.*;
+
+import junit.framework.TestCase;
+import java.util.Random;
+
+/**
+ * <p>Checks the multi-pattern scanner against a simple search, and that the OpenPGP handler only asks for email
+ * with OpenPGP content in it to be processed.</p>
+ */
+public class TestPatternScanner extends TestCase {
+
+    private static final String PATTERNS[] = { "-----BEGIN PGP ", "application/pgp", ".pgp", ".sig" };
+
+    /** A simple case-insensitive search for any of the patterns. */
+    private boolean simpleSearch(byte data[]) throws Exception {
+        String text = new String(data, "ISO-8859-1").toLowerCase();
+        for (int n = 0; n < PATTERNS.length; n++) {
+            if (text.indexOf(PATTERNS[n].toLowerCase()) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    public void testPatterns() throws Exception {
+        PatternScanner scanner = new PatternScanner(PATTERNS);
+
+        assertFalse(scanner.matches("Subject: hello\r\n\r\nNothing to see here.\r\n".getBytes("ISO-8859-1")));
+        assertFalse(scanner.matches(new byte[0]));
+        assertFalse(scanner.matches(".pg".getBytes("ISO-8859-1")));
+        assertTrue(scanner.matches(".pgp".getBytes("ISO-8859-1")));
+        assertTrue(scanner.matches("name=\"FILE.SIG\"".getBytes("ISO-8859-1")));
+        assertTrue(scanner.matches("Content-Type: Application/PGP-encrypted\r\n".getBytes("ISO-8859-1")));
+        assertTrue(scanner.matches("\r\n-----BEGIN PGP SIGNED MESSAGE-----\r\n".getBytes("ISO-8859-1")));
+        assertFalse(scanner.matches("-----BEGIN PG".getBytes("ISO-8859-1")));
+
+        byte data[] = "xx.pgpxx".getBytes("ISO-8859-1");
+        assertEquals(2, scanner.indexOf(data, 0, data.length));
+        assertEquals(-1, scanner.indexOf(data, 3, 5));
+        assertEquals(-1, scanner.indexOf(data, 0, 5));
+
+        // random text made of the pattern letters, so that near misses are common
+        Random random = new Random(1234);
+        String letters = "-BEGIN PGPapplicton/.sg\r\n";
+        for (int n = 0; n < 2000; n++) {
+            byte text[] = new byte[random.nextInt(60)];
+            for (int i = 0; i < text.length; i++)
+                text[i] = (byte)letters.charAt(random.nextInt(letters.length()));
+
+            assertEquals(simpleSearch(text), scanner.matches(text));
+        }
+    }
+
+    public void testPlainMailBypass() throws Exception {
+        OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5);
+        byte plain[] = "Subject: hello\r\n\r\nJust some text.\r\n".getBytes("ISO-8859-1");
+        byte encrypted[] = "Subject: hello\r\n\r\n-----BEGIN PGP MESSAGE-----\r\n\r\nxxxx\r\n-----END PGP MESSAGE-----\r\n".getBytes("ISO-8859-1");
+
+        // plain mail is marked by default
+        assertTrue(handler.isIncomingMailProcessed(plain));
+
+        handler.setMarkPlainMail(false);
+        assertFalse(handler.isIncomingMailProcessed(plain));
+        assertTrue(handler.isIncomingMailProcessed(encrypted));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.protocolhandlers.*;
+import java.io.*;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Checks line endings, dot terminated data and dot stuffing in the protocol streams.</p>
+ */
+public class TestProtocolStreams extends TestCase {
+
+    private static ProtocolInputStream in(String s) throws Exception {
+        return new ProtocolInputStream(new ByteArrayInputStream(s.getBytes("ISO-8859-1")));
+    }
+
+    private static String string(byte data[]) throws Exception {
+        return new String(data, "ISO-8859-1");
+    }
+
+    public void testLineEndings() throws Exception {
+        ProtocolInputStream in = in("one\r\ntwo\rthree\nfour\r\r\nfive");
+
+        assertEquals("one", in.readLineString());
+        assertEquals("two", in.readLineString());
+        assertEquals("three", in.readLineString());
+        assertEquals("four", in.readLineString());
+        assertEquals("", in.readLineString());
+        assertEquals("five", in.readLineString());
+        assertNull(in.readLineString());
+    }
+
+    public void testEightBit() throws Exception {
+        ProtocolInputStream in = in("caf\u00e9\r\n");
+
+        assertEquals("caf\u00e9", in.readLineString());
+    }
+
+    public void testDotTerminated() throws Exception {
+        ProtocolInputStream in = in("a\r\n..b\r\n.\r\nc\r\n.\r\n.\r\nd\r\n");
+
+        assertEquals("a\r\n.b\r\n", string(in.readDotTerminated(true, true)));
+        assertEquals("c", string(in.readDotTerminated(false, false)));
+        assertEquals("", string(in.readDotTerminated(false, false)));
+        assertNull(in.readDotTerminated(true, true));
+    }
+
+    public void testDotStuffing() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ProtocolOutputStream out = new ProtocolOutputStream(bytes);
+
+        out.write("DATA\r\n");
+        out.writeDotStuffed(".a\r\nb.\r\n.\r\n".getBytes("ISO-8859-1"));
+        assertEquals(0, bytes.size());
+
+        out.flush();
+        assertEquals("DATA\r\n..a\r\nb.\r\n..\r\n", bytes.toString("ISO-8859-1"));
+
+        // the stuffed data reads back as it was
+        ProtocolInputStream in = in(bytes.toString("ISO-8859-1") + ".\r\n");
+        in.readLine();
+        assertEquals(".a\r\nb.\r\n.\r\n", string(in.readDotTerminated(true, true)));
+
+        out.close();
+        out.close();
+    }
+
+    public void testDotStuffingInPieces() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ProtocolOutputStream out = new ProtocolOutputStream(bytes);
+        OutputStream data = out.dotStuffing();
+
+        // lines split across writes, so the start of a line is not always the start of a write
+        data.write('.');
+        data.write("a\r".getBytes("ISO-8859-1"));
+        data.write("\n".getBytes("ISO-8859-1"));
+        data.write(".b.\r\n.".getBytes("ISO-8859-1"));
+        data.write("\r\nc".getBytes("ISO-8859-1"), 0, 2);
+        out.flush();
+
+        assertEquals("..a\r\n..b.\r\n..\r\n", bytes.toString("ISO-8859-1"));
+    }
+}
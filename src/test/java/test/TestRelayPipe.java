@@ -0,0 +1,332 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.*;
+import core.email.EmailEnvelope;
+import core.exceptions.*;
+import core.interfaces.*;
+import core.protocolhandlers.*;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * <p>Checks that the relay pipe passes POP3 and SMTP sessions through as they are, in order when the client 
+ * pipelines, and only hands the emails being retrieved or sent to its payload handler.</p>
+ */
+public class TestRelayPipe extends TestCase {
+
+    /** A fake server that answers each command line with the response given for its first word. */
+    private static class FakeServer extends Thread {
+        ServerSocket socket;
+        String greeting;
+        Hashtable responses = new Hashtable();
+        Vector lines = new Vector();
+        /** Dot terminated data received after a 354 response. */
+        Vector data = new Vector();
+        /** Refuse MAIL while a transaction is open, as a real SMTP server does? */
+        boolean strict;
+
+        FakeServer(String greeting) throws IOException {
+            this.greeting = greeting;
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                Socket s = socket.accept();
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+                Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+                out.write(greeting);
+                out.flush();
+
+                String line;
+                boolean transaction = false;
+                while ((line = in.readLine()) != null) {
+                    lines.add(line);
+                    String command = line.toUpperCase();
+                    if (command.indexOf(' ') > 0)
+                        command = command.substring(0, command.indexOf(' '));
+
+                    String response = (String)responses.get(line.toUpperCase());
+                    if (response == null)
+                        response = (String)responses.get(command);
+                    if (response == null)
+                        response = "+OK\r\n";
+
+                    if ((strict) && (command.equals("MAIL"))) {
+                        if (transaction)
+                            response = "503 5.5.1 Nested MAIL command\r\n";
+                        transaction = true;
+                    } else if (command.equals("RSET")) {
+                        transaction = false;
+                    }
+
+                    out.write(response);
+                    out.flush();
+
+                    if (response.startsWith("354")) {
+                        StringBuffer email = new StringBuffer();
+                        while (!(line = in.readLine()).equals(".")) 
+                            email.append(line).append("\r\n");
+                        data.add(email.toString());
+                        out.write("250 queued\r\n");
+                        out.flush();
+                        transaction = false;
+                    }
+
+                    if (command.equals("QUIT"))
+                        break;
+                }
+                s.close();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    /** Upper cases the emails, or refuses those with "fail" in them. */
+    private static class Handler implements RelayPayloadHandler {
+        Vector envelopes = new Vector();
+
+        public byte[] processPayload(EmailEnvelope envelope, byte payload[]) throws ProxyServerCoreException {
+            String email = new String(payload);
+            if (email.indexOf("fail") >= 0)
+                throw new ProxyServerCoreException("Mail transfer aborted by user");
+
+            envelopes.add((envelope == null) ? "" : envelope.getSender() + " " + Arrays.asList(envelope.getRecipients()));
+            return email.toUpperCase().getBytes();
+        }
+    }
+
+    private int freePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        int port = s.getLocalPort();
+        s.close();
+        return port;
+    }
+
+    private Socket connect(int port) throws Exception {
+        for (int n = 0; n < 50; n++) {
+            try {
+                return new Socket("127.0.0.1", port);
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        throw new IOException("Proxy did not start");
+    }
+
+    /** Read a POP3 multiline response, up to and including the terminating dot. */
+    private String readMultiline(BufferedReader in) throws IOException {
+        StringBuffer lines = new StringBuffer();
+        String line;
+        do {
+            line = in.readLine();
+            lines.append(line).append("\n");
+        } while (!line.equals("."));
+        return lines.toString();
+    }
+
+    /** Read an SMTP response, up to and including the line without a dash after the code. */
+    private String readReply(BufferedReader in) throws IOException {
+        StringBuffer lines = new StringBuffer();
+        String line;
+        do {
+            line = in.readLine();
+            lines.append(line).append("\n");
+        } while (line.charAt(3) == '-');
+        return lines.toString();
+    }
+
+    public void testPOP3() throws Exception {
+        FakeServer server = new FakeServer("+OK fake POP3\r\n");
+        server.responses.put("LIST", "+OK\r\n1 120\r\n2 200\r\n.\r\n");
+        server.responses.put("RETR 1", "+OK 120 octets\r\nSubject: one\r\n\r\n..dot\r\n.\r\n");
+        server.responses.put("RETR 2", "+OK 200 octets\r\nSubject: fail\r\n\r\nbody\r\n.\r\n");
+        server.responses.put("CAPA", "+OK\r\nTOP\r\nSTLS\r\nPIPELINING\r\n.\r\n");
+        server.responses.put("QUIT", "+OK bye\r\n");
+        server.start();
+
+        Handler handler = new Handler();
+        int port = freePort();
+        RelayPipe pipe = new RelayPipe("RelayPipe", new POP3Relay(), handler, port, "127.0.0.1", server.socket.getLocalPort());
+        pipe.setDaemon(true);
+        pipe.start();
+
+        try {
+            Socket s = connect(port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+            assertEquals("+OK fake POP3", in.readLine());
+
+            // everything at once, answered in order
+            out.write("LIST\r\nRETR 1\r\nSTLS\r\nRETR 2\r\nCAPA\r\nQUIT\r\n");
+            out.flush();
+
+            assertEquals("+OK\n1 120\n2 200\n.\n", readMultiline(in));
+            assertEquals("+OK Message follows.\nSUBJECT: ONE\n\n..DOT\n.\n", readMultiline(in));
+            assertEquals("-ERR TLS is not available through the proxy.", in.readLine());
+            assertEquals("-ERR Mail transfer aborted by user", in.readLine());
+            assertEquals("+OK\nTOP\nPIPELINING\n.\n", readMultiline(in));
+            assertEquals("+OK bye", in.readLine());
+            assertNull(in.readLine());
+            s.close();
+
+            // the commands reach the server as they were sent, apart from STLS
+            assertEquals("[LIST, RETR 1, RETR 2, CAPA, QUIT]", server.lines.toString());
+            assertEquals("[]", handler.envelopes.toString());
+        } finally {
+            pipe.stopPipe();
+            server.socket.close();
+        }
+    }
+
+    public void testSMTP() throws Exception {
+        FakeServer server = new FakeServer("220 fake SMTP\r\n");
+        server.responses.put("EHLO", "250-fake\r\n250-PIPELINING\r\n250-CHUNKING\r\n250 STARTTLS\r\n");
+        server.responses.put("MAIL", "250 sender ok\r\n");
+        server.responses.put("RCPT TO:<A@EXAMPLE.COM>", "250 recipient ok\r\n");
+        server.responses.put("RCPT TO:<B@EXAMPLE.COM>", "550 no such user\r\n");
+        server.responses.put("DATA", "354 go ahead\r\n");
+        server.responses.put("RSET", "250 reset\r\n");
+        server.responses.put("QUIT", "221 bye\r\n");
+        server.start();
+
+        Handler handler = new Handler();
+        int port = freePort();
+        RelayPipe pipe = new RelayPipe("RelayPipe", new SMTPRelay(), handler, port, "127.0.0.1", server.socket.getLocalPort());
+        pipe.setDaemon(true);
+        pipe.start();
+
+        try {
+            Socket s = connect(port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+            assertEquals("220 fake SMTP", in.readLine());
+
+            // pipelined envelope
+            out.write("EHLO me\r\nMAIL FROM:<me@example.com>\r\nRCPT TO:<a@example.com>\r\nRCPT TO:<b@example.com>\r\nDATA\r\n");
+            out.flush();
+
+            assertEquals("250-fake\n250 PIPELINING\n", readReply(in));
+            assertEquals("250 sender ok", in.readLine());
+            assertEquals("250 recipient ok", in.readLine());
+            assertEquals("550 no such user", in.readLine());
+            assertTrue(in.readLine().startsWith("354"));
+
+            out.write("Subject: hello\r\n\r\n..dot\r\n.\r\n");
+            out.flush();
+            assertEquals("250 queued", in.readLine());
+
+            // an email that can not be processed never reaches the server
+            out.write("MAIL FROM:<me@example.com>\r\nRCPT TO:<a@example.com>\r\nDATA\r\n");
+            out.flush();
+            assertEquals("250 sender ok", in.readLine());
+            assertEquals("250 recipient ok", in.readLine());
+            assertTrue(in.readLine().startsWith("354"));
+            out.write("Subject: fail\r\n\r\nbody\r\n.\r\nSTARTTLS\r\nQUIT\r\n");
+            out.flush();
+            assertEquals("554 5.6.0 Mail transfer aborted by user", in.readLine());
+            assertEquals("454 4.7.0 TLS is not available through the proxy.", in.readLine());
+            assertEquals("221 bye", in.readLine());
+            s.close();
+
+            assertEquals("[me@example.com [a@example.com]]", handler.envelopes.toString());
+            // as sent on the wire, dot stuffed again
+            assertEquals("[SUBJECT: HELLO\r\n\r\n..DOT\r\n]", server.data.toString());
+            assertEquals("[EHLO me, MAIL FROM:<me@example.com>, RCPT TO:<a@example.com>, RCPT TO:<b@example.com>, DATA, "
+                + "MAIL FROM:<me@example.com>, RCPT TO:<a@example.com>, RSET, QUIT]", server.lines.toString());
+        } finally {
+            pipe.stopPipe();
+            server.socket.close();
+        }
+    }
+
+    public void testSMTPAfterRefusedEmail() throws Exception {
+        FakeServer server = new FakeServer("220 fake SMTP\r\n");
+        server.strict = true;
+        server.responses.put("MAIL", "250 sender ok\r\n");
+        server.responses.put("RCPT", "250 recipient ok\r\n");
+        server.responses.put("DATA", "354 go ahead\r\n");
+        server.responses.put("RSET", "250 reset\r\n");
+        server.responses.put("QUIT", "221 bye\r\n");
+        server.start();
+
+        Handler handler = new Handler();
+        int port = freePort();
+        RelayPipe pipe = new RelayPipe("RelayPipe", new SMTPRelay(), handler, port, "127.0.0.1", server.socket.getLocalPort());
+        pipe.setDaemon(true);
+        pipe.start();
+
+        try {
+            Socket s = connect(port);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+            Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+            assertEquals("220 fake SMTP", in.readLine());
+
+            out.write("MAIL FROM:<me@example.com>\r\nRCPT TO:<a@example.com>\r\nDATA\r\n");
+            out.flush();
+            assertEquals("250 sender ok", in.readLine());
+            assertEquals("250 recipient ok", in.readLine());
+            assertTrue(in.readLine().startsWith("354"));
+            out.write("Subject: fail\r\n\r\nbody\r\n.\r\n");
+            out.flush();
+            assertEquals("554 5.6.0 Mail transfer aborted by user", in.readLine());
+
+            // the next email goes through, and the RSET response is not passed back
+            out.write("MAIL FROM:<me@example.com>\r\nRCPT TO:<a@example.com>\r\nDATA\r\n");
+            out.flush();
+            assertEquals("250 sender ok", in.readLine());
+            assertEquals("250 recipient ok", in.readLine());
+            assertTrue(in.readLine().startsWith("354"));
+            out.write("Subject: second\r\n\r\nbody\r\n.\r\nQUIT\r\n");
+            out.flush();
+            assertEquals("250 queued", in.readLine());
+            assertEquals("221 bye", in.readLine());
+            s.close();
+
+            assertEquals("[SUBJECT: SECOND\r\n\r\nBODY\r\n]", server.data.toString());
+        } finally {
+            pipe.stopPipe();
+            server.socket.close();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.*;
+import core.protocolhandlers.*;
+import core.iptp.*;
+import core.exceptions.MailRejectedException;
+import core.keyhandlers.KeyHandler;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * <p>Checks the SMTP connection pool against a small fake SMTP server: connections are reused, reset, health 
+ * checked, evicted when idle and limited per host, and log in when given a user name. Also checks that the outgoing
+ * pipe sends email and checks the client's login over the pool.</p>
+ */
+public class TestSMTPConnectionPool extends TestCase {
+
+    /** 
+     * A minimal SMTP server that answers every command with success and records what it was sent. The only login
+     * it accepts is alice / secret.
+     */
+    private static class FakeSMTPServer extends Thread {
+        ServerSocket socket;
+        Vector commands = new Vector();
+        Vector connections = new Vector();
+        int accepted;
+
+        FakeSMTPServer() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+            start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        synchronized int getAccepted() {
+            return accepted;
+        }
+
+        /** Drop every open connection without saying goodbye. */
+        synchronized void dropAll() throws IOException {
+            for (int n = 0; n < connections.size(); n++)
+                ((Socket)connections.elementAt(n)).close();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket s = socket.accept();
+                    synchronized (this) {
+                        accepted++;
+                        connections.add(s);
+                    }
+
+                    new Thread() {
+                        public void run() {
+                            serve(s);
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        void serve(Socket s) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                Writer out = new OutputStreamWriter(s.getOutputStream());
+
+                out.write("220 fake ESMTP\r\n");
+                out.flush();
+
+                String line;
+                boolean data = false;
+                while ((line = in.readLine()) != null) {
+                    if (data) {
+                        if (line.equals(".")) {
+                            data = false;
+                            out.write("250 queued\r\n");
+                            out.flush();
+                        }
+                        continue;
+                    }
+
+                    String command = line.toUpperCase();
+                    if (command.indexOf(' ') > 0)
+                        command = command.substring(0, command.indexOf(' '));
+                    commands.add(command);
+
+                    if (command.equals("EHLO")) {
+                        out.write("250-fake\r\n250-AUTH PLAIN\r\n250 8BITMIME\r\n");
+                    } else if (command.equals("AUTH")) {
+                        out.write(line.equals("AUTH PLAIN AGFsaWNlAHNlY3JldA==") ? "235 welcome\r\n" : "535 bad login\r\n");
+                    } else if (command.equals("DATA")) {
+                        data = true;
+                        out.write("354 go ahead\r\n");
+                    } else if (command.equals("QUIT")) {
+                        out.write("221 bye\r\n");
+                        out.flush();
+                        break;
+                    } else {
+                        out.write("250 ok\r\n");
+                    }
+                    out.flush();
+                }
+                s.close();
+            } catch (IOException e) {
+                // dropped
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+            dropAll();
+        }
+
+        /** Return the number of times the server was sent a command. */
+        synchronized int count(String command) {
+            int count = 0;
+            for (int n = 0; n < commands.size(); n++)
+                if (command.equals(commands.elementAt(n)))
+                    count++;
+            return count;
+        }
+    }
+
+    private FakeSMTPServer server;
+
+    protected void setUp() throws Exception {
+        server = new FakeSMTPServer();
+    }
+
+    protected void tearDown() throws Exception {
+        server.close();
+    }
+
+    private void sendMail(SMTPHandler handler) throws Exception {
+        handler.sendCommand(new IPTPMail("alice@example.com"));
+        assertTrue(handler.awaitCommandResponse().isOk());
+        handler.sendCommand(new IPTPRcpt("bob@example.com"));
+        assertTrue(handler.awaitCommandResponse().isOk());
+        handler.sendCommand(new IPTPData());
+        assertTrue(handler.awaitCommandResponse().isOk());
+        handler.sendCommand(new IPTPSendData("Subject: test\r\n\r\nHello"));
+        assertTrue(handler.awaitCommandResponse().isOk());
+    }
+
+    public void testReuse() throws Exception {
+        SMTPConnectionPool pool = new SMTPConnectionPool(2, 60000, 60000);
+
+        for (int n = 0; n < 3; n++) {
+            SMTPHandler handler = pool.acquire("127.0.0.1", server.getPort());
+            sendMail(handler);
+            pool.release(handler, true);
+        }
+
+        assertEquals(1, server.getAccepted());
+        assertEquals(1, pool.getOpenedCount());
+        assertEquals(2, pool.getReusedCount());
+        assertEquals(1, pool.getIdleConnections("127.0.0.1", server.getPort()));
+        assertTrue(server.commands.contains("EHLO"));
+        assertTrue(server.commands.contains("RSET"));
+
+        pool.close();
+        assertEquals(0, pool.getOpenConnections("127.0.0.1", server.getPort()));
+    }
+
+    public void testHealthCheck() throws Exception {
+        // check every reuse
+        SMTPConnectionPool pool = new SMTPConnectionPool(2, 60000, 0);
+
+        SMTPHandler handler = pool.acquire("127.0.0.1", server.getPort());
+        pool.release(handler, true);
+
+        // the server drops the idle connection, the NOOP check fails and a new one is opened
+        server.dropAll();
+        Thread.sleep(50);
+
+        handler = pool.acquire("127.0.0.1", server.getPort());
+        sendMail(handler);
+        pool.release(handler, true);
+
+        assertEquals(2, server.getAccepted());
+        assertEquals(1, pool.getOpenConnections("127.0.0.1", server.getPort()));
+        pool.close();
+    }
+
+    public void testIdleEviction() throws Exception {
+        SMTPConnectionPool pool = new SMTPConnectionPool(2, 50, 0);
+
+        SMTPHandler handler = pool.acquire("127.0.0.1", server.getPort());
+        pool.release(handler, true);
+        assertEquals(1, pool.getIdleConnections("127.0.0.1", server.getPort()));
+
+        Thread.sleep(200);
+        pool.evictIdle();
+
+        assertEquals(0, pool.getIdleConnections("127.0.0.1", server.getPort()));
+        assertEquals(0, pool.getOpenConnections("127.0.0.1", server.getPort()));
+        assertTrue(server.commands.contains("QUIT"));
+        pool.close();
+    }
+
+    public void testLimit() throws Exception {
+        final SMTPConnectionPool pool = new SMTPConnectionPool(1, 60000, 60000);
+        final SMTPHandler first = pool.acquire("127.0.0.1", server.getPort());
+
+        // give the connection back after a while, the second acquire has to wait for it
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                pool.release(first, true);
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        SMTPHandler second = pool.acquire("127.0.0.1", server.getPort());
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertSame(first, second);
+        assertEquals(1, server.getAccepted());
+
+        // a broken connection is not reused
+        pool.release(second, false);
+        assertEquals(0, pool.getOpenConnections("127.0.0.1", server.getPort()));
+
+        pool.close();
+    }
+
+    public void testLogin() throws Exception {
+        SMTPConnectionPool pool = new SMTPConnectionPool(2, 60000, 60000);
+
+        // a refused login is not kept
+        try {
+            pool.acquire("127.0.0.1", server.getPort(), "alice", "wrong");
+            fail("Login should have been refused");
+        } catch (MailRejectedException e) {
+            assertTrue(e.isPermanent());
+        }
+        assertEquals(0, pool.getOpenConnections("127.0.0.1", server.getPort(), "alice", "wrong"));
+
+        SMTPHandler handler = pool.acquire("127.0.0.1", server.getPort(), "alice", "secret");
+        sendMail(handler);
+        pool.release(handler, true);
+
+        // connections are only reused for the same login
+        assertEquals(0, pool.getIdleConnections("127.0.0.1", server.getPort()));
+        assertEquals(1, pool.getIdleConnections("127.0.0.1", server.getPort(), "alice", "secret"));
+        handler = pool.acquire("127.0.0.1", server.getPort());
+        pool.release(handler, true);
+
+        handler = pool.acquire("127.0.0.1", server.getPort(), "alice", "secret");
+        sendMail(handler);
+        pool.release(handler, true);
+
+        assertEquals(3, server.getAccepted());
+        assertEquals(2, server.count("AUTH"));
+        assertEquals(1, pool.getIdleConnections("127.0.0.1", server.getPort()));
+        pool.close();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket s = new ServerSocket(0);
+        int port = s.getLocalPort();
+        s.close();
+        return port;
+    }
+
+    /** Send a line to the pipe and return the last line of its answer. */
+    private static String command(BufferedReader in, Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+
+        String reply;
+        do {
+            reply = in.readLine();
+        } while (reply.charAt(3) == '-');
+        return reply;
+    }
+
+    /** 
+     * Open a session with the pipe, returning its reader, writer and socket. The pipe closes its listening socket 
+     * between sessions, so a connection that is dropped before the greeting is tried again.
+     */
+    private static Object[] connect(int port) throws Exception {
+        for (int n = 0; n < 50; n++) {
+            try {
+                Socket s = new Socket("127.0.0.1", port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+                Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+                String greeting = in.readLine();
+                if ((greeting != null) && (greeting.startsWith("220")))
+                    return new Object[] {in, out, s};
+                s.close();
+            } catch (IOException e) {
+                // not listening yet
+            }
+            Thread.sleep(20);
+        }
+
+        fail("Could not connect to the pipe");
+        return null;
+    }
+
+    public void testPipe() throws Exception {
+        SMTPConnectionPool pool = new SMTPConnectionPool(2, 60000, 60000);
+        int port = freePort();
+
+        SMTPHandler pipeServer = new SMTPHandler();
+        pipeServer.initServerConnection(port);
+        SMTPHandler pipeClient = new SMTPHandler();
+        pipeClient.initClientConnection("127.0.0.1", server.getPort());
+        OutgoingEmailPipe pipe = new OutgoingEmailPipe(pipeServer, null, new KeyHandler[0], null, new KeyHandler[0], pipeClient, false, false);
+        pipe.setConnectionPool(pool, "127.0.0.1", server.getPort());
+        pipe.setDaemon(true);
+        pipe.start();
+
+        try {
+            for (int session = 0; session < 2; session++) {
+                Object c[] = connect(port);
+                BufferedReader in = (BufferedReader)c[0];
+                Writer out = (Writer)c[1];
+
+                if (session == 0) {
+                    // the pipe offers AUTH itself, and checks the login with the mail server
+                    out.write("EHLO client\r\n");
+                    out.flush();
+                    boolean auth = false;
+                    String reply;
+                    do {
+                        reply = in.readLine();
+                        auth |= reply.substring(4).startsWith("AUTH ");
+                    } while (reply.charAt(3) == '-');
+                    assertTrue(auth);
+
+                    assertTrue(command(in, out, "AUTH PLAIN AGFsaWNlAHdyb25n").startsWith("535"));
+                    assertTrue(command(in, out, "AUTH LOGIN").startsWith("334"));
+                    assertTrue(command(in, out, "YWxpY2U=").startsWith("334"));
+                    assertTrue(command(in, out, "c2VjcmV0").startsWith("235"));
+                } else {
+                    assertTrue(command(in, out, "AUTH PLAIN").startsWith("334"));
+                    assertTrue(command(in, out, "AGFsaWNlAHNlY3JldA==").startsWith("235"));
+                }
+
+                assertTrue(command(in, out, "MAIL FROM:<alice@example.com>").startsWith("250"));
+                assertTrue(command(in, out, "RCPT TO:<bob@example.com>").startsWith("250"));
+                assertTrue(command(in, out, "DATA").startsWith("354"));
+                assertTrue(command(in, out, "Subject: pooled\r\n\r\nHello\r\n.").startsWith("250"));
+                assertTrue(command(in, out, "QUIT").startsWith("221"));
+                ((Socket)c[2]).close();
+            }
+
+            // one connection refused the bad login, the other was logged in once and used for both sessions
+            assertEquals(2, server.getAccepted());
+            assertEquals(2, server.count("AUTH"));
+            assertEquals(2, server.count("MAIL"));
+            assertEquals(1, pool.getOpenedCount());
+        } finally {
+            pipe.stopPipe();
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.protocolhandlers.*;
+import core.iptp.*;
+import core.email.Email;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * <p>Checks the SMTP handler's use of PIPELINING, CHUNKING and 8BITMIME against a fake server, and the filtering
+ * of the extension list passed back to the email client.</p>
+ */
+public class TestSMTPPipelining extends TestCase {
+
+    /** A fake SMTP server that counts how many groups of commands the client sent (round trips). */
+    private static class FakeSMTPServer extends Thread {
+        ServerSocket socket;
+        String extensions[];
+        Vector lines = new Vector();
+        String chunk;
+        int roundTrips;
+
+        FakeSMTPServer(String extensions[]) throws IOException {
+            this.extensions = extensions;
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                Socket s = socket.accept();
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+                Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+                out.write("220 fake ESMTP\r\n");
+                out.flush();
+
+                String line;
+                boolean data = false;
+                boolean waiting = true;
+                while ((line = in.readLine()) != null) {
+                    lines.add(line);
+
+                    if (waiting) {
+                        roundTrips++;
+                        waiting = false;
+                    }
+
+                    String command = line.toUpperCase();
+
+                    if (data) {
+                        if (line.equals(".")) {
+                            data = false;
+                            out.write("250 queued\r\n");
+                        }
+                    } else if (command.startsWith("EHLO")) {
+                        out.write("250" + ((extensions.length > 0) ? "-" : " ") + "fake\r\n");
+                        for (int n = 0; n < extensions.length; n++)
+                            out.write("250" + ((n < extensions.length - 1) ? "-" : " ") + extensions[n] + "\r\n");
+                    } else if (command.startsWith("BDAT")) {
+                        StringTokenizer st = new StringTokenizer(line, " ");
+                        st.nextToken();
+                        char buffer[] = new char[Integer.parseInt(st.nextToken())];
+                        int read = 0;
+                        while (read < buffer.length)
+                            read += in.read(buffer, read, buffer.length - read);
+                        chunk = new String(buffer);
+                        out.write("250 queued\r\n");
+                    } else if (command.startsWith("DATA")) {
+                        data = true;
+                        out.write("354 go ahead\r\n");
+                    } else if (command.startsWith("RCPT TO:<NOBODY")) {
+                        out.write("550 no such user\r\n");
+                    } else if (command.startsWith("RCPT TO:<BUSY")) {
+                        out.write("450 mailbox busy\r\n");
+                    } else if (command.startsWith("QUIT")) {
+                        out.write("221 bye\r\n");
+                        out.flush();
+                        break;
+                    } else {
+                        out.write("250 ok\r\n");
+                    }
+
+                    // answer once everything the client sent in one go has been read
+                    if (!in.ready()) {
+                        out.flush();
+                        waiting = true;
+                    }
+                }
+                s.close();
+            } catch (IOException e) {
+                // dropped
+            }
+        }
+    }
+
+    private FakeSMTPServer server;
+    private SMTPHandler handler;
+
+    protected void tearDown() throws Exception {
+        handler.disconnectFromServer();
+        server.socket.close();
+    }
+
+    private void connect(String extensions[]) throws Exception {
+        server = new FakeSMTPServer(extensions);
+        handler = new SMTPHandler();
+        handler.initClientConnection("127.0.0.1", server.socket.getLocalPort());
+        handler.connect();
+        assertTrue(handler.awaitCommandResponse().isOk());
+        handler.sendCommand(new IPTPEhlo("localhost"));
+        assertTrue(handler.awaitCommandResponse().isOk());
+    }
+
+    private IPTPCommandResponse [] sendEnvelope(String recipient) throws Exception {
+        return handler.sendCommands(new IPTPCommand[] {
+            new IPTPMail("alice@example.com", "BODY=8BITMIME"), 
+            new IPTPRcpt("bob@example.com"), 
+            new IPTPRcpt(recipient) 
+        });
+    }
+
+    private static final String MESSAGE = "Subject: caf\u00e9\r\n\r\n.leading dot\r\nend\r\n";
+
+    public void testPipeliningAndChunking() throws Exception {
+        connect(new String[] { "PIPELINING", "CHUNKING", "8BITMIME", "SIZE 1000000" });
+        assertTrue(handler.isServerCapable("PIPELINING"));
+        assertTrue(handler.isServerCapable("SIZE"));
+        int before = server.roundTrips;
+
+        IPTPCommandResponse responses[] = sendEnvelope("carol@example.com");
+        for (int n = 0; n < responses.length; n++)
+            assertTrue(responses[n].isOk());
+
+        responses = handler.sendCommands(new IPTPCommand[] { new IPTPData(), new IPTPSendData(MESSAGE) });
+        assertTrue(responses[0].isOk());
+        assertTrue(responses[1].isOk());
+
+        // one round trip for the envelope, one for the message
+        assertEquals(2, server.roundTrips - before);
+        assertEquals("MAIL FROM:<alice@example.com> BODY=8BITMIME", server.lines.elementAt(1));
+        assertFalse(server.lines.contains("DATA"));
+        assertEquals("BDAT " + MESSAGE.length() + " LAST", server.lines.lastElement());
+        assertEquals(MESSAGE, server.chunk);
+    }
+
+    public void testEmail() throws Exception {
+        // an email is written straight to the server, over DATA or BDAT
+        String extensions[][] = { new String[0], new String[] { "CHUNKING" } };
+        for (int n = 0; n < extensions.length; n++) {
+            if (handler != null)
+                tearDown();
+            connect(extensions[n]);
+
+            assertTrue(sendEnvelope("carol@example.com")[2].isOk());
+            Email email = new Email(MESSAGE.getBytes("ISO-8859-1"));
+            email.setHeader("X-Changed", "yes");
+            IPTPCommandResponse responses[] = handler.sendCommands(new IPTPCommand[] { new IPTPData(), new IPTPSendData(email) });
+            assertTrue(responses[1].isOk());
+
+            if (n == 0) {
+                assertTrue(server.lines.contains("..leading dot"));
+                assertTrue(server.lines.contains("X-Changed: yes"));
+            } else {
+                assertEquals(new String(email.getBytes(), "ISO-8859-1"), server.chunk);
+            }
+        }
+    }
+
+    public void testRejectedRecipient() throws Exception {
+        connect(new String[] { "PIPELINING" });
+
+        IPTPCommandResponse responses[] = sendEnvelope("nobody@example.com");
+        assertTrue(responses[0].isOk());
+        assertTrue(responses[1].isOk());
+        assertFalse(responses[2].isOk());
+        assertTrue(responses[2].isPermanentFailure());
+        assertFalse(responses[1].isPermanentFailure());
+
+        // a 4xx reply may be retried
+        handler.sendCommand(new IPTPRelay("RSET\r\n"));
+        assertTrue(handler.awaitCommandResponse().isOk());
+        responses = sendEnvelope("busy@example.com");
+        assertFalse(responses[2].isOk());
+        assertFalse(responses[2].isPermanentFailure());
+    }
+
+    public void testNoExtensions() throws Exception {
+        connect(new String[0]);
+        int before = server.roundTrips;
+
+        IPTPCommandResponse responses[] = sendEnvelope("carol@example.com");
+        assertTrue(responses[2].isOk());
+        responses = handler.sendCommands(new IPTPCommand[] { new IPTPData(), new IPTPSendData(MESSAGE) });
+        assertTrue(responses[1].isOk());
+
+        // MAIL, RCPT, RCPT, DATA and the message each wait for an answer
+        assertEquals(5, server.roundTrips - before);
+        assertEquals("MAIL FROM:<alice@example.com>", server.lines.elementAt(1));
+        assertTrue(server.lines.contains("DATA"));
+        assertTrue(server.lines.contains("..leading dot"));
+        assertTrue(server.lines.contains("Subject: caf\u00e9"));
+    }
+
+    public void testClientSide() throws Exception {
+        ServerSocket tmp = new ServerSocket(0);
+        final int port = tmp.getLocalPort();
+        tmp.close();
+
+        server = new FakeSMTPServer(new String[0]);
+        handler = new SMTPHandler();
+        handler.initServerConnection(port);
+
+        final Vector received = new Vector();
+        Thread client = new Thread() {
+            public void run() {
+                try {
+                    Socket s = null;
+                    for (int n = 0; (s == null) && (n < 50); n++) {
+                        try {
+                            s = new Socket("127.0.0.1", port);
+                        } catch (IOException e) {
+                            Thread.sleep(20);
+                        }
+                    }
+
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+                    Writer out = new OutputStreamWriter(s.getOutputStream(), "ISO-8859-1");
+
+                    String line;
+                    do {
+                        line = in.readLine();
+                        received.add(line);
+                    } while (line.charAt(3) == '-');
+
+                    out.write("..leading dot\r\nend\r\n.\r\n");
+                    out.flush();
+                    s.close();
+                } catch (Exception e) {
+                    received.add(e.toString());
+                }
+            }
+        };
+        client.start();
+
+        handler.awaitConnection();
+
+        Vector extensions = new Vector();
+        extensions.add("CHUNKING");
+        extensions.add("8BITMIME");
+        extensions.add("BINARYMIME");
+        handler.sendCommandResponse(new IPTPEhloResponse("proxy", extensions));
+
+        handler.sendCommandResponse(new IPTPDataResponse(true));
+        IPTPCommand data = handler.awaitCommand();
+        client.join();
+        handler.disconnectFromClient();
+
+        assertEquals("250-proxy", received.elementAt(0));
+        assertEquals("250-8BITMIME", received.elementAt(1));
+        assertEquals("250 PIPELINING", received.elementAt(2));
+        assertEquals(".leading dot\r\nend\r\n", ((IPTPSendData)data).getMessageData());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import system.*;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>Checks that the status stream passes text on a whole number of lines at a time.</p>
+ */
+public class TestStatusOutputStream extends TestCase {
+
+    /** Records each piece of text it is given. */
+    private static class Recorder implements StatusOutputInterface {
+        Vector pieces = new Vector();
+
+        public void appendStatusText(String text) {
+            pieces.add(text);
+        }
+    }
+
+    public void testLines() throws Exception {
+        Recorder recorder = new Recorder();
+        PrintStream out = new PrintStream(new StatusOutputStream(recorder), false, "ISO-8859-1");
+
+        out.print("one\ntwo\nthr");
+        out.print("ee\n");
+        out.print("caf\u00e9");
+        assertEquals(2, recorder.pieces.size());
+        assertEquals("one\ntwo\n", recorder.pieces.elementAt(0));
+        assertEquals("three\n", recorder.pieces.elementAt(1));
+
+        // an unfinished line is passed on when flushed
+        out.flush();
+        assertEquals(3, recorder.pieces.size());
+        assertEquals("caf\u00e9", recorder.pieces.elementAt(2));
+
+        // flushing again does not repeat it
+        out.flush();
+        assertEquals(3, recorder.pieces.size());
+    }
+}
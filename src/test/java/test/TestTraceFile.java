@@ -0,0 +1,109 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.email.Email;
+import core.keyhandlers.KeyHandler;
+import core.algorithmhandlers.OpenPGPHandler;
+import core.algorithmhandlers.openpgp.util.SymmetricAlgorithmSettings;
+import system.TraceFile;
+
+import junit.framework.TestCase;
+import java.io.*;
+import java.util.Vector;
+
+/**
+ * <p>Checks that trace records are written to the trace file in the background, and that processing an incoming 
+ * email writes its timed sections.</p>
+ */
+public class TestTraceFile extends TestCase {
+
+    private File file;
+
+    protected void setUp() {
+        file = new File("TestTraceFile.log");
+        file.delete();
+        TraceFile.open(file);
+    }
+
+    protected void tearDown() {
+        TraceFile.close();
+        file.delete();
+    }
+
+    private Vector lines() throws IOException {
+        TraceFile.flush();
+
+        Vector lines = new Vector();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        String line;
+        while ((line = in.readLine()) != null)
+            lines.add(line);
+        in.close();
+        return lines;
+    }
+
+    public void testQuote() {
+        assertEquals("\"plain\"", TraceFile.quote("plain"));
+        assertEquals("\"a \\\"b\\\" \\\\ c\\r\\n\\u0001\"", TraceFile.quote("a \"b\" \\ c\r\n\u0001"));
+    }
+
+    public void testWrite() throws Exception {
+        for (int n = 0; n < 100; n++)
+            TraceFile.write("{\"n\":" + n + "}");
+
+        Vector lines = lines();
+        assertEquals(100, lines.size());
+        assertEquals("{\"n\":0}", lines.elementAt(0));
+        assertEquals("{\"n\":99}", lines.elementAt(99));
+
+        TraceFile.close();
+        assertFalse(TraceFile.isEnabled());
+        TraceFile.write("{\"n\":100}");
+        assertEquals(100, lines().size());
+    }
+
+    public void testIncomingMail() throws Exception {
+        OpenPGPHandler handler = new OpenPGPHandler(SymmetricAlgorithmSettings.CAST5);
+        Email email = new Email("Message-ID: <trace@example.com>\r\nSubject: plain\r\n\r\nNothing to see here.\r\n".getBytes("ISO-8859-1"));
+        handler.processIncomingMail(new KeyHandler[0], new KeyHandler[0], email, null);
+
+        Vector lines = lines();
+        assertEquals(1, lines.size());
+        String trace = (String)lines.elementAt(0);
+        assertTrue(trace, trace.startsWith("{\"time\":"));
+        assertTrue(trace, trace.indexOf("\"message\":\"<trace@example.com>\"") > 0);
+        assertTrue(trace, trace.indexOf("\"trace\":{\"name\":\"Processing incoming Email\",\"ms\":") > 0);
+        assertTrue(trace, trace.indexOf("\"children\":[{\"name\":\"Processing body\",\"ms\":") > 0);
+        assertTrue(trace, trace.endsWith("}}"));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Oxford Brookes University Secure Email Proxy 
+ * Copyright (C) 2002/3 Oxford Brookes University Secure Email Project
+ * http://secemail.brookes.ac.uk
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * The Secure Email Project is:
+ * 
+ * Marcus Povey <mpovey@brookes.ac.uk> or <icewing@dushka.co.uk>
+ * Damian Branigan <dbranigan@brookes.ac.uk>
+ * George Davson <gdavson@brookes.ac.uk>
+ * David Duce <daduce@brookes.ac.uk>
+ * Simon Hogg <simon.hogg@brookes.ac.uk>
+ * Faye Mitchell <frmitchell@brookes.ac.uk>
+ * 
+ * For further information visit the secure email project website.
+ */
+
+package test;
+
+import core.protocolhandlers.Verb;
+
+import junit.framework.TestCase;
+
+/**
+ * <p>Checks that command verbs and response codes are recognised from the bytes of a line.</p>
+ */
+public class TestVerb extends TestCase {
+
+    private byte[] bytes(String s) throws Exception {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    private int first(String line, boolean dash) throws Exception {
+        byte b[] = bytes(line);
+        return Verb.first(b, 0, b.length, dash);
+    }
+
+    public void testVerbs() throws Exception {
+        assertEquals(Verb.RETR, first("RETR 1", false));
+        assertEquals(Verb.RETR, first("retr 1\r\n", false));
+        assertEquals(Verb.TOP, first("Top 1 10", false));
+        assertEquals(Verb.QUIT, first("  quit", false));
+        assertEquals(Verb.OK, first("+ok Message follows.", false));
+        assertEquals(Verb.NONE, first("", false));
+        assertEquals(Verb.NONE, first("STARTTLS", false));
+        assertFalse(Verb.QUIT == first("QUI", false));
+
+        // a dash separates words only when asked to
+        assertEquals(Verb.USER, first("USER-name", true));
+        assertEquals(Verb.NONE, first("USER-name", false));
+    }
+
+    public void testCodes() throws Exception {
+        byte b[] = bytes("250-mail.example.com");
+        assertEquals(250, Verb.code(b, 0, b.length));
+        b = bytes("354");
+        assertEquals(354, Verb.code(b, 0, b.length));
+        b = bytes("25x ok");
+        assertEquals(-1, Verb.code(b, 0, b.length));
+        b = bytes("2500 ok");
+        assertEquals(-1, Verb.code(b, 0, b.length));
+    }
+
+    public void testParseInt() throws Exception {
+        byte b[] = bytes("LIST 42");
+        assertEquals(42, Verb.parseInt(b, 5, b.length));
+        b = bytes("-7");
+        assertEquals(-7, Verb.parseInt(b, 0, b.length));
+
+        b = bytes("RETR x1");
+        try {
+            Verb.parseInt(b, 5, b.length);
+            fail();
+        } catch (NumberFormatException e) {
+            // expected
+        }
+
+        b = bytes("99999999999");
+        try {
+            Verb.parseInt(b, 0, b.length);
+            fail();
+        } catch (NumberFormatException e) {
+            // expected
+        }
+    }
+}